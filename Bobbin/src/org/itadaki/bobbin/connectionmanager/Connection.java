@@ -8,9 +8,11 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -24,6 +26,11 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	 */
 	private final ConnectionManager connectionManager;
 
+	/**
+	 * The reactor of the ConnectionManager that owns this Connection's channel
+	 */
+	private final ConnectionManager.Reactor reactor;
+
 	/**
 	 * The SocketChannel that this Connection proxies
 	 */
@@ -37,7 +44,25 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	/**
 	 * {@code true} if writing has been requested, otherwise {@code false}
 	 */
-	private boolean writeEnabled = false;
+	private volatile boolean writeEnabled = false;
+
+	/**
+	 * {@code true} if writing has been suspended, otherwise {@code false}. While writing is
+	 * suspended the Connection does not report that it is writeable, whether or not writing has
+	 * been requested
+	 */
+	private volatile boolean writeSuspended = false;
+
+	/**
+	 * {@code true} if reading is enabled, otherwise {@code false}
+	 */
+	private volatile boolean readEnabled = true;
+
+	/**
+	 * {@code true} if the Connection is waiting in its reactor's queue for its interest in
+	 * reading and writing to be applied to its selection key
+	 */
+	private final AtomicBoolean interestChangeQueued = new AtomicBoolean (false);
 
 	/**
 	 * When the Connection is readable, the Connection's ConnectionManager will
@@ -120,6 +145,27 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	}
 
 
+	/**
+	 * Writes bytes directly from a region of a file to the connection. Where supported by the
+	 * operating system, the bytes are transferred without being copied through the heap.
+	 * As with {@link #write(ByteBuffer)}, fewer bytes than requested may be written, in which case
+	 * the transfer should be resumed from {@code position} plus the number of bytes written when
+	 * the connection is next writeable
+	 *
+	 * @param fileChannel The channel of the file to transfer bytes from
+	 * @param position The position within the file to start transferring from
+	 * @param count The maximum number of bytes to transfer
+	 * @return The number of bytes written, possibly zero
+	 * @throws IOException If the connection is closed or on any other I/O error
+	 */
+	public long transferFrom (FileChannel fileChannel, long position, long count) throws IOException {
+
+		long bytesWritten = fileChannel.transferTo (position, count, this.socketChannel);
+		return bytesWritten;
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see java.nio.channels.Channel#close()
 	 */
@@ -200,7 +246,44 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 
 		if (enabled != this.writeEnabled) {
 			this.writeEnabled = enabled;
-			this.connectionManager.setWriteEnabled (this, enabled);
+			this.connectionManager.interestChanged (this, enabled);
+		}
+
+	}
+
+
+	/**
+	 * Sets whether writing to the Connection is suspended. While writing is suspended, the
+	 * connection does not report that it is writeable even if writing has been enabled through
+	 * {@link #setWriteEnabled(boolean)}
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param suspended If {@code true}, writing is suspended
+	 */
+	public synchronized void setWriteSuspended (boolean suspended) {
+
+		if (suspended != this.writeSuspended) {
+			this.writeSuspended = suspended;
+			this.connectionManager.interestChanged (this, !suspended);
+		}
+
+	}
+
+
+	/**
+	 * Sets whether the Connection wishes to read data. Reading is initially enabled
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param enabled If {@code true}, the connection should report when it is
+	 * readable to its listener, if any
+	 */
+	public synchronized void setReadEnabled (boolean enabled) {
+
+		if (enabled != this.readEnabled) {
+			this.readEnabled = enabled;
+			this.connectionManager.interestChanged (this, enabled);
 		}
 
 	}
@@ -217,6 +300,64 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 	}
 
 
+	/**
+	 * Called by ConnectionManager to apply the Connection's interest in writing
+	 * @return {@code true} if writing has been requested and is not suspended, otherwise
+	 *         {@code false}
+	 */
+	boolean isWriteEnabled() {
+
+		return this.writeEnabled && !this.writeSuspended;
+
+	}
+
+
+	/**
+	 * Called by ConnectionManager to apply the Connection's interest in reading
+	 * @return {@code true} if reading is enabled, otherwise {@code false}
+	 */
+	boolean isReadEnabled() {
+
+		return this.readEnabled;
+
+	}
+
+
+	/**
+	 * Called by ConnectionManager when it needs to queue a change of the Connection's interest in
+	 * reading or writing
+	 * @return {@code true} if the Connection was not already queued, and should be queued by the
+	 *         caller, otherwise {@code false}
+	 */
+	boolean markInterestChangeQueued() {
+
+		return this.interestChangeQueued.compareAndSet (false, true);
+
+	}
+
+
+	/**
+	 * Called by ConnectionManager when it removes the Connection from the queue of interest
+	 * changes, before the change is applied
+	 */
+	void clearInterestChangeQueued() {
+
+		this.interestChangeQueued.set (false);
+
+	}
+
+
+	/**
+	 * Called by ConnectionManager when it needs to find the reactor that owns the Connection
+	 * @return The Connection's reactor
+	 */
+	ConnectionManager.Reactor getReactor() {
+
+		return this.reactor;
+
+	}
+
+
 	/**
 	 * Called by ConnectionManager to hint that the Connection is readable.
 	 * informListener() will be called after this method.
@@ -267,13 +408,26 @@ public class Connection implements ScatteringByteChannel, GatheringByteChannel {
 
 	/**
 	 * @param connectionManager The ConnectionManager that manages this Connection
+	 * @param reactor The reactor of the ConnectionManager that owns this Connection's channel
 	 * @param socketChannel The SocketChannel that this Connection will proxy
 	 */
-	public Connection (ConnectionManager connectionManager, SocketChannel socketChannel) {
+	Connection (ConnectionManager connectionManager, ConnectionManager.Reactor reactor, SocketChannel socketChannel) {
 
 		this.connectionManager = connectionManager;
+		this.reactor = reactor;
 		this.socketChannel = socketChannel;
 
 	}
 
+
+	/**
+	 * @param connectionManager The ConnectionManager that manages this Connection
+	 * @param socketChannel The SocketChannel that this Connection will proxy
+	 */
+	public Connection (ConnectionManager connectionManager, SocketChannel socketChannel) {
+
+		this (connectionManager, null, socketChannel);
+
+	}
+
 }
@@ -13,61 +13,133 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * A non-blocking network multiplexer
+ *
+ * <p>Channels are spread across a fixed set of reactors, each of which owns a selector and the
+ * thread that runs its selection loop. Every channel is registered with exactly one reactor,
+ * which carries out every change to its registration, and informs its listeners, on its own
+ * thread. Accepted connections are distributed across the reactors in turn. An outbound
+ * connection may be given an affinity key, so that connections with equal keys share a reactor
+ * and their listeners are never informed concurrently
  */
 public class ConnectionManager {
 
 	/**
-	 * The selection thread
+	 * The default number of reactors
 	 */
-	private final Thread selectionThread;
+	public static final int DEFAULT_REACTORS = Math.min (4, Runtime.getRuntime().availableProcessors());
 
 	/**
-	 * The selector for all monitored channels
+	 * The reactors
 	 */
-	private final Selector selector;
+	private final Reactor[] reactors;
 
 	/**
-	 * A list of changes waiting to be made to the selector environment. All
-	 * changes are executed from within the main selection loop in the running
-	 * manager thread
+	 * The index of the next reactor to assign an unaffiliated channel to
 	 */
-	private final List<Runnable> queuedTasks = new LinkedList<Runnable>();
+	private final AtomicInteger nextReactor = new AtomicInteger (0);
 
 	/**
-	 * A map connecting a server socket channel to its designated InboundConnectionListener
+	 * If {@code true}, the connection manager is shut down and the selection threads will exit
 	 */
-	private final Map<ServerSocketChannel,InboundConnectionListener> inboundConnectionListeners = new HashMap<ServerSocketChannel,InboundConnectionListener>();
+	private boolean closed = false;
 
-	/**
-	 * A map connecting a client socket channel to its designated OutboundConnectionListener
-	 */
-	private final Map<SocketChannel,OutboundConnectionListener> outboundConnectionListeners = new HashMap<SocketChannel,OutboundConnectionListener>();
 
 	/**
-	 * A map of pending connections and their timeouts
+	 * The deadline of a pending outbound connection
 	 */
-	private final Map<SocketChannel,Long> pendingConnections = new HashMap<SocketChannel,Long>();
+	private static class ConnectDeadline implements Comparable<ConnectDeadline> {
+
+		/**
+		 * The system time in milliseconds after which the connection is abandoned
+		 */
+		final long deadline;
+
+		/**
+		 * The connection's socket
+		 */
+		final SocketChannel socketChannel;
+
+		/* (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		public int compareTo (ConnectDeadline other) {
+			return (this.deadline < other.deadline) ? -1 : ((this.deadline == other.deadline) ? 0 : 1);
+		}
+
+		/**
+		 * @param deadline The system time in milliseconds after which the connection is abandoned
+		 * @param socketChannel The connection's socket
+		 */
+		ConnectDeadline (long deadline, SocketChannel socketChannel) {
+			this.deadline = deadline;
+			this.socketChannel = socketChannel;
+		}
+
+	}
 
-	/**
-	 * If {@code true}, the connection manager is shut down and the selection thread will exit
-	 */
-	private boolean closed = false;
 
 	/**
-	 * A Runnable for the selection loop thread
+	 * A selector and the thread that runs its selection loop
 	 */
-	private final Runnable selectionRunnable = new Runnable() {
+	class Reactor implements Runnable {
+
+		/**
+		 * The selection thread
+		 */
+		private final Thread selectionThread;
+
+		/**
+		 * The selector for the reactor's channels
+		 */
+		private final Selector selector;
+
+		/**
+		 * A queue of changes waiting to be made to the selector environment. All
+		 * changes are executed from within the main selection loop in the
+		 * reactor's thread
+		 */
+		private final ConcurrentLinkedQueue<Runnable> queuedTasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/**
+		 * A queue of connections whose interest in reading or writing has changed. A connection
+		 * is present at most once, and its current interests are applied when it is removed
+		 */
+		private final ConcurrentLinkedQueue<Connection> interestChanges = new ConcurrentLinkedQueue<Connection>();
+
+		/**
+		 * The connections that are ready in the current selection cycle. The list is reused
+		 * between cycles
+		 */
+		private final List<Connection> readyConnections = new ArrayList<Connection>();
+
+		/**
+		 * A map connecting a server socket channel to its designated InboundConnectionListener
+		 */
+		private final Map<ServerSocketChannel,InboundConnectionListener> inboundConnectionListeners = new HashMap<ServerSocketChannel,InboundConnectionListener>();
+
+		/**
+		 * A map connecting a client socket channel to its designated OutboundConnectionListener
+		 */
+		private final Map<SocketChannel,OutboundConnectionListener> outboundConnectionListeners = new HashMap<SocketChannel,OutboundConnectionListener>();
+
+		/**
+		 * The deadlines of pending connections, earliest first. A deadline is discarded without
+		 * effect if its connection is no longer pending when it falls due
+		 */
+		private final PriorityQueue<ConnectDeadline> connectDeadlines = new PriorityQueue<ConnectDeadline>();
+
 
 		/* (non-Javadoc)
 		 * @see java.lang.Runnable#run()
@@ -78,7 +150,7 @@ public class ConnectionManager {
 
 				synchronized (ConnectionManager.this) {
 					if (ConnectionManager.this.closed) {
-						for (SelectionKey key : ConnectionManager.this.selector.keys()) {
+						for (SelectionKey key : this.selector.keys()) {
 							try {
 								key.channel().close();
 							} catch (IOException e) {
@@ -93,15 +165,13 @@ public class ConnectionManager {
 
 					// Evaluate pending connections for timeouts
 					long currentTime = System.currentTimeMillis();
-					for (Iterator<SocketChannel> iterator = ConnectionManager.this.pendingConnections.keySet().iterator(); iterator.hasNext();) {
-						SocketChannel socketChannel = iterator.next();
-						long deadline = ConnectionManager.this.pendingConnections.get (socketChannel);
-						if (currentTime > deadline) {
+					while (!this.connectDeadlines.isEmpty() && (currentTime > this.connectDeadlines.peek().deadline)) {
+						SocketChannel socketChannel = this.connectDeadlines.poll().socketChannel;
+						OutboundConnectionListener listener = this.outboundConnectionListeners.remove (socketChannel);
+						if (listener != null) {
 							// Cancel the connection
-							iterator.remove();
-							SelectionKey key = socketChannel.keyFor (ConnectionManager.this.selector);
+							SelectionKey key = socketChannel.keyFor (this.selector);
 							Connection connection = (Connection) key.attachment();
-							OutboundConnectionListener listener = ConnectionManager.this.outboundConnectionListeners.remove (socketChannel);
 							listener.rejected (connection);
 							socketChannel.close();
 							key.cancel();
@@ -109,19 +179,40 @@ public class ConnectionManager {
 					}
 
 					// Execute any requested actions
-					synchronized (ConnectionManager.this.queuedTasks) {
-						for (Runnable change : ConnectionManager.this.queuedTasks) {
-							change.run();
+					Runnable task;
+					while ((task = this.queuedTasks.poll()) != null) {
+						task.run();
+					}
+
+					// Apply any changes of interest in reading and writing
+					Connection changedConnection;
+					while ((changedConnection = this.interestChanges.poll()) != null) {
+						changedConnection.clearInterestChangeQueued();
+						SelectionKey key = changedConnection.getSocketChannel().keyFor (this.selector);
+						if ((key != null) && (key.isValid())) {
+							// We may have already closed the socket
+							int interestOps = key.interestOps();
+							int newInterestOps = changedConnection.isWriteEnabled() ? (interestOps | SelectionKey.OP_WRITE) : (interestOps & ~SelectionKey.OP_WRITE);
+							if ((interestOps & SelectionKey.OP_CONNECT) == 0) {
+								// Interest in reading is applied once an outbound connection completes
+								newInterestOps = changedConnection.isReadEnabled() ? (newInterestOps | SelectionKey.OP_READ) : (newInterestOps & ~SelectionKey.OP_READ);
+							}
+							if (newInterestOps != interestOps) {
+								key.interestOps (newInterestOps);
+							}
 						}
-						ConnectionManager.this.queuedTasks.clear();
 					}
 
-					// Wait for some data to come calling, or an intentional wakeup
-					ConnectionManager.this.selector.select (1000);
+					// Wait for some data to come calling, an intentional wakeup, or the next connect
+					// deadline
+					long timeout = 1000;
+					if (!this.connectDeadlines.isEmpty()) {
+						timeout = Math.max (1, Math.min (timeout, this.connectDeadlines.peek().deadline - currentTime + 1));
+					}
+					this.selector.select (timeout);
 
 					// Respond to any incoming events
-					Set<Connection> readyConnections = new HashSet<Connection>();
-					Iterator<SelectionKey> selectedKeys = ConnectionManager.this.selector.selectedKeys().iterator();
+					Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
 
 					while (selectedKeys.hasNext()) {
 						SelectionKey key = selectedKeys.next();
@@ -133,135 +224,253 @@ public class ConnectionManager {
 						if (key.isValid() && key.isConnectable()) {
 							processConnect (key);
 						}
+						boolean ready = false;
 						if (key.isValid() && key.isReadable()) {
-							Connection connection = (Connection) key.attachment();
-							connection.setReadable();
-							readyConnections.add (connection);
+							((Connection) key.attachment()).setReadable();
+							ready = true;
 						}
 						if (key.isValid() && key.isWritable()) {
-							Connection connection = (Connection) key.attachment();
-							connection.setWriteable();
-							readyConnections.add (connection);
+							((Connection) key.attachment()).setWriteable();
+							ready = true;
+						}
+						if (ready) {
+							this.readyConnections.add ((Connection) key.attachment());
 						}
 					}
 
-					for (Connection connection : readyConnections) {
-						connection.informListener();
+					for (int i = 0; i < this.readyConnections.size(); i++) {
+						this.readyConnections.get (i).informListener();
 					}
 
 				} catch (Exception e) {
 					e.printStackTrace();
+				} finally {
+					this.readyConnections.clear();
 				}
 
 			}
 
 		}
 
-	};
 
+		/**
+		 * Queues a change to be made from within the selection loop, and wakes the selection
+		 * thread if required
+		 *
+		 * @param task The change to make
+		 * @param wakeup If {@code true}, the selection thread is woken to make the change when it
+		 *        is called from another thread
+		 */
+		private void queue (Runnable task, boolean wakeup) {
 
-	/**
-	 * Accept a new incoming connection
-	 * 
-	 * @param key a ServerSocketChannel's selection key
-	 * @throws IOException
-	 */
-	private void processAccept (SelectionKey key) throws IOException {
+			this.queuedTasks.offer (task);
 
-		// Accept the new socket and register it with the selector
-		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-		SocketChannel socketChannel = serverSocketChannel.accept();
-		socketChannel.configureBlocking (false);
+			if (wakeup && (Thread.currentThread() != this.selectionThread)) {
+				this.selector.wakeup();
+			}
 
-		// Set up and track the Connection
-		Connection connection = new Connection (this, socketChannel);
-		SelectionKey socketKey = socketChannel.register (this.selector, SelectionKey.OP_READ);
-		socketKey.attach (connection);
+		}
 
-		// Notify the InboundConnectionListener of the socket's connection
-		InboundConnectionListener listener = this.inboundConnectionListeners.get (serverSocketChannel);
-		listener.accepted (connection);
 
-	}
+		/**
+		 * Accept a new incoming connection, and hand it to the next reactor in turn
+		 * 
+		 * @param key a ServerSocketChannel's selection key
+		 * @throws IOException
+		 */
+		private void processAccept (SelectionKey key) throws IOException {
 
+			// Accept the new socket
+			ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+			SocketChannel socketChannel = serverSocketChannel.accept();
+			if (socketChannel == null) {
+				return;
+			}
+			socketChannel.configureBlocking (false);
+
+			InboundConnectionListener listener = this.inboundConnectionListeners.get (serverSocketChannel);
+			Reactor reactor = nextReactor();
+			if (reactor == this) {
+				registerAccepted (socketChannel, listener);
+			} else {
+				reactor.queueRegisterAccepted (socketChannel, listener);
+			}
 
-	/**
-	 * Complete a new outgoing connection
-	 * 
-	 * @param key a ServerSocketChannel's selection key
-	 */
-	private void processConnect (SelectionKey key) {
-
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		OutboundConnectionListener listener = this.outboundConnectionListeners.get (socketChannel);
-		Connection connection = (Connection) key.attachment();
-		if (socketChannel.isConnectionPending()) {
-			try {
-				if (socketChannel.finishConnect()) {
-					key.interestOps (SelectionKey.OP_READ);
-					listener.connected (connection);
-					this.pendingConnections.remove (socketChannel);
-					this.outboundConnectionListeners.remove (socketChannel);
+		}
+
+
+		/**
+		 * Queues an accepted socket to be registered with this reactor
+		 *
+		 * @param socketChannel The accepted socket
+		 * @param listener The listener to inform of the connection
+		 */
+		private void queueRegisterAccepted (final SocketChannel socketChannel, final InboundConnectionListener listener) {
+
+			queue (new Runnable() {
+				public void run() {
+					try {
+						registerAccepted (socketChannel, listener);
+					} catch (IOException e) {
+						// Nothing much we can do about this
+						e.printStackTrace();
+					}
 				}
-			} catch (IOException e) {
-				listener.rejected (connection);
+			}, true);
+
+		}
+
+
+		/**
+		 * Registers an accepted socket with this reactor's selector, and informs its listener
+		 *
+		 * @param socketChannel The accepted socket
+		 * @param listener The listener to inform of the connection
+		 * @throws IOException
+		 */
+		private void registerAccepted (SocketChannel socketChannel, InboundConnectionListener listener) throws IOException {
+
+			// Set up and track the Connection
+			Connection connection = new Connection (ConnectionManager.this, this, socketChannel);
+			SelectionKey socketKey = socketChannel.register (this.selector, SelectionKey.OP_READ);
+			socketKey.attach (connection);
+
+			// Notify the InboundConnectionListener of the socket's connection
+			listener.accepted (connection);
+
+		}
+
+
+		/**
+		 * Complete a new outgoing connection
+		 * 
+		 * @param key a ServerSocketChannel's selection key
+		 */
+		private void processConnect (SelectionKey key) {
+
+			SocketChannel socketChannel = (SocketChannel) key.channel();
+			OutboundConnectionListener listener = this.outboundConnectionListeners.get (socketChannel);
+			Connection connection = (Connection) key.attachment();
+			if (socketChannel.isConnectionPending()) {
 				try {
-					socketChannel.close();
-				} catch (IOException e1) {
-					// Shouldn't happen
+					if (socketChannel.finishConnect()) {
+						key.interestOps (connection.isReadEnabled() ? SelectionKey.OP_READ : 0);
+						listener.connected (connection);
+						this.outboundConnectionListeners.remove (socketChannel);
+					}
+				} catch (IOException e) {
+					listener.rejected (connection);
+					try {
+						socketChannel.close();
+					} catch (IOException e1) {
+						// Shouldn't happen
+					}
+					key.cancel();
+					this.outboundConnectionListeners.remove (socketChannel);
 				}
-				key.cancel();
-				this.pendingConnections.remove (socketChannel);
-				this.outboundConnectionListeners.remove (socketChannel);
 			}
+
 		}
 
 
-	}
+		/**
+		 * Queues a server socket to be registered with this reactor
+		 *
+		 * @param serverSocketChannel The server socket
+		 * @param listener The listener to inform of connections to the server socket
+		 */
+		private void listen (final ServerSocketChannel serverSocketChannel, final InboundConnectionListener listener) {
+
+			queue (new Runnable() {
+				public void run() {
+					try {
+						serverSocketChannel.register (Reactor.this.selector, SelectionKey.OP_ACCEPT);
+						Reactor.this.inboundConnectionListeners.put (serverSocketChannel, listener);
+					} catch (ClosedChannelException e) {
+						// Nothing much we can do about this
+						e.printStackTrace();
+					}
+				}
+			}, true);
+
+		}
 
 
-	/**
-	 * Add or remove a Connection to the selection set for writing
-	 *
-	 * @param connection
-	 * @param enabled
-	 */
-	void setWriteEnabled (final Connection connection, final boolean enabled) {
+		/**
+		 * Queues an outbound connection to be opened through this reactor
+		 *
+		 * @param socketChannel The unconnected socket
+		 * @param remoteAddress The address to connect to
+		 * @param remotePort The port to connect to
+		 * @param listener The listener to inform of the connection's status
+		 * @param connectTimeout The number of milliseconds to wait before giving up trying to connect
+		 * @return The Connection object for the new connection
+		 */
+		private Connection connect (final SocketChannel socketChannel, final InetAddress remoteAddress, final int remotePort,
+				final OutboundConnectionListener listener, final int connectTimeout)
+		{
+
+			final Connection connection = new Connection (ConnectionManager.this, this, socketChannel);
 
-		// Queue the action to be carried out before the next select cycle
-		synchronized (this.queuedTasks) {
-			this.queuedTasks.add (new Runnable() {
+			queue (new Runnable() {
 				public void run() {
-					SelectionKey key = connection.getSocketChannel().keyFor (ConnectionManager.this.selector);
-					if ((key != null) && (key.isValid())) {
-						// We may have already closed the socket
-						if (enabled) {
-							key.interestOps (key.interestOps() | SelectionKey.OP_WRITE);
-						} else {
-							key.interestOps (key.interestOps() & ~SelectionKey.OP_WRITE);
+					try {
+						boolean completeConnection = socketChannel.connect (new InetSocketAddress (remoteAddress, remotePort));
+						SelectionKey key = socketChannel.register (Reactor.this.selector, SelectionKey.OP_CONNECT);
+						key.attach (connection);
+						if (connectTimeout != 0) {
+							Reactor.this.connectDeadlines.add (new ConnectDeadline (System.currentTimeMillis() + (connectTimeout * 1000), socketChannel));
+						}
+						Reactor.this.outboundConnectionListeners.put (socketChannel, listener);
+						if (completeConnection) {
+							processConnect (key);
 						}
+					} catch (IOException e) {
+						// Shouldn't happen and nothing much we can do
+						e.printStackTrace();
 					}
 				}
-			});
+			}, true);
+
+			return connection;
+
 		}
 
-	}
 
+		/**
+		 * Queues a Connection for its interest in reading and writing to be applied to the
+		 * selection set. A Connection that is already queued is not queued again
+		 *
+		 * @param connection The connection
+		 * @param enabled {@code true} if the connection's interest in reading or writing has been
+		 *        enabled
+		 */
+		private void interestChanged (Connection connection, boolean enabled) {
 
-	/**
-	 * Informs the ConnectionManager that a connection has closed. A Connection
-	 * calls this method with itself as an argument when
-	 * {@link Connection#close()} is called
-	 *
-	 * @param connection The Connection to close
-	 */
-	void connectionClosed (final Connection connection) {
+			if (connection.markInterestChangeQueued()) {
+				this.interestChanges.offer (connection);
+			}
+
+			// A connection may be enabled for reading or writing from outside the selection thread,
+			// for instance when an asynchronous disk read completes
+			if (enabled && (Thread.currentThread() != this.selectionThread)) {
+				this.selector.wakeup();
+			}
 
-		// Queue the action to be carried out before the next select cycle
-		synchronized (this.queuedTasks) {
-			this.queuedTasks.add (new Runnable() {
+		}
+
+
+		/**
+		 * Closes a connection owned by this reactor
+		 *
+		 * @param connection The Connection to close
+		 */
+		private void connectionClosed (final Connection connection) {
+
+			// Queue the action to be carried out before the next select cycle
+			queue (new Runnable() {
 				public void run() {
-					SelectionKey key = connection.getSocketChannel().keyFor (ConnectionManager.this.selector);
+					SelectionKey key = connection.getSocketChannel().keyFor (Reactor.this.selector);
 					if (key != null) {
 						key.cancel();
 						try {
@@ -272,12 +481,93 @@ public class ConnectionManager {
 						}
 					}
 				}
-			});
+			}, false);
+
+		}
+
+
+		/**
+		 * Wakes the selection thread and waits for it to exit
+		 */
+		private void close() {
+
+			this.selector.wakeup();
+
+			while (this.selectionThread.isAlive ()) {
+				try {
+					this.selectionThread.join();
+				} catch (InterruptedException e) {
+					// Retry
+				}
+			}
+
+		}
+
+
+		/**
+		 * @param name The name of the selection thread
+		 * @throws IOException
+		 */
+		Reactor (String name) throws IOException {
+
+			this.selector = SelectorProvider.provider().openSelector();
+
+			this.selectionThread = new Thread (this, name);
+			this.selectionThread.setDaemon (true);
+
 		}
 
 	}
 
 
+	/**
+	 * Add or remove a Connection to the selection set for reading or writing. The change is made
+	 * by the reactor that owns the Connection
+	 *
+	 * @param connection
+	 * @param enabled
+	 */
+	void interestChanged (Connection connection, boolean enabled) {
+
+		connection.getReactor().interestChanged (connection, enabled);
+
+	}
+
+
+	/**
+	 * Informs the ConnectionManager that a connection has closed. A Connection
+	 * calls this method with itself as an argument when
+	 * {@link Connection#close()} is called
+	 *
+	 * @param connection The Connection to close
+	 */
+	void connectionClosed (Connection connection) {
+
+		connection.getReactor().connectionClosed (connection);
+
+	}
+
+
+	/**
+	 * @return The next reactor in turn to assign an unaffiliated channel to
+	 */
+	private Reactor nextReactor() {
+
+		return this.reactors[(this.nextReactor.getAndIncrement() & Integer.MAX_VALUE) % this.reactors.length];
+
+	}
+
+
+	/**
+	 * @return The number of reactors
+	 */
+	public int getReactorCount() {
+
+		return this.reactors.length;
+
+	}
+
+
 	/**
 	 * Binds to a given address and TCP port
 	 * 
@@ -294,32 +584,15 @@ public class ConnectionManager {
 			throw new IOException ("ConnectionManager is closed");
 		}
 
-		// Open a server channel and register it with the selector
-		final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+		// Open a server channel
+		ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
 		serverSocketChannel.configureBlocking (false);
 		InetSocketAddress socketAddress = new InetSocketAddress (listenAddress, listenPort);
 		serverSocketChannel.socket().bind (socketAddress);
 		int boundPort = serverSocketChannel.socket().getLocalPort();
 
-		// Associate the server channel with the specified listener
-		this.inboundConnectionListeners.put (serverSocketChannel, listener);
-
-		// Queue the server socket for registration, asynchronously
-		synchronized (this.queuedTasks) {
-			this.queuedTasks.add (new Runnable() {
-				public void run() {
-					try {
-						serverSocketChannel.register (ConnectionManager.this.selector, SelectionKey.OP_ACCEPT);
-					} catch (ClosedChannelException e) {
-						// Nothing much we can do about this
-						e.printStackTrace();
-					}
-				}
-			});
-		}
-
-		// Kick the main loop to process the socket registration
-		this.selector.wakeup();
+		// Queue the server socket for registration with its listener, asynchronously
+		nextReactor().listen (serverSocketChannel, listener);
 
 		// Return the actual port number we bound to
 		return boundPort;
@@ -337,50 +610,49 @@ public class ConnectionManager {
 	 * @return The Connection object for the new connection
 	 * @throws IOException if a socket could not be created or the manager is closed
 	 */
-	public synchronized Connection connect (final InetAddress remoteAddress, final int remotePort, final OutboundConnectionListener listener, 
-			final int connectTimeout) throws IOException
+	public Connection connect (InetAddress remoteAddress, int remotePort, OutboundConnectionListener listener, int connectTimeout)
+			throws IOException
+	{
+
+		return connect (remoteAddress, remotePort, listener, connectTimeout, null);
+
+	}
+
+
+	/**
+	 * Asynchronously makes a connection to a given address and TCP port. Connections made with
+	 * equal affinity keys are handled by the same reactor
+	 *
+	 * @param remoteAddress The address to connect to
+	 * @param remotePort The port to connect to
+	 * @param listener The listener to inform of the connection's status
+	 * @param connectTimeout The number of milliseconds to wait before giving up trying to connect
+	 * @param affinity The affinity key, or {@code null} to assign the connection to the next
+	 *        reactor in turn
+	 * @return The Connection object for the new connection
+	 * @throws IOException if a socket could not be created or the manager is closed
+	 */
+	public synchronized Connection connect (InetAddress remoteAddress, int remotePort, OutboundConnectionListener listener,
+			int connectTimeout, Object affinity) throws IOException
 	{
 
 		if (this.closed) {
 			throw new IOException ("ConnectionManager is closed");
 		}
 
-		final SocketChannel socketChannel = SocketChannel.open();
+		SocketChannel socketChannel = SocketChannel.open();
 		socketChannel.configureBlocking (false);
-		final Connection connection = new Connection (this, socketChannel);
 
-		// Queue the connection to be opened
-		synchronized (this.queuedTasks) {
-			this.queuedTasks.add (new Runnable() {
-				public void run() {
-					try {
-						boolean completeConnection = socketChannel.connect (new InetSocketAddress (remoteAddress, remotePort));
-						SelectionKey key = socketChannel.register (ConnectionManager.this.selector, SelectionKey.OP_CONNECT);
-						key.attach (connection);
-						Long deadline = (connectTimeout == 0) ? Long.MAX_VALUE : System.currentTimeMillis() + (connectTimeout * 1000);
-						ConnectionManager.this.pendingConnections.put (socketChannel, deadline);
-						ConnectionManager.this.outboundConnectionListeners.put (socketChannel, listener);
-						if (completeConnection) {
-							processConnect (key);
-						}
-					} catch (IOException e) {
-						// Shouldn't happen and nothing much we can do
-						e.printStackTrace();
-					}
-				}
-			});
-		}
-
-		// Kick the main loop to process the socket registration
-		this.selector.wakeup();
+		Reactor reactor = (affinity == null) ? nextReactor() : this.reactors[(affinity.hashCode() & Integer.MAX_VALUE) % this.reactors.length];
 
-		return connection;
+		// Queue the connection to be opened
+		return reactor.connect (socketChannel, remoteAddress, remotePort, listener, connectTimeout);
 
 	}
 
 
 	/**
-	 * Shuts down the selection thread, closing all pending and open connections and open sockets.
+	 * Shuts down the selection threads, closing all pending and open connections and open sockets.
 	 */
 	public void close() {
 
@@ -390,31 +662,45 @@ public class ConnectionManager {
 			}
 			this.closed = true;
 		}
-		this.selector.wakeup();
 
-		while (this.selectionThread.isAlive ()) {
-			try {
-				this.selectionThread.join();
-			} catch (InterruptedException e) {
-				// Retry
-			}
+		for (Reactor reactor : this.reactors) {
+			reactor.close();
 		}
 
 	}
 
 
 	/**
-	 * Creates a ConnectionManager
+	 * Creates a ConnectionManager with the default number of reactors
 	 * 
 	 * @throws IOException
 	 */
 	public ConnectionManager() throws IOException {
 
-		this.selector = SelectorProvider.provider().openSelector();
+		this (DEFAULT_REACTORS);
+
+	}
+
 
-		this.selectionThread = new Thread (this.selectionRunnable, "ConnectionManager thread");
-		this.selectionThread.setDaemon (true);
-		this.selectionThread.start();
+	/**
+	 * Creates a ConnectionManager
+	 *
+	 * @param reactorCount The number of reactors, each with its own selector and selection thread
+	 * @throws IOException
+	 */
+	public ConnectionManager (int reactorCount) throws IOException {
+
+		if (reactorCount < 1) {
+			throw new IllegalArgumentException ("Invalid reactor count");
+		}
+
+		this.reactors = new Reactor[reactorCount];
+		for (int i = 0; i < reactorCount; i++) {
+			this.reactors[i] = new Reactor ((reactorCount == 1) ? "ConnectionManager thread" : "ConnectionManager thread " + i);
+		}
+		for (Reactor reactor : this.reactors) {
+			reactor.selectionThread.start();
+		}
 
 	}
 
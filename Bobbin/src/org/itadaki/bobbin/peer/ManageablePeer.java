@@ -23,6 +23,11 @@ public interface ManageablePeer extends ExtensiblePeer {
 	 */
 	public PeerStatistics getStatistics();
 
+	/**
+	 * @return The peer's upload and download rate limits
+	 */
+	public PeerRateLimiter getRateLimiter();
+
 	/**
 	 * @return The remote peer's available piece bitfield. The returned bitfield must not be changed
 	 */
@@ -15,6 +15,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -30,6 +31,8 @@ import org.itadaki.bobbin.peer.protocol.PeerConnectionListener;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolNegotiator;
 import org.itadaki.bobbin.peer.requestmanager.DefaultRequestManager;
 import org.itadaki.bobbin.peer.requestmanager.RequestManagerListener;
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.DiskJobListener;
 import org.itadaki.bobbin.torrentdb.Info;
 import org.itadaki.bobbin.torrentdb.Piece;
 import org.itadaki.bobbin.torrentdb.PieceDatabase;
@@ -117,12 +120,34 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	 */
 	private PeerStatistics peerSetStatistics = new PeerStatistics();
 
+	/**
+	 * Rate limits for the entire peer set
+	 */
+	private final PeerRateLimiter peerSetRateLimiter;
+
+	/**
+	 * The upload rate limit in bytes per second applied to each peer, or 0 for no limit
+	 */
+	private int peerUploadRate = 0;
+
+	/**
+	 * The download rate limit in bytes per second applied to each peer, or 0 for no limit
+	 */
+	private int peerDownloadRate = 0;
+
 	/**
 	 * if {@code true}, the PeerCoordinator is running; offered connections will be accepted and
 	 * connected peers maintained. If {@code false}, the PeerCoordinator is stopped.
 	 */
 	private boolean running = false;
 
+	/**
+	 * If {@code true}, every needed piece was written while the PieceDatabase was still being
+	 * verified, and listeners are to be informed that the torrent is complete once verification
+	 * has finished
+	 */
+	private boolean completionPending = false;
+
 	/**
 	 * The pieces of the torrent that we want
 	 * <p>Note: This field is accessed through synchronisation on {@code this} in order to let it be
@@ -243,7 +268,10 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 			}
 
 			// Register the peer
-			PeerHandler peer = new PeerHandler (this.peerSetContext, connection, remotePeerID, this.peerSetStatistics, fastExtensionEnabled, extensionProtocolEnabled);
+			PeerHandler peer = new PeerHandler (this.peerSetContext, connection, remotePeerID, this.peerSetStatistics, this.peerSetRateLimiter,
+					fastExtensionEnabled, extensionProtocolEnabled);
+			peer.getRateLimiter().setUploadRate (this.peerUploadRate);
+			peer.getRateLimiter().setDownloadRate (this.peerDownloadRate);
 			this.connectedPeers.add (peer);
 			this.connectedPeerIDs.add (remotePeerID);
 			for (PeerCoordinatorListener listener : this.listeners) {
@@ -292,7 +320,7 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 
 					if (shouldConnectToPeer()) {
 						Connection connection = PeerCoordinator.this.connectionManager.connect (
-								InetAddress.getByName (identifier.host), identifier.port, PeerCoordinator.this.outboundListener, 30);
+								InetAddress.getByName (identifier.host), identifier.port, PeerCoordinator.this.outboundListener, 30, PeerCoordinator.this);
 						PeerCoordinator.this.pendingConnections.add (connection);
 					}
 				} finally {
@@ -379,9 +407,7 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 			// TODO Temporary - hack to want all newly extended pieces
 			this.wantedPieces.clear();
 			this.wantedPieces.not();
-			BitField neededPieces = this.wantedPieces.clone();
-			neededPieces.and (this.peerSetContext.pieceDatabase.getPresentPieces().not());
-			this.peerSetContext.requestManager.setNeededPieces (neededPieces);
+			updateNeededPieces();
 
 		}
 
@@ -415,17 +441,152 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManagerListener#pieceAssembled(org.itadaki.bobbin.torrentdb.Piece)
 	 */
-	public void pieceAssembled(Piece piece) {
+	public void pieceAssembled(final Piece piece) {
 
-		try {
-			if (this.peerSetContext.pieceDatabase.writePiece (piece)) {
-				this.peerSetContext.requestManager.setPieceNotNeeded (piece.getPieceNumber());
+		// The piece is verified and written asynchronously, and the peer context re-entered once
+		// it has been stored. A piece that could not be written is returned to the request manager
+		// to be requested again
+		this.peerSetContext.pieceDatabase.writePiece (piece, new DiskJobListener<Boolean>() {
+			public void diskJobCompleted (Boolean written) {
+				lock();
+				try {
+					pieceWritten (piece, written);
+				} finally {
+					unlock();
+				}
 			}
-			if ((this.peerSetContext.requestManager.getNeededPieceCount() == 0) && (this.peerSetContext.pieceDatabase.getInfo().getPieceStyle() != PieceStyle.ELASTIC)) {
+			public void diskJobFailed (Exception exception) {
+				lock();
+				try {
+					pieceWritten (piece, false);
+				} finally {
+					unlock();
+				}
+			}
+		});
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManagerListener#blockReceived(org.itadaki.bobbin.torrentdb.BlockDescriptor, java.nio.ByteBuffer)
+	 */
+	public void blockReceived (BlockDescriptor descriptor, ByteBuffer block) {
+
+		// Blocks and the assembled piece are queued to the same device, so every block is in place
+		// before the piece is verified
+		this.peerSetContext.pieceDatabase.writeBlock (descriptor, block, new DiskJobListener<Boolean>() {
+			public void diskJobCompleted (Boolean written) {
+				// Nothing to do
+			}
+			public void diskJobFailed (Exception exception) {
+				// PieceDatabase will signal the error shortly
+			}
+		});
+
+	}
+
+
+	/**
+	 * Updates the request manager when an assembled piece has been verified and written or has
+	 * failed to be, and informs listeners if the torrent is complete
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the peer context lock held
+	 *
+	 * @param piece The piece
+	 * @param written {@code true} if the piece verified correctly and was stored, otherwise
+	 *        {@code false}
+	 */
+	private void pieceWritten (Piece piece, boolean written) {
+
+		if (written) {
+			this.peerSetContext.requestManager.setPieceNotNeeded (piece.getPieceNumber());
+		} else {
+			this.peerSetContext.requestManager.pieceNotWritten (piece.getPieceNumber());
+		}
+		if ((this.peerSetContext.requestManager.getNeededPieceCount() == 0) && (this.peerSetContext.pieceDatabase.getInfo().getPieceStyle() != PieceStyle.ELASTIC)) {
+			// Pieces that have yet to be verified may still turn out to be needed
+			if (allPiecesVerified()) {
 				for (PeerCoordinatorListener listener : this.listeners) {
 					listener.peerCoordinatorCompleted();
 				}
+			} else {
+				this.completionPending = true;
 			}
+		}
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method must be called with the peer context lock held
+	 *
+	 * @return {@code true} if every piece of the PieceDatabase has been verified, otherwise
+	 *         {@code false}
+	 */
+	private boolean allPiecesVerified() {
+
+		PieceDatabase pieceDatabase = this.peerSetContext.pieceDatabase;
+
+		return (pieceDatabase.getVerifiedPieceCount() == pieceDatabase.getPiecesetDescriptor().getNumberOfPieces());
+
+	}
+
+
+	/**
+	 * Updates the request manager with the set of pieces that are wanted, have been verified, and
+	 * are not present
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the peer context lock held
+	 */
+	private void updateNeededPieces() {
+
+		// The verified set is read first, so a piece verified as present in between the two reads
+		// is not mistakenly needed
+		BitField neededPieces = this.wantedPieces.clone();
+		neededPieces.and (this.peerSetContext.pieceDatabase.getVerifiedPieces());
+		neededPieces.and (this.peerSetContext.pieceDatabase.getPresentPieces().not());
+		this.peerSetContext.requestManager.setNeededPieces (neededPieces);
+
+	}
+
+
+	/**
+	 * Restores to the request manager the pieces that were partially written to the PieceDatabase,
+	 * so that only their missing blocks are requested
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the peer context lock held
+	 */
+	private void restorePartialPieces() {
+
+		Map<Integer,List<BlockDescriptor>> partialPieces = this.peerSetContext.pieceDatabase.getPartialPieces();
+		for (Map.Entry<Integer,List<BlockDescriptor>> entry : partialPieces.entrySet()) {
+			this.peerSetContext.requestManager.restorePartialPiece (entry.getKey(), entry.getValue());
+		}
+
+	}
+
+
+	/**
+	 * Writes the received blocks of partially assembled pieces that are held in memory to their
+	 * places in the PieceDatabase, so that they can be restored after the PieceDatabase is resumed
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the peer context lock held
+	 */
+	private void storePartialPieces() {
+
+		PieceDatabase pieceDatabase = this.peerSetContext.pieceDatabase;
+
+		try {
+			for (Piece piece : this.peerSetContext.requestManager.getPartialPieces()) {
+				if (!piece.isStreamed()) {
+					for (BlockDescriptor descriptor : piece.getPresentBlocks()) {
+						pieceDatabase.writeBlock (descriptor, piece.getBlock (descriptor));
+					}
+				}
+			}
+		} catch (IllegalStateException e) {
+			// The PieceDatabase is not available. The blocks will be requested again
 		} catch (IOException e) {
 			// PieceDatabase will signal the error shortly
 		}
@@ -535,6 +696,86 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	}
 
 
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The rate limits for the entire peer set
+	 */
+	public PeerRateLimiter getRateLimiter() {
+
+		return this.peerSetRateLimiter;
+
+	}
+
+
+	/**
+	 * Gets the upload rate limit applied to each peer
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @return The upload rate limit in bytes per second, or 0 if there is no limit
+	 */
+	public int getPeerUploadRate() {
+
+		lock();
+		try {
+			return this.peerUploadRate;
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Gets the download rate limit applied to each peer
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @return The download rate limit in bytes per second, or 0 if there is no limit
+	 */
+	public int getPeerDownloadRate() {
+
+		lock();
+		try {
+			return this.peerDownloadRate;
+		} finally {
+			unlock();
+		}
+
+	}
+
+
+	/**
+	 * Sets the upload and download rate limits applied to each peer, including those already
+	 * connected
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @param uploadRate The upload rate limit in bytes per second, or 0 for no limit
+	 * @param downloadRate The download rate limit in bytes per second, or 0 for no limit
+	 */
+	public void setPeerRates (int uploadRate, int downloadRate) {
+
+		if ((uploadRate < 0) || (downloadRate < 0)) {
+			throw new IllegalArgumentException();
+		}
+
+		lock();
+
+		this.peerUploadRate = uploadRate;
+		this.peerDownloadRate = downloadRate;
+
+		for (ManageablePeer peer : this.connectedPeers) {
+			peer.getRateLimiter().setUploadRate (uploadRate);
+			peer.getRateLimiter().setDownloadRate (downloadRate);
+		}
+
+		unlock();
+
+	}
+
+
 	/**
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
@@ -596,9 +837,7 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 			}
 
 			if (this.running) {
-				BitField neededPieces = wantedPieces.clone();
-				neededPieces.and (this.peerSetContext.pieceDatabase.getPresentPieces().not());
-				this.peerSetContext.requestManager.setNeededPieces (neededPieces);
+				updateNeededPieces();
 			}
 		} finally {
 			unlock();
@@ -648,6 +887,27 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	}
 
 
+	/**
+	 * Sets whether the blocks of newly requested pieces are written to the {@code PieceDatabase}
+	 * as they arrive, rather than held in memory until their piece is complete. Streamed pieces
+	 * are verified from storage once all their blocks have been written
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @param blockStreaming If {@code true}, the blocks of newly requested pieces are streamed
+	 */
+	public void setBlockStreaming (boolean blockStreaming) {
+
+		lock();
+		try {
+			this.peerSetContext.requestManager.setBlockStreaming (blockStreaming);
+		} finally {
+			unlock();
+		}
+
+	}
+
+
 	/**
 	 * Gets the maximum number of peer connections that this TorrentManager may be connected to
 	 *
@@ -789,6 +1049,50 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 
 	}
 
+	/**
+	 * Indicates that a piece of the PieceDatabase has been verified while the PieceDatabase is in
+	 * use during verification. A piece verified as present is advertised to connected peers, and a
+	 * wanted piece verified as absent is requested from them
+	 *
+	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
+	 *
+	 * @param pieceNumber The number of the piece
+	 * @param present If {@code true}, the piece was verified as present, otherwise as absent
+	 */
+	public void pieceVerified (int pieceNumber, boolean present) {
+
+		lock();
+
+		try {
+
+			if (present) {
+				for (ManageablePeer peer : this.connectedPeers) {
+					peer.sendHavePiece (pieceNumber);
+				}
+			} else if (this.running && this.wantedPieces.get (pieceNumber)) {
+				this.peerSetContext.requestManager.setPieceNeeded (pieceNumber);
+				List<BlockDescriptor> storedBlocks = this.peerSetContext.pieceDatabase.getPartialPieces().get (pieceNumber);
+				if (storedBlocks != null) {
+					this.peerSetContext.requestManager.restorePartialPiece (pieceNumber, storedBlocks);
+				}
+			}
+
+			if (this.completionPending && allPiecesVerified()) {
+				this.completionPending = false;
+				if (this.peerSetContext.requestManager.getNeededPieceCount() == 0) {
+					for (PeerCoordinatorListener listener : this.listeners) {
+						listener.peerCoordinatorCompleted();
+					}
+				}
+			}
+
+		} finally {
+			unlock();
+		}
+
+	}
+
+
 	/**
 	 * <p><b>Thread safety:</b> This method implicitly acquires the peer context lock
 	 *
@@ -829,11 +1133,11 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 
 		lock();
 		this.running = true;
+		this.completionPending = false;
 		synchronized (this) {
-			BitField neededPieces = this.wantedPieces.clone();
-			neededPieces.and (this.peerSetContext.pieceDatabase.getPresentPieces().not());
-			this.peerSetContext.requestManager.setNeededPieces (neededPieces);
+			updateNeededPieces();
 		}
+		restorePartialPieces();
 		unlock();
 
 	}
@@ -849,6 +1153,7 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 		lock();
 		this.running = false;
 		closeAllConnections();
+		storePartialPieces();
 		unlock();
 
 	}
@@ -864,6 +1169,7 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 		lock();
 		this.running = false;
 		closeAllConnections();
+		storePartialPieces();
 		this.workQueue.shutdown();
 		unlock();
 
@@ -877,6 +1183,20 @@ public class PeerCoordinator implements PeerConnectionListener, PeerSourceListen
 	 */
 	public PeerCoordinator (PeerID localPeerID, ConnectionManager connectionManager, PieceDatabase pieceDatabase) {
 
+		this (localPeerID, connectionManager, pieceDatabase, new PeerRateLimiter());
+
+	}
+
+
+	/**
+	 * @param localPeerID The local peer's ID
+	 * @param connectionManager The ConnectionManager for the managed torrent
+	 * @param pieceDatabase The PieceDatabase of the managed torrent
+	 * @param parentRateLimiter The parent PeerRateLimiter for the whole torrent set
+	 */
+	public PeerCoordinator (PeerID localPeerID, ConnectionManager connectionManager, PieceDatabase pieceDatabase, PeerRateLimiter parentRateLimiter) {
+
+		this.peerSetRateLimiter = new PeerRateLimiter (parentRateLimiter);
 		this.workQueue = new WorkQueue ("PeerCoordinator WorkQueue - " + CharsetUtil.hexencode (pieceDatabase.getInfoHash().getBytes()));
 
 		this.peerSetContext = new PeerSetContext (
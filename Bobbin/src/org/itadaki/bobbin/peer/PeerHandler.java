@@ -92,6 +92,11 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 	 */
 	private final PeerStatistics peerStatistics;
 
+	/**
+	 * Upload and download rate limits for the peer
+	 */
+	private final PeerRateLimiter rateLimiter;
+
 	/**
 	 * The peer protocol state
 	 */
@@ -140,6 +145,16 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.ManageablePeer#getRateLimiter()
+	 */
+	public PeerRateLimiter getRateLimiter() {
+
+		return this.rateLimiter;
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.peer.ManageablePeer#getBitField()
 	 */
@@ -756,8 +771,9 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 		try {
 
 			if (readable) {
-				int bytesRead = this.protocolParser.parseBytes (connection);
+				int bytesRead = this.protocolParser.parseBytes (connection, this.rateLimiter.getDownloadQuota());
 				this.peerStatistics.protocolBytesReceived.add (bytesRead);
+				this.rateLimiter.downloaded (connection, bytesRead);
 				if (bytesRead > 0) {
 					this.state.lastDataReceivedTime = System.currentTimeMillis();
 				}
@@ -768,8 +784,9 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 			}
 
 			if (writeable) {
-				int bytesWritten = this.outboundQueue.sendData();
+				int bytesWritten = this.outboundQueue.sendData (this.rateLimiter.getUploadQuota());
 				this.peerStatistics.protocolBytesSent.add (bytesWritten);
+				this.rateLimiter.uploaded (connection, bytesWritten);
 			}
 
 		} catch (IOException e) {
@@ -899,6 +916,24 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 			boolean extensionProtocolEnabled)
 	{
 
+		this (peerSetContext, connection, remotePeerID, parentStatistics, new PeerRateLimiter(), fastExtensionEnabled, extensionProtocolEnabled);
+
+	}
+
+
+	/**
+	 * @param peerSetContext The peer set context
+	 * @param connection The connection through which to send and receive messages
+	 * @param remotePeerID The remote peer ID
+	 * @param parentStatistics The parent aggregate PeerStatistics for the whole peer set
+	 * @param parentRateLimiter The parent PeerRateLimiter for the whole peer set
+	 * @param fastExtensionEnabled {@code true} if the fast extension is enabled
+	 * @param extensionProtocolEnabled {@code true} if the extension protocol is enabled
+	 */
+	public PeerHandler (PeerSetContext peerSetContext, Connection connection, PeerID remotePeerID, PeerStatistics parentStatistics,
+			PeerRateLimiter parentRateLimiter, boolean fastExtensionEnabled, boolean extensionProtocolEnabled)
+	{
+
 		this.peerSetContext = peerSetContext;
 		this.connection = connection;
 		this.state.remotePeerID = remotePeerID;
@@ -906,6 +941,7 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 		this.state.extensionProtocolEnabled = extensionProtocolEnabled;
 		this.protocolParser = new PeerProtocolParser (this, fastExtensionEnabled, extensionProtocolEnabled);
 		this.peerStatistics = new PeerStatistics (parentStatistics);
+		this.rateLimiter = new PeerRateLimiter (parentRateLimiter);
 		this.connection.setListener (this);
 
 		Info info = this.peerSetContext.pieceDatabase.getInfo();
@@ -917,7 +953,8 @@ public class PeerHandler implements ManageablePeer, PeerProtocolConsumer, Connec
 			this.state.remoteBitField = new BitField (0);
 			this.state.remoteView = null;
 		}
-		this.outboundQueue = new PeerOutboundQueue (this.connection, this.peerSetContext.pieceDatabase, this.peerStatistics.blockBytesSent);
+		this.outboundQueue = new PeerOutboundQueue (this.connection, this.peerSetContext.pieceDatabase, this.peerStatistics.blockBytesSent,
+				this.peerSetContext.peerServices);
 
 		// Send bitfield
 		BitField bitField = this.peerSetContext.pieceDatabase.getPresentPieces();
@@ -6,6 +6,8 @@ package org.itadaki.bobbin.peer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -24,11 +26,13 @@ import org.itadaki.bobbin.connectionmanager.Connection;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolBuilder;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolConstants;
 import org.itadaki.bobbin.torrentdb.BlockDescriptor;
-import org.itadaki.bobbin.torrentdb.Piece;
+import org.itadaki.bobbin.torrentdb.DiskJobListener;
+import org.itadaki.bobbin.torrentdb.FileRegion;
 import org.itadaki.bobbin.torrentdb.PieceDatabase;
 import org.itadaki.bobbin.torrentdb.ViewSignature;
 import org.itadaki.bobbin.util.BitField;
 import org.itadaki.bobbin.util.counter.StatisticCounter;
+import org.itadaki.bobbin.util.elastictree.HashChain;
 
 
 /**
@@ -46,6 +50,12 @@ public class PeerOutboundQueue {
 	 */
 	private PieceDatabase pieceDatabase;
 
+	/**
+	 * The peer services through which the peer context is re-entered when an asynchronous read
+	 * completes, or {@code null}
+	 */
+	private PeerServices peerServices;
+
 	/**
 	 * The last time any data was successfully written to the connection, in system milliseconds
 	 */
@@ -137,6 +147,99 @@ public class PeerOutboundQueue {
 	 */
 	private LinkedList<ByteBuffer> sendQueue = new LinkedList<ByteBuffer>();
 
+	/**
+	 * The header of a piece message whose block is being transferred directly from file regions,
+	 * if the header has not yet been completely sent, or {@code null}
+	 */
+	private ByteBuffer transferHeader = null;
+
+	/**
+	 * The file regions that remain to be transferred to complete a piece message whose block is
+	 * being transferred directly. If empty while part of the block remains to be transferred, the
+	 * regions must be looked up again
+	 */
+	private LinkedList<FileRegion> transferRegions = new LinkedList<FileRegion>();
+
+	/**
+	 * The number of bytes of the first region in {@link #transferRegions} that have already been
+	 * transferred
+	 */
+	private long transferRegionOffset = 0;
+
+	/**
+	 * The part of the block of a piece message being transferred directly from file regions that
+	 * remains to be transferred, or {@code null}. A partially transferred piece message is always
+	 * completed before the send queue is resumed
+	 */
+	private BlockDescriptor transferBlock = null;
+
+	/**
+	 * The block for which an asynchronous lookup of file regions is in progress, or {@code null}
+	 */
+	private BlockDescriptor pendingLookupBlock = null;
+
+	/**
+	 * The block for which an asynchronous lookup of file regions has completed, or {@code null}
+	 */
+	private BlockDescriptor completedLookupBlock = null;
+
+	/**
+	 * The file regions of {@link #completedLookupBlock}, or {@code null} if it cannot be
+	 * transferred directly from files or the lookup failed
+	 */
+	private List<FileRegion> completedLookupRegions = null;
+
+	/**
+	 * The exception that caused the lookup of {@link #completedLookupBlock} to fail, if it failed
+	 */
+	private Exception completedLookupException = null;
+
+	/**
+	 * The block of a plain piece message that cannot be transferred directly from file regions,
+	 * which is read and sent from the send queue instead, or {@code null}
+	 */
+	private BlockDescriptor unmappedBlock = null;
+
+	/**
+	 * The block of the piece message for which an asynchronous read is in progress, or
+	 * {@code null}
+	 */
+	private BlockDescriptor pendingReadBlock = null;
+
+	/**
+	 * The block of the piece message for which an asynchronous read has completed, or
+	 * {@code null}
+	 */
+	private BlockDescriptor completedReadBlock = null;
+
+	/**
+	 * The content of {@link #completedReadBlock}, if it was read successfully
+	 */
+	private ByteBuffer completedReadContent = null;
+
+	/**
+	 * The exception that caused the read of {@link #completedReadBlock} to fail, if it failed
+	 */
+	private Exception completedReadException = null;
+
+	/**
+	 * The pooled block of a piece message that remains partly unsent in the send queue, which is
+	 * released to the {@code PieceDatabase} once the send queue has been written, or {@code null}
+	 */
+	private ByteBuffer sendQueueReadBlock = null;
+
+	/**
+	 * If {@code true}, writing has been suspended while the next piece message's block is read, or
+	 * while its file regions are looked up
+	 */
+	private boolean awaitingRead = false;
+
+	/**
+	 * The number of bytes that may still be written during the current call to
+	 * {@link #sendData(int)}
+	 */
+	private long writeQuota = 0;
+
 	/**
 	 * The style of pieces to send to the remote peer
 	 */
@@ -170,6 +273,388 @@ public class PeerOutboundQueue {
 	}
 
 
+	/**
+	 * Writes as much of a buffer to the connection as the write quota allows
+	 *
+	 * @param buffer The buffer to write
+	 * @return The number of bytes written, possibly zero
+	 * @throws IOException If the connection is closed or on any other I/O error
+	 */
+	private int write (ByteBuffer buffer) throws IOException {
+
+		int bytesWritten;
+
+		if (buffer.remaining() > this.writeQuota) {
+			int limit = buffer.limit();
+			buffer.limit (buffer.position() + (int)this.writeQuota);
+			try {
+				bytesWritten = this.connection.write (buffer);
+			} finally {
+				buffer.limit (limit);
+			}
+		} else {
+			bytesWritten = this.connection.write (buffer);
+		}
+
+		this.writeQuota -= bytesWritten;
+		return bytesWritten;
+
+	}
+
+
+	/**
+	 * Writes as much of a sequence of buffers to the connection as the write quota allows
+	 *
+	 * @param buffers The buffers to write
+	 * @return The number of bytes written, possibly zero
+	 * @throws IOException If the connection is closed or on any other I/O error
+	 */
+	private long write (ByteBuffer[] buffers) throws IOException {
+
+		long bytesWritten;
+
+		long totalBytes = 0;
+		for (ByteBuffer buffer : buffers) {
+			totalBytes += buffer.remaining();
+		}
+
+		if (totalBytes > this.writeQuota) {
+			int[] limits = new int[buffers.length];
+			long permittedBytes = this.writeQuota;
+			for (int i = 0; i < buffers.length; i++) {
+				limits[i] = buffers[i].limit();
+				int length = (int) Math.min (buffers[i].remaining(), permittedBytes);
+				buffers[i].limit (buffers[i].position() + length);
+				permittedBytes -= length;
+			}
+			try {
+				bytesWritten = this.connection.write (buffers);
+			} finally {
+				for (int i = 0; i < buffers.length; i++) {
+					buffers[i].limit (limits[i]);
+				}
+			}
+		} else {
+			bytesWritten = this.connection.write (buffers);
+		}
+
+		this.writeQuota -= bytesWritten;
+		return bytesWritten;
+
+	}
+
+
+	/**
+	 * Transfers as much of a region of a file to the connection as the write quota allows
+	 *
+	 * @param fileChannel The channel of the file to transfer bytes from
+	 * @param position The position within the file to start transferring from
+	 * @param count The maximum number of bytes to transfer
+	 * @return The number of bytes written, possibly zero
+	 * @throws IOException If the connection is closed or on any other I/O error
+	 */
+	private long transferFrom (FileChannel fileChannel, long position, long count) throws IOException {
+
+		long bytesWritten = this.connection.transferFrom (fileChannel, position, Math.min (count, this.writeQuota));
+
+		this.writeQuota -= bytesWritten;
+		return bytesWritten;
+
+	}
+
+
+	/**
+	 * Transfers as much as possible of a piece message whose block is being sent directly from
+	 * file regions. If the storage has closed the files of the regions since they were obtained,
+	 * the regions are looked up again asynchronously, and writing is suspended until the lookup
+	 * completes
+	 *
+	 * @return The number of bytes written, possibly zero
+	 * @throws IOException If the connection is closed, the block is no longer available, or on any
+	 *         other I/O error
+	 */
+	private long continueTransfer() throws IOException {
+
+		long bytesSent = 0;
+
+		if (this.transferHeader != null) {
+			bytesSent += write (this.transferHeader);
+			if (this.transferHeader.hasRemaining()) {
+				return bytesSent;
+			}
+			this.transferHeader = null;
+		}
+
+		while (this.transferBlock != null) {
+			if (this.transferRegions.isEmpty()) {
+				List<FileRegion> regions = takeBlockRegions (this.transferBlock);
+				if (regions == null) {
+					if (this.transferBlock.equals (this.unmappedBlock)) {
+						throw new IOException ("Block " + this.transferBlock + " no longer available");
+					}
+					this.awaitingRead = true;
+					this.connection.setWriteEnabled (false);
+					return bytesSent;
+				}
+				this.transferRegions.addAll (regions);
+				this.transferRegionOffset = 0;
+			}
+
+			FileRegion region = this.transferRegions.peek();
+			long bytesWritten;
+			try {
+				bytesWritten = transferFrom (
+						region.getChannel(),
+						region.getPosition() + this.transferRegionOffset,
+						region.getLength() - this.transferRegionOffset
+				);
+			} catch (ClosedChannelException e) {
+				if (region.getChannel().isOpen()) {
+					throw e;
+				}
+				// The storage has closed the file since the regions were obtained; ask again
+				this.transferRegions.clear();
+				continue;
+			}
+			bytesSent += bytesWritten;
+			this.transferRegionOffset += bytesWritten;
+			if (bytesWritten > 0) {
+				int remainingLength = this.transferBlock.getLength() - (int)bytesWritten;
+				this.transferBlock = (remainingLength == 0) ? null : new BlockDescriptor (
+						this.transferBlock.getPieceNumber(),
+						this.transferBlock.getOffset() + (int)bytesWritten,
+						remainingLength
+				);
+			}
+			if (this.transferRegionOffset < region.getLength()) {
+				return bytesSent;
+			}
+			this.transferRegions.remove();
+			this.transferRegionOffset = 0;
+		}
+
+		return bytesSent;
+
+	}
+
+
+	/**
+	 * Gets the file regions that hold the block of a piece message, starting an asynchronous
+	 * lookup of the regions if none is already in progress. If the lookup finds that the block
+	 * cannot be transferred directly from files, the block is recorded as
+	 * {@link #unmappedBlock}
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @return The regions of the block, or {@code null} if they are not yet available or the
+	 *         block cannot be transferred directly from files
+	 * @throws IOException If the regions could not be looked up
+	 */
+	private List<FileRegion> takeBlockRegions (final BlockDescriptor descriptor) throws IOException {
+
+		if ((this.completedLookupBlock != null) && !this.completedLookupBlock.equals (descriptor)) {
+			// The piece message was discarded while its regions were being looked up
+			this.completedLookupBlock = null;
+			this.completedLookupRegions = null;
+			this.completedLookupException = null;
+		}
+
+		if ((this.completedLookupBlock == null) && (this.pendingLookupBlock == null)) {
+			this.pendingLookupBlock = descriptor;
+			this.pieceDatabase.getBlockRegions (descriptor, new DiskJobListener<List<FileRegion>>() {
+				public void diskJobCompleted (List<FileRegion> result) {
+					lookupCompleted (descriptor, result, null);
+				}
+				public void diskJobFailed (Exception exception) {
+					lookupCompleted (descriptor, null, exception);
+				}
+			});
+		}
+
+		// A synchronous lookup will already have completed
+		if (this.completedLookupBlock == null) {
+			return null;
+		}
+
+		List<FileRegion> regions = this.completedLookupRegions;
+		Exception exception = this.completedLookupException;
+		this.completedLookupBlock = null;
+		this.completedLookupRegions = null;
+		this.completedLookupException = null;
+
+		if (exception instanceof IOException) {
+			throw (IOException) exception;
+		} else if (exception != null) {
+			throw new IOException (exception.getMessage());
+		}
+
+		if (regions == null) {
+			this.unmappedBlock = descriptor;
+		}
+
+		return regions;
+
+	}
+
+
+	/**
+	 * Records the completion of a lookup of the file regions of the block of a piece message,
+	 * resuming writing if it was suspended to wait for the lookup
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @param regions The regions of the block, or {@code null}
+	 * @param exception The exception that caused the lookup to fail, if it failed, or {@code null}
+	 */
+	private void lookupCompleted (BlockDescriptor descriptor, List<FileRegion> regions, Exception exception) {
+
+		if (this.peerServices != null) {
+			this.peerServices.lock();
+		}
+
+		try {
+			this.pendingLookupBlock = null;
+			this.completedLookupBlock = descriptor;
+			this.completedLookupRegions = regions;
+			this.completedLookupException = exception;
+			if (this.awaitingRead) {
+				this.awaitingRead = false;
+				this.connection.setWriteEnabled (true);
+			}
+		} finally {
+			if (this.peerServices != null) {
+				this.peerServices.unlock();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Writes as much of the send queue as possible, releasing the pooled block of a piece message
+	 * in the queue once the queue has been written
+	 *
+	 * @return The number of bytes written, possibly zero
+	 * @throws IOException If the connection is closed or on any other I/O error
+	 */
+	private int writeSendQueue() throws IOException {
+
+		int bytesSent = 0;
+
+		while (!this.sendQueue.isEmpty()) {
+			ByteBuffer buffer = this.sendQueue.peek();
+			bytesSent += write (buffer);
+			if (buffer.remaining() == 0) {
+				this.sendQueue.remove();
+			} else {
+				return bytesSent;
+			}
+		}
+		if (this.sendQueueReadBlock != null) {
+			this.pieceDatabase.releaseBlock (this.sendQueueReadBlock);
+			this.sendQueueReadBlock = null;
+		}
+
+		return bytesSent;
+
+	}
+
+
+	/**
+	 * @return {@code true} if there is no partially sent piece message being transferred directly
+	 *         from file regions, otherwise {@code false}
+	 */
+	private boolean isTransferComplete() {
+
+		return (this.transferHeader == null) && (this.transferBlock == null);
+
+	}
+
+
+	/**
+	 * Gets the content of the block of a piece message, starting an asynchronous read of the
+	 * block if none is already in progress
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @return The content of the block, or {@code null} if it is not yet available
+	 * @throws IOException If the block could not be read
+	 */
+	private ByteBuffer takeReadBlock (final BlockDescriptor descriptor) throws IOException {
+
+		if ((this.completedReadBlock != null) && !this.completedReadBlock.equals (descriptor)) {
+			// The piece message was discarded while its block was being read
+			if (this.completedReadContent != null) {
+				this.pieceDatabase.releaseBlock (this.completedReadContent);
+			}
+			this.completedReadBlock = null;
+			this.completedReadContent = null;
+			this.completedReadException = null;
+		}
+
+		if ((this.completedReadBlock == null) && (this.pendingReadBlock == null)) {
+			this.pendingReadBlock = descriptor;
+			this.pieceDatabase.readBlock (descriptor, new DiskJobListener<ByteBuffer>() {
+				public void diskJobCompleted (ByteBuffer result) {
+					readCompleted (descriptor, result, null);
+				}
+				public void diskJobFailed (Exception exception) {
+					readCompleted (descriptor, null, exception);
+				}
+			});
+		}
+
+		// A synchronous read will already have completed
+		if (this.completedReadBlock == null) {
+			return null;
+		}
+
+		ByteBuffer content = this.completedReadContent;
+		Exception exception = this.completedReadException;
+		this.completedReadBlock = null;
+		this.completedReadContent = null;
+		this.completedReadException = null;
+
+		if (exception instanceof IOException) {
+			throw (IOException) exception;
+		} else if (exception != null) {
+			throw new IOException (exception.getMessage());
+		}
+
+		return content;
+
+	}
+
+
+	/**
+	 * Records the completion of a read of the block of a piece message, resuming writing if it was
+	 * suspended to wait for the read
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @param content The content of the block, if it was read successfully, or {@code null}
+	 * @param exception The exception that caused the read to fail, if it failed, or {@code null}
+	 */
+	private void readCompleted (BlockDescriptor descriptor, ByteBuffer content, Exception exception) {
+
+		if (this.peerServices != null) {
+			this.peerServices.lock();
+		}
+
+		try {
+			this.pendingReadBlock = null;
+			this.completedReadBlock = descriptor;
+			this.completedReadContent = content;
+			this.completedReadException = exception;
+			if (this.awaitingRead) {
+				this.awaitingRead = false;
+				this.connection.setWriteEnabled (true);
+			}
+		} finally {
+			if (this.peerServices != null) {
+				this.peerServices.unlock();
+			}
+		}
+
+	}
+
+
 	/**
 	 * Sends a keepalive message if no data has been sent for the defined keepalive interval
 	 */
@@ -749,25 +1234,44 @@ public class PeerOutboundQueue {
 	 */
 	public int sendData() throws IOException {
 
+		return sendData (Integer.MAX_VALUE);
+
+	}
+
+
+	/**
+	 * Sends as much queued data as possible, up to a given number of bytes. Messages that cannot
+	 * be written in full are completed by later calls
+	 * @param maximumBytes The maximum number of bytes to write
+	 * @return The number of bytes written, possibly zero
+	 * @throws IOException If the connection is closed or on any other I/O error
+	 */
+	public int sendData (int maximumBytes) throws IOException {
+
+		this.writeQuota = maximumBytes;
+
 		int bytesSent = 0;
 
 		try {
 
-			// Try to write any buffers waiting in the send queue
-			while (!this.sendQueue.isEmpty()) {
-				ByteBuffer buffer = this.sendQueue.peek();
-				bytesSent += this.connection.write (buffer);
-				if (buffer.remaining() == 0) {
-					this.sendQueue.remove();
-				} else {
+			// Try to complete any piece message being transferred directly from file regions
+			if (!isTransferComplete()) {
+				bytesSent += continueTransfer();
+				if (!isTransferComplete()) {
 					return bytesSent;
 				}
 			}
 
+			// Try to write any buffers waiting in the send queue
+			bytesSent += writeSendQueue();
+			if (!this.sendQueue.isEmpty()) {
+				return bytesSent;
+			}
+
 			// Try to write extension messages, if any
 			while (!this.extensionMessageQueue.isEmpty ()) {
 				ByteBuffer[] buffers = this.extensionMessageQueue.poll();
-				bytesSent += this.connection.write (buffers);
+				bytesSent += write (buffers);
 				if (buffers[1].hasRemaining()) {
 					this.sendQueue.add (buffers[0]);
 					this.sendQueue.add (buffers[1]);
@@ -780,7 +1284,7 @@ public class PeerOutboundQueue {
 				ByteBuffer buffer = (this.queuedInterested ? PeerProtocolBuilder.interestedMessage() : PeerProtocolBuilder.notInterestedMessage());
 				this.queuedInterested = null;
 
-				bytesSent += this.connection.write (buffer);
+				bytesSent += write (buffer);
 				if (buffer.remaining() > 0) {
 					this.sendQueue.add (buffer);
 					return bytesSent;
@@ -792,7 +1296,7 @@ public class PeerOutboundQueue {
 				BlockDescriptor descriptor = this.queuedCancels.poll();
 				ByteBuffer buffer = PeerProtocolBuilder.cancelMessage (descriptor);
 
-				bytesSent += this.connection.write (buffer);
+				bytesSent += write (buffer);
 				if (buffer.remaining() > 0) {
 					this.sendQueue.add (buffer);
 					return bytesSent;
@@ -807,7 +1311,7 @@ public class PeerOutboundQueue {
 					this.sentRequests.add (descriptor);
 					ByteBuffer buffer = PeerProtocolBuilder.requestMessage (descriptor);
 
-					bytesSent += this.connection.write (buffer);
+					bytesSent += write (buffer);
 					if (buffer.remaining() > 0) {
 						this.sendQueue.add (buffer);
 						return bytesSent;
@@ -820,7 +1324,7 @@ public class PeerOutboundQueue {
 				Integer pieceNumber = this.queuedHaves.poll();
 				ByteBuffer buffer = PeerProtocolBuilder.haveMessage (pieceNumber);
 
-				bytesSent += this.connection.write (buffer);
+				bytesSent += write (buffer);
 				if (buffer.hasRemaining()) {
 					this.sendQueue.add (buffer);
 					return bytesSent;
@@ -829,10 +1333,43 @@ public class PeerOutboundQueue {
 
 			// Try to write piece messages, if any
 			while (!this.queuedPieces.isEmpty()) {
-				BlockDescriptor request = this.queuedPieces.poll();
+				BlockDescriptor request = this.queuedPieces.peek();
+
+				// Plain pieces are transferred directly from their files where the storage allows.
+				// Their regions are looked up asynchronously, but the transfer itself is performed
+				// here. Writing is suspended until the lookup completes
+				if ((this.pieceStyle == PieceStyle.PLAIN) && !request.equals (this.unmappedBlock)) {
+					List<FileRegion> regions = takeBlockRegions (request);
+					if (regions != null) {
+						this.queuedPieces.remove();
+						this.blockBytesSentCounter.add (request.getLength());
+						this.transferHeader = PeerProtocolBuilder.pieceMessageHeader (request);
+						this.transferBlock = request;
+						this.transferRegions.addAll (regions);
+						this.transferRegionOffset = 0;
+						bytesSent += continueTransfer();
+						if (!isTransferComplete()) {
+							return bytesSent;
+						}
+						continue;
+					}
+					if (!request.equals (this.unmappedBlock)) {
+						this.awaitingRead = true;
+						this.connection.setWriteEnabled (false);
+						return bytesSent;
+					}
+				}
+
+				// Other blocks are read asynchronously. Writing is suspended until the read completes
+				ByteBuffer block = takeReadBlock (request);
+				if (block == null) {
+					this.awaitingRead = true;
+					this.connection.setWriteEnabled (false);
+					return bytesSent;
+				}
+				this.queuedPieces.remove();
+				this.unmappedBlock = null;
 				this.blockBytesSentCounter.add (request.getLength());
-				Piece piece = this.pieceDatabase.readPiece (request.getPieceNumber());
-				ByteBuffer block = piece.getBlock (request);
 
 				ByteBuffer[] buffers = null;
 				switch (this.pieceStyle) {
@@ -840,11 +1377,12 @@ public class PeerOutboundQueue {
 						buffers = PeerProtocolBuilder.pieceMessage (request, block);
 						break;
 					case MERKLE:
-						ByteBuffer merkleHashChain = (request.getOffset() == 0) ? piece.getHashChain().getHashes() : null;
+						ByteBuffer merkleHashChain = (request.getOffset() == 0) ? this.pieceDatabase.getHashChain(request.getPieceNumber()).getHashes() : null;
 						buffers = PeerProtocolBuilder.merklePieceMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_MERKLE, request, merkleHashChain, block);
 						break;
 					case ELASTIC:
-						long viewLength = piece.getHashChain().getViewLength();
+						HashChain hashChain = this.pieceDatabase.getHashChain (request.getPieceNumber());
+						long viewLength = hashChain.getViewLength();
 						ArrayList<ByteBuffer> bufferList = new ArrayList<ByteBuffer>();
 						if (!this.remotePeerViews.contains (viewLength) && (viewLength > this.pieceDatabase.getInfo().getPiecesetDescriptor().getLength())) {
 							ViewSignature viewSignature = this.pieceDatabase.getViewSignature (viewLength);
@@ -854,7 +1392,7 @@ public class PeerOutboundQueue {
 							}
 							this.remotePeerViews.add (viewLength);
 						}
-						ByteBuffer elasticHashChain = (request.getOffset() == 0) ? piece.getHashChain().getHashes() : null;
+						ByteBuffer elasticHashChain = (request.getOffset() == 0) ? hashChain.getHashes() : null;
 						bufferList.addAll (Arrays.asList (PeerProtocolBuilder.elasticPieceMessage (PeerProtocolConstants.EXTENDED_MESSAGE_TYPE_ELASTIC, request, viewLength, elasticHashChain, block)));
 						buffers = bufferList.toArray (new ByteBuffer[0]);
 						break;
@@ -863,11 +1401,13 @@ public class PeerOutboundQueue {
 						throw new InternalError();
 				}
 
-				bytesSent += this.connection.write (buffers);
+				bytesSent += write (buffers);
 				if (buffers[buffers.length - 1].hasRemaining()) {
 					this.sendQueue.addAll (Arrays.asList (buffers));
+					this.sendQueueReadBlock = block;
 					return bytesSent;
 				}
+				this.pieceDatabase.releaseBlock (block);
 			}
 
 			// Send a keepalive if necessary
@@ -877,7 +1417,7 @@ public class PeerOutboundQueue {
 			   )
 			{
 				ByteBuffer buffer = PeerProtocolBuilder.keepaliveMessage();
-				bytesSent += this.connection.write (buffer);
+				bytesSent += write (buffer);
 				if (buffer.hasRemaining()) {
 					this.sendQueue.add (buffer);
 					return bytesSent;
@@ -905,9 +1445,25 @@ public class PeerOutboundQueue {
 	 */
 	public PeerOutboundQueue (Connection connection, PieceDatabase pieceDatabase, StatisticCounter sentBlockCounter) {
 
+		this (connection, pieceDatabase, sentBlockCounter, null);
+
+	}
+
+
+	/**
+	 * @param connection The Connection to write to the remote peer through
+	 * @param pieceDatabase The PieceDatabase to read piece data from
+	 * @param sentBlockCounter A periodic counter to collect statistics on the number of blocks that
+	 *        have been sent to the remote peer
+	 * @param peerServices The peer services through which to re-enter the peer context when an
+	 *        asynchronous read completes, or {@code null}
+	 */
+	public PeerOutboundQueue (Connection connection, PieceDatabase pieceDatabase, StatisticCounter sentBlockCounter, PeerServices peerServices) {
+
 		this.connection = connection;
 		this.pieceDatabase = pieceDatabase;
 		this.blockBytesSentCounter = sentBlockCounter;
+		this.peerServices = peerServices;
 
 	}
 
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.peer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.connectionmanager.Connection;
+import org.itadaki.bobbin.util.TimingWheel;
+import org.itadaki.bobbin.util.WorkQueue;
+import org.itadaki.bobbin.util.counter.TokenBucket;
+
+
+/**
+ * Upload and download rate limits for a peer connection or a set of peer connections
+ *
+ * <p>Limits are applied hierarchically: a limiter created with a parent limiter is additionally
+ * limited by its parent, so that a peer's traffic counts against its own limits, those of its
+ * torrent and those of the whole torrent set. All bytes sent and received count against the
+ * limits, whether protocol overhead or block payload. A rate of zero imposes no limit of its own
+ *
+ * <p>A connection that exceeds a limit is not made to wait; its interest in reading or writing is
+ * suspended until enough of its allowance has accumulated to continue
+ */
+public class PeerRateLimiter {
+
+	/**
+	 * The number of bytes of allowance below which a connection is suspended, and which must
+	 * accumulate before it is resumed
+	 */
+	private static final int RESUME_BYTES = 4096;
+
+	/**
+	 * The maximum delay in milliseconds before a suspended connection is resumed. A connection
+	 * that is resumed early is suspended again if it has too little allowance, so that changes of limit
+	 * take effect promptly
+	 */
+	private static final int MAXIMUM_RESUME_DELAY = 1000;
+
+	/**
+	 * An executor that resumes connections directly on the timing wheel's thread. Suspended
+	 * connections wait on the timing wheel shared with {@link WorkQueue}
+	 */
+	private static final Executor resumeExecutor = new Executor() {
+		public void execute (Runnable command) {
+			command.run();
+		}
+	};
+
+	/**
+	 * Limits the rate at which bytes are sent to the remote peer or peers
+	 */
+	final TokenBucket uploadBucket;
+
+	/**
+	 * Limits the rate at which bytes are received from the remote peer or peers
+	 */
+	final TokenBucket downloadBucket;
+
+	/**
+	 * The pending timeout that will resume writing to a connection whose upload was suspended, or
+	 * {@code null}
+	 *
+	 * <p>Note: This field is accessed through synchronisation on the limiter
+	 */
+	private TimingWheel.Timeout uploadResumeTimeout = null;
+
+	/**
+	 * The pending timeout that will resume reading from a connection whose download was
+	 * suspended, or {@code null}
+	 *
+	 * <p>Note: This field is accessed through synchronisation on the limiter
+	 */
+	private TimingWheel.Timeout downloadResumeTimeout = null;
+
+
+	/**
+	 * @param bucket The bucket to ask
+	 * @return The number of bytes that may be transferred now, as limited by the bucket
+	 */
+	private static int quota (TokenBucket bucket) {
+
+		return (int) Math.min (bucket.available(), Integer.MAX_VALUE);
+
+	}
+
+
+	/**
+	 * @param bucket The bucket to ask
+	 * @return The delay in milliseconds before a connection limited by the bucket should be resumed
+	 */
+	private static long resumeDelay (TokenBucket bucket) {
+
+		return Math.min (bucket.getDelay (RESUME_BYTES, TimeUnit.MILLISECONDS), MAXIMUM_RESUME_DELAY);
+
+	}
+
+
+	/**
+	 * @return The number of bytes that may be sent now
+	 */
+	int getUploadQuota() {
+
+		return quota (this.uploadBucket);
+
+	}
+
+
+	/**
+	 * @return The number of bytes that may be received now
+	 */
+	int getDownloadQuota() {
+
+		return quota (this.downloadBucket);
+
+	}
+
+
+	/**
+	 * Charges bytes sent against the upload limits. If little allowance remains, writing to
+	 * the connection is suspended until it is replenished. At most one timeout to resume writing
+	 * is pending at a time
+	 *
+	 * @param connection The connection the bytes were sent through
+	 * @param bytesSent The number of bytes sent
+	 */
+	void uploaded (final Connection connection, int bytesSent) {
+
+		this.uploadBucket.consume (bytesSent);
+
+		if (this.uploadBucket.available() < RESUME_BYTES) {
+			connection.setWriteSuspended (true);
+			synchronized (this) {
+				if (this.uploadResumeTimeout == null) {
+					this.uploadResumeTimeout = WorkQueue.getSharedTimingWheel().schedule (new Runnable() {
+						public void run() {
+							synchronized (PeerRateLimiter.this) {
+								PeerRateLimiter.this.uploadResumeTimeout = null;
+							}
+							connection.setWriteSuspended (false);
+						}
+					}, resumeExecutor, resumeDelay (this.uploadBucket), TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+	}
+
+
+	/**
+	 * Charges bytes received against the download limits. If little allowance remains, reading
+	 * from the connection is suspended until it is replenished. At most one timeout to resume
+	 * reading is pending at a time
+	 *
+	 * @param connection The connection the bytes were received through
+	 * @param bytesReceived The number of bytes received
+	 */
+	void downloaded (final Connection connection, int bytesReceived) {
+
+		this.downloadBucket.consume (bytesReceived);
+
+		if (this.downloadBucket.available() < RESUME_BYTES) {
+			connection.setReadEnabled (false);
+			synchronized (this) {
+				if (this.downloadResumeTimeout == null) {
+					this.downloadResumeTimeout = WorkQueue.getSharedTimingWheel().schedule (new Runnable() {
+						public void run() {
+							synchronized (PeerRateLimiter.this) {
+								PeerRateLimiter.this.downloadResumeTimeout = null;
+							}
+							connection.setReadEnabled (true);
+						}
+					}, resumeExecutor, resumeDelay (this.downloadBucket), TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+	}
+
+
+	/**
+	 * Sets the upload rate limit
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param bytesPerSecond The limit in bytes per second, or 0 for no limit
+	 */
+	public void setUploadRate (int bytesPerSecond) {
+
+		this.uploadBucket.setRate (bytesPerSecond);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The upload rate limit in bytes per second, or 0 if there is no limit
+	 */
+	public int getUploadRate() {
+
+		return this.uploadBucket.getRate();
+
+	}
+
+
+	/**
+	 * Sets the download rate limit
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param bytesPerSecond The limit in bytes per second, or 0 for no limit
+	 */
+	public void setDownloadRate (int bytesPerSecond) {
+
+		this.downloadBucket.setRate (bytesPerSecond);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The download rate limit in bytes per second, or 0 if there is no limit
+	 */
+	public int getDownloadRate() {
+
+		return this.downloadBucket.getRate();
+
+	}
+
+
+	/**
+	 * Creates an unlimited PeerRateLimiter with no parent
+	 */
+	public PeerRateLimiter() {
+
+		this.uploadBucket = new TokenBucket();
+		this.downloadBucket = new TokenBucket();
+
+	}
+
+
+	/**
+	 * Creates an unlimited PeerRateLimiter that is additionally limited by a parent
+	 * PeerRateLimiter
+	 *
+	 * @param parent The PeerRateLimiter to use as parent
+	 */
+	public PeerRateLimiter (PeerRateLimiter parent) {
+
+		this.uploadBucket = new TokenBucket (parent.uploadBucket);
+		this.downloadBucket = new TokenBucket (parent.downloadBucket);
+
+	}
+
+
+}
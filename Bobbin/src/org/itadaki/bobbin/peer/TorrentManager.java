@@ -19,6 +19,7 @@ import java.util.concurrent.TimeUnit;
 import org.itadaki.bobbin.connectionmanager.ConnectionManager;
 import org.itadaki.bobbin.peer.protocol.PeerConnectionListener;
 import org.itadaki.bobbin.torrentdb.InfoHash;
+import org.itadaki.bobbin.torrentdb.PieceCache;
 import org.itadaki.bobbin.torrentdb.PieceDatabase;
 import org.itadaki.bobbin.torrentdb.PieceDatabaseListener;
 import org.itadaki.bobbin.trackerclient.PeerIdentifier;
@@ -191,6 +192,10 @@ public class TorrentManager {
 			TorrentManager.this.stateMachine.input (Input.DATABASE_AVAILABLE);
 		}
 
+		public void pieceDatabasePieceVerified (int pieceNumber, boolean present) {
+			TorrentManager.this.peerCoordinator.pieceVerified (pieceNumber, present);
+		}
+
 		public void pieceDatabaseStopped() {
 			TorrentManager.this.stateMachine.input (Input.DATABASE_STOPPED);
 		}
@@ -690,6 +695,48 @@ public class TorrentManager {
 	}
 
 
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The proportion of piece reads served from the shared piece cache, or zero if no piece
+	 *         cache is in use
+	 */
+	public double getPieceCacheHitRatio() {
+
+		PieceCache.Partition partition = this.pieceDatabase.getPieceCachePartition();
+		return (partition == null) ? 0 : partition.getHitRatio();
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of the torrent's pieces evicted from the shared piece cache, or zero if no
+	 *         piece cache is in use
+	 */
+	public long getPieceCacheEvictionCount() {
+
+		PieceCache.Partition partition = this.pieceDatabase.getPieceCachePartition();
+		return (partition == null) ? 0 : partition.getEvictionCount();
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of bytes served from the shared piece cache rather than read from storage,
+	 *         or zero if no piece cache is in use
+	 */
+	public long getPieceCacheBytesSaved() {
+
+		PieceCache.Partition partition = this.pieceDatabase.getPieceCachePartition();
+		return (partition == null) ? 0 : partition.getBytesSaved();
+
+	}
+
+
 	/**
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
@@ -745,6 +792,38 @@ public class TorrentManager {
 	}
 
 
+	/**
+	 * Sets whether the blocks of newly requested pieces are written to disk as they arrive, rather
+	 * than held in memory until their piece is complete
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param blockStreaming If {@code true}, the blocks of newly requested pieces are streamed
+	 */
+	public void setBlockStreaming (boolean blockStreaming) {
+
+		this.peerCoordinator.setBlockStreaming (blockStreaming);
+
+	}
+
+
+	/**
+	 * Sets whether the torrent is run while its data is still being checked. If enabled, peers are
+	 * started as soon as checking begins; pieces that have been checked and found present are
+	 * advertised to and served to peers as they are checked, and pieces that have been found absent
+	 * are requested from them. The setting takes effect from the next time the torrent is started
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param checkWhileActive If {@code true}, the torrent is run while its data is checked
+	 */
+	public void setCheckWhileActive (boolean checkWhileActive) {
+
+		this.pieceDatabase.setCheckWhileActive (checkWhileActive);
+
+	}
+
+
 	/**
 	 * Returns the set of all fully connected peers. The returned set will not be affected by later
 	 * additions to or removals from the live peer set, but the attributes of its members may change
@@ -809,6 +888,59 @@ public class TorrentManager {
 	}
 
 
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The upload and download rate limits of the torrent, which may be adjusted at any
+	 *         time. Any limits of the torrent set apply in addition
+	 */
+	public PeerRateLimiter getRateLimiter() {
+
+		return this.peerCoordinator.getRateLimiter();
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The upload rate limit of each peer in bytes per second, or 0 if there is no limit
+	 */
+	public int getPeerUploadRate() {
+
+		return this.peerCoordinator.getPeerUploadRate();
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The download rate limit of each peer in bytes per second, or 0 if there is no limit
+	 */
+	public int getPeerDownloadRate() {
+
+		return this.peerCoordinator.getPeerDownloadRate();
+
+	}
+
+
+	/**
+	 * Sets the upload and download rate limits of each peer of the torrent. The limits apply in
+	 * addition to those of the torrent and the torrent set
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param uploadRate The upload rate limit in bytes per second, or 0 for no limit
+	 * @param downloadRate The download rate limit in bytes per second, or 0 for no limit
+	 */
+	public void setPeerRates (int uploadRate, int downloadRate) {
+
+		this.peerCoordinator.setPeerRates (uploadRate, downloadRate);
+
+	}
+
+
 	/**
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
@@ -1050,12 +1182,30 @@ public class TorrentManager {
 			PieceDatabase pieceDatabase)
 	{
 
+		this (localPeerID, localPort, infoHash, announceURLs, connectionManager, pieceDatabase, new PeerRateLimiter());
+
+	}
+
+
+	/**
+	 * @param localPeerID The local peer's ID
+	 * @param localPort The local peer's port
+	 * @param infoHash The InfoHash of the managed torrent
+	 * @param announceURLs The tracker announce URLs
+	 * @param connectionManager The ConnectionManager for the managed torrent
+	 * @param pieceDatabase The PieceDatabase of the managed torrent
+	 * @param parentRateLimiter The parent PeerRateLimiter for the whole torrent set
+	 */
+	public TorrentManager (PeerID localPeerID, int localPort, InfoHash infoHash, List<List<String>> announceURLs, ConnectionManager connectionManager,
+			PieceDatabase pieceDatabase, PeerRateLimiter parentRateLimiter)
+	{
+
 		this.localPeerID = localPeerID;
 		this.infoHash = infoHash;
 		this.pieceDatabase = pieceDatabase;
 
 		this.workQueue = new WorkQueue ("TorrentManager WorkQueue - " + CharsetUtil.hexencode (infoHash.getBytes()));
-		this.peerCoordinator = new PeerCoordinator (localPeerID, connectionManager, pieceDatabase);
+		this.peerCoordinator = new PeerCoordinator (localPeerID, connectionManager, pieceDatabase, parentRateLimiter);
 		this.peerCoordinator.addListener (this.peerCoordinatorListener);
 		this.trackerClient = new TrackerClient (connectionManager, infoHash, localPeerID, localPort, announceURLs, 0,
 				this.peerCoordinator.getDesiredPeerConnections(), this.trackerClientListener);
@@ -25,6 +25,7 @@ import org.itadaki.bobbin.connectionmanager.InboundConnectionListener;
 import org.itadaki.bobbin.peer.protocol.PeerConnectionListener;
 import org.itadaki.bobbin.peer.protocol.PeerConnectionListenerProvider;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolNegotiator;
+import org.itadaki.bobbin.torrentdb.DiskJobQueue;
 import org.itadaki.bobbin.torrentdb.FileMetadataProvider;
 import org.itadaki.bobbin.torrentdb.FileStorage;
 import org.itadaki.bobbin.torrentdb.IncompatibleLocationException;
@@ -33,8 +34,10 @@ import org.itadaki.bobbin.torrentdb.InfoHash;
 import org.itadaki.bobbin.torrentdb.MetaInfo;
 import org.itadaki.bobbin.torrentdb.Metadata;
 import org.itadaki.bobbin.torrentdb.MetadataProvider;
+import org.itadaki.bobbin.torrentdb.PieceCache;
 import org.itadaki.bobbin.torrentdb.PieceDatabase;
 import org.itadaki.bobbin.torrentdb.Storage;
+import org.itadaki.bobbin.torrentdb.VerificationScheduler;
 import org.itadaki.bobbin.util.BitField;
 import org.itadaki.bobbin.util.CharsetUtil;
 import org.itadaki.bobbin.util.WorkQueue;
@@ -94,6 +97,32 @@ public class TorrentSetController {
 	 */
 	private final MetadataProvider metadataProvider;
 
+	/**
+	 * The piece cache shared between the managed torrents
+	 */
+	private final PieceCache pieceCache = new PieceCache (PieceCache.DEFAULT_CAPACITY);
+
+	/**
+	 * The rate limits shared between the managed torrents
+	 */
+	private final PeerRateLimiter rateLimiter = new PeerRateLimiter();
+
+	/**
+	 * The queue through which the managed torrents' disk reads and writes are performed off the
+	 * connection manager's thread
+	 */
+	private final DiskJobQueue diskJobQueue = new DiskJobQueue (DiskJobQueue.DEFAULT_WORKER_COUNT);
+
+	/**
+	 * The scheduler through which the managed torrents are verified
+	 */
+	private final VerificationScheduler verificationScheduler = new VerificationScheduler (VerificationScheduler.DEFAULT_CHECKS_PER_DEVICE);
+
+	/**
+	 * The {@code PieceDatabase}s of the managed torrents, indexed by their info hash
+	 */
+	private final Map<InfoHash,PieceDatabase> pieceDatabases = new ConcurrentHashMap<InfoHash,PieceDatabase>();
+
 	/**
 	 * The set of individual {@code TorrentManager}s, indexed by their info hash
 	 */
@@ -191,6 +220,7 @@ public class TorrentSetController {
 
 			synchronized (TorrentSetController.this.stateMachine) {
 				TorrentSetController.this.torrentManagers.remove (torrentManager.getInfoHash());
+				TorrentSetController.this.pieceDatabases.remove (torrentManager.getInfoHash());
 				switch (TorrentSetController.this.stateMachine.getState()) {
 					case TERMINATING:
 						if (TorrentSetController.this.torrentManagers.size() == 0) {
@@ -258,12 +288,38 @@ public class TorrentSetController {
 	}
 
 
+	/**
+	 * Determines the device that a {@code Storage} is verified against. The files of a
+	 * {@link FileStorage} are identified by their parent directory, so that torrents written to the
+	 * same directory are not verified concurrently beyond the scheduler's limit; any other storage
+	 * is its own device. A directory does not reliably identify a physical device, so disk jobs are
+	 * instead serialised per {@code Storage}
+	 *
+	 * @param storage The storage
+	 * @return The device
+	 */
+	private static Object storageDevice (Storage storage) {
+
+		if (storage instanceof FileStorage) {
+			return ((FileStorage)storage).getParentDirectory();
+		}
+
+		return storage;
+
+	}
+
+
 	/**
 	 * Initiates the starting of all registered {@code TorrentManager}s
 	 */
 	private void actionStart() {
 
+		// Torrents started together are verified after any started individually
 		for (TorrentManager torrentManager : this.torrentManagers.values()) {
+			PieceDatabase pieceDatabase = this.pieceDatabases.get (torrentManager.getInfoHash());
+			if (pieceDatabase != null) {
+				pieceDatabase.setVerificationPriority (VerificationScheduler.Priority.NORMAL);
+			}
 			torrentManager.start (false);
 		}
 
@@ -308,6 +364,8 @@ public class TorrentSetController {
 	private void actionTerminated() {
 
 		this.connectionManager.close();
+		this.diskJobQueue.shutdown();
+		this.verificationScheduler.shutdown();
 
 		synchronized (this.listeners) {
 			for (TorrentSetControllerListener listener : this.listeners) {
@@ -338,6 +396,40 @@ public class TorrentSetController {
 	}
 
 
+	/**
+	 * @return The piece cache shared between the torrents managed by this controller, whose
+	 *         capacity may be adjusted at any time
+	 */
+	public PieceCache getPieceCache() {
+
+		return this.pieceCache;
+
+	}
+
+
+	/**
+	 * @return The scheduler through which the torrents managed by this controller are verified,
+	 *         whose number of checks per device may be adjusted at any time
+	 */
+	public VerificationScheduler getVerificationScheduler() {
+
+		return this.verificationScheduler;
+
+	}
+
+
+	/**
+	 * @return The upload and download rate limits shared between the torrents managed by this
+	 *         controller, which may be adjusted at any time. Each torrent's own limits, and those
+	 *         of its peers, apply in addition
+	 */
+	public PeerRateLimiter getRateLimiter() {
+
+		return this.rateLimiter;
+
+	}
+
+
 	/**
 	 * @param infoHash An info hash to get a {@link TorrentManager} for
 	 * @return The registered {@code TorrentManager} for the given info hash, if any, or
@@ -365,7 +457,9 @@ public class TorrentSetController {
 	 * added {@code TorrentManager} will initially be stopped, with all pieces set as wanted.
 	 *
 	 * @param metaInfo The {@code MetaInfo} that describes the torrent
-	 * @param storage The {@code Storage} through which to read / write the torrent data
+	 * @param storage The {@code Storage} through which to read / write the torrent data, for
+	 *        instance a {@link FileStorage} or a
+	 *        {@link org.itadaki.bobbin.torrentdb.MappedFileStorage}
 	 * @return The created {@code TorrentManager}
 	 * @throws IncompatibleLocationException If the specified base directory contains files or
 	 *         directories that are incompatible with the layout of the torrent
@@ -391,14 +485,19 @@ public class TorrentSetController {
 				metadata = this.metadataProvider.metadataFor (info.getHash());
 			}
 			PieceDatabase pieceDatabase = new PieceDatabase (info, metaInfo.getPublicKey(), storage, metadata);
+			pieceDatabase.setPieceCache (this.pieceCache);
+			pieceDatabase.setDiskJobQueue (this.diskJobQueue);
+			pieceDatabase.setVerificationScheduler (this.verificationScheduler, storageDevice (storage));
+			pieceDatabase.setWriteBackCapacity (PieceDatabase.DEFAULT_WRITE_BACK_CAPACITY);
 			BitField wantedPieces = new BitField (pieceDatabase.getPiecesetDescriptor().getNumberOfPieces());
 			wantedPieces.not();
 
 			TorrentManager torrentManager = new TorrentManager (this.localPeerID, this.localPort, info.getHash(), metaInfo.getAnnounceURLs(), this.connectionManager,
-					pieceDatabase);
+					pieceDatabase, this.rateLimiter);
 			torrentManager.setWantedPieces (wantedPieces);
 
 			this.torrentManagers.put (info.getHash(), torrentManager);
+			this.pieceDatabases.put (info.getHash(), pieceDatabase);
 			torrentManager.addListener (this.torrentManagerListener);
 
 			return torrentManager;
@@ -476,10 +575,15 @@ public class TorrentSetController {
 				metadata = this.metadataProvider.metadataFor (infoHash);
 			}
 			PieceDatabase pieceDatabase = new PieceDatabase (infoHash, storage, metadata);
+			pieceDatabase.setPieceCache (this.pieceCache);
+			pieceDatabase.setDiskJobQueue (this.diskJobQueue);
+			pieceDatabase.setVerificationScheduler (this.verificationScheduler, storageDevice (storage));
+			pieceDatabase.setWriteBackCapacity (PieceDatabase.DEFAULT_WRITE_BACK_CAPACITY);
 
-			TorrentManager torrentManager = new TorrentManager (this.localPeerID, this.localPort, infoHash, announceURLs, this.connectionManager, pieceDatabase);
+			TorrentManager torrentManager = new TorrentManager (this.localPeerID, this.localPort, infoHash, announceURLs, this.connectionManager, pieceDatabase, this.rateLimiter);
 
 			this.torrentManagers.put (infoHash, torrentManager);
+			this.pieceDatabases.put (infoHash, pieceDatabase);
 			torrentManager.addListener (this.torrentManagerListener);
 
 			return torrentManager;
@@ -209,9 +209,23 @@ public class PeerProtocolBuilder {
 			throw new IllegalArgumentException ("Invalid block data length");
 		}
 
+		return new ByteBuffer[] { pieceMessageHeader (descriptor), block };
+
+	}
+
+
+	/**
+	 * Constructs a ByteBuffer containing the header of a "piece" message. The block data,
+	 * {@code descriptor.getLength()} bytes in length, must be sent immediately following the header
+	 *
+	 * @param descriptor The descriptor of the block to send
+	 * @return A ByteBuffer containing the encoded message header
+	 */
+	public static ByteBuffer pieceMessageHeader (BlockDescriptor descriptor) {
+
 		int pieceNumber = descriptor.getPieceNumber();
 		int offset = descriptor.getOffset();
-		int messageLength = 9 + block.remaining();
+		int messageLength = 9 + descriptor.getLength();
 
 		byte[] headerBytes =  new byte[] {
 				(byte)((messageLength >>> 24) & 0xff),
@@ -229,7 +243,7 @@ public class PeerProtocolBuilder {
 				(byte)(offset & 0xff)
 		};
 
-		return new ByteBuffer[] { ByteBuffer.wrap (headerBytes), block };
+		return ByteBuffer.wrap (headerBytes);
 
 	}
 
@@ -86,7 +86,8 @@ public interface PeerProtocolConsumer {
 	 * @param descriptor The descriptor of the block received
 	 * @param viewLength For an elastic block, the view length to which the hash chain applies
 	 * @param hashes For a Merkle or elastic block, the sibling hash chain received
-	 * @param block The contents of the block received
+	 * @param block The contents of the block received. The block is only valid for the duration
+	 *        of the call, and must be copied if it is needed afterwards
 	 *
 	 * @throws IOException On any validation error
 	 */
@@ -27,6 +27,7 @@ import org.itadaki.bobbin.torrentdb.BlockDescriptor;
 import org.itadaki.bobbin.torrentdb.PieceStyle;
 import org.itadaki.bobbin.torrentdb.ResourceType;
 import org.itadaki.bobbin.torrentdb.ViewSignature;
+import org.itadaki.bobbin.util.BufferPool;
 
 
 /**
@@ -71,11 +72,30 @@ public class PeerProtocolParser {
 
 	}
 
+	/**
+	 * The number of outstanding bytes of a message at or above which the message is read directly
+	 * into place rather than through the read-ahead buffer. This is also the size of the
+	 * read-ahead buffer
+	 */
+	private static final int DIRECT_READ_SIZE = 4 * 1024;
+
+	/**
+	 * The minimum number of bytes requested by a read into the read-ahead buffer. A read is
+	 * otherwise limited to the outstanding bytes of the current message, so that it cannot absorb
+	 * more than this much of a following large message
+	 */
+	private static final int READ_AHEAD_MINIMUM = 1024;
+
 	/**
 	 * The {@code PeerProtocolConsumer} to call with complete messages
 	 */
 	private PeerProtocolConsumer consumer = null;
 
+	/**
+	 * The pool from which the blocks of piece messages are allocated
+	 */
+	private final BufferPool bufferPool;
+
 	/**
 	 * The parser's current state
 	 */
@@ -86,6 +106,12 @@ public class PeerProtocolParser {
 	 */
 	private ByteBuffer messageData = ByteBuffer.allocate (4);
 
+	/**
+	 * Bytes read from the input channel but not yet assembled into messages, or {@code null}. The
+	 * buffer is allocated from the parser's buffer pool when needed, and released once empty
+	 */
+	private ByteBuffer readAheadData = null;
+
 	/**
 	 * The number of remaining bytes that are expected of the current message
 	 */
@@ -292,6 +318,34 @@ public class PeerProtocolParser {
 	}
 
 
+	/**
+	 * Passes the remaining message data to the consumer as the block of a piece message. The block
+	 * is allocated from the parser's buffer pool, and released once the consumer returns
+	 *
+	 * @param pieceStyle The style of the block
+	 * @param resource The resource to which the message applies, or {@code null}
+	 * @param pieceNumber The piece number of the block
+	 * @param offset The offset of the block within its piece
+	 * @param viewLength For an elastic block, the view length to which the hash chain applies
+	 * @param hashes For a Merkle or elastic block, the sibling hash chain
+	 * @throws IOException On any validation error
+	 */
+	private void consumePieceBlock (PieceStyle pieceStyle, ResourceType resource, int pieceNumber, int offset, Long viewLength, ByteBuffer hashes)
+			throws IOException
+	{
+
+		ByteBuffer block = this.bufferPool.allocate (this.messageData.remaining());
+		try {
+			block.put (this.messageData);
+			block.flip();
+			this.consumer.pieceMessage (pieceStyle, resource, new BlockDescriptor (pieceNumber, offset, block.remaining()), viewLength, hashes, block);
+		} finally {
+			this.bufferPool.release (block);
+		}
+
+	}
+
+
 	/**
 	 * Parses the content of a Piece message at the current position
 	 *
@@ -303,10 +357,7 @@ public class PeerProtocolParser {
 		if (this.messageData.remaining() >= 8) {
 			int piecePieceIndex = readInt();
 			int pieceOffset = readInt();
-			ByteBuffer block = ByteBuffer.allocate (this.messageData.remaining());
-			block.put (this.messageData);
-			block.rewind();
-			this.consumer.pieceMessage (PieceStyle.PLAIN, resource, new BlockDescriptor (piecePieceIndex, pieceOffset, block.remaining()), null, null, block);
+			consumePieceBlock (PieceStyle.PLAIN, resource, piecePieceIndex, pieceOffset, null, null);
 		} else {
 			this.parserState = ParserState.ERROR;
 			throw new IOException ("Invalid message size");
@@ -565,11 +616,7 @@ public class PeerProtocolParser {
 
 		}
 
-		ByteBuffer block = ByteBuffer.allocate (this.messageData.remaining());
-		block.put (this.messageData);
-		block.rewind();
-
-		this.consumer.pieceMessage (PieceStyle.MERKLE, null, new BlockDescriptor (pieceNumber, offset, block.remaining()), null, ByteBuffer.wrap (hashChain), block);
+		consumePieceBlock (PieceStyle.MERKLE, null, pieceNumber, offset, null, ByteBuffer.wrap (hashChain));
 
 	}
 
@@ -630,11 +677,7 @@ public class PeerProtocolParser {
 					this.messageData.get (hashChain);
 				}
 
-				ByteBuffer block = ByteBuffer.allocate (this.messageData.remaining());
-				block.put (this.messageData);
-				block.rewind();
-				this.consumer.pieceMessage (PieceStyle.ELASTIC, null, new BlockDescriptor (pieceNumber, offset, block.remaining()), viewLength, ByteBuffer.wrap (hashChain),
-						block);
+				consumePieceBlock (PieceStyle.ELASTIC, null, pieceNumber, offset, viewLength, ByteBuffer.wrap (hashChain));
 				break;
 
 			case PeerProtocolConstants.ELASTIC_MESSAGE_TYPE_BITFIELD:
@@ -765,20 +808,141 @@ public class PeerProtocolParser {
 	 */
 	public int parseBytes (ReadableByteChannel inputChannel) throws IOException {
 
+		return parseBytes (inputChannel, Integer.MAX_VALUE);
+
+	}
+
+
+	/**
+	 * Parses input bytes of peer protocol as {@link #parseBytes(ReadableByteChannel)}, reading no
+	 * more than a given number of bytes from the input channel
+	 *
+	 * @param inputChannel The input channel to read bytes from
+	 * @param maximumBytes The maximum number of bytes to read
+	 * @return The number of bytes successfully parsed, possibly zero
+	 * @throws IOException if the input channel is closed or a parse error occurred
+	 */
+	public int parseBytes (ReadableByteChannel inputChannel, int maximumBytes) throws IOException {
+
+		try {
+			return parseBytesInternal (inputChannel, maximumBytes);
+		} finally {
+			if ((this.readAheadData != null) && (!this.readAheadData.hasRemaining() || (this.parserState == ParserState.ERROR))) {
+				this.bufferPool.release (this.readAheadData);
+				this.readAheadData = null;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Fills as much as possible of the current message from the read-ahead buffer
+	 *
+	 * @return The number of bytes transferred
+	 */
+	private int transferReadAheadData() {
+
+		int length = Math.min (this.readAheadData.remaining(), this.messageData.remaining());
+		int limit = this.readAheadData.limit();
+		this.readAheadData.limit (this.readAheadData.position() + length);
+		this.messageData.put (this.readAheadData);
+		this.readAheadData.limit (limit);
+
+		return length;
+
+	}
+
+
+	/**
+	 * Reads bytes from the input channel into a buffer
+	 *
+	 * @param inputChannel The input channel to read bytes from
+	 * @param buffer The buffer to read into
+	 * @param permittedBytes The maximum number of bytes to read
+	 * @return The number of bytes read, possibly zero, or -1 if the channel has reached the end
+	 *         of stream
+	 * @throws IOException On any I/O error
+	 */
+	private static int readInput (ReadableByteChannel inputChannel, ByteBuffer buffer, int permittedBytes) throws IOException {
+
+		if (buffer.remaining() <= permittedBytes) {
+			return inputChannel.read (buffer);
+		}
+
+		int limit = buffer.limit();
+		buffer.limit (buffer.position() + permittedBytes);
+		try {
+			return inputChannel.read (buffer);
+		} finally {
+			buffer.limit (limit);
+		}
+
+	}
+
+
+	/**
+	 * Parses input bytes of peer protocol as {@link #parseBytes(ReadableByteChannel, int)}
+	 *
+	 * @param inputChannel The input channel to read bytes from
+	 * @param maximumBytes The maximum number of bytes to read
+	 * @return The number of bytes successfully parsed, possibly zero
+	 * @throws IOException if the input channel is closed or a parse error occurred
+	 */
+	private int parseBytesInternal (ReadableByteChannel inputChannel, int maximumBytes) throws IOException {
+
 		int totalBytesRead = 0;
 
 		while (this.parserState != ParserState.ERROR) {
 
-			int bytesRead = inputChannel.read (this.messageData);
-			totalBytesRead += bytesRead;
+			int bytesAssembled;
+
+			if ((this.readAheadData != null) && this.readAheadData.hasRemaining()) {
+
+				bytesAssembled = transferReadAheadData();
+
+			} else {
+
+				int permittedBytes = maximumBytes - totalBytesRead;
+				if (permittedBytes <= 0) {
+					return totalBytesRead;
+				}
+
+				// Where the current message has few bytes outstanding, read ahead into the read-ahead
+				// buffer so that a run of small messages costs a single read. The read is limited so
+				// that the body of a following piece message is mostly left to be read directly into
+				// the message
+				int messageBytesRemaining = this.messageData.remaining();
+				boolean readAhead = (messageBytesRemaining < DIRECT_READ_SIZE);
+				int bytesRead;
+				if (readAhead) {
+					if (this.readAheadData == null) {
+						this.readAheadData = this.bufferPool.allocate (DIRECT_READ_SIZE);
+					}
+					this.readAheadData.clear();
+					this.readAheadData.limit (Math.max (messageBytesRemaining, READ_AHEAD_MINIMUM));
+					bytesRead = readInput (inputChannel, this.readAheadData, permittedBytes);
+					this.readAheadData.flip();
+				} else {
+					bytesRead = readInput (inputChannel, this.messageData, permittedBytes);
+				}
+
+				if (bytesRead == 0) {
+					return totalBytesRead;
+				} else if (bytesRead == -1) {
+					throw new ClosedChannelException();
+				}
+
+				totalBytesRead += bytesRead;
+
+				if (readAhead) {
+					continue;
+				}
+				bytesAssembled = bytesRead;
 
-			if (bytesRead == 0) {
-				return totalBytesRead;
-			} else if (bytesRead == -1) {
-				throw new ClosedChannelException();
 			}
 
-			this.messageBytesExpected -= bytesRead;
+			this.messageBytesExpected -= bytesAssembled;
 
 			if (this.messageBytesExpected == 0) {
 				this.messageData.rewind();
@@ -921,12 +1085,29 @@ public class PeerProtocolParser {
 	 * @param consumer The PeerProtocolConsumer to inform of received completed messages
 	 * @param fastExtensionEnabled If {@code true}, the Fast extension has been negotiated
 	 * @param extensionProtocolEnabled If {@code true}, the extension protocol has negotiated
+	 * @param bufferPool The pool from which to allocate the blocks of piece messages
 	 */
-	public PeerProtocolParser (PeerProtocolConsumer consumer, boolean fastExtensionEnabled, boolean extensionProtocolEnabled) {
+	public PeerProtocolParser (PeerProtocolConsumer consumer, boolean fastExtensionEnabled, boolean extensionProtocolEnabled, BufferPool bufferPool) {
 
 		this.consumer = consumer;
 		this.fastExtensionEnabled = fastExtensionEnabled;
 		this.extensionProtocolEnabled = extensionProtocolEnabled;
+		this.bufferPool = bufferPool;
+
+	}
+
+
+	/**
+	 * Creates a parser that allocates the blocks of piece messages from the
+	 * {@link BufferPool#getSharedPool() shared buffer pool}
+	 *
+	 * @param consumer The PeerProtocolConsumer to inform of received completed messages
+	 * @param fastExtensionEnabled If {@code true}, the Fast extension has been negotiated
+	 * @param extensionProtocolEnabled If {@code true}, the extension protocol has negotiated
+	 */
+	public PeerProtocolParser (PeerProtocolConsumer consumer, boolean fastExtensionEnabled, boolean extensionProtocolEnabled) {
+
+		this (consumer, fastExtensionEnabled, extensionProtocolEnabled, BufferPool.getSharedPool());
 
 	}
 
@@ -15,6 +15,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import org.itadaki.bobbin.peer.ManageablePeer;
@@ -58,17 +59,34 @@ public class DefaultRequestManager implements RequestManager {
 	 */
 	private List<Integer> piecePriority;
 
+	/**
+	 * The source of randomness for the positions of pieces that are added to the piece priority
+	 */
+	private final Random random = new Random();
+
 	/**
 	 * Partially complete pieces that have been abandoned. They will be allocated preferentially to
 	 * minimise the quantity of incomplete piece data we hold
 	 */
 	private Map<Integer,Piece> orphanedPieces = new HashMap<Integer,Piece>();
 
+	/**
+	 * Pieces that have been assembled and passed to the listener, but that have not yet been
+	 * confirmed written or returned through {@link #pieceNotWritten(int)}. They remain needed, but
+	 * are not allocated to any peer
+	 */
+	private Set<Integer> writingPieces = new HashSet<Integer>();
+
 	/**
 	 * The request allocation and piece assembly state of known peers
 	 */
 	private Map<ManageablePeer,PeerState> peerStates = new HashMap<ManageablePeer,PeerState>();
 
+	/**
+	 * If {@code true}, newly allocated pieces are streamed
+	 */
+	private boolean blockStreaming = false;
+
 
 	/**
 	 * The request allocation and piece assembly state of a single peer
@@ -141,7 +159,7 @@ public class DefaultRequestManager implements RequestManager {
 			List<Integer> removedPieces = new LinkedList<Integer>();
 			for (; numRequests > this.unissuedRequests.size() && iterator.hasNext();) {
 				Integer pieceNumber = iterator.next();
-				if ((pieceNumbers != null) && pieceIsAllocated (pieceNumber)) {
+				if ((pieceNumbers != null) && (pieceIsAllocated (pieceNumber) || DefaultRequestManager.this.writingPieces.contains (pieceNumber))) {
 					iterator.remove();
 				} else {
 					if (peerHasCompatiblePiece (peerViewLength, peerBitField, pieceNumber) && !this.pieces.containsKey (pieceNumber)) {
@@ -149,7 +167,7 @@ public class DefaultRequestManager implements RequestManager {
 						Piece piece = DefaultRequestManager.this.orphanedPieces.remove (pieceNumber);
 						if (piece == null) {
 							piece = new Piece (pieceNumber, DefaultRequestManager.this.piecesetDescriptor.getPieceLength (pieceNumber),
-									PeerProtocolConstants.BLOCK_LENGTH);
+									PeerProtocolConstants.BLOCK_LENGTH, DefaultRequestManager.this.blockStreaming);
 						}
 						this.pieces.put (pieceNumber, piece);
 						this.unissuedRequests.addAll (piece.getNeededBlocks());
@@ -254,7 +272,7 @@ public class DefaultRequestManager implements RequestManager {
 					}
 				}
 
-				this.pieces.remove (pieceNumber);
+				this.pieces.remove (pieceNumber).release();
 
 				return blocksToCancel;
 
@@ -297,6 +315,7 @@ public class DefaultRequestManager implements RequestManager {
 						}
 					}
 
+					this.pieces.get (pieceNumber).release();
 					pieceIterator.remove();
 
 				}
@@ -341,6 +360,8 @@ public class DefaultRequestManager implements RequestManager {
 		for (Piece piece : peerState.pieces.values()) {
 			if (!this.orphanedPieces.containsKey (piece.getPieceNumber())) {
 				this.orphanedPieces.put (piece.getPieceNumber(), piece);
+			} else {
+				piece.release();
 			}
 		}
 
@@ -447,9 +468,13 @@ public class DefaultRequestManager implements RequestManager {
 				piece.setHashChain (hashChain);
 				piece.setViewSignature (viewSignature);
 			}
-			if (piece.putBlock (descriptor, block)) {
+			boolean assembled = piece.putBlock (descriptor, block);
+			if (piece.isStreamed()) {
+				this.listener.blockReceived (descriptor, block);
+			}
+			if (assembled) {
 				peerState.pieces.remove (pieceIndex);
-				this.listener.pieceAssembled (piece);
+				pieceAssembled (piece);
 			}
 		}
 
@@ -475,7 +500,9 @@ public class DefaultRequestManager implements RequestManager {
 
 		this.piecePriority = new LinkedList<Integer>();
 		for (Integer pieceIndex : this.neededPieces) {
-			this.piecePriority.add (pieceIndex);
+			if (!this.writingPieces.contains (pieceIndex)) {
+				this.piecePriority.add (pieceIndex);
+			}
 		}
 		Collections.shuffle (this.piecePriority);
 
@@ -493,6 +520,31 @@ public class DefaultRequestManager implements RequestManager {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManager#setPieceNeeded(int)
+	 */
+	public void setPieceNeeded (int pieceNumber) {
+
+		if (this.neededPieces.get (pieceNumber)) {
+			return;
+		}
+
+		this.neededPieces.set (pieceNumber);
+
+		if (this.piecePriority == null) {
+			this.piecePriority = new LinkedList<Integer>();
+		}
+		this.piecePriority.add (this.random.nextInt (this.piecePriority.size() + 1), pieceNumber);
+
+		for (ManageablePeer peer : this.peerStates.keySet()) {
+			if (peer.getRemoteBitField().get (pieceNumber)) {
+				peer.setWeAreInterested (true);
+			}
+		}
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManager#setPieceNotNeeded(int)
 	 */
@@ -500,12 +552,81 @@ public class DefaultRequestManager implements RequestManager {
 
 		this.neededPieces.clear (pieceNumber);
 		this.piecePriority.remove (new Integer (pieceNumber));
-		this.orphanedPieces.remove (pieceNumber);
+		this.writingPieces.remove (pieceNumber);
+		releaseOrphanedPiece (pieceNumber);
 		cancelRequestsForPiece (pieceNumber);
 
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManager#pieceNotWritten(int)
+	 */
+	public void pieceNotWritten (int pieceNumber) {
+
+		if (!this.writingPieces.remove (pieceNumber) || !this.neededPieces.get (pieceNumber)) {
+			return;
+		}
+
+		this.piecePriority.add (this.random.nextInt (this.piecePriority.size() + 1), pieceNumber);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManager#restorePartialPiece(int, java.util.List)
+	 */
+	public void restorePartialPiece (int pieceNumber, List<BlockDescriptor> storedBlocks) {
+
+		if (
+				   !this.neededPieces.get (pieceNumber)
+				|| this.orphanedPieces.containsKey (pieceNumber)
+				|| this.writingPieces.contains (pieceNumber)
+				|| pieceIsAllocated (pieceNumber)
+		   )
+		{
+			return;
+		}
+
+		Piece piece = new Piece (pieceNumber, this.piecesetDescriptor.getPieceLength (pieceNumber), PeerProtocolConstants.BLOCK_LENGTH, true);
+
+		// Stored blocks that do not match the piece's division into blocks are requested again
+		Set<BlockDescriptor> neededBlocks = new HashSet<BlockDescriptor> (piece.getNeededBlocks());
+		boolean assembled = false;
+		for (BlockDescriptor descriptor : storedBlocks) {
+			if (neededBlocks.remove (descriptor)) {
+				assembled = piece.putStoredBlock (descriptor);
+			}
+		}
+
+		if (assembled) {
+			pieceAssembled (piece);
+		} else {
+			this.orphanedPieces.put (pieceNumber, piece);
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManager#getPartialPieces()
+	 */
+	public List<Piece> getPartialPieces() {
+
+		Map<Integer,Piece> partialPieces = new HashMap<Integer,Piece> (this.orphanedPieces);
+		for (PeerState peerState : this.peerStates.values()) {
+			for (Piece piece : peerState.pieces.values()) {
+				if (!partialPieces.containsKey (piece.getPieceNumber())) {
+					partialPieces.put (piece.getPieceNumber(), piece);
+				}
+			}
+		}
+
+		return new ArrayList<Piece> (partialPieces.values());
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManager#getNeededPieceCount()
 	 */
@@ -516,6 +637,16 @@ public class DefaultRequestManager implements RequestManager {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManager#setBlockStreaming(boolean)
+	 */
+	public void setBlockStreaming (boolean blockStreaming) {
+
+		this.blockStreaming = blockStreaming;
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.peer.requestmanager.RequestManager#extend(org.itadaki.bobbin.torrentdb.PiecesetDescriptor)
 	 */
@@ -533,7 +664,7 @@ public class DefaultRequestManager implements RequestManager {
 			// TODO Optimisation - If there is a piece in progress, we could theoretically recycle its blocks
 			int lastPieceNumber = this.piecesetDescriptor.getNumberOfPieces() - 1;
 			cancelRequestsForPiece (lastPieceNumber);
-			this.orphanedPieces.remove (lastPieceNumber);
+			releaseOrphanedPiece (lastPieceNumber);
 		}
 
 		this.pieceAvailability = Arrays.copyOf (this.pieceAvailability, piecesetDescriptor.getNumberOfPieces());
@@ -543,6 +674,41 @@ public class DefaultRequestManager implements RequestManager {
 	}
 
 
+	/**
+	 * Withdraws an assembled piece from allocation and passes it to the listener. Requests for
+	 * the piece that are allocated to other peers are cancelled
+	 *
+	 * @param piece The assembled piece
+	 */
+	private void pieceAssembled (Piece piece) {
+
+		Integer pieceNumber = piece.getPieceNumber();
+
+		this.writingPieces.add (pieceNumber);
+		this.piecePriority.remove (pieceNumber);
+		releaseOrphanedPiece (pieceNumber);
+		cancelRequestsForPiece (pieceNumber);
+
+		this.listener.pieceAssembled (piece);
+
+	}
+
+
+	/**
+	 * Discards and releases the orphaned piece with a given piece number, if there is one
+	 *
+	 * @param pieceNumber The piece number
+	 */
+	private void releaseOrphanedPiece (int pieceNumber) {
+
+		Piece piece = this.orphanedPieces.remove (pieceNumber);
+		if (piece != null) {
+			piece.release();
+		}
+
+	}
+
+
 	/**
 	 * Cancels all requests for a given piece
 	 *
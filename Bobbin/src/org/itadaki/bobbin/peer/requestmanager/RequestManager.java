@@ -10,6 +10,7 @@ import java.util.List;
 import org.itadaki.bobbin.peer.ManageablePeer;
 import org.itadaki.bobbin.peer.PeerCoordinatorListener;
 import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.Piece;
 import org.itadaki.bobbin.torrentdb.PiecesetDescriptor;
 import org.itadaki.bobbin.torrentdb.ViewSignature;
 import org.itadaki.bobbin.util.BitField;
@@ -75,7 +76,8 @@ public interface RequestManager extends PeerCoordinatorListener {
 	 * assembled
 	 * 
 	 * <p>Even after a piece is assembled, the piece will still be wanted until a call to
-	 * {@link #setPieceNotNeeded(int)} is made
+	 * {@link #setPieceNotNeeded(int)} is made. In the meantime it is not allocated to any peer
+	 * unless it is returned through {@link #pieceNotWritten(int)}
 	 *
 	 * @param peer The peer that sent the block
 	 * @param descriptor The request corresponding to this block
@@ -99,6 +101,14 @@ public interface RequestManager extends PeerCoordinatorListener {
 	 */
 	public void setNeededPieces (BitField neededPieces);
 
+	/**
+	 * Sets a single piece as needed, in addition to the pieces that are already needed. Peers that
+	 * have the piece are informed that we are interested in them
+	 *
+	 * @param pieceNumber The piece to set needed
+	 */
+	public void setPieceNeeded (int pieceNumber);
+
 	/**
 	 * Sets a single piece as not needed. Any outstanding requests for blocks of the given piece are
 	 * synchronously cancelled.
@@ -107,11 +117,44 @@ public interface RequestManager extends PeerCoordinatorListener {
 	 */
 	public void setPieceNotNeeded (int pieceNumber);
 
+	/**
+	 * Indicates that an assembled piece could not be verified or written. If the piece is still
+	 * needed, it is returned to the queue to be requested again
+	 *
+	 * @param pieceNumber The piece that was not written
+	 */
+	public void pieceNotWritten (int pieceNumber);
+
+	/**
+	 * Restores a partially downloaded piece whose blocks are already held in storage. If the piece
+	 * is needed and not already in progress, it is treated as an abandoned piece, so that only its
+	 * missing blocks are requested; if no blocks are missing, the piece is passed to the listener as
+	 * assembled
+	 *
+	 * @param pieceNumber The piece number
+	 * @param storedBlocks The blocks of the piece that are held in storage
+	 */
+	public void restorePartialPiece (int pieceNumber, List<BlockDescriptor> storedBlocks);
+
+	/**
+	 * @return The pieces that are partially assembled, whether allocated to peers or abandoned
+	 */
+	public List<Piece> getPartialPieces();
+
 	/**
 	 * @return The number of pieces that are needed to complete the torrent
 	 */
 	public int getNeededPieceCount();
 
+	/**
+	 * Sets whether newly allocated pieces are streamed. The blocks of a streamed piece are passed
+	 * to the listener as they arrive, and only a record of which blocks are present is held until
+	 * the piece is assembled. Pieces that have already been allocated are unaffected
+	 *
+	 * @param blockStreaming If {@code true}, newly allocated pieces are streamed
+	 */
+	public void setBlockStreaming (boolean blockStreaming);
+
 	/**
 	 * Updates the RequestManager's view of the storage on an extension
 	 *
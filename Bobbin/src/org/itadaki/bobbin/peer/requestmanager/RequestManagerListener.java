@@ -1,5 +1,8 @@
 package org.itadaki.bobbin.peer.requestmanager;
 
+import java.nio.ByteBuffer;
+
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
 import org.itadaki.bobbin.torrentdb.Piece;
 
 /**
@@ -13,4 +16,12 @@ public interface RequestManagerListener {
 	 */
 	public void pieceAssembled (Piece piece);
 
+	/**
+	 * Indicates that the RequestManager has received an unverified block of a streamed piece. The
+	 * block must be stored before the piece is subsequently assembled
+	 * @param descriptor The descriptor of the block
+	 * @param block The content of the block
+	 */
+	public void blockReceived (BlockDescriptor descriptor, ByteBuffer block);
+
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+
+/**
+ * A listener for the completion of a job submitted to a {@link DiskJobQueue}
+ *
+ * <p>The listener is invoked on the thread that performed the job, which for a job performed
+ * asynchronously is a {@code DiskJobQueue} worker thread. Implementations that alter shared state
+ * must acquire any locks required to do so
+ *
+ * @param <T> The type of the job's result
+ */
+public interface DiskJobListener<T> {
+
+	/**
+	 * Indicates that the job completed successfully
+	 *
+	 * @param result The result of the job
+	 */
+	public void diskJobCompleted (T result);
+
+	/**
+	 * Indicates that the job failed
+	 *
+	 * @param exception The exception that caused the job to fail
+	 */
+	public void diskJobFailed (Exception exception);
+
+}
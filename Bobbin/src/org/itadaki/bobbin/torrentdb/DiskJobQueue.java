@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Performs disk I/O jobs asynchronously on a bounded pool of worker threads, so that threads
+ * serving network connections need not wait for the disk
+ *
+ * <p>Each job is submitted against a device, which may be any object that identifies a set of
+ * storage that is best accessed serially. Jobs for the same device are performed one at a time in
+ * the order they were submitted, while jobs for different devices are performed concurrently up to
+ * the number of worker threads. A device that has jobs waiting yields its worker after each job,
+ * so that a long queue for one device cannot delay the jobs of another. Jobs that do not access
+ * storage, such as hashing, may be submitted without a device, and are performed on the next free
+ * worker without being serialised against any other job.
+ *
+ * <p>The number of jobs waiting or being performed is bounded. A job submitted while the queue is
+ * full is not performed, and its listener is immediately informed that it has failed.
+ *
+ * <p>When a job completes, its {@link DiskJobListener} is invoked on the worker thread that
+ * performed it.
+ */
+public class DiskJobQueue {
+
+	/**
+	 * The default number of worker threads
+	 */
+	public static final int DEFAULT_WORKER_COUNT = 4;
+
+	/**
+	 * The default maximum number of jobs waiting or being performed
+	 */
+	public static final int DEFAULT_MAXIMUM_PENDING_JOBS = 8192;
+
+	/**
+	 * The maximum number of jobs waiting or being performed
+	 */
+	private final int maximumPendingJobs;
+
+	/**
+	 * The executor that runs the device queues
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * The queues of devices that currently have jobs waiting or being performed
+	 */
+	private final Map<Object,DeviceQueue> deviceQueues = new HashMap<Object,DeviceQueue>();
+
+	/**
+	 * The number of jobs waiting or being performed
+	 */
+	private int pendingJobCount = 0;
+
+	/**
+	 * The number of jobs that have been completed, successfully or otherwise
+	 */
+	private long completedJobCount = 0;
+
+	/**
+	 * If {@code true}, the queue has been shut down and no further jobs will be accepted
+	 */
+	private boolean shutdown = false;
+
+
+	/**
+	 * The jobs waiting to be performed for a single device
+	 */
+	private class DeviceQueue implements Runnable {
+
+		/**
+		 * The device
+		 */
+		private final Object device;
+
+		/**
+		 * The device's waiting jobs, in order of submission
+		 */
+		private final LinkedList<Runnable> jobs = new LinkedList<Runnable>();
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+
+			Runnable job;
+			synchronized (DiskJobQueue.this) {
+				job = this.jobs.poll();
+			}
+
+			try {
+				job.run();
+			} finally {
+				synchronized (DiskJobQueue.this) {
+					if (this.jobs.isEmpty()) {
+						DiskJobQueue.this.deviceQueues.remove (this.device);
+					} else {
+						// Requeue behind any other devices' waiting jobs
+						DiskJobQueue.this.executor.execute (this);
+					}
+				}
+			}
+
+		}
+
+
+		/**
+		 * @param device The device
+		 */
+		public DeviceQueue (Object device) {
+
+			this.device = device;
+
+		}
+
+	}
+
+
+	/**
+	 * Counts a job as completed. Called before the job's listener is informed, so that the
+	 * listener sees the job as completed. Once the queue has been shut down, the executor is shut
+	 * down after the last job completes
+	 */
+	private synchronized void jobCompleted() {
+
+		this.pendingJobCount--;
+		this.completedJobCount++;
+
+		if (this.shutdown && (this.pendingJobCount == 0)) {
+			this.executor.shutdown();
+		}
+
+	}
+
+
+	/**
+	 * Submits a job to be performed asynchronously. If the queue has been shut down or is full,
+	 * the job is not performed, and its listener is immediately informed that it has failed
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param <T> The type of the job's result
+	 * @param device The device that the job accesses, or {@code null} if the job does not access
+	 *        storage and need not be serialised against other jobs
+	 * @param job The job
+	 * @param listener The listener to inform when the job has completed
+	 */
+	public <T> void submit (Object device, final Callable<T> job, final DiskJobListener<T> listener) {
+
+		Runnable runnable = new Runnable() {
+			public void run() {
+				T result = null;
+				Exception exception = null;
+				try {
+					result = job.call();
+				} catch (Exception e) {
+					exception = e;
+				} finally {
+					// Counted even if the job throws an Error, so that the queue still drains
+					jobCompleted();
+				}
+				if (exception != null) {
+					listener.diskJobFailed (exception);
+				} else {
+					listener.diskJobCompleted (result);
+				}
+			}
+		};
+
+		String failure;
+		synchronized (this) {
+
+			if (this.shutdown) {
+				failure = "Disk job queue shut down";
+			} else if (this.pendingJobCount >= this.maximumPendingJobs) {
+				failure = "Disk job queue full";
+			} else {
+				this.pendingJobCount++;
+				if (device == null) {
+					this.executor.execute (runnable);
+				} else {
+					DeviceQueue deviceQueue = this.deviceQueues.get (device);
+					if (deviceQueue == null) {
+						deviceQueue = new DeviceQueue (device);
+						this.deviceQueues.put (device, deviceQueue);
+						this.executor.execute (deviceQueue);
+					}
+					deviceQueue.jobs.add (runnable);
+				}
+				return;
+			}
+
+		}
+
+		listener.diskJobFailed (new IOException (failure));
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of jobs waiting or being performed
+	 */
+	public synchronized int getPendingJobCount() {
+
+		return this.pendingJobCount;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of jobs that have been completed, successfully or otherwise
+	 */
+	public synchronized long getCompletedJobCount() {
+
+		return this.completedJobCount;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of worker threads
+	 */
+	public int getWorkerCount() {
+
+		return this.executor.getMaximumPoolSize();
+
+	}
+
+
+	/**
+	 * Shuts down the queue. Jobs that have already been submitted will still be performed, but no
+	 * further jobs will be accepted
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 */
+	public synchronized void shutdown() {
+
+		this.shutdown = true;
+
+		// If jobs are still waiting, the executor is instead shut down after the last is performed
+		if (this.pendingJobCount == 0) {
+			this.executor.shutdown();
+		}
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The maximum number of jobs waiting or being performed
+	 */
+	public int getMaximumPendingJobs() {
+
+		return this.maximumPendingJobs;
+
+	}
+
+
+	/**
+	 * @param workerCount The number of worker threads
+	 */
+	public DiskJobQueue (int workerCount) {
+
+		this (workerCount, DEFAULT_MAXIMUM_PENDING_JOBS);
+
+	}
+
+
+	/**
+	 * @param workerCount The number of worker threads
+	 * @param maximumPendingJobs The maximum number of jobs waiting or being performed
+	 */
+	public DiskJobQueue (int workerCount, int maximumPendingJobs) {
+
+		if (workerCount <= 0) {
+			throw new IllegalArgumentException ("Invalid worker count");
+		}
+
+		if (maximumPendingJobs <= 0) {
+			throw new IllegalArgumentException ("Invalid maximum pending jobs");
+		}
+
+		this.maximumPendingJobs = maximumPendingJobs;
+
+		// Every entry in the executor's queue is either a device queue with at least one pending
+		// job, or a pending job submitted without a device, so the executor's queue never holds
+		// more entries than the maximum pending jobs
+		this.executor = new ThreadPoolExecutor (workerCount, workerCount, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable> (maximumPendingJobs), new ThreadFactory() {
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread (r);
+				thread.setName ("DiskJobQueue worker");
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+
+	}
+
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A bounded pool of open file handles, shared between any number of {@link FileStorage}s
+ *
+ * <p>Handles are acquired for the duration of an operation on a file, and released once the
+ * operation is complete. When opening a file would take the number of open handles above the
+ * pool's limit, the least recently used handles that are not currently acquired are closed; a file
+ * whose handle has been closed is transparently reopened when it is next acquired. If every open
+ * handle is in use, the limit is temporarily exceeded rather than blocking.
+ *
+ * <p>A {@code FileChannel} obtained through the pool should not be relied upon after it has been
+ * released, as it may be closed at any time thereafter.
+ */
+public class FileHandlePool {
+
+	/**
+	 * The default maximum number of open file handles
+	 */
+	public static final int DEFAULT_MAXIMUM_OPEN_FILES = 256;
+
+	/**
+	 * The pool shared by default between all {@link FileStorage}s in the process
+	 */
+	private static final FileHandlePool sharedPool = new FileHandlePool (DEFAULT_MAXIMUM_OPEN_FILES);
+
+	/**
+	 * The open handles, in order of least to most recent use
+	 */
+	private final LinkedHashMap<File,Handle> handles = new LinkedHashMap<File,Handle> (16, 0.75f, true);
+
+	/**
+	 * The maximum number of open file handles
+	 */
+	private int maximumOpenFiles;
+
+	/**
+	 * The number of acquisitions that found an open handle
+	 */
+	private long hitCount = 0;
+
+	/**
+	 * The number of acquisitions that required a handle to be opened
+	 */
+	private long missCount = 0;
+
+	/**
+	 * The number of idle handles closed to remain within the limit
+	 */
+	private long evictionCount = 0;
+
+
+	/**
+	 * An open file handle
+	 */
+	private static class Handle {
+
+		/**
+		 * The open file
+		 */
+		public final RandomAccessFile randomAccessFile;
+
+		/**
+		 * The number of current acquisitions of the handle
+		 */
+		public int users = 0;
+
+		/**
+		 * If {@code true}, the handle has been removed from the pool and will be closed when it is
+		 * no longer in use
+		 */
+		public boolean closeOnRelease = false;
+
+
+		/**
+		 * @param randomAccessFile The open file
+		 */
+		public Handle (RandomAccessFile randomAccessFile) {
+
+			this.randomAccessFile = randomAccessFile;
+
+		}
+
+	}
+
+
+	/**
+	 * Closes idle handles, least recently used first, until the number of open handles is within
+	 * the pool's limit or no idle handles remain
+	 *
+	 * @throws IOException If an error occurred closing a handle
+	 */
+	private void evictIdleHandles() throws IOException {
+
+		Iterator<Handle> iterator = this.handles.values().iterator();
+		while ((this.handles.size() > this.maximumOpenFiles) && iterator.hasNext()) {
+			Handle handle = iterator.next();
+			if (handle.users == 0) {
+				iterator.remove();
+				this.evictionCount++;
+				handle.randomAccessFile.close();
+			}
+		}
+
+	}
+
+
+	/**
+	 * @return The pool shared by default between all {@link FileStorage}s in the process
+	 */
+	public static FileHandlePool getSharedPool() {
+
+		return sharedPool;
+
+	}
+
+
+	/**
+	 * Acquires an open handle to a file, opening it for reading and writing if required. The file,
+	 * and any missing parent directories, will be created if they do not already exist. Each call
+	 * to this method must be balanced by a call to {@link #release(File)}
+	 *
+	 * @param file The file to acquire
+	 * @return A channel onto the file, which remains open at least until the file is released
+	 * @throws IOException If an error occurred opening the file
+	 */
+	public synchronized FileChannel acquire (File file) throws IOException {
+
+		Handle handle = this.handles.get (file);
+
+		if (handle == null) {
+			this.missCount++;
+			File parent = file.getParentFile();
+			if (!parent.exists()) {
+				parent.mkdirs();
+			}
+			handle = new Handle (new RandomAccessFile (file, "rw"));
+			this.handles.put (file, handle);
+			handle.users++;
+			evictIdleHandles();
+		} else {
+			this.hitCount++;
+			handle.users++;
+		}
+
+		return handle.randomAccessFile.getChannel();
+
+	}
+
+
+	/**
+	 * Releases a handle previously acquired through {@link #acquire(File)}
+	 *
+	 * @param file The file to release
+	 * @throws IOException If an error occurred closing the file
+	 */
+	public synchronized void release (File file) throws IOException {
+
+		Handle handle = this.handles.get (file);
+		if (handle == null) {
+			return;
+		}
+
+		handle.users--;
+		if (handle.users == 0) {
+			if (handle.closeOnRelease) {
+				this.handles.remove (file);
+				handle.randomAccessFile.close();
+			} else {
+				evictIdleHandles();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Closes the handle to a file, if open. If the handle is currently acquired, it will be closed
+	 * when it is released
+	 *
+	 * @param file The file to close
+	 * @throws IOException If an error occurred closing the file
+	 */
+	public synchronized void close (File file) throws IOException {
+
+		Handle handle = this.handles.get (file);
+		if (handle == null) {
+			return;
+		}
+
+		if (handle.users == 0) {
+			this.handles.remove (file);
+			handle.randomAccessFile.close();
+		} else {
+			handle.closeOnRelease = true;
+		}
+
+	}
+
+
+	/**
+	 * @return The maximum number of open file handles
+	 */
+	public synchronized int getMaximumOpenFiles() {
+
+		return this.maximumOpenFiles;
+
+	}
+
+
+	/**
+	 * Sets the maximum number of open file handles. If the number of open handles exceeds the new
+	 * limit, idle handles are closed immediately
+	 *
+	 * @param maximumOpenFiles The maximum number of open file handles
+	 * @throws IOException If an error occurred closing a handle
+	 */
+	public synchronized void setMaximumOpenFiles (int maximumOpenFiles) throws IOException {
+
+		if (maximumOpenFiles <= 0) {
+			throw new IllegalArgumentException ("Invalid maximum open files");
+		}
+
+		this.maximumOpenFiles = maximumOpenFiles;
+		evictIdleHandles();
+
+	}
+
+
+	/**
+	 * @return The number of currently open file handles
+	 */
+	public synchronized int getOpenFileCount() {
+
+		return this.handles.size();
+
+	}
+
+
+	/**
+	 * @return The number of acquisitions that found an open handle
+	 */
+	public synchronized long getHitCount() {
+
+		return this.hitCount;
+
+	}
+
+
+	/**
+	 * @return The number of acquisitions that required a handle to be opened
+	 */
+	public synchronized long getMissCount() {
+
+		return this.missCount;
+
+	}
+
+
+	/**
+	 * @return The number of idle handles closed to remain within the limit
+	 */
+	public synchronized long getEvictionCount() {
+
+		return this.evictionCount;
+
+	}
+
+
+	/**
+	 * @param maximumOpenFiles The maximum number of open file handles
+	 */
+	public FileHandlePool (int maximumOpenFiles) {
+
+		if (maximumOpenFiles <= 0) {
+			throw new IllegalArgumentException ("Invalid maximum open files");
+		}
+
+		this.maximumOpenFiles = maximumOpenFiles;
+
+	}
+
+
+}
@@ -14,6 +14,11 @@ import java.io.RandomAccessFile;
  */
 public class FileMetadata implements Metadata {
 
+	/**
+	 * The suffix of the temporary file a value is written to before it replaces the previous value
+	 */
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
 	/**
 	 * The directory in which the metadata will be stored
 	 */
@@ -26,10 +31,48 @@ public class FileMetadata implements Metadata {
 	public void put (String key, byte[] value) throws IOException {
 
 		File file = new File (this.metadataDirectory, key);
-		file.delete();
-		if (value != null) {
-			RandomAccessFile randomAccessFile = new RandomAccessFile (file, "rw");
+
+		if (value == null) {
+			file.delete();
+			return;
+		}
+
+		// Write the value to a temporary file, then rename it over the previous value, so that a
+		// failure part way through the write never leaves a partial value
+		File temporaryFile = new File (this.metadataDirectory, key + TEMPORARY_SUFFIX);
+		RandomAccessFile randomAccessFile = new RandomAccessFile (temporaryFile, "rw");
+		try {
+			randomAccessFile.setLength (0);
+			randomAccessFile.write (value);
+			randomAccessFile.getFD().sync();
+		} finally {
+			randomAccessFile.close();
+		}
+
+		if (!temporaryFile.renameTo (file)) {
+			// Some platforms will not rename over an existing file
+			file.delete();
+			if (!temporaryFile.renameTo (file)) {
+				throw new IOException ("Could not store value for key '" + key + "'");
+			}
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Metadata#append(java.lang.String, byte[])
+	 */
+	public void append (String key, byte[] value) throws IOException {
+
+		File file = new File (this.metadataDirectory, key);
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile (file, "rw");
+		try {
+			randomAccessFile.seek (randomAccessFile.length());
 			randomAccessFile.write (value);
+			randomAccessFile.getFD().sync();
+		} finally {
 			randomAccessFile.close();
 		}
 
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Describes a contiguous region of a single file that backs part of a {@link Storage}. A list of
+ * regions, taken in order, describes a range of the {@code Storage} that may span several files
+ */
+public final class FileRegion {
+
+	/**
+	 * The channel of the file containing the region
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The position of the region within the file
+	 */
+	private final long position;
+
+	/**
+	 * The length of the region
+	 */
+	private final int length;
+
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+
+		return "FileRegion:{" + this.position + "," + this.length + "}";
+
+	}
+
+
+	/**
+	 * @return The channel of the file containing the region
+	 */
+	public FileChannel getChannel() {
+
+		return this.channel;
+
+	}
+
+
+	/**
+	 * @return The position of the region within the file
+	 */
+	public long getPosition() {
+
+		return this.position;
+
+	}
+
+
+	/**
+	 * @return The length of the region
+	 */
+	public int getLength() {
+
+		return this.length;
+
+	}
+
+
+	/**
+	 * @param channel The channel of the file containing the region
+	 * @param position The position of the region within the file
+	 * @param length The length of the region
+	 */
+	public FileRegion (FileChannel channel, long position, int length) {
+
+		this.channel = channel;
+		this.position = position;
+		this.length = length;
+
+	}
+
+
+}
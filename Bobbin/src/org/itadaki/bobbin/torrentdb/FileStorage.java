@@ -6,16 +6,15 @@ package org.itadaki.bobbin.torrentdb;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.Map.Entry;
 
 import org.itadaki.bobbin.util.BitField;
@@ -39,6 +38,11 @@ import org.itadaki.bobbin.util.CharsetUtil;
  *       shorter than their declared limits will be zero filled to cover the missing sections. The
  *       underlying files will neither be created nor extended.</li>
  * </ul>
+ *
+ * <p>Handles to the underlying files are opened on demand through a {@link FileHandlePool}, which
+ * may close them again when they are idle. The existence and lengths of the files are read once
+ * when the {@code FileStorage} is opened and are thereafter tracked as it writes to them; the files
+ * should not be altered by other means while the {@code FileStorage} is open.
  */
 public class FileStorage implements Storage {
 
@@ -48,6 +52,17 @@ public class FileStorage implements Storage {
 	 */
 	private static final byte[] VALIDATION_COOKIE_HEADER = "\0FileStorage\0".getBytes (CharsetUtil.UTF8);
 
+	/**
+	 * The header of a FileStorage partial validation cookie, as used by
+	 * {@link #getValidationCookie(BitField)} and {@link #mergeValidationCookie(ByteBuffer, ByteBuffer)}
+	 */
+	private static final byte[] PARTIAL_VALIDATION_COOKIE_HEADER = "\0FileStorage partial\0".getBytes (CharsetUtil.UTF8);
+
+	/**
+	 * The actual length recorded for a file that does not exist
+	 */
+	private static final long NONEXISTENT = -1;
+
 	/**
 	 * The underlying files
 	 */
@@ -59,6 +74,13 @@ public class FileStorage implements Storage {
 	 */
 	private final List<Long> fileLengths = new ArrayList<Long>();
 
+	/**
+	 * The current, actual lengths of the underlying files, or {@link #NONEXISTENT} for files that
+	 * do not exist. Read from the filesystem when the {@code FileStorage} is opened, and thereafter
+	 * maintained as the files are written, so that reads never need to query file metadata
+	 */
+	private AtomicLongArray actualFileLengths = new AtomicLongArray (0);
+
 	/**
 	 * A navigable map linking linear addresses to file indices. The key is the linear byte address
 	 * of the start of each file
@@ -81,10 +103,9 @@ public class FileStorage implements Storage {
 	private MutableFileset fileset = new MutableFileset();
 
 	/**
-	 * An internal cache of RandomAccessFiles pointing to the underlying files
-	 * TODO Optimisation - make this a size limited LRU cache 
+	 * The pool through which handles to the underlying files are opened
 	 */
-	private List<RandomAccessFile> randomAccessFiles = new ArrayList<RandomAccessFile>();
+	private final FileHandlePool handlePool;
 
 
 	/**
@@ -189,6 +210,27 @@ public class FileStorage implements Storage {
 	}
 
 
+	/**
+	 * Writes the fingerprint of a file, consisting of its last modified time and its length, to a
+	 * buffer. The fingerprint of a file that does not exist is zero in both fields
+	 *
+	 * @param longBuffer The buffer to write to
+	 * @param fileIndex The index of the file
+	 */
+	private void putFingerprint (LongBuffer longBuffer, int fileIndex) {
+
+		long actualFileLength = this.actualFileLengths.get (fileIndex);
+		if (actualFileLength != NONEXISTENT) {
+			longBuffer.put (this.files.get(fileIndex).lastModified());
+			longBuffer.put (actualFileLength);
+		} else {
+			longBuffer.put (0L);
+			longBuffer.put (0L);
+		}
+
+	}
+
+
 	/**
 	 * @return An opaque cookie representing the current state of the {@code FileStorage}
 	 */
@@ -197,14 +239,8 @@ public class FileStorage implements Storage {
 		ByteBuffer cookieBuffer = ByteBuffer.allocate (VALIDATION_COOKIE_HEADER.length + (this.files.size() * 8 * 2));
 		cookieBuffer.put (VALIDATION_COOKIE_HEADER);
 		LongBuffer longBuffer = cookieBuffer.asLongBuffer();
-		for (File file : this.files) {
-			if (file.exists()) {
-				longBuffer.put (file.lastModified());
-				longBuffer.put (file.length());
-			} else {
-				longBuffer.put (0L);
-				longBuffer.put (0L);
-			}
+		for (int i = 0; i < this.files.size(); i++) {
+			putFingerprint (longBuffer, i);
 		}
 
 		cookieBuffer.rewind();
@@ -215,26 +251,165 @@ public class FileStorage implements Storage {
 
 
 	/**
-	 * Gets a RandomAccessFile for a given file index
+	 * Checks that a cookie begins with a given header, and if it does, advances the cookie's
+	 * position past the header
+	 *
+	 * @param cookie The cookie to check
+	 * @param header The expected header
+	 * @return {@code true} if the cookie begins with the header, otherwise {@code false}
+	 */
+	private static boolean consumeCookieHeader (ByteBuffer cookie, byte[] header) {
+
+		if (cookie.remaining() < header.length) {
+			return false;
+		}
+
+		ByteBuffer cookieHeader = cookie.duplicate();
+		cookieHeader.limit (cookieHeader.position() + header.length);
+		if (!ByteBuffer.wrap(header).equals (cookieHeader)) {
+			return false;
+		}
+		cookie.position (cookie.position() + header.length);
+
+		return true;
+
+	}
+
+
+	/**
+	 * Creates a zero length file for a given file index, if it does not already exist
+	 *
+	 * @param fileIndex The file index
+	 * @throws IOException If an error occurred creating the file
+	 */
+	private void createEmptyFile (int fileIndex) throws IOException {
+
+		File file = this.files.get (fileIndex);
+		File parent = file.getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+		file.createNewFile();
+		updateActualFileLength (fileIndex, 0);
+
+	}
+
+
+	/**
+	 * Writes the remaining content of a buffer to a given position within a file
+	 *
+	 * @param fileIndex The file index
+	 * @param fileByteIndex The position within the file to write at
+	 * @param buffer The buffer to write
+	 * @throws IOException If an error occurred writing to the file
+	 */
+	private void writeFragment (int fileIndex, long fileByteIndex, ByteBuffer buffer) throws IOException {
+
+		File file = this.files.get (fileIndex);
+		FileChannel channel = this.handlePool.acquire (file);
+		try {
+			long position = fileByteIndex;
+			while (buffer.hasRemaining()) {
+				position += channel.write (buffer, position);
+			}
+			updateActualFileLength (fileIndex, position);
+		} finally {
+			this.handlePool.release (file);
+		}
+
+	}
+
+
+	/**
+	 * Writes a sequence of buffers to a single file with a gathering write
 	 *
-	 * @param i the file index
-	 * @return A RandomAccessFile for the given file index
-	 * @throws IOException If an error occurred creating the requested RandomAccessFile
-	 */
-	private RandomAccessFile getRandomAccessFileForIndex (int i) throws IOException {
-
-		RandomAccessFile randomAccessFile = this.randomAccessFiles.get (i);
-		if (randomAccessFile == null) {
-			File file = this.files.get (i);
-			File parent = file.getParentFile();
-			if (!parent.exists()) {
-				parent.mkdirs();
+	 * @param fileIndex The file index
+	 * @param fileByteIndex The byte index within the file at which to write
+	 * @param buffers The buffers to write
+	 * @throws IOException On any I/O error
+	 */
+	private void writeFragments (int fileIndex, long fileByteIndex, ByteBuffer[] buffers) throws IOException {
+
+		File file = this.files.get (fileIndex);
+		FileChannel channel = this.handlePool.acquire (file);
+		try {
+			// FileChannel has no positioned gathering write. Setting the channel's position is safe,
+			// as all other access to the channel uses explicit positions, and gathering writes to the
+			// same file are serialised on its channel
+			long position = fileByteIndex;
+			synchronized (channel) {
+				channel.position (fileByteIndex);
+				ByteBuffer lastBuffer = buffers[buffers.length - 1];
+				while (lastBuffer.hasRemaining()) {
+					position += channel.write (buffers);
+				}
 			}
-			randomAccessFile = new RandomAccessFile (file, "rw");
-			this.randomAccessFiles.set (i, randomAccessFile);
+			updateActualFileLength (fileIndex, position);
+		} finally {
+			this.handlePool.release (file);
 		}
 
-		return randomAccessFile;
+	}
+
+
+	/**
+	 * Records that a file exists and is at least a given length
+	 *
+	 * @param fileIndex The file index
+	 * @param length The length that the file is known to have reached
+	 */
+	private void updateActualFileLength (int fileIndex, long length) {
+
+		long actualFileLength;
+		while ((actualFileLength = this.actualFileLengths.get (fileIndex)) < length) {
+			if (this.actualFileLengths.compareAndSet (fileIndex, actualFileLength, length)) {
+				break;
+			}
+		}
+
+	}
+
+
+	/**
+	 * @param fileIndex The file index
+	 * @return The current, actual length of the file with the given index, or a negative value if
+	 *         the file does not exist
+	 */
+	long getActualFileLength (int fileIndex) {
+
+		return this.actualFileLengths.get (fileIndex);
+
+	}
+
+
+	/**
+	 * @param fileIndex The file index
+	 * @return The underlying file with the given index
+	 */
+	File getFile (int fileIndex) {
+
+		return this.files.get (fileIndex);
+
+	}
+
+
+	/**
+	 * @param fileIndex The file index
+	 * @return The declared length of the file with the given index
+	 */
+	long getFileLength (int fileIndex) {
+
+		return this.fileLengths.get (fileIndex);
+
+	}
+
+
+	/**
+	 * @return The pool through which handles to the underlying files are opened
+	 */
+	FileHandlePool getHandlePool() {
+
+		return this.handlePool;
 
 	}
 
@@ -252,7 +427,7 @@ public class FileStorage implements Storage {
 	 * @throws IndexOutOfBoundsException if the linear byte index is beyond the
 	 *           end of the last file
 	 */
-	private long[] getFileByteIndexForLinearByteIndex (long linearByteIndex) {
+	long[] getFileByteIndexForLinearByteIndex (long linearByteIndex) {
 
 		if ((linearByteIndex >= 0) && (linearByteIndex < this.descriptor.getLength())) {
 			Entry<Long,Integer> entry = this.fileIndexMap.floorEntry (linearByteIndex);
@@ -264,6 +439,116 @@ public class FileStorage implements Storage {
 	}
 
 
+	/**
+	 * Checks that a block lies wholly within a single piece of the {@code FileStorage}
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @throws IndexOutOfBoundsException if the block is not wholly within a piece
+	 */
+	void checkBlockIsValid (BlockDescriptor descriptor) {
+
+		int pieceNumber = descriptor.getPieceNumber();
+		if (
+				   (pieceNumber < 0) || (pieceNumber >= this.descriptor.getNumberOfPieces())
+				|| (descriptor.getOffset() < 0) || (descriptor.getLength() < 0)
+				|| ((descriptor.getOffset() + descriptor.getLength()) > this.descriptor.getPieceLength (pieceNumber))
+		   )
+		{
+			throw new IndexOutOfBoundsException ("Invalid block " + descriptor);
+		}
+
+	}
+
+
+	/**
+	 * Reads a range of bytes starting at a given linear byte index. Sections of the range that map
+	 * to files that do not exist or are shorter than their declared limits are zero filled
+	 *
+	 * @param linearByteIndex The linear byte index to start reading at
+	 * @param length The number of bytes to read, which must be greater than zero
+	 * @return A buffer containing the bytes read
+	 * @throws IOException If an error occurred reading from the underlying files
+	 */
+	private ByteBuffer readLinear (long linearByteIndex, int length) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate (length);
+		readLinear (linearByteIndex, buffer);
+		buffer.flip();
+
+		return buffer;
+
+	}
+
+
+	/**
+	 * Reads a range of bytes starting at a given linear byte index into a buffer, filling the
+	 * buffer's remaining space. Sections of the range that map to files that do not exist or are
+	 * shorter than their declared limits are zero filled
+	 *
+	 * @param linearByteIndex The linear byte index to start reading at
+	 * @param buffer The buffer to read into. On return, its position is advanced to its limit
+	 * @throws IOException If an error occurred reading from the underlying files
+	 */
+	private void readLinear (long linearByteIndex, ByteBuffer buffer) throws IOException {
+
+		// Find the file / byte index
+		long[] indices = getFileByteIndexForLinearByteIndex (linearByteIndex);
+		int fileIndex = (int)indices[0];
+		long fileByteIndex = indices[1];
+
+		int bytesLeftToRead = buffer.remaining();
+		int limit = buffer.limit();
+
+		// Read fragments until complete
+		while (bytesLeftToRead > 0) {
+
+			long bytesInThisFragment = Math.max (0, this.fileLengths.get (fileIndex) - fileByteIndex);
+			int bytesToRead = Math.min (bytesLeftToRead, ((int) Math.min (Integer.MAX_VALUE, bytesInThisFragment)));
+			int fragmentEnd = buffer.position() + bytesToRead;
+
+			if (this.fileLengths.get (fileIndex) > 0) {
+				int bytesPresent = (int) Math.max (0, Math.min (bytesToRead, this.actualFileLengths.get (fileIndex) - fileByteIndex));
+				if (bytesPresent > 0) {
+					File file = this.files.get (fileIndex);
+					FileChannel channel = this.handlePool.acquire (file);
+					try {
+						buffer.limit (buffer.position() + bytesPresent);
+						long position = fileByteIndex;
+						int bytesRead;
+						while (buffer.hasRemaining() && ((bytesRead = channel.read (buffer, position)) >= 0)) {
+							position += bytesRead;
+						}
+					} finally {
+						buffer.limit (limit);
+						this.handlePool.release (file);
+					}
+				}
+				fileByteIndex = 0;
+			}
+
+			// Zero fill anything not present in the file
+			while (buffer.position() < fragmentEnd) {
+				buffer.put ((byte)0);
+			}
+
+			fileIndex++;
+			bytesLeftToRead -= bytesToRead;
+
+		}
+
+	}
+
+
+	/**
+	 * @return The parent directory beneath which files are written
+	 */
+	public File getParentDirectory() {
+
+		return this.parentDirectory;
+
+	}
+
+
 	/* Storage interface */
 
 	/* (non-Javadoc)
@@ -288,8 +573,7 @@ public class FileStorage implements Storage {
 
 			int fileIndex = 0;
 			long fileByteIndex = 0;
-			boolean currentFileExists = this.files.get(fileIndex).exists();
-			long currentActualFileLength = this.files.get(fileIndex).length();
+			long currentActualFileLength = this.actualFileLengths.get (fileIndex);
 			long currentSpecifiedFileLength = this.fileLengths.get (fileIndex);
 			long fileBytesLeft = currentSpecifiedFileLength;
 
@@ -299,7 +583,7 @@ public class FileStorage implements Storage {
 
 				while (bytesToRead > 0) {
 					int bytesRead = (int) Math.min (bytesToRead, fileBytesLeft);
-					if (!currentFileExists || (fileByteIndex + bytesRead) > currentActualFileLength) {
+					if ((currentActualFileLength == NONEXISTENT) || (fileByteIndex + bytesRead) > currentActualFileLength) {
 						currentPiecePresent = false;
 					}
 					fileByteIndex += bytesRead;
@@ -308,8 +592,7 @@ public class FileStorage implements Storage {
 					if ((fileByteIndex == currentSpecifiedFileLength) && (fileIndex < (this.files.size() - 1))) {
 						fileIndex++;
 						fileByteIndex = 0;
-						currentFileExists = this.files.get(fileIndex).exists();
-						currentActualFileLength = this.files.get(fileIndex).length();
+						currentActualFileLength = this.actualFileLengths.get (fileIndex);
 						currentSpecifiedFileLength = this.fileLengths.get (fileIndex);
 						fileBytesLeft = currentSpecifiedFileLength;
 					}
@@ -362,12 +645,14 @@ public class FileStorage implements Storage {
 
 		this.fileset.setInfoFileset (infoFileset);
 		this.descriptor = new PiecesetDescriptor (pieceSize, totalLength);
-		this.randomAccessFiles.addAll (Arrays.asList (new RandomAccessFile[files.size()]));
+
+		this.actualFileLengths = new AtomicLongArray (files.size());
 
 		long totalByteLength = 0;
 		for (int i = 0; i < infoFileset.getFiles().size(); i++) {
 			File file = files.get (i);
 			this.files.add (file);
+			this.actualFileLengths.set (i, file.exists() ? file.length() : NONEXISTENT);
 			long thisFileLength = infoFileset.getFiles().get (i).getLength();
 			this.fileLengths.add (thisFileLength);
 			if (!this.fileIndexMap.containsKey (totalByteLength)) {
@@ -394,6 +679,164 @@ public class FileStorage implements Storage {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#validatePieces(java.nio.ByteBuffer, org.itadaki.bobbin.util.BitField)
+	 */
+	public BitField validatePieces (ByteBuffer cookie, BitField writtenPieces) throws IOException {
+
+		if (cookie == null) {
+			return null;
+		}
+
+		ByteBuffer currentCookie = buildValidationCookie();
+		ByteBuffer previousCookie = cookie.duplicate();
+		if (previousCookie.remaining() != currentCookie.remaining()) {
+			return null;
+		}
+
+		if (!consumeCookieHeader (previousCookie, VALIDATION_COOKIE_HEADER)) {
+			return null;
+		}
+		currentCookie.position (VALIDATION_COOKIE_HEADER.length);
+
+		// Each file's fingerprint is its last modified time and length. Pieces that overlap a file
+		// whose fingerprint differs from the one last recorded for it are invalid. As a file's
+		// recorded fingerprint is updated through a partial cookie after it is written, a file
+		// whose fingerprint differs has been changed by other means, or by writes that were never
+		// recorded
+		LongBuffer previousFingerprints = previousCookie.asLongBuffer();
+		LongBuffer currentFingerprints = currentCookie.asLongBuffer();
+		int pieceSize = this.descriptor.getPieceSize();
+		BitField validPieces = new BitField (this.descriptor.getNumberOfPieces()).not();
+		long fileStart = 0;
+		for (int i = 0; i < this.files.size(); i++) {
+			long previousLastModified = previousFingerprints.get();
+			long previousLength = previousFingerprints.get();
+			long currentLastModified = currentFingerprints.get();
+			long currentLength = currentFingerprints.get();
+			boolean changed = (previousLastModified != currentLastModified) || (previousLength != currentLength);
+			long fileLength = this.fileLengths.get (i);
+			if (changed && (fileLength > 0)) {
+				int firstPiece = (int)(fileStart / pieceSize);
+				int lastPiece = (int)((fileStart + fileLength - 1) / pieceSize);
+				for (int pieceNumber = firstPiece; pieceNumber <= lastPiece; pieceNumber++) {
+					validPieces.clear (pieceNumber);
+				}
+			}
+			fileStart += fileLength;
+		}
+
+		if (writtenPieces != null) {
+			for (int pieceNumber : writtenPieces) {
+				validPieces.clear (pieceNumber);
+			}
+		}
+
+		return validPieces;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#getValidationCookie()
+	 */
+	public ByteBuffer getValidationCookie() {
+
+		if (this.files.size() == 0) {
+			return null;
+		}
+
+		return buildValidationCookie();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#getValidationCookie(org.itadaki.bobbin.util.BitField)
+	 */
+	public ByteBuffer getValidationCookie (BitField pieces) {
+
+		if (this.files.size() == 0) {
+			return null;
+		}
+
+		// Find the files that hold any of the pieces
+		List<Integer> fileIndices = new ArrayList<Integer>();
+		int pieceSize = this.descriptor.getPieceSize();
+		long fileStart = 0;
+		for (int i = 0; i < this.files.size(); i++) {
+			long fileLength = this.fileLengths.get (i);
+			if (fileLength > 0) {
+				int firstPiece = (int)(fileStart / pieceSize);
+				int lastPiece = Math.min ((int)((fileStart + fileLength - 1) / pieceSize), pieces.length() - 1);
+				for (int pieceNumber = firstPiece; pieceNumber <= lastPiece; pieceNumber++) {
+					if (pieces.get (pieceNumber)) {
+						fileIndices.add (i);
+						break;
+					}
+				}
+			}
+			fileStart += fileLength;
+		}
+
+		ByteBuffer cookieBuffer = ByteBuffer.allocate (PARTIAL_VALIDATION_COOKIE_HEADER.length + (fileIndices.size() * 8 * 3));
+		cookieBuffer.put (PARTIAL_VALIDATION_COOKIE_HEADER);
+		LongBuffer longBuffer = cookieBuffer.asLongBuffer();
+		for (int fileIndex : fileIndices) {
+			longBuffer.put (fileIndex);
+			putFingerprint (longBuffer, fileIndex);
+		}
+
+		cookieBuffer.rewind();
+
+		return cookieBuffer;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#mergeValidationCookie(java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	public ByteBuffer mergeValidationCookie (ByteBuffer cookie, ByteBuffer partialCookie) {
+
+		if ((cookie == null) || (partialCookie == null)) {
+			return null;
+		}
+
+		ByteBuffer mergedCookie = ByteBuffer.allocate (cookie.remaining());
+		mergedCookie.put (cookie.duplicate());
+		mergedCookie.rewind();
+		ByteBuffer partialEntries = partialCookie.duplicate();
+		if (
+				   !consumeCookieHeader (mergedCookie, VALIDATION_COOKIE_HEADER)
+				|| ((mergedCookie.remaining() % (8 * 2)) != 0)
+				|| !consumeCookieHeader (partialEntries, PARTIAL_VALIDATION_COOKIE_HEADER)
+				|| ((partialEntries.remaining() % (8 * 3)) != 0)
+		   )
+		{
+			return null;
+		}
+
+		// Each entry of the partial cookie replaces the fingerprint of the file it names
+		LongBuffer fingerprints = mergedCookie.asLongBuffer();
+		LongBuffer entries = partialEntries.asLongBuffer();
+		int numberOfFiles = fingerprints.remaining() / 2;
+		while (entries.hasRemaining()) {
+			long fileIndex = entries.get();
+			if ((fileIndex < 0) || (fileIndex >= numberOfFiles)) {
+				return null;
+			}
+			fingerprints.put ((int)fileIndex * 2, entries.get());
+			fingerprints.put (((int)fileIndex * 2) + 1, entries.get());
+		}
+
+		mergedCookie.rewind();
+
+		return mergedCookie;
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.torrentdb.Storage#extend(long)
 	 */
@@ -415,8 +858,8 @@ public class FileStorage implements Storage {
 	 */
 	public ByteBuffer close() throws IOException {
 
-		for (RandomAccessFile randomAccessFile : this.randomAccessFiles) {
-			if (randomAccessFile != null) randomAccessFile.close();
+		for (File file : this.files) {
+			this.handlePool.close (file);
 		}
 
 		// Create validation cookie
@@ -427,7 +870,7 @@ public class FileStorage implements Storage {
 
 		this.files.clear();
 		this.fileLengths.clear();
-		this.randomAccessFiles = null;
+		this.actualFileLengths = new AtomicLongArray (0);
 
 		return cookie;
 
@@ -443,37 +886,91 @@ public class FileStorage implements Storage {
 			throw new IndexOutOfBoundsException ("Invalid index " + pieceNumber);
 		}
 
+		return readLinear (((long)pieceNumber) * this.descriptor.getPieceSize(), this.descriptor.getPieceLength (pieceNumber));
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#read(org.itadaki.bobbin.torrentdb.BlockDescriptor)
+	 */
+	public ByteBuffer read (BlockDescriptor descriptor) throws IOException {
+
+		checkBlockIsValid (descriptor);
+
+		if (descriptor.getLength() == 0) {
+			return ByteBuffer.allocate (0);
+		}
+
+		return readLinear ((((long)descriptor.getPieceNumber()) * this.descriptor.getPieceSize()) + descriptor.getOffset(), descriptor.getLength());
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#read(org.itadaki.bobbin.torrentdb.BlockDescriptor, java.nio.ByteBuffer)
+	 */
+	public void read (BlockDescriptor descriptor, ByteBuffer buffer) throws IOException {
+
+		checkBlockIsValid (descriptor);
+
+		if (buffer.remaining() < descriptor.getLength()) {
+			throw new IllegalArgumentException ("Buffer too small");
+		}
+
+		if (descriptor.getLength() == 0) {
+			return;
+		}
+
+		ByteBuffer destination = buffer.duplicate();
+		destination.limit (destination.position() + descriptor.getLength());
+		readLinear ((((long)descriptor.getPieceNumber()) * this.descriptor.getPieceSize()) + descriptor.getOffset(), destination);
+		buffer.position (destination.position());
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#getRegions(org.itadaki.bobbin.torrentdb.BlockDescriptor)
+	 */
+	public List<FileRegion> getRegions (BlockDescriptor descriptor) throws IOException {
+
+		checkBlockIsValid (descriptor);
+
+		List<FileRegion> regions = new ArrayList<FileRegion>();
+		if (descriptor.getLength() == 0) {
+			return regions;
+		}
+
 		// Find the file / byte index
-		long[] indices = getFileByteIndexForLinearByteIndex (((long)pieceNumber) * this.descriptor.getPieceSize());
+		long[] indices = getFileByteIndexForLinearByteIndex ((((long)descriptor.getPieceNumber()) * this.descriptor.getPieceSize()) + descriptor.getOffset());
 		int fileIndex = (int)indices[0];
 		long fileByteIndex = indices[1];
 
-		int bufferByteIndex = 0;
-		int bytesLeftToRead = this.descriptor.getPieceLength (pieceNumber);
-		byte[] buffer = new byte[bytesLeftToRead];
-
-		// Read fragments until complete
-		while (bytesLeftToRead > 0) {
+		// Collect fragments until complete
+		int bytesLeft = descriptor.getLength();
+		while (bytesLeft > 0) {
 
 			long bytesInThisFragment = Math.max (0, this.fileLengths.get (fileIndex) - fileByteIndex);
-			int bytesToRead = Math.min (bytesLeftToRead, ((int) Math.min (Integer.MAX_VALUE, bytesInThisFragment)));
+			int bytesInRegion = Math.min (bytesLeft, ((int) Math.min (Integer.MAX_VALUE, bytesInThisFragment)));
 
 			if (this.fileLengths.get (fileIndex) > 0) {
-				if (this.files.get (fileIndex).exists()) {
-					RandomAccessFile randomAccessFile = getRandomAccessFileForIndex (fileIndex);
-					randomAccessFile.seek (fileByteIndex);
-					randomAccessFile.read (buffer, bufferByteIndex, bytesToRead);
+				if (this.actualFileLengths.get (fileIndex) < (fileByteIndex + bytesInRegion)) {
+					return null;
 				}
+				File file = this.files.get (fileIndex);
+				FileChannel channel = this.handlePool.acquire (file);
+				this.handlePool.release (file);
+				regions.add (new FileRegion (channel, fileByteIndex, bytesInRegion));
 				fileByteIndex = 0;
 			}
 
 			fileIndex++;
-			bufferByteIndex += bytesToRead;
-			bytesLeftToRead -= bytesToRead;
+			bytesLeft -= bytesInRegion;
 
 		}
 
-		return ByteBuffer.wrap (buffer);
+		return regions;
 
 	}
 
@@ -501,14 +998,11 @@ public class FileStorage implements Storage {
 			long bytesInThisFragment = Math.max (0, this.fileLengths.get (fileIndex) - fileByteIndex);
 			int bytesToWrite = Math.min (bytesLeftToWrite, ((int) Math.min (Integer.MAX_VALUE, bytesInThisFragment)));
 
-			FileChannel channel = getRandomAccessFileForIndex(fileIndex).getChannel();
-
 			if (this.fileLengths.get (fileIndex) == 0) {
-				this.files.get (fileIndex).createNewFile();
+				createEmptyFile (fileIndex);
 			} else {
-				channel.position (fileByteIndex);
 				buffer.limit (buffer.position() + bytesToWrite);
-				channel.write (buffer);
+				writeFragment (fileIndex, fileByteIndex, buffer);
 				fileByteIndex = 0;
 			}
 
@@ -524,6 +1018,61 @@ public class FileStorage implements Storage {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#write(int, java.nio.ByteBuffer[])
+	 */
+	public void write (int pieceNumber, ByteBuffer[] buffers) throws IOException {
+
+		if ((pieceNumber < 0) || ((pieceNumber + buffers.length) > this.descriptor.getNumberOfPieces())) {
+			throw new IndexOutOfBoundsException ("Invalid index " + pieceNumber);
+		}
+
+		// Find the file / byte index
+		long[] indices = getFileByteIndexForLinearByteIndex (((long)pieceNumber) * this.descriptor.getPieceSize());
+		int fileIndex = (int)indices[0];
+		long fileByteIndex = indices[1];
+
+		int numFiles = this.files.size();
+
+		// Write the part of the run that falls within each file with a single gathering write
+		int bufferIndex = 0;
+		while ((bufferIndex < buffers.length) && (fileIndex < numFiles)) {
+
+			long fileLength = this.fileLengths.get (fileIndex);
+
+			if (fileLength == 0) {
+				createEmptyFile (fileIndex);
+			} else {
+				long bytesInThisFragment = fileLength - fileByteIndex;
+				List<ByteBuffer> fragmentBuffers = new ArrayList<ByteBuffer>();
+				while ((bytesInThisFragment > 0) && (bufferIndex < buffers.length)) {
+					ByteBuffer buffer = buffers[bufferIndex];
+					if (buffer.remaining() <= bytesInThisFragment) {
+						fragmentBuffers.add (buffer);
+						bytesInThisFragment -= buffer.remaining();
+						bufferIndex++;
+					} else {
+						ByteBuffer fragmentBuffer = buffer.duplicate();
+						fragmentBuffer.limit (fragmentBuffer.position() + (int)bytesInThisFragment);
+						buffer.position (fragmentBuffer.limit());
+						fragmentBuffers.add (fragmentBuffer);
+						bytesInThisFragment = 0;
+					}
+				}
+				writeFragments (fileIndex, fileByteIndex, fragmentBuffers.toArray (new ByteBuffer[fragmentBuffers.size()]));
+				if (bytesInThisFragment > 0) {
+					return;
+				}
+				fileByteIndex = 0;
+			}
+
+			fileIndex++;
+
+		}
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.torrentdb.Storage#openOutputChannel(int, int)
 	 */
@@ -535,7 +1084,7 @@ public class FileStorage implements Storage {
 			long fileByteIndex;
 
 			{
-				long[] indices = getFileByteIndexForLinearByteIndex ((pieceNumber * getPiecesetDescriptor().getPieceSize()) + offset);
+				long[] indices = getFileByteIndexForLinearByteIndex ((((long)pieceNumber) * getPiecesetDescriptor().getPieceSize()) + offset);
 				this.fileIndex = (int)indices[0];
 				this.fileByteIndex = indices[1];
 			}
@@ -550,29 +1099,26 @@ public class FileStorage implements Storage {
 			public int write (ByteBuffer src) throws IOException {
 
 				int bytesWritten = src.remaining();
-				int bytesLeftToWrite = src.remaining();
-				while (bytesLeftToWrite > 0) {
-
-					long bytesInThisFragment = Math.max (0, FileStorage.this.fileLengths.get (this.fileIndex) - this.fileByteIndex);
-					int bytesToWrite = Math.min (src.remaining(), ((int) Math.min (Integer.MAX_VALUE, bytesInThisFragment)));
+				int limit = src.limit();
+				while (src.hasRemaining()) {
 
-					FileChannel channel = getRandomAccessFileForIndex(this.fileIndex).getChannel();
+					long fileLength = FileStorage.this.fileLengths.get (this.fileIndex);
 
-					if (FileStorage.this.fileLengths.get (this.fileIndex) == 0) {
-						FileStorage.this.files.get (this.fileIndex).createNewFile();
+					if (fileLength == 0) {
+						createEmptyFile (this.fileIndex);
+						this.fileIndex++;
 					} else {
-						channel.position (this.fileByteIndex);
+						int bytesToWrite = (int) Math.min (src.remaining(), fileLength - this.fileByteIndex);
 						src.limit (src.position() + bytesToWrite);
-						channel.write (src);
-					}
-
-					if (channel.position() == FileStorage.this.fileLengths.get (this.fileIndex)) {
-						this.fileIndex++;
-						this.fileByteIndex = 0;
+						writeFragment (this.fileIndex, this.fileByteIndex, src);
+						src.limit (limit);
+						this.fileByteIndex += bytesToWrite;
+						if (this.fileByteIndex == fileLength) {
+							this.fileIndex++;
+							this.fileByteIndex = 0;
+						}
 					}
 
-					bytesLeftToWrite -= bytesToWrite;
-
 				}
 
 				return bytesWritten;
@@ -588,13 +1134,29 @@ public class FileStorage implements Storage {
 
 	/**
 	 * @param parentDirectory The directory beneath which to write the files of the torrent
+	 * @param handlePool The pool through which to open handles to the underlying files
 	 * @throws IncompatibleLocationException If the given directory is not a valid, readable directory
 	 */
-	public FileStorage (File parentDirectory) throws IncompatibleLocationException {
+	public FileStorage (File parentDirectory, FileHandlePool handlePool) throws IncompatibleLocationException {
 
 		checkDirectoryIsValid (parentDirectory);
 
 		this.parentDirectory = parentDirectory.getAbsoluteFile();
+		this.handlePool = handlePool;
+
+	}
+
+
+	/**
+	 * Creates a {@code FileStorage} that opens handles to its files through the process wide
+	 * {@link FileHandlePool#getSharedPool() shared pool}
+	 *
+	 * @param parentDirectory The directory beneath which to write the files of the torrent
+	 * @throws IncompatibleLocationException If the given directory is not a valid, readable directory
+	 */
+	public FileStorage (File parentDirectory) throws IncompatibleLocationException {
+
+		this (parentDirectory, FileHandlePool.getSharedPool());
 
 	}
 
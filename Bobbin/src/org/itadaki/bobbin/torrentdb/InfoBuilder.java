@@ -6,6 +6,7 @@ package org.itadaki.bobbin.torrentdb;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.PrivateKey;
@@ -18,6 +19,15 @@ import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.itadaki.bobbin.util.DSAUtil;
 import org.itadaki.bobbin.util.elastictree.ElasticTree;
@@ -28,6 +38,17 @@ import org.itadaki.bobbin.util.elastictree.ElasticTree;
  */
 public class InfoBuilder {
 
+	/**
+	 * The default number of threads that hash pieces
+	 */
+	public static final int DEFAULT_HASHING_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The approximate number of bytes of consecutive pieces that are read together and hashed by
+	 * a single task
+	 */
+	private static final int RANGE_SIZE = 4 * 1024 * 1024;
+
 	/**
 	 * The base file of the {@code Info}, which may be an ordinary file or a directory
 	 */
@@ -54,6 +75,36 @@ public class InfoBuilder {
 	 */
 	private final PrivateKey privateKey;
 
+	/**
+	 * The number of threads that hash pieces
+	 */
+	private volatile int hashingThreads = DEFAULT_HASHING_THREADS;
+
+	/**
+	 * The listener to inform of progress, or {@code null}
+	 */
+	private volatile InfoBuilderListener listener = null;
+
+	/**
+	 * {@code true} if the build has been cancelled
+	 */
+	private volatile boolean cancelled = false;
+
+	/**
+	 * SHA1 message digesters, one per thread that hashes pieces
+	 */
+	private final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance ("SHA");
+			} catch (NoSuchAlgorithmException e) {
+				// Shouldn't happen
+				throw new InternalError (e.getMessage());
+			}
+		}
+	};
+
 
 	/**
 	 * Checks that a given File is readable
@@ -118,38 +169,106 @@ public class InfoBuilder {
 
 
 	/**
-	 * Calculates the piece hashes for a given Storage
+	 * Hashes a range of consecutive pieces on the calling thread and informs the listener
 	 *
-	 * @param storage The Storage to calculate hashes for
-	 * @return The calculated piece hashes
-	 * @throws IOException If any error occurred reading from the Storage
+	 * @param pieces The content of the pieces
+	 * @param firstPieceNumber The number of the first piece
+	 * @param pieceHashes The array to write the concatenated piece hashes to
+	 * @param hashedPieces The count of pieces hashed so far
 	 */
-	private static byte[] calculatePiecesHashes (Storage storage) throws IOException {
-
-		// Create message digester
-		MessageDigest digest = null;
-		try {
-			digest = MessageDigest.getInstance ("SHA");
-		} catch (NoSuchAlgorithmException e) {
-			// Shouldn't happen
-			throw new InternalError (e.getMessage());
-		}
+	private void hashRange (ByteBuffer[] pieces, int firstPieceNumber, byte[] pieceHashes, AtomicInteger hashedPieces) {
 
-		int numPieces = storage.getPiecesetDescriptor().getNumberOfPieces();
+		MessageDigest digest = this.digest.get();
 
-		// Create hashes
-		byte[] pieceHashes = new byte[20 * numPieces];
-		int piecePosition = 0;
-		for (int i = 0; i < numPieces; i++) {
-			ByteBuffer piece = storage.read (i);
-			digest.update (piece);
+		for (int i = 0; i < pieces.length; i++) {
+			digest.update (pieces[i]);
 			try {
-				digest.digest (pieceHashes, piecePosition, 20);
+				digest.digest (pieceHashes, 20 * (firstPieceNumber + i), 20);
 			} catch (DigestException e) {
 				// Shouldn't happen
 				throw new InternalError (e.getMessage());
 			}
-			piecePosition += 20;
+		}
+
+		int hashed = hashedPieces.addAndGet (pieces.length);
+		InfoBuilderListener listener = this.listener;
+		if (listener != null) {
+			listener.infoBuilderProgress (this, hashed, pieceHashes.length / 20);
+		}
+
+	}
+
+
+	/**
+	 * Calculates the piece hashes for a given Storage. Ranges of consecutive pieces are read in
+	 * order on the calling thread, and hashed on the given executor while the following ranges
+	 * are read. Up to twice the number of hashing threads of ranges may be held in memory awaiting
+	 * a hash
+	 *
+	 * @param storage The Storage to calculate hashes for
+	 * @param hashers The executor to hash pieces on, or {@code null} to hash on the calling thread
+	 * @return The calculated piece hashes
+	 * @throws IOException If any error occurred reading from the Storage
+	 * @throws CancellationException if the build was cancelled
+	 * @throws RuntimeException If hashing a range failed, the failure is rethrown on the calling
+	 *         thread
+	 */
+	private byte[] calculatePiecesHashes (Storage storage, ExecutorService hashers) throws IOException {
+
+		PiecesetDescriptor descriptor = storage.getPiecesetDescriptor();
+		int numPieces = descriptor.getNumberOfPieces();
+		int piecesPerRange = Math.max (1, RANGE_SIZE / descriptor.getPieceSize());
+		int rangeLimit = (hashers == null) ? 1 : 2 * this.hashingThreads;
+		final Semaphore rangePermits = new Semaphore (rangeLimit);
+		final AtomicInteger hashedPieces = new AtomicInteger (0);
+		final AtomicReference<Throwable> hashFailure = new AtomicReference<Throwable>();
+
+		// Create hashes
+		final byte[] pieceHashes = new byte[20 * numPieces];
+		try {
+			for (int firstPieceNumber = 0; firstPieceNumber < numPieces; firstPieceNumber += piecesPerRange) {
+				if (this.cancelled) {
+					throw new CancellationException();
+				}
+				if (hashFailure.get() != null) {
+					break;
+				}
+				final ByteBuffer[] pieces = new ByteBuffer[Math.min (piecesPerRange, numPieces - firstPieceNumber)];
+				for (int i = 0; i < pieces.length; i++) {
+					pieces[i] = storage.read (firstPieceNumber + i);
+				}
+				if (hashers == null) {
+					hashRange (pieces, firstPieceNumber, pieceHashes, hashedPieces);
+				} else {
+					final int rangePieceNumber = firstPieceNumber;
+					rangePermits.acquire();
+					hashers.execute (new Runnable() {
+						public void run() {
+							try {
+								hashRange (pieces, rangePieceNumber, pieceHashes, hashedPieces);
+							} catch (Throwable t) {
+								hashFailure.compareAndSet (null, t);
+							} finally {
+								rangePermits.release();
+							}
+						}
+					});
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} finally {
+			// Wait for every outstanding range. Acquiring the permits also makes the hashes written
+			// by the hashers visible to this thread
+			rangePermits.acquireUninterruptibly (rangeLimit);
+		}
+
+		// Rethrow the first failure of a hasher. Hashing throws no checked exceptions
+		Throwable failure = hashFailure.get();
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
 		}
 
 		return pieceHashes;
@@ -157,11 +276,72 @@ public class InfoBuilder {
 	}
 
 
+	/**
+	 * Sets the number of threads that hash pieces. Pieces are read in order by the thread that
+	 * calls {@link #build()}, and hashed in ranges by the hashing threads
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param hashingThreads The number of threads, or 1 to hash pieces on the thread that reads
+	 *        them
+	 */
+	public void setHashingThreads (int hashingThreads) {
+
+		if (hashingThreads < 1) {
+			throw new IllegalArgumentException ("Invalid thread count");
+		}
+
+		this.hashingThreads = hashingThreads;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of threads that hash pieces
+	 */
+	public int getHashingThreads() {
+
+		return this.hashingThreads;
+
+	}
+
+
+	/**
+	 * Sets the listener to inform of progress
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param listener The listener, or {@code null}
+	 */
+	public void setListener (InfoBuilderListener listener) {
+
+		this.listener = listener;
+
+	}
+
+
+	/**
+	 * Cancels a build. A build in progress stops reading pieces, and {@link #build()} throws
+	 * {@link CancellationException} once the pieces already read have been hashed
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 */
+	public void cancel() {
+
+		this.cancelled = true;
+
+	}
+
+
 	/**
 	 * Constructs the {@code Info} based on the supplied data
 	 *
 	 * @return A constructed {@code Info}
-	 * @throws IOException 
+	 * @throws IOException if any error occurred reading the files, or the calling thread was
+	 *         interrupted
+	 * @throws CancellationException if the build was cancelled through {@link #cancel()}
 	 */
 	public Info build() throws IOException {
 
@@ -185,16 +365,66 @@ public class InfoBuilder {
 			fileset = new InfoFileset (this.baseFile.getName(), filespecs);
 		}
 
-		// Create piece hashes
-		Storage storage = new FileStorage (this.baseFile.getParentFile());
-		storage.open (this.pieceSize, fileset);
-		byte[] pieceHashes = calculatePiecesHashes (storage);
-		storage.close();
+		// Create hashing workers
+		ExecutorService hashers = null;
+		int threadCount = this.hashingThreads;
+		if (threadCount > 1) {
+			hashers = new ThreadPoolExecutor (threadCount, threadCount, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread (Runnable r) {
+					Thread thread = new Thread (r);
+					thread.setName ("InfoBuilder worker");
+					thread.setDaemon (true);
+					return thread;
+				}
+			});
+		}
+
+		try {
+			// Create piece hashes
+			Storage storage = new FileStorage (this.baseFile.getParentFile());
+			storage.open (this.pieceSize, fileset);
+			byte[] pieceHashes;
+			try {
+				pieceHashes = calculatePiecesHashes (storage, hashers);
+			} finally {
+				storage.close();
+			}
+
+			return createInfo (fileset, pieceHashes, hashers);
+		} finally {
+			if (hashers != null) {
+				hashers.shutdown();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Creates the {@code Info} from a fileset and its piece hashes
+	 *
+	 * @param fileset The fileset
+	 * @param pieceHashes The concatenated piece hashes
+	 * @param hashers The executor to build a Merkle tree on, or {@code null} to build it on the
+	 *        calling thread
+	 * @return A constructed {@code Info}
+	 * @throws IOException if the root hash could not be signed, or the calling thread was
+	 *         interrupted
+	 */
+	private Info createInfo (InfoFileset fileset, byte[] pieceHashes, ExecutorService hashers) throws IOException {
 
-		// Create Info
 		Info info;
 		if (this.merkleTorrent) {
-			ElasticTree elasticTree = ElasticTree.buildFromLeaves (this.pieceSize, this.baseFile.length(), pieceHashes);
+			ElasticTree elasticTree;
+			if (hashers == null) {
+				elasticTree = ElasticTree.buildFromLeaves (this.pieceSize, this.baseFile.length(), pieceHashes);
+			} else {
+				try {
+					elasticTree = ElasticTree.buildFromLeaves (this.pieceSize, this.baseFile.length(), pieceHashes, hashers);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
 			byte[] rootHash = elasticTree.getView(this.baseFile.length()).getRootHash();
 			if (!this.elasticTorrent) {
 				info = Info.createMerkle (fileset, this.pieceSize, rootHash);
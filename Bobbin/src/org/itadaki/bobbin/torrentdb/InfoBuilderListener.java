@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+
+/**
+ * A listener for the progress of an InfoBuilder
+ */
+public interface InfoBuilderListener {
+
+	/**
+	 * Indicates that further pieces have been hashed. This is called on the thread that hashed the
+	 * pieces, with no locks held, and may be called concurrently from several threads. The build
+	 * may be abandoned from within this method through {@link InfoBuilder#cancel()}
+	 *
+	 * @param infoBuilder The InfoBuilder
+	 * @param hashedPieces The number of pieces hashed so far
+	 * @param totalPieces The total number of pieces
+	 */
+	public void infoBuilderProgress (InfoBuilder infoBuilder, int hashedPieces, int totalPieces);
+
+}
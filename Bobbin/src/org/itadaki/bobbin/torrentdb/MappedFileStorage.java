@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+
+/**
+ * A {@link FileStorage} that serves reads and writes through memory mapped windows onto its
+ * underlying files
+ *
+ * <p>Each file is divided into fixed size windows, which are mapped on first use; files larger than
+ * a single window (including those over 2GiB, which cannot be mapped in one piece) are therefore
+ * mapped in a series of sliding chunks. A bounded number of windows is retained, with the least
+ * recently used window being released when the limit is exceeded. As reads may hand out views onto
+ * a window, a released window is not forcibly unmapped; its mapping is freed by the garbage
+ * collector once the last view onto it is discarded.
+ *
+ * <p>Only a range that lies wholly within a single window of a file that has already been
+ * allocated to the full extent of that window is served through a mapping. Other ranges, such as
+ * those spanning more than one file, or those extending into unallocated parts of a file, are
+ * handled as by {@link FileStorage}, so that the rules governing the creation, extension and zero
+ * filling of files are unchanged.
+ */
+public class MappedFileStorage extends FileStorage {
+
+	/**
+	 * The default size of a mapped window
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The default maximum number of mapped windows retained
+	 */
+	public static final int DEFAULT_MAXIMUM_WINDOWS = 32;
+
+	/**
+	 * The size of a mapped window
+	 */
+	private final int windowSize;
+
+	/**
+	 * The maximum number of mapped windows retained
+	 */
+	private final int maximumWindows;
+
+	/**
+	 * The currently mapped windows, in order of least to most recent use
+	 */
+	private final Map<WindowKey,MappedByteBuffer> windows;
+
+
+	/**
+	 * Identifies a single mapped window of a single file
+	 */
+	private static final class WindowKey {
+
+		/**
+		 * The file index
+		 */
+		private final int fileIndex;
+
+		/**
+		 * The index of the window within the file
+		 */
+		private final long windowIndex;
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+
+			return (31 * this.fileIndex) + (int)(this.windowIndex ^ (this.windowIndex >>> 32));
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals (Object other) {
+
+			if (!(other instanceof WindowKey)) {
+				return false;
+			}
+
+			WindowKey otherKey = (WindowKey) other;
+			return (this.fileIndex == otherKey.fileIndex) && (this.windowIndex == otherKey.windowIndex);
+
+		}
+
+
+		/**
+		 * @param fileIndex The file index
+		 * @param windowIndex The index of the window within the file
+		 */
+		public WindowKey (int fileIndex, long windowIndex) {
+
+			this.fileIndex = fileIndex;
+			this.windowIndex = windowIndex;
+
+		}
+
+	}
+
+
+	/**
+	 * Gets a mapped window, mapping it if it is not already mapped
+	 *
+	 * @param fileIndex The file index
+	 * @param windowIndex The index of the window within the file
+	 * @return The mapped window, or {@code null} if the file is not yet allocated to the full extent
+	 *         of the window
+	 * @throws IOException If an error occurred mapping the window
+	 */
+	private MappedByteBuffer getWindow (int fileIndex, long windowIndex) throws IOException {
+
+		synchronized (this.windows) {
+
+			WindowKey key = new WindowKey (fileIndex, windowIndex);
+			MappedByteBuffer window = this.windows.get (key);
+
+			if (window == null) {
+				long windowStart = windowIndex * this.windowSize;
+				long windowLength = Math.min (this.windowSize, getFileLength (fileIndex) - windowStart);
+				File file = getFile (fileIndex);
+				if (getActualFileLength (fileIndex) < (windowStart + windowLength)) {
+					return null;
+				}
+				FileChannel channel = getHandlePool().acquire (file);
+				try {
+					window = channel.map (FileChannel.MapMode.READ_WRITE, windowStart, windowLength);
+				} finally {
+					getHandlePool().release (file);
+				}
+				this.windows.put (key, window);
+			}
+
+			return window;
+
+		}
+
+	}
+
+
+	/**
+	 * Gets a view onto the mapped window containing a given linear byte range
+	 *
+	 * @param linearByteIndex The linear byte index of the start of the range
+	 * @param length The length of the range, which must be greater than zero
+	 * @return A view onto the mapped window positioned and limited to the range, or {@code null} if
+	 *         the range cannot be served through a single mapped window
+	 * @throws IOException If an error occurred mapping the window
+	 */
+	private ByteBuffer getMappedRange (long linearByteIndex, int length) throws IOException {
+
+		long[] indices = getFileByteIndexForLinearByteIndex (linearByteIndex);
+		int fileIndex = (int)indices[0];
+		long fileByteIndex = indices[1];
+
+		// A range starting on a zero length file is left to FileStorage, which creates the file
+		if ((fileByteIndex + length) > getFileLength (fileIndex)) {
+			return null;
+		}
+
+		long windowIndex = fileByteIndex / this.windowSize;
+		int windowOffset = (int)(fileByteIndex - (windowIndex * this.windowSize));
+		if ((windowOffset + length) > this.windowSize) {
+			return null;
+		}
+
+		MappedByteBuffer window = getWindow (fileIndex, windowIndex);
+		if (window == null) {
+			return null;
+		}
+
+		ByteBuffer range = window.duplicate();
+		range.limit (windowOffset + length);
+		range.position (windowOffset);
+
+		return range;
+
+	}
+
+
+	/**
+	 * Releases all mapped windows
+	 */
+	private void releaseWindows() {
+
+		synchronized (this.windows) {
+			this.windows.clear();
+		}
+
+	}
+
+
+	/* Storage interface */
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.FileStorage#extend(long)
+	 */
+	@Override
+	public void extend (long length) throws IOException {
+
+		super.extend (length);
+
+		// The final window of the last file may now be larger than its current mapping
+		releaseWindows();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.FileStorage#close()
+	 */
+	@Override
+	public ByteBuffer close() throws IOException {
+
+		releaseWindows();
+
+		return super.close();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.FileStorage#read(int)
+	 */
+	@Override
+	public ByteBuffer read (int pieceNumber) throws IOException {
+
+		PiecesetDescriptor descriptor = getPiecesetDescriptor();
+		if ((pieceNumber < 0) || (pieceNumber >= descriptor.getNumberOfPieces())) {
+			throw new IndexOutOfBoundsException ("Invalid index " + pieceNumber);
+		}
+
+		ByteBuffer range = getMappedRange (((long)pieceNumber) * descriptor.getPieceSize(), descriptor.getPieceLength (pieceNumber));
+		if (range != null) {
+			return range.slice().asReadOnlyBuffer();
+		}
+
+		return super.read (pieceNumber);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.FileStorage#read(org.itadaki.bobbin.torrentdb.BlockDescriptor)
+	 */
+	@Override
+	public ByteBuffer read (BlockDescriptor descriptor) throws IOException {
+
+		checkBlockIsValid (descriptor);
+
+		if (descriptor.getLength() > 0) {
+			ByteBuffer range = getMappedRange ((((long)descriptor.getPieceNumber()) * getPiecesetDescriptor().getPieceSize()) + descriptor.getOffset(), descriptor.getLength());
+			if (range != null) {
+				return range.slice().asReadOnlyBuffer();
+			}
+		}
+
+		return super.read (descriptor);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.FileStorage#read(org.itadaki.bobbin.torrentdb.BlockDescriptor, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void read (BlockDescriptor descriptor, ByteBuffer buffer) throws IOException {
+
+		checkBlockIsValid (descriptor);
+
+		if (descriptor.getLength() > 0) {
+			ByteBuffer range = getMappedRange ((((long)descriptor.getPieceNumber()) * getPiecesetDescriptor().getPieceSize()) + descriptor.getOffset(), descriptor.getLength());
+			if (range != null) {
+				if (buffer.remaining() < descriptor.getLength()) {
+					throw new IllegalArgumentException ("Buffer too small");
+				}
+				buffer.put (range.slice());
+				return;
+			}
+		}
+
+		super.read (descriptor, buffer);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.FileStorage#write(int, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void write (int pieceNumber, ByteBuffer buffer) throws IOException {
+
+		PiecesetDescriptor descriptor = getPiecesetDescriptor();
+		if ((pieceNumber < 0) || (pieceNumber >= descriptor.getNumberOfPieces())) {
+			throw new IndexOutOfBoundsException ("Invalid index " + pieceNumber);
+		}
+
+		int pieceLength = descriptor.getPieceLength (pieceNumber);
+		ByteBuffer range = getMappedRange (((long)pieceNumber) * descriptor.getPieceSize(), pieceLength);
+		if (range != null) {
+			ByteBuffer content = buffer.duplicate();
+			content.limit (content.position() + pieceLength);
+			range.put (content);
+			return;
+		}
+
+		super.write (pieceNumber, buffer);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.FileStorage#write(int, java.nio.ByteBuffer[])
+	 */
+	@Override
+	public void write (int pieceNumber, ByteBuffer[] buffers) throws IOException {
+
+		if ((pieceNumber < 0) || ((pieceNumber + buffers.length) > getPiecesetDescriptor().getNumberOfPieces())) {
+			throw new IndexOutOfBoundsException ("Invalid index " + pieceNumber);
+		}
+
+		// Writes to mapped windows are already coalesced by the operating system
+		for (int i = 0; i < buffers.length; i++) {
+			write (pieceNumber + i, buffers[i]);
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.FileStorage#openOutputChannel(int, int)
+	 */
+	@Override
+	public WritableByteChannel openOutputChannel (final int pieceNumber, final int offset) throws IOException {
+
+		WritableByteChannel channel = new WritableByteChannel() {
+
+			long linearByteIndex = (((long)pieceNumber) * getPiecesetDescriptor().getPieceSize()) + offset;
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() throws IOException {
+			}
+
+			public int write (ByteBuffer src) throws IOException {
+
+				int bytesWritten = src.remaining();
+
+				if (bytesWritten > 0) {
+					ByteBuffer range = getMappedRange (this.linearByteIndex, bytesWritten);
+					if (range != null) {
+						range.put (src);
+					} else {
+						int pieceSize = getPiecesetDescriptor().getPieceSize();
+						MappedFileStorage.super.openOutputChannel ((int)(this.linearByteIndex / pieceSize), (int)(this.linearByteIndex % pieceSize)).write (src);
+					}
+					this.linearByteIndex += bytesWritten;
+				}
+
+				return bytesWritten;
+
+			}
+
+		};
+
+		return channel;
+
+	}
+
+
+	/**
+	 * @param parentDirectory The directory beneath which to write the files of the torrent
+	 * @param windowSize The size of a mapped window
+	 * @param maximumWindows The maximum number of mapped windows to retain
+	 * @throws IncompatibleLocationException If the given directory is not a valid, readable directory
+	 */
+	public MappedFileStorage (File parentDirectory, int windowSize, int maximumWindows) throws IncompatibleLocationException {
+
+		super (parentDirectory);
+
+		if ((windowSize <= 0) || (maximumWindows <= 0)) {
+			throw new IllegalArgumentException ("Invalid window size or count");
+		}
+
+		this.windowSize = windowSize;
+		this.maximumWindows = maximumWindows;
+		this.windows = new LinkedHashMap<WindowKey,MappedByteBuffer> (16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<WindowKey,MappedByteBuffer> eldest) {
+				return size() > MappedFileStorage.this.maximumWindows;
+			}
+		};
+
+	}
+
+
+	/**
+	 * @param parentDirectory The directory beneath which to write the files of the torrent
+	 * @throws IncompatibleLocationException If the given directory is not a valid, readable directory
+	 */
+	public MappedFileStorage (File parentDirectory) throws IncompatibleLocationException {
+
+		this (parentDirectory, DEFAULT_WINDOW_SIZE, DEFAULT_MAXIMUM_WINDOWS);
+
+	}
+
+
+}
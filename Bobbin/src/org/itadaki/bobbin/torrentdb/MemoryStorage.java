@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.List;
 
 import org.itadaki.bobbin.util.BitField;
 
@@ -76,6 +77,46 @@ public class MemoryStorage implements Storage {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#validatePieces(java.nio.ByteBuffer, org.itadaki.bobbin.util.BitField)
+	 */
+	public BitField validatePieces (ByteBuffer cookie, BitField writtenPieces) {
+
+		return null;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#getValidationCookie()
+	 */
+	public ByteBuffer getValidationCookie() {
+
+		return null;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#getValidationCookie(org.itadaki.bobbin.util.BitField)
+	 */
+	public ByteBuffer getValidationCookie (BitField pieces) {
+
+		return null;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#mergeValidationCookie(java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	public ByteBuffer mergeValidationCookie (ByteBuffer cookie, ByteBuffer partialCookie) {
+
+		return null;
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.torrentdb.Storage#extend(long)
 	 */
@@ -125,6 +166,63 @@ public class MemoryStorage implements Storage {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#read(org.itadaki.bobbin.torrentdb.BlockDescriptor)
+	 */
+	public ByteBuffer read (BlockDescriptor descriptor) throws IOException {
+
+		int pieceNumber = descriptor.getPieceNumber();
+		if (
+				   (pieceNumber < 0) || (pieceNumber >= this.descriptor.getNumberOfPieces())
+				|| (descriptor.getOffset() < 0) || (descriptor.getLength() < 0)
+				|| ((descriptor.getOffset() + descriptor.getLength()) > this.descriptor.getPieceLength (pieceNumber))
+		   )
+		{
+			throw new IndexOutOfBoundsException ("Invalid block " + descriptor);
+		}
+
+		byte[] content = new byte[descriptor.getLength()];
+		System.arraycopy (this.data, (pieceNumber * this.descriptor.getPieceSize()) + descriptor.getOffset(), content, 0, descriptor.getLength());
+
+		return ByteBuffer.wrap (content);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#read(org.itadaki.bobbin.torrentdb.BlockDescriptor, java.nio.ByteBuffer)
+	 */
+	public void read (BlockDescriptor descriptor, ByteBuffer buffer) throws IOException {
+
+		int pieceNumber = descriptor.getPieceNumber();
+		if (
+				   (pieceNumber < 0) || (pieceNumber >= this.descriptor.getNumberOfPieces())
+				|| (descriptor.getOffset() < 0) || (descriptor.getLength() < 0)
+				|| ((descriptor.getOffset() + descriptor.getLength()) > this.descriptor.getPieceLength (pieceNumber))
+		   )
+		{
+			throw new IndexOutOfBoundsException ("Invalid block " + descriptor);
+		}
+
+		if (buffer.remaining() < descriptor.getLength()) {
+			throw new IllegalArgumentException ("Buffer too small");
+		}
+
+		buffer.put (this.data, (pieceNumber * this.descriptor.getPieceSize()) + descriptor.getOffset(), descriptor.getLength());
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#getRegions(org.itadaki.bobbin.torrentdb.BlockDescriptor)
+	 */
+	public List<FileRegion> getRegions (BlockDescriptor descriptor) throws IOException {
+
+		return null;
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.torrentdb.Storage#write(int, java.nio.ByteBuffer)
 	 */
@@ -139,6 +237,22 @@ public class MemoryStorage implements Storage {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.torrentdb.Storage#write(int, java.nio.ByteBuffer[])
+	 */
+	public void write (int pieceNumber, ByteBuffer[] buffers) throws IOException {
+
+		if ((pieceNumber < 0) || ((pieceNumber + buffers.length) > this.descriptor.getNumberOfPieces())) {
+			throw new IndexOutOfBoundsException ("Invalid index " + pieceNumber);
+		}
+
+		for (int i = 0; i < buffers.length; i++) {
+			write (pieceNumber + i, buffers[i]);
+		}
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.torrentdb.Storage#openOutputChannel(int, int)
 	 */
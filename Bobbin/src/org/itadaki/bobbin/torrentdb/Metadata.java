@@ -13,7 +13,8 @@ import java.io.IOException;
 public interface Metadata {
 
 	/**
-	 * Stores a key / value pair
+	 * Stores a key / value pair. The value for the key is replaced as a whole; if the process or
+	 * system fails during the call, either the previous or the new value will remain
 	 *
 	 * @param key The key
 	 * @param value The value, which may be {@code null}
@@ -21,6 +22,16 @@ public interface Metadata {
 	 */
 	void put (String key, byte[] value) throws IOException;
 
+	/**
+	 * Appends data to the value for a key, creating the value if it does not exist. Once this
+	 * method returns, the appended data should survive a failure of the process or system
+	 *
+	 * @param key The key
+	 * @param value The data to append
+	 * @throws IOException On any I/O error
+	 */
+	void append (String key, byte[] value) throws IOException;
+
 	/**
 	 * Gets the value for a key
 	 *
@@ -5,10 +5,13 @@
 package org.itadaki.bobbin.torrentdb;
 
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 
+import org.itadaki.bobbin.util.BufferPool;
 import org.itadaki.bobbin.util.elastictree.HashChain;
 
 
@@ -27,16 +30,48 @@ public class Piece {
 	 */
 	private final int pieceLength;
 
+	/**
+	 * The maximum length of the blocks the piece is divided into
+	 */
+	private final int blockLength;
+
 	/**
 	 * The piece blocks that are not yet present
 	 */
 	private final LinkedHashSet<BlockDescriptor> neededBlocks = new LinkedHashSet<BlockDescriptor>();
 
 	/**
-	 * The content of the piece
+	 * The content of the piece, or {@code null} if the piece is streamed
 	 */
 	private final ByteBuffer content;
 
+	/**
+	 * The pool from which the content was allocated, or {@code null} if the content is not pooled
+	 */
+	private final BufferPool bufferPool;
+
+	/**
+	 * {@code true} if the piece's pooled content has been released
+	 */
+	private boolean released = false;
+
+	/**
+	 * A digester that absorbs the piece's content in order as it becomes contiguous from the start
+	 * of the piece, or {@code null} if the piece is not hashed incrementally
+	 */
+	private final MessageDigest digest;
+
+	/**
+	 * The length of the content, from the start of the piece, that has been absorbed by the
+	 * digester
+	 */
+	private int hashedLength = 0;
+
+	/**
+	 * The SHA1 hash of the piece's content, once the piece has been assembled and hashed
+	 */
+	private byte[] hash = null;
+
 	/**
 	 * The view signature corresponding to the hash chain
 	 */
@@ -108,11 +143,57 @@ public class Piece {
 	}
 
 
+	/**
+	 * @return A list of blocks that are present
+	 */
+	public List<BlockDescriptor> getPresentBlocks() {
+
+		List<BlockDescriptor> presentBlocks = new ArrayList<BlockDescriptor>();
+		for (int offset = 0; offset < this.pieceLength; offset += this.blockLength) {
+			BlockDescriptor descriptor = new BlockDescriptor (this.pieceNumber, offset, Math.min (this.blockLength, this.pieceLength - offset));
+			if (!this.neededBlocks.contains (descriptor)) {
+				presentBlocks.add (descriptor);
+			}
+		}
+
+		return presentBlocks;
+
+	}
+
+
+	/**
+	 * @return {@code true} if the piece's blocks are streamed to storage as they arrive rather than
+	 *         held in the piece, otherwise {@code false}
+	 */
+	public boolean isStreamed() {
+
+		return (this.content == null);
+
+	}
+
+
+	/**
+	 * Gets the SHA1 hash of the piece's content. The hash is computed incrementally as the
+	 * piece's blocks arrive, and is available once the piece has been assembled
+	 *
+	 * @return The hash of the piece's content, or {@code null} if the piece has not been assembled
+	 *         or is not hashed incrementally
+	 */
+	public byte[] getHash() {
+
+		return (this.hash == null) ? null : this.hash.clone();
+
+	}
+
+
 	/**
 	 * @return The content of the piece
+	 * @throws IllegalStateException if the piece is streamed or has been released
 	 */
 	public ByteBuffer getContent() {
 
+		checkContentAvailable();
+
 		return this.content.asReadOnlyBuffer();
 
 	}
@@ -123,6 +204,7 @@ public class Piece {
 	 * 
 	 * @param descriptor The block's descriptor
 	 * @return The block
+	 * @throws IllegalStateException if the piece is streamed or has been released
 	 */
 	public ByteBuffer getBlock (BlockDescriptor descriptor) {
 
@@ -130,13 +212,20 @@ public class Piece {
 			throw new IllegalArgumentException();
 		}
 
-		return ByteBuffer.wrap (this.content.array(), descriptor.getOffset(), descriptor.getLength()).asReadOnlyBuffer();
+		checkContentAvailable();
+
+		ByteBuffer block = this.content.asReadOnlyBuffer();
+		block.limit (descriptor.getOffset() + descriptor.getLength());
+		block.position (descriptor.getOffset());
+
+		return block;
 
 	}
 
 
 	/**
-	 * Puts a block into the piece
+	 * Puts a block into the piece. If the piece is streamed, the block is only marked as present,
+	 * and its bytes are left unconsumed for the caller to store
 	 *
 	 * @param descriptor The block's descriptor
 	 * @param block The bytes of the block
@@ -153,16 +242,106 @@ public class Piece {
 			throw new IllegalArgumentException();
 		}
 
+		if (this.released) {
+			throw new IllegalStateException ("Piece has been released");
+		}
+
 		this.neededBlocks.remove (descriptor);
-		this.content.position (descriptor.getOffset());
-		this.content.put (block);
-		this.content.rewind();
+		if (this.content != null) {
+			this.content.position (descriptor.getOffset());
+			this.content.put (block);
+			this.content.rewind();
+			if (this.digest != null) {
+				hashContiguousBlocks();
+			}
+		}
 
 		return (this.neededBlocks.size() == 0);
 
 	}
 
 
+	/**
+	 * Marks a block of a streamed piece as present, where the content of the block is already held
+	 * in storage
+	 *
+	 * @param descriptor The block's descriptor
+	 * @return {@code true} if the piece has been assembled, otherwise {@code false}
+	 * @throws IllegalStateException if the piece is not streamed
+	 */
+	public boolean putStoredBlock (BlockDescriptor descriptor) {
+
+		if (!this.neededBlocks.contains (descriptor)) {
+			throw new IllegalArgumentException();
+		}
+
+		if (this.content != null) {
+			throw new IllegalStateException ("Piece is not streamed");
+		}
+
+		this.neededBlocks.remove (descriptor);
+
+		return (this.neededBlocks.size() == 0);
+
+	}
+
+
+	/**
+	 * Absorbs into the digester any blocks that have become contiguous with the content already
+	 * hashed. Blocks that arrive out of order remain in the piece's content until the blocks
+	 * before them arrive. Once the whole piece has been absorbed, its hash is computed
+	 */
+	private void hashContiguousBlocks() {
+
+		while (this.hashedLength < this.pieceLength) {
+			int length = Math.min (this.blockLength, this.pieceLength - this.hashedLength);
+			if (this.neededBlocks.contains (new BlockDescriptor (this.pieceNumber, this.hashedLength, length))) {
+				return;
+			}
+			ByteBuffer block = this.content.duplicate();
+			block.limit (this.hashedLength + length);
+			block.position (this.hashedLength);
+			this.digest.update (block);
+			this.hashedLength += length;
+		}
+
+		this.hash = this.digest.digest();
+
+	}
+
+
+	/**
+	 * Releases the piece's content to the pool it was allocated from, if any. Once a piece has
+	 * been released, neither its content nor any buffer previously obtained from it may be used
+	 */
+	public void release() {
+
+		if ((this.bufferPool != null) && !this.released) {
+			this.released = true;
+			this.bufferPool.release (this.content);
+		}
+
+	}
+
+
+	/**
+	 * Checks that the piece's content is available
+	 *
+	 * @throws IllegalStateException if the piece is streamed or has been released
+	 */
+	private void checkContentAvailable() {
+
+		if (this.content == null) {
+			throw new IllegalStateException ("Piece is streamed");
+		}
+
+		if (this.released) {
+			throw new IllegalStateException ("Piece has been released");
+		}
+
+	}
+
+
 	/**
 	 * Creates a fully populated piece
 	 * 
@@ -178,7 +357,10 @@ public class Piece {
 
 		this.pieceNumber = pieceNumber;
 		this.pieceLength = content.remaining();
+		this.blockLength = this.pieceLength;
 		this.content = content;
+		this.bufferPool = null;
+		this.digest = null;
 		this.hashChain = hashChain;
 
 	}
@@ -190,8 +372,12 @@ public class Piece {
 	 * @param pieceNumber The piece number 
 	 * @param pieceLength The length of the piece
 	 * @param blockLength The maximum length of the blocks to divide the piece into
+	 * @param streamed If {@code true}, the piece records only which of its blocks are present,
+	 *        and their content must be stored elsewhere as they arrive
+	 * @param bufferPool The pool from which to allocate the piece's content. The content should be
+	 *        returned to the pool through {@link #release()} once the piece is no longer needed
 	 */
-	public Piece (int pieceNumber, int pieceLength, int blockLength) {
+	public Piece (int pieceNumber, int pieceLength, int blockLength, boolean streamed, BufferPool bufferPool) {
 
 		if ((pieceNumber < 0) || (pieceLength <= 0) || (blockLength <= 0)) {
 			throw new IllegalArgumentException();
@@ -199,9 +385,22 @@ public class Piece {
 
 		this.pieceNumber = pieceNumber;
 		this.pieceLength = pieceLength;
-		this.content = ByteBuffer.allocate (pieceLength);
+		this.blockLength = blockLength;
+		this.content = streamed ? null : bufferPool.allocate (pieceLength);
+		this.bufferPool = streamed ? null : bufferPool;
 		this.hashChain = null;
 
+		if (streamed) {
+			this.digest = null;
+		} else {
+			try {
+				this.digest = MessageDigest.getInstance ("SHA");
+			} catch (NoSuchAlgorithmException e) {
+				// Shouldn't happen
+				throw new InternalError (e.getMessage());
+			}
+		}
+
 		int remaining = this.pieceLength;
 		int offset = 0;
 		while (remaining > 0) {
@@ -213,4 +412,35 @@ public class Piece {
 	}
 
 
+	/**
+	 * Creates an empty piece, allocating any content from the
+	 * {@link BufferPool#getSharedPool() shared buffer pool}
+	 *
+	 * @param pieceNumber The piece number 
+	 * @param pieceLength The length of the piece
+	 * @param blockLength The maximum length of the blocks to divide the piece into
+	 * @param streamed If {@code true}, the piece records only which of its blocks are present,
+	 *        and their content must be stored elsewhere as they arrive
+	 */
+	public Piece (int pieceNumber, int pieceLength, int blockLength, boolean streamed) {
+
+		this (pieceNumber, pieceLength, blockLength, streamed, BufferPool.getSharedPool());
+
+	}
+
+
+	/**
+	 * Creates an empty piece that holds the content of its blocks
+	 *
+	 * @param pieceNumber The piece number 
+	 * @param pieceLength The length of the piece
+	 * @param blockLength The maximum length of the blocks to divide the piece into
+	 */
+	public Piece (int pieceNumber, int pieceLength, int blockLength) {
+
+		this (pieceNumber, pieceLength, blockLength, false);
+
+	}
+
+
 }
@@ -0,0 +1,520 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.itadaki.bobbin.util.BufferPool;
+
+
+/**
+ * A byte budgeted cache of piece content, shared between any number of {@link PieceDatabase}s
+ *
+ * <p>Each {@code PieceDatabase} accesses the cache through its own {@link Partition}, which keeps
+ * statistics on its use of the cache. Cached content is held outside the heap in direct buffers
+ * drawn from the cache's own {@link BufferPool}, and the buffer of a piece that is evicted or
+ * removed is returned to the pool to hold the next piece cached. Content is therefore always
+ * copied out of the cache, and no view of a cached buffer is ever given out.
+ *
+ * <p>Eviction follows a segmented LRU policy. A newly cached piece enters a probationary segment,
+ * and is promoted to a protected segment if it is read again while cached; pieces demoted from the
+ * protected segment return to the probationary segment. Pieces are evicted from the probationary
+ * segment first, so that a single pass over a large number of pieces cannot displace pieces that
+ * are repeatedly in demand.
+ */
+public class PieceCache {
+
+	/**
+	 * The default capacity of the cache in bytes
+	 */
+	public static final long DEFAULT_CAPACITY = 32 * 1024 * 1024;
+
+	/**
+	 * The proportion of the cache's capacity that may be occupied by the protected segment
+	 */
+	private static final double PROTECTED_PROPORTION = 0.8;
+
+	/**
+	 * The maximum total capacity of evicted buffers that are retained for reuse
+	 */
+	private static final long RETAINED_CAPACITY = 16 * 1024 * 1024;
+
+	/**
+	 * The pool from which the buffers that hold cached content are allocated
+	 */
+	private final BufferPool bufferPool = new BufferPool (true, RETAINED_CAPACITY, false);
+
+	/**
+	 * The probationary segment, in order of least to most recent use
+	 */
+	private final LinkedHashMap<Key,ByteBuffer> probationaryEntries = new LinkedHashMap<Key,ByteBuffer>();
+
+	/**
+	 * The protected segment, in order of least to most recent use
+	 */
+	private final LinkedHashMap<Key,ByteBuffer> protectedEntries = new LinkedHashMap<Key,ByteBuffer>();
+
+	/**
+	 * The capacity of the cache in bytes
+	 */
+	private long capacity;
+
+	/**
+	 * The total size in bytes of the cached content
+	 */
+	private long size = 0;
+
+	/**
+	 * The total size in bytes of the content in the protected segment
+	 */
+	private long protectedSize = 0;
+
+
+	/**
+	 * Identifies a single cached piece
+	 */
+	private static final class Key {
+
+		/**
+		 * The partition to which the piece belongs
+		 */
+		public final Partition partition;
+
+		/**
+		 * The piece number
+		 */
+		public final int pieceNumber;
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+
+			return (31 * System.identityHashCode (this.partition)) + this.pieceNumber;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals (Object other) {
+
+			if (!(other instanceof Key)) {
+				return false;
+			}
+
+			Key otherKey = (Key) other;
+			return (this.partition == otherKey.partition) && (this.pieceNumber == otherKey.pieceNumber);
+
+		}
+
+
+		/**
+		 * @param partition The partition to which the piece belongs
+		 * @param pieceNumber The piece number
+		 */
+		public Key (Partition partition, int pieceNumber) {
+
+			this.partition = partition;
+			this.pieceNumber = pieceNumber;
+
+		}
+
+	}
+
+
+	/**
+	 * A view of the cache through which a single {@link PieceDatabase} stores and retrieves its
+	 * pieces
+	 */
+	public class Partition {
+
+		/**
+		 * The number of reads that found the requested piece cached
+		 */
+		private long hitCount = 0;
+
+		/**
+		 * The number of reads that did not find the requested piece cached
+		 */
+		private long missCount = 0;
+
+		/**
+		 * The number of the partition's pieces evicted to remain within the cache's capacity
+		 */
+		private long evictionCount = 0;
+
+		/**
+		 * The number of bytes served from the cache rather than read from storage
+		 */
+		private long bytesSaved = 0;
+
+
+		/**
+		 * Removes all of the partition's pieces from one segment of the cache
+		 *
+		 * @param iterator An iterator over the segment's keys
+		 * @param protectedSegment {@code true} if the segment is the protected segment
+		 */
+		private void removeAll (Iterator<Key> iterator, boolean protectedSegment) {
+
+			LinkedHashMap<Key,ByteBuffer> entries = protectedSegment ? PieceCache.this.protectedEntries : PieceCache.this.probationaryEntries;
+			while (iterator.hasNext()) {
+				Key key = iterator.next();
+				if (key.partition == this) {
+					ByteBuffer content = entries.get (key);
+					iterator.remove();
+					PieceCache.this.size -= content.limit();
+					if (protectedSegment) {
+						PieceCache.this.protectedSize -= content.limit();
+					}
+					PieceCache.this.bufferPool.release (content);
+				}
+			}
+
+		}
+
+
+		/**
+		 * Copies a block from the cache. The block is copied starting at the buffer's position,
+		 * which is advanced by the length of the block
+		 *
+		 * @param descriptor The descriptor of the block
+		 * @param buffer The buffer to copy the block into, which must have at least the block's
+		 *        length remaining
+		 * @return {@code true} if the block was copied, or {@code false} if the piece containing
+		 *         the block is not cached
+		 */
+		public boolean get (BlockDescriptor descriptor, ByteBuffer buffer) {
+
+			synchronized (PieceCache.this) {
+
+				ByteBuffer content = lookup (new Key (this, descriptor.getPieceNumber()));
+				if (content == null) {
+					this.missCount++;
+					return false;
+				}
+
+				this.hitCount++;
+				this.bytesSaved += descriptor.getLength();
+
+				ByteBuffer block = content.duplicate();
+				block.limit (descriptor.getOffset() + descriptor.getLength());
+				block.position (descriptor.getOffset());
+				buffer.put (block);
+
+				return true;
+
+			}
+
+		}
+
+
+		/**
+		 * Determines whether a piece is cached, without affecting its recency or the partition's
+		 * statistics
+		 *
+		 * @param pieceNumber The piece number
+		 * @return {@code true} if the piece is cached, otherwise {@code false}
+		 */
+		public boolean contains (int pieceNumber) {
+
+			synchronized (PieceCache.this) {
+
+				Key key = new Key (this, pieceNumber);
+				return PieceCache.this.probationaryEntries.containsKey (key) || PieceCache.this.protectedEntries.containsKey (key);
+
+			}
+
+		}
+
+
+		/**
+		 * Records a read that was served without consulting the cache, such as a block transferred
+		 * directly from its files, as a read that did not find the requested piece cached
+		 */
+		public void recordMiss() {
+
+			synchronized (PieceCache.this) {
+				this.missCount++;
+			}
+
+		}
+
+
+		/**
+		 * Stores a piece in the cache, replacing any existing cached content of the piece. The
+		 * content is copied, and the supplied buffer is not altered
+		 *
+		 * @param pieceNumber The piece number
+		 * @param content The content of the piece
+		 */
+		public void put (int pieceNumber, ByteBuffer content) {
+
+			synchronized (PieceCache.this) {
+
+				Key key = new Key (this, pieceNumber);
+				remove (key);
+
+				if (content.remaining() > PieceCache.this.capacity) {
+					return;
+				}
+
+				// Evict first, so that an evicted piece's buffer can be reused for this one
+				PieceCache.this.size += content.remaining();
+				evict();
+
+				ByteBuffer cachedContent = PieceCache.this.bufferPool.allocate (content.remaining());
+				cachedContent.put (content.duplicate());
+				cachedContent.flip();
+
+				PieceCache.this.probationaryEntries.put (key, cachedContent);
+
+			}
+
+		}
+
+
+		/**
+		 * Removes a piece from the cache
+		 *
+		 * @param pieceNumber The piece number
+		 */
+		public void invalidate (int pieceNumber) {
+
+			synchronized (PieceCache.this) {
+				remove (new Key (this, pieceNumber));
+			}
+
+		}
+
+
+		/**
+		 * Removes all of the partition's pieces from the cache
+		 */
+		public void invalidateAll() {
+
+			synchronized (PieceCache.this) {
+				removeAll (PieceCache.this.probationaryEntries.keySet().iterator(), false);
+				removeAll (PieceCache.this.protectedEntries.keySet().iterator(), true);
+			}
+
+		}
+
+
+		/**
+		 * @return The number of reads that found the requested piece cached
+		 */
+		public long getHitCount() {
+
+			synchronized (PieceCache.this) {
+				return this.hitCount;
+			}
+
+		}
+
+
+		/**
+		 * @return The number of reads that did not find the requested piece cached
+		 */
+		public long getMissCount() {
+
+			synchronized (PieceCache.this) {
+				return this.missCount;
+			}
+
+		}
+
+
+		/**
+		 * @return The proportion of reads that found the requested piece cached, or zero if no
+		 *         reads have been made
+		 */
+		public double getHitRatio() {
+
+			synchronized (PieceCache.this) {
+				long reads = this.hitCount + this.missCount;
+				return (reads == 0) ? 0 : (double)this.hitCount / reads;
+			}
+
+		}
+
+
+		/**
+		 * @return The number of the partition's pieces evicted to remain within the cache's
+		 *         capacity
+		 */
+		public long getEvictionCount() {
+
+			synchronized (PieceCache.this) {
+				return this.evictionCount;
+			}
+
+		}
+
+
+		/**
+		 * @return The number of bytes served from the cache rather than read from storage
+		 */
+		public long getBytesSaved() {
+
+			synchronized (PieceCache.this) {
+				return this.bytesSaved;
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Finds a cached piece, promoting it to the protected segment
+	 *
+	 * @param key The key of the piece
+	 * @return The cached content, or {@code null}
+	 */
+	private ByteBuffer lookup (Key key) {
+
+		ByteBuffer content = this.protectedEntries.remove (key);
+		if (content == null) {
+			content = this.probationaryEntries.remove (key);
+			if (content == null) {
+				return null;
+			}
+			this.protectedSize += content.limit();
+		}
+
+		this.protectedEntries.put (key, content);
+
+		// Demote the least recently used protected pieces if the protected segment is full
+		long protectedCapacity = (long)(this.capacity * PROTECTED_PROPORTION);
+		Iterator<Key> iterator = this.protectedEntries.keySet().iterator();
+		while ((this.protectedSize > protectedCapacity) && (this.protectedEntries.size() > 1)) {
+			Key demotedKey = iterator.next();
+			ByteBuffer demotedContent = this.protectedEntries.get (demotedKey);
+			iterator.remove();
+			this.protectedSize -= demotedContent.limit();
+			this.probationaryEntries.put (demotedKey, demotedContent);
+		}
+
+		return content;
+
+	}
+
+
+	/**
+	 * Removes a piece from the cache, if present
+	 *
+	 * @param key The key of the piece
+	 */
+	private void remove (Key key) {
+
+		ByteBuffer content = this.probationaryEntries.remove (key);
+		if (content == null) {
+			content = this.protectedEntries.remove (key);
+			if (content == null) {
+				return;
+			}
+			this.protectedSize -= content.limit();
+		}
+		this.size -= content.limit();
+		this.bufferPool.release (content);
+
+	}
+
+
+	/**
+	 * Evicts pieces, probationary pieces first and least recently used first, until the cached
+	 * content is within the cache's capacity
+	 */
+	private void evict() {
+
+		while (this.size > this.capacity) {
+			boolean protectedSegment = this.probationaryEntries.isEmpty();
+			LinkedHashMap<Key,ByteBuffer> entries = protectedSegment ? this.protectedEntries : this.probationaryEntries;
+			Iterator<Key> iterator = entries.keySet().iterator();
+			Key key = iterator.next();
+			ByteBuffer content = entries.get (key);
+			iterator.remove();
+			this.size -= content.limit();
+			if (protectedSegment) {
+				this.protectedSize -= content.limit();
+			}
+			this.bufferPool.release (content);
+			key.partition.evictionCount++;
+		}
+
+	}
+
+
+	/**
+	 * @return A new partition of the cache
+	 */
+	public Partition createPartition() {
+
+		return new Partition();
+
+	}
+
+
+	/**
+	 * @return The capacity of the cache in bytes
+	 */
+	public synchronized long getCapacity() {
+
+		return this.capacity;
+
+	}
+
+
+	/**
+	 * Sets the capacity of the cache. If the cached content exceeds the new capacity, pieces are
+	 * evicted immediately
+	 *
+	 * @param capacity The capacity of the cache in bytes
+	 */
+	public synchronized void setCapacity (long capacity) {
+
+		if (capacity < 0) {
+			throw new IllegalArgumentException ("Invalid capacity");
+		}
+
+		this.capacity = capacity;
+		evict();
+
+	}
+
+
+	/**
+	 * @return The total size in bytes of the cached content
+	 */
+	public synchronized long getSize() {
+
+		return this.size;
+
+	}
+
+
+	/**
+	 * @param capacity The capacity of the cache in bytes
+	 */
+	public PieceCache (long capacity) {
+
+		if (capacity < 0) {
+			throw new IllegalArgumentException ("Invalid capacity");
+		}
+
+		this.capacity = capacity;
+
+	}
+
+
+}
@@ -15,12 +15,25 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.itadaki.bobbin.bencode.BBinary;
 import org.itadaki.bobbin.bencode.BDecoder;
@@ -29,7 +42,9 @@ import org.itadaki.bobbin.bencode.BEncoder;
 import org.itadaki.bobbin.bencode.BList;
 import org.itadaki.bobbin.bencode.InvalidEncodingException;
 import org.itadaki.bobbin.util.BitField;
+import org.itadaki.bobbin.util.BufferPool;
 import org.itadaki.bobbin.util.CharsetUtil;
+import org.itadaki.bobbin.util.ConcurrentBitField;
 import org.itadaki.bobbin.util.DSAUtil;
 import org.itadaki.bobbin.util.WorkQueue;
 import org.itadaki.bobbin.util.elastictree.ElasticTree;
@@ -45,11 +60,49 @@ import org.itadaki.bobbin.util.statemachine.TransitionTable;
 /**
  * Manages the relationship between an {@link Info} describing a torrent's data and a
  * {@link Storage} that contains the data
- * 
- * TODO Revisit thread safety
+ *
+ * <p>Pieces are read and written concurrently. Each read or write holds the database's access lock
+ * for reading, which serves only to exclude the operations that change the shape of the database,
+ * and to let a transition out of the AVAILABLE state wait for the operations already in progress.
+ * Writes to storage are further serialised per piece through a set of striped locks, and hashes are
+ * computed without holding any lock. The state machine lock is held only by state transitions and
+ * changes of configuration
  */
 public class PieceDatabase {
 
+	/**
+	 * The default capacity in bytes of the buffer in which verified pieces are held before being
+	 * written to storage
+	 */
+	public static final long DEFAULT_WRITE_BACK_CAPACITY = 16 * 1024 * 1024;
+
+	/**
+	 * The default number of threads that hash pieces during verification
+	 */
+	public static final int DEFAULT_VERIFICATION_THREADS = Math.min (4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * The maximum time in milliseconds that a verified piece is held before being written to
+	 * storage
+	 */
+	private static final long WRITE_BACK_DELAY = 2000;
+
+	/**
+	 * The default interval in milliseconds between snapshots of the database's state
+	 */
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 5 * 60 * 1000;
+
+	/**
+	 * The interval in milliseconds at which newly written pieces are appended to the resume
+	 * journal
+	 */
+	private static final long JOURNAL_INTERVAL = 5000;
+
+	/**
+	 * The number of locks across which writes to pieces are striped
+	 */
+	private static final int PIECE_LOCK_STRIPES = 64;
+
 	/**
 	 * The transition table for a PieceDatabase's state machine
 	 */
@@ -131,12 +184,51 @@ public class PieceDatabase {
 	private final WorkQueue workQueue;
 
 	/**
-	 * An SHA1 message digester
+	 * SHA1 message digesters, one per thread that hashes pieces
+	 */
+	private final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance ("SHA");
+			} catch (NoSuchAlgorithmException e) {
+				// Shouldn't happen
+				throw new InternalError (e.getMessage());
+			}
+		}
+	};
+
+	/**
+	 * The lock held for reading by every operation that reads or writes pieces, and for writing by
+	 * operations that change the number or length of the pieces. A transition out of the AVAILABLE
+	 * state briefly acquires the lock for writing once the new state has been set, in order to wait
+	 * for the operations already in progress
+	 */
+	private final ReentrantReadWriteLock accessLock = new ReentrantReadWriteLock();
+
+	/**
+	 * The locks through which writes to each piece are serialised. A piece is guarded by the lock
+	 * at the index of its piece number modulo the number of locks
 	 */
-	private final MessageDigest digest;
+	private final Object[] pieceLocks = new Object[PIECE_LOCK_STRIPES];
 
 	/**
-	 * The listeners to inform of state changes to the PieceDatabase
+	 * The streamed pieces whose stored content is being verified. Blocks of these pieces may not
+	 * be written
+	 * <p>Note: This field is accessed through synchronisation on itself
+	 */
+	private final Set<Integer> committingPieces = new HashSet<Integer>();
+
+	/**
+	 * The number of times the database has been extended. Guarded by the access lock
+	 */
+	private int extensionCount = 0;
+
+	/**
+	 * The listeners to inform of state changes to the PieceDatabase. Listeners are signalled
+	 * through a copy of the set, without its lock held
+	 *
+	 * <p>Note: This field is accessed through synchronisation on itself
 	 */
 	private final Set<PieceDatabaseListener> listeners = new HashSet<PieceDatabaseListener>();
 
@@ -152,6 +244,8 @@ public class PieceDatabase {
 
 	/**
 	 * The set of view signatures indexed by view length
+	 * <p>Note: This field, and the elastic tree, are accessed through synchronisation on this
+	 * field
 	 */
 	private final Map<Long,ViewSignature> viewSignatures = new HashMap<Long,ViewSignature>();
 
@@ -174,27 +268,245 @@ public class PieceDatabase {
 	/**
 	 * The set of pieces that are present
 	 */
-	private BitField presentPieces;
+	private final ConcurrentBitField presentPieces = new ConcurrentBitField (0);
 
 	/**
-	 * The set of pieces that have been verified as being either present or absent
+	 * The set of pieces that have been verified as being either present or absent. A piece is
+	 * marked present or absent before it is marked verified
 	 */
-	private BitField verifiedPieces;
+	private final ConcurrentBitField verifiedPieces = new ConcurrentBitField (0);
 
 	/**
 	 * The expandable Merkle hash tree
+	 * <p>Note: While the database is active, this field is accessed through synchronisation on
+	 * {@link #viewSignatures}
 	 */
 	private ElasticTree elasticTree;
 
 	/**
-	 * A thread that verifies the database asynchronously
+	 * The thread that verifies the database asynchronously, if it was not scheduled through a
+	 * {@code VerificationScheduler}
+	 */
+	private Thread verifierThread;
+
+	/**
+	 * The scheduled verification of the database, if it was scheduled through a
+	 * {@code VerificationScheduler}
+	 */
+	private VerificationScheduler.Check verificationCheck;
+
+	/**
+	 * The number of threads that hash pieces during verification
+	 */
+	private volatile int verificationThreads = DEFAULT_VERIFICATION_THREADS;
+
+	/**
+	 * If {@code true}, the database is made available as soon as verification begins, and pieces
+	 * may be read and written as soon as they have been verified
+	 */
+	private volatile boolean checkWhileActive = false;
+
+	/**
+	 * If {@code true}, listeners have been signalled that the database is available while it is
+	 * still being verified
+	 */
+	private volatile boolean activeWhileChecking = false;
+
+	/**
+	 * The partition of a shared piece cache through which pieces are read, or {@code null}
+	 */
+	private volatile PieceCache.Partition pieceCache = null;
+
+	/**
+	 * The queue through which asynchronous reads and writes are performed, or {@code null} to
+	 * perform them synchronously
+	 */
+	private volatile DiskJobQueue diskJobQueue = null;
+
+	/**
+	 * The device that identifies the database's storage to the disk job queue
+	 * <p>Note: This field is written before {@link #diskJobQueue}, so that a thread that reads the
+	 * queue and then the device sees the device that was set with the queue
+	 */
+	private volatile Object diskJobDevice = null;
+
+	/**
+	 * The scheduler through which verification is performed, or {@code null} to verify on a
+	 * dedicated thread
+	 */
+	private VerificationScheduler verificationScheduler = null;
+
+	/**
+	 * The device that identifies the database's storage to the verification scheduler
+	 */
+	private Object verificationDevice = null;
+
+	/**
+	 * The priority with which the next verification is scheduled
+	 */
+	private VerificationScheduler.Priority verificationPriority = VerificationScheduler.Priority.USER;
+
+	/**
+	 * The pool from which transient buffers are allocated
+	 */
+	private volatile BufferPool bufferPool = BufferPool.getSharedPool();
+
+	/**
+	 * Verified pieces that have not yet been written to storage, indexed by piece number. These
+	 * pieces are already marked as present, and are read from memory until they are written, after
+	 * which they are released
+	 * <p>Note: This field, the count of unwritten bytes, the write-back capacity and the flush
+	 * schedule are accessed through synchronisation on this field
+	 */
+	private final TreeMap<Integer,Piece> unwrittenPieces = new TreeMap<Integer,Piece>();
+
+	/**
+	 * The total size in bytes of the unwritten pieces
+	 */
+	private long unwrittenByteCount = 0;
+
+	/**
+	 * The capacity in bytes of the buffer in which verified pieces are held before being written,
+	 * or zero to write pieces immediately
+	 */
+	private long writeBackCapacity = 0;
+
+	/**
+	 * If {@code true}, a timed flush of the unwritten pieces has been scheduled
+	 */
+	private boolean flushScheduled = false;
+
+	/**
+	 * The lock held while unwritten pieces are written to storage. Only the holder of this lock
+	 * removes pieces from the unwritten pieces, so they remain readable from memory while they are
+	 * written
+	 */
+	private final Object flushLock = new Object();
+
+	/**
+	 * A Runnable that writes the unwritten pieces to storage once they have been held for long
+	 * enough
+	 */
+	private final Runnable flushRunnable = new Runnable() {
+		public void run() {
+			synchronized (PieceDatabase.this.unwrittenPieces) {
+				PieceDatabase.this.flushScheduled = false;
+			}
+			PieceDatabase.this.accessLock.readLock().lock();
+			try {
+				if (isActive()) {
+					flushUnwrittenPieces();
+				}
+			} catch (IOException e) {
+				PieceDatabase.this.workQueue.execute (new Runnable() {
+					public void run() {
+						PieceDatabase.this.stateMachine.input (Input.ERROR);
+					}
+				});
+			} finally {
+				PieceDatabase.this.accessLock.readLock().unlock();
+			}
+		}
+	};
+
+
+	/**
+	 * The interval in milliseconds between snapshots of the database's state, or zero if periodic
+	 * checkpoints are disabled
+	 */
+	private volatile long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+	/**
+	 * The pieces written since they were last appended to the resume journal. A piece is appended
+	 * again each time it is written, so that the fingerprint of its underlying storage recorded in
+	 * the journal follows the writes made through the database
+	 * <p>Note: This field and the interval pieces are accessed through synchronisation on this
+	 * field
+	 */
+	private final Set<Integer> pendingJournalPieces = new TreeSet<Integer>();
+
+	/**
+	 * The pieces written since the last snapshot. These are carried into the journal that follows
+	 * the next snapshot, as their content may not yet have reached the underlying storage when the
+	 * snapshot is taken
+	 */
+	private final Set<Integer> intervalPieces = new TreeSet<Integer>();
+
+	/**
+	 * The lock held while the database's state is checkpointed through its {@code Metadata}, and
+	 * while the state machine's actions write to the {@code Metadata}. Checkpoints are written
+	 * without the state machine lock held; where both are required, the state machine lock must
+	 * be acquired first, and the access lock after this lock
+	 */
+	private final Object checkpointLock = new Object();
+
+	/**
+	 * If {@code true}, a snapshot will be written as soon as the database is fully verified
+	 * <p>Note: This field is accessed through synchronisation on the checkpoint lock
+	 */
+	private boolean snapshotDue = true;
+
+	/**
+	 * The system time in milliseconds at which the last snapshot was written
+	 * <p>Note: This field is accessed through synchronisation on the checkpoint lock
+	 */
+	private long lastSnapshotTime = System.currentTimeMillis();
+
+	/**
+	 * The blocks that have been written in place through
+	 * {@link #writeBlock(BlockDescriptor, ByteBuffer)} for pieces that are not yet present, indexed
+	 * by piece number
+	 * <p>Note: This field is accessed through synchronisation on itself in order to let it be read
+	 * outside the state machine lock
+	 */
+	private final Map<Integer,Set<BlockDescriptor>> partialPieces = new TreeMap<Integer,Set<BlockDescriptor>>();
+
+	/**
+	 * If {@code true}, the partial pieces have changed since they were last saved. Guarded by the
+	 * partial pieces
+	 */
+	private boolean partialPiecesChanged = false;
+
+	/**
+	 * A Runnable that periodically checkpoints the database's state through its {@code Metadata}
 	 */
-	private Verifier verifier;
+	private final Runnable checkpointRunnable = new Runnable() {
+		public void run() {
+			if (PieceDatabase.this.checkpointInterval > 0) {
+				writeCheckpoint (false);
+			}
+		}
+	};
+
 
 	/**
-	 * The number of verified pieces (cached separately so it can be safely accessed unlocked)
+	 * The stored content of a streamed piece, read back from the {@code Storage} to be verified
 	 */
-	private volatile int verifiedPieceCount;
+	private static class StreamedContent {
+
+		/**
+		 * The content, allocated from the database's {@code BufferPool}
+		 */
+		public final ByteBuffer content;
+
+		/**
+		 * The database's extension count at the time the content was read
+		 */
+		public final int extensionCount;
+
+
+		/**
+		 * @param content The content, allocated from the database's {@code BufferPool}
+		 * @param extensionCount The database's extension count at the time the content was read
+		 */
+		public StreamedContent (ByteBuffer content, int extensionCount) {
+
+			this.content = content;
+			this.extensionCount = extensionCount;
+
+		}
+
+	}
 
 
 	/**
@@ -283,10 +595,38 @@ public class PieceDatabase {
 	 */
 	private void actionVerify() {
 
-		this.verifier = new Verifier();
-		this.verifier.setName ("PieceDatabase Verifier - " + CharsetUtil.hexencode (this.infoHash.getBytes()));
-		this.verifier.setDaemon (true);
-		this.verifier.start();
+		Verifier verifier = new Verifier();
+
+		this.verifierThread = null;
+		this.verificationCheck = null;
+
+		// In check-while-active mode, pieces are available as soon as they have been verified
+		this.activeWhileChecking = this.checkWhileActive && (this.info != null);
+
+		if (this.verificationScheduler != null) {
+			VerificationScheduler.Priority priority = this.verificationPriority;
+			if (
+					   (priority == VerificationScheduler.Priority.NORMAL)
+					&& (this.info != null)
+					&& (this.storage.getStorageBackedPieces().cardinality() == this.storage.getPiecesetDescriptor().getNumberOfPieces())
+			   )
+			{
+				priority = VerificationScheduler.Priority.SEED;
+			}
+			this.verificationPriority = VerificationScheduler.Priority.USER;
+			this.verificationCheck = this.verificationScheduler.submit (this.verificationDevice, priority, verifier);
+		}
+
+		if (this.verificationCheck == null) {
+			this.verifierThread = new Thread (verifier);
+			this.verifierThread.setName (verifier.getName());
+			this.verifierThread.setDaemon (true);
+			this.verifierThread.start();
+		}
+
+		if (this.activeWhileChecking) {
+			signalAvailable();
+		}
 
 	}
 
@@ -296,20 +636,44 @@ public class PieceDatabase {
 	 */
 	private void actionCancelVerify() {
 
-		this.verifier.interrupt();
+		awaitActiveOperations();
+
+		if (this.verifierThread != null) {
+			this.verifierThread.interrupt();
+		} else if (this.verificationCheck.cancel()) {
+			this.workQueue.execute (new Runnable() {
+				public void run() {
+					PieceDatabase.this.stateMachine.input (Input.VERIFICATION_CANCELLED);
+				}
+			});
+		}
 
 	}
 
 
 	/**
-	 * Signals listeners that the database is available
+	 * Signals listeners that the database is available, unless they were already signalled when
+	 * verification began
 	 */
 	private void actionAvailable() {
 
-		synchronized (this.listeners) {
-			for (PieceDatabaseListener listener : this.listeners) {
-				listener.pieceDatabaseAvailable();
-			}
+		if (this.activeWhileChecking) {
+			this.activeWhileChecking = false;
+			return;
+		}
+
+		signalAvailable();
+
+	}
+
+
+	/**
+	 * Signals listeners that the database is available
+	 */
+	private void signalAvailable() {
+
+		for (PieceDatabaseListener listener : getListeners()) {
+			listener.pieceDatabaseAvailable();
 		}
 
 	}
@@ -320,12 +684,22 @@ public class PieceDatabase {
 	 */
 	private void actionStopped() {
 
-		synchronized (this.listeners) {
-			for (PieceDatabaseListener listener : this.listeners) {
-				listener.pieceDatabaseStopped();
+		awaitActiveOperations();
+		flushUnwrittenPiecesOrDiscard();
+
+		synchronized (this.checkpointLock) {
+			try {
+				appendJournal();
+				putPartialPieces();
+			} catch (IOException e) {
+				// Nothing to do. The pieces' files will be checked in full if the state is resumed
 			}
 		}
 
+		for (PieceDatabaseListener listener : getListeners()) {
+			listener.pieceDatabaseStopped();
+		}
+
 	}
 
 
@@ -334,13 +708,12 @@ public class PieceDatabase {
 	 */
 	private void actionError() {
 
+		awaitActiveOperations();
+		discardUnwrittenPieces();
 		this.verifiedPieces.clear();
-		this.verifiedPieceCount = 0;
 
-		synchronized (this.listeners) {
-			for (PieceDatabaseListener listener : this.listeners) {
-				listener.pieceDatabaseError();
-			}
+		for (PieceDatabaseListener listener : getListeners()) {
+			listener.pieceDatabaseError();
 		}
 
 	}
@@ -351,70 +724,61 @@ public class PieceDatabase {
 	 */
 	private void actionTerminated() {
 
+		awaitActiveOperations();
+		boolean flushed = flushUnwrittenPiecesOrDiscard();
+		invalidateCachedPieces();
+
+		// The pieces written since the last checkpoint are journalled while the storage is open, so
+		// that the state of their underlying storage is recorded with them
+		synchronized (this.checkpointLock) {
+			try {
+				appendJournal();
+			} catch (IOException e) {
+				// Nothing to do. The pieces' files will be checked in full if the state is resumed
+			}
+		}
+
 		ByteBuffer storageCookie = null;
 		try {
 			storageCookie = this.storage.close();
 		} catch (IOException e) {
 			// Do nothing
 		}
+
+		// Pieces that could not be written must not be recorded as present
+		if (!flushed) {
+			storageCookie = null;
+		}
 		this.workQueue.shutdown();
-		synchronized (this.listeners) {
-			for (PieceDatabaseListener listener : this.listeners) {
-				listener.pieceDatabaseTerminated();
-			}
+		for (PieceDatabaseListener listener : getListeners()) {
+			listener.pieceDatabaseTerminated();
 		}
 
 		// Save state if we have a {@code Metadata} instance, the database is fully verified and the
 		// {@code Storage} closed normally
 		if (this.metadata != null) {
 
-			if ((this.info != null) && (storageCookie != null) && (this.verifiedPieceCount == this.storage.getPiecesetDescriptor().getNumberOfPieces())) {
-				try {
-					if (this.elasticTree != null) {
-						ByteBuffer elasticImmutableHashes = this.elasticTree.getImmutableHashes();
-						this.metadata.put ("elasticImmutable", elasticImmutableHashes.array());
-						if (this.info.getPieceStyle() != PieceStyle.ELASTIC) {
-							ByteBuffer mutableHashes = this.elasticTree.getCeilingView(0).getMutableHashes();
-							this.metadata.put ("elasticView", (mutableHashes == null) ? new byte[0] :  mutableHashes.array());
-						} else {
-							// elasticViews
-							Set<ElasticTreeView> views = this.elasticTree.getAllViews();
-							BDictionary viewsDictionary = new BDictionary();
-							for (ElasticTreeView view : views) {
-								ByteBuffer mutableHashes = view.getMutableHashes();
-								viewsDictionary.put ("" + view.getViewLength(), mutableHashes == null ? new byte[0] : mutableHashes.array());
-							}
-							this.metadata.put ("elasticViews", BEncoder.encode (viewsDictionary));
-							// elasticViewSignatures
-							BDictionary viewSignaturesDictionary = new BDictionary();
-							for (ViewSignature viewSignature : this.viewSignatures.values()) {
-								byte[] viewRootHashBytes = new byte[20];
-								byte[] signatureBytes = new byte[40];
-								viewSignature.getViewRootHash().get (viewRootHashBytes);
-								viewSignature.getSignature().get (signatureBytes);
-								viewSignaturesDictionary.put (
-										"" + viewSignature.getViewLength(),
-										new BList (new BBinary (viewRootHashBytes), new BBinary (signatureBytes))
-								);
-							}
+			synchronized (this.checkpointLock) {
 
-							this.metadata.put ("elasticViewSignatures", BEncoder.encode (viewSignaturesDictionary));
-						}
+				if ((this.info != null) && (storageCookie != null) && (this.verifiedPieces.cardinality() == this.storage.getPiecesetDescriptor().getNumberOfPieces())) {
+					try {
+						putMetadata (getResumeState (storageCookie));
+						this.metadata.put ("resumeJournal", null);
+					} catch (IOException e) {
+						// Nothing to do. If we failed to fully write the resume data at this stage, it
+						// should remain invalid
 					}
-					BDictionary resumeDictionary = new BDictionary();
-					resumeDictionary.put ("storageCookie", storageCookie.array());
-					byte[] presentPiecesBytes = new byte [this.presentPieces.byteLength()];
-					this.presentPieces.copyTo (presentPiecesBytes, 0);
-					resumeDictionary.put ("presentPieces", presentPiecesBytes);
-					this.metadata.put ("resume", BEncoder.encode (resumeDictionary));
+				}
+
+				try {
+					putPartialPieces();
 				} catch (IOException e) {
-					// Nothing to do. If we failed to fully write the resume data at this stage, it
-					// should remain invalid
+					// Nothing to do. Blocks that are not recorded will be requested again
 				}
 
-			}
+				this.metadata.close();
 
-			this.metadata.close();
+			}
 
 		}
 
@@ -426,514 +790,2832 @@ public class PieceDatabase {
 	 */
 	private void actionTerminatedError() {
 
+		awaitActiveOperations();
+		discardUnwrittenPieces();
+		invalidateCachedPieces();
 		this.workQueue.shutdown();
-		synchronized (this.listeners) {
-			for (PieceDatabaseListener listener : this.listeners) {
-				listener.pieceDatabaseTerminated();
+		for (PieceDatabaseListener listener : getListeners()) {
+			listener.pieceDatabaseTerminated();
+		}
+
+	}
+
+
+	/**
+	 * Encodes the database's hash tree state and the set of present pieces as entries of the
+	 * database's {@code Metadata}, to be validated against the given storage cookie when the state
+	 * is resumed
+	 *
+	 * <p><b>Thread safety:</b> This method must be called either with the access lock held for
+	 * writing, or with the state machine lock held once the database is no longer active
+	 *
+	 * @param storageCookie The storage cookie
+	 * @return The encoded metadata entries, in the order in which they should be written
+	 */
+	private Map<String,byte[]> getResumeState (ByteBuffer storageCookie) {
+
+		Map<String,byte[]> resumeState = new LinkedHashMap<String,byte[]>();
+
+		if (this.elasticTree != null) {
+			ByteBuffer elasticImmutableHashes = this.elasticTree.getImmutableHashes();
+			resumeState.put ("elasticImmutable", elasticImmutableHashes.array());
+			if (this.info.getPieceStyle() != PieceStyle.ELASTIC) {
+				ByteBuffer mutableHashes = this.elasticTree.getCeilingView(0).getMutableHashes();
+				resumeState.put ("elasticView", (mutableHashes == null) ? new byte[0] :  mutableHashes.array());
+			} else {
+				// elasticViews
+				Set<ElasticTreeView> views = this.elasticTree.getAllViews();
+				BDictionary viewsDictionary = new BDictionary();
+				for (ElasticTreeView view : views) {
+					ByteBuffer mutableHashes = view.getMutableHashes();
+					viewsDictionary.put ("" + view.getViewLength(), mutableHashes == null ? new byte[0] : mutableHashes.array());
+				}
+				resumeState.put ("elasticViews", BEncoder.encode (viewsDictionary));
+				// elasticViewSignatures
+				BDictionary viewSignaturesDictionary = new BDictionary();
+				for (ViewSignature viewSignature : this.viewSignatures.values()) {
+					byte[] viewRootHashBytes = new byte[20];
+					byte[] signatureBytes = new byte[40];
+					viewSignature.getViewRootHash().get (viewRootHashBytes);
+					viewSignature.getSignature().get (signatureBytes);
+					viewSignaturesDictionary.put (
+							"" + viewSignature.getViewLength(),
+							new BList (new BBinary (viewRootHashBytes), new BBinary (signatureBytes))
+					);
+				}
+
+				resumeState.put ("elasticViewSignatures", BEncoder.encode (viewSignaturesDictionary));
 			}
 		}
 
+		BDictionary resumeDictionary = new BDictionary();
+		byte[] storageCookieBytes = new byte [storageCookie.remaining()];
+		storageCookie.duplicate().get (storageCookieBytes);
+		resumeDictionary.put ("storageCookie", storageCookieBytes);
+		resumeDictionary.put ("presentPieces", this.presentPieces.toBitField().content());
+		resumeState.put ("resume", BEncoder.encode (resumeDictionary));
+
+		return resumeState;
+
 	}
 
 
 	/**
-	 * Indicates that an internal state error has occurred
+	 * Writes a set of entries through the database's {@code Metadata}, in their iteration order
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the checkpoint lock held
+	 *
+	 * @param entries The entries to write
+	 * @throws IOException On any I/O error writing to the {@code Metadata}
 	 */
-	private void actionInternalError() {
+	private void putMetadata (Map<String,byte[]> entries) throws IOException {
 
-		throw new IllegalStateException();
+		for (Map.Entry<String,byte[]> entry : entries.entrySet()) {
+			this.metadata.put (entry.getKey(), entry.getValue());
+		}
 
 	}
 
 
 	/**
-	 * A Thread that asynchronously verifies the content of the database
+	 * Encodes a resume journal entry. An entry consists of a count of piece numbers, the piece
+	 * numbers, the length of a partial storage cookie, and the partial storage cookie
+	 *
+	 * @param pieceNumbers The piece numbers
+	 * @param partialCookie A partial storage cookie representing the state of the storage that
+	 *        holds the pieces once they were written, or {@code null}
+	 * @return The encoded journal entry
 	 */
-	private class Verifier extends Thread {
+	private static byte[] encodeJournal (Collection<Integer> pieceNumbers, ByteBuffer partialCookie) {
 
-		/**
-		 * The digester used to verify piece hashes
-		 */
-		MessageDigest digest = null;
+		int cookieLength = (partialCookie == null) ? 0 : partialCookie.remaining();
+		ByteBuffer journalBuffer = ByteBuffer.allocate (4 + (4 * pieceNumbers.size()) + 4 + cookieLength);
+		journalBuffer.putInt (pieceNumbers.size());
+		for (Integer pieceNumber : pieceNumbers) {
+			journalBuffer.putInt (pieceNumber);
+		}
+		journalBuffer.putInt (cookieLength);
+		if (partialCookie != null) {
+			journalBuffer.put (partialCookie.duplicate());
+		}
 
-		/* Runnable interface */
+		return journalBuffer.array();
 
-		/* (non-Javadoc)
-		 * @see java.lang.Runnable#run()
-		 */
-		@Override
-		public void run() {
+	}
 
-			// Create message digester
-			try {
-				this.digest = MessageDigest.getInstance ("SHA");
-			} catch (NoSuchAlgorithmException e) {
-				// Shouldn't happen
-				throw new InternalError (e.getMessage());
-			}
 
-			try {
-				if (verifyDataInterruptibly()) {
-					PieceDatabase.this.stateMachine.input (Input.VERIFICATION_COMPLETE);
+	/**
+	 * Builds a bitfield of the database's size from a collection of piece numbers
+	 *
+	 * @param pieceNumbers The piece numbers
+	 * @return The bitfield
+	 */
+	private BitField toBitField (Collection<Integer> pieceNumbers) {
+
+		BitField bitField = new BitField (this.storage.getPiecesetDescriptor().getNumberOfPieces());
+		for (Integer pieceNumber : pieceNumbers) {
+			if (pieceNumber < bitField.length()) {
+				bitField.set (pieceNumber);
+			}
+		}
+
+		return bitField;
+
+	}
+
+
+	/**
+	 * Records that a piece's content has been written, so that it will be checked again if the
+	 * database's state is resumed from a checkpoint taken before the write. Must be called once the
+	 * write has been passed to the {@code Storage}
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceNumber The piece number
+	 */
+	private void recordWrittenPiece (int pieceNumber) {
+
+		if (this.metadata != null) {
+			synchronized (this.pendingJournalPieces) {
+				this.intervalPieces.add (pieceNumber);
+				this.pendingJournalPieces.add (pieceNumber);
+			}
+		}
+
+	}
+
+
+	/**
+	 * Appends the pieces waiting to be journalled to the resume journal, together with a partial
+	 * storage cookie that records the state of their underlying storage. Pieces that are held
+	 * unwritten remain waiting until they have been written to storage, so that the recorded state
+	 * includes their writes
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the checkpoint lock held, and
+	 * without the access lock held
+	 *
+	 * @throws IOException On any I/O error reading from the {@code Storage} or writing to the
+	 *         {@code Metadata}
+	 */
+	private void appendJournal() throws IOException {
+
+		if (this.metadata == null) {
+			return;
+		}
+
+		List<Integer> pieceNumbers;
+		synchronized (this.pendingJournalPieces) {
+			pieceNumbers = new ArrayList<Integer> (this.pendingJournalPieces);
+		}
+		synchronized (this.unwrittenPieces) {
+			for (Iterator<Integer> iterator = pieceNumbers.iterator(); iterator.hasNext();) {
+				if (this.unwrittenPieces.containsKey (iterator.next())) {
+					iterator.remove();
+				}
+			}
+		}
+		if (pieceNumbers.isEmpty()) {
+			return;
+		}
+
+		// A piece written again after its number is taken from the pending pieces is journalled
+		// again by the next append, as its write may not be represented by the cookie
+		synchronized (this.pendingJournalPieces) {
+			this.pendingJournalPieces.removeAll (pieceNumbers);
+		}
+		try {
+			ByteBuffer partialCookie;
+			this.accessLock.readLock().lock();
+			try {
+				partialCookie = this.storage.getValidationCookie (toBitField (pieceNumbers));
+			} finally {
+				this.accessLock.readLock().unlock();
+			}
+			this.metadata.append ("resumeJournal", encodeJournal (pieceNumbers, partialCookie));
+		} catch (IOException e) {
+			synchronized (this.pendingJournalPieces) {
+				this.pendingJournalPieces.addAll (pieceNumbers);
+			}
+			throw e;
+		}
+
+	}
+
+
+	/**
+	 * Writes the blocks of the partial pieces through the database's {@code Metadata}, if they have
+	 * changed since they were last written
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the checkpoint lock held
+	 *
+	 * @throws IOException On any I/O error writing to the {@code Metadata}
+	 */
+	private void putPartialPieces() throws IOException {
+
+		if (this.metadata == null) {
+			return;
+		}
+
+		BDictionary partialPiecesDictionary = new BDictionary();
+		synchronized (this.partialPieces) {
+			if (!this.partialPiecesChanged) {
+				return;
+			}
+			this.partialPiecesChanged = false;
+			for (Map.Entry<Integer,Set<BlockDescriptor>> entry : this.partialPieces.entrySet()) {
+				if (havePiece (entry.getKey())) {
+					continue;
+				}
+				ByteBuffer blocksBuffer = ByteBuffer.allocate (8 * entry.getValue().size());
+				for (BlockDescriptor descriptor : entry.getValue()) {
+					blocksBuffer.putInt (descriptor.getOffset());
+					blocksBuffer.putInt (descriptor.getLength());
+				}
+				partialPiecesDictionary.put ("" + entry.getKey(), blocksBuffer.array());
+			}
+		}
+		try {
+			this.metadata.put ("partialPieces", BEncoder.encode (partialPiecesDictionary));
+		} catch (IOException e) {
+			synchronized (this.partialPieces) {
+				this.partialPiecesChanged = true;
+			}
+			throw e;
+		}
+
+	}
+
+
+	/**
+	 * Reads the blocks of the partial pieces from the database's {@code Metadata}. Blocks that do
+	 * not fit within their piece, and blocks of pieces that are present, are discarded
+	 *
+	 * @throws IOException On any I/O error reading from the {@code Metadata}
+	 */
+	private void resumePartialPieces() throws IOException {
+
+		byte[] partialPiecesBytes = this.metadata.get ("partialPieces");
+		if (partialPiecesBytes == null) {
+			return;
+		}
+
+		try {
+			BDictionary partialPiecesDictionary = new BDecoder (partialPiecesBytes).decodeDictionary();
+			PiecesetDescriptor piecesetDescriptor = this.storage.getPiecesetDescriptor();
+			for (BBinary pieceNumberBinary : partialPiecesDictionary.keySet()) {
+				int pieceNumber = Integer.parseInt (pieceNumberBinary.stringValue());
+				byte[] blocksBytes = partialPiecesDictionary.getBytes (pieceNumberBinary.stringValue());
+				if ((pieceNumber < 0) || (pieceNumber >= piecesetDescriptor.getNumberOfPieces()) || (blocksBytes == null) || this.presentPieces.get (pieceNumber)) {
+					continue;
+				}
+				Set<BlockDescriptor> blocks = new HashSet<BlockDescriptor>();
+				ByteBuffer blocksBuffer = ByteBuffer.wrap (blocksBytes);
+				while (blocksBuffer.remaining() >= 8) {
+					int offset = blocksBuffer.getInt();
+					int length = blocksBuffer.getInt();
+					if ((offset >= 0) && (length > 0) && ((offset + length) <= piecesetDescriptor.getPieceLength (pieceNumber))) {
+						blocks.add (new BlockDescriptor (pieceNumber, offset, length));
+					}
+				}
+				if (!blocks.isEmpty()) {
+					this.partialPieces.put (pieceNumber, blocks);
+				}
+			}
+		} catch (InvalidEncodingException e) {
+			// Partial piece metadata is corrupt. Their blocks will be requested again
+			this.partialPieces.clear();
+		} catch (NumberFormatException e) {
+			this.partialPieces.clear();
+		}
+
+	}
+
+
+	/**
+	 * Checkpoints the database's state through its {@code Metadata}. If the database is fully
+	 * verified and a snapshot is due, the unwritten pieces are written to storage, and a snapshot
+	 * of the database's state replaces the previous snapshot and journal; otherwise, the pieces
+	 * written since the last checkpoint are appended to the resume journal. Has no effect if the
+	 * database is not active
+	 *
+	 * <p>The new journal is written before the snapshot that it follows. As it contains every piece
+	 * written since the previous snapshot, it remains valid for the previous snapshot if the
+	 * process fails before the new snapshot is written
+	 *
+	 * <p>A snapshot is taken with the access lock held for writing, so that no piece is written
+	 * and the database is not extended while it is taken. The lock is released before the snapshot
+	 * is written through the {@code Metadata}. The state machine lock is not held at any point, so
+	 * that other operations on the database are not blocked by the checkpoint's I/O
+	 *
+	 * <p><b>Thread safety:</b> This method must be called without the state machine lock, the
+	 * checkpoint lock or the access lock held
+	 *
+	 * @param snapshotRequested If {@code true}, a snapshot is written immediately if the database is
+	 *        fully verified; otherwise, a snapshot is written if the checkpoint interval has elapsed
+	 *        and any pieces have been written since the last snapshot
+	 */
+	private void writeCheckpoint (boolean snapshotRequested) {
+
+		if ((this.metadata == null) || (this.info == null)) {
+			return;
+		}
+
+		synchronized (this.checkpointLock) {
+
+			if (!isActive()) {
+				return;
+			}
+
+			if (snapshotRequested) {
+				this.snapshotDue = true;
+			}
+
+			try {
+
+				boolean intervalPiecesWritten;
+				synchronized (this.pendingJournalPieces) {
+					intervalPiecesWritten = !this.intervalPieces.isEmpty();
+				}
+				long checkpointInterval = this.checkpointInterval;
+				boolean intervalElapsed = (checkpointInterval > 0) && ((System.currentTimeMillis() - this.lastSnapshotTime) >= checkpointInterval);
+
+				if (
+						   (this.verifiedPieces.cardinality() == this.storage.getPiecesetDescriptor().getNumberOfPieces())
+						&& (this.snapshotDue || (intervalElapsed && intervalPiecesWritten))
+				   )
+				{
+					Map<String,byte[]> snapshot = null;
+					Set<Integer> snapshotPieces = null;
+					this.accessLock.writeLock().lock();
+					try {
+						// The database may have stopped since it was checked. Once it has, its
+						// state is saved by the state machine
+						if (!isActive()) {
+							return;
+						}
+						flushUnwrittenPieces();
+						ByteBuffer storageCookie = this.storage.getValidationCookie();
+						if (storageCookie != null) {
+							synchronized (this.pendingJournalPieces) {
+								snapshotPieces = new TreeSet<Integer> (this.intervalPieces);
+								this.pendingJournalPieces.clear();
+								this.intervalPieces.clear();
+							}
+							ByteBuffer partialCookie = this.storage.getValidationCookie (toBitField (snapshotPieces));
+							snapshot = new LinkedHashMap<String,byte[]>();
+							snapshot.put ("resumeJournal", encodeJournal (snapshotPieces, partialCookie));
+							snapshot.putAll (getResumeState (storageCookie));
+						}
+					} finally {
+						this.accessLock.writeLock().unlock();
+					}
+					if (snapshot != null) {
+						try {
+							putMetadata (snapshot);
+						} catch (IOException e) {
+							// Pieces that were not recorded in the journal must be journalled again
+							synchronized (this.pendingJournalPieces) {
+								this.intervalPieces.addAll (snapshotPieces);
+								this.pendingJournalPieces.addAll (snapshotPieces);
+							}
+							throw e;
+						}
+					}
+					this.snapshotDue = false;
+					this.lastSnapshotTime = System.currentTimeMillis();
 				} else {
-					PieceDatabase.this.stateMachine.input (Input.VERIFICATION_CANCELLED);
+					appendJournal();
+				}
+				putPartialPieces();
+
+			} catch (IOException e) {
+				this.workQueue.execute (new Runnable() {
+					public void run() {
+						PieceDatabase.this.stateMachine.input (Input.ERROR);
+					}
+				});
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Writes the unwritten pieces to storage, merging each run of consecutive pieces into a single
+	 * write. The pieces remain readable from memory until they have been written
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the state machine lock or the access
+	 * lock held
+	 *
+	 * @throws IOException On any I/O error. Pieces that were not written remain unwritten
+	 */
+	private void flushUnwrittenPieces() throws IOException {
+
+		synchronized (this.flushLock) {
+
+			List<Piece> pieces;
+			synchronized (this.unwrittenPieces) {
+				pieces = new ArrayList<Piece> (this.unwrittenPieces.values());
+			}
+
+			int runStart = 0;
+			for (int i = 1; i <= pieces.size(); i++) {
+				if ((i == pieces.size()) || (pieces.get(i).getPieceNumber() != (pieces.get(i - 1).getPieceNumber() + 1))) {
+					List<Piece> run = pieces.subList (runStart, i);
+					ByteBuffer[] buffers = new ByteBuffer[run.size()];
+					for (int j = 0; j < buffers.length; j++) {
+						buffers[j] = run.get(j).getContent();
+					}
+					this.storage.write (run.get(0).getPieceNumber(), buffers);
+					synchronized (this.unwrittenPieces) {
+						for (Piece piece : run) {
+							this.unwrittenPieces.remove (piece.getPieceNumber());
+							this.unwrittenByteCount -= piece.getContent().remaining();
+						}
+					}
+					for (Piece piece : run) {
+						piece.release();
+					}
+					runStart = i;
+				}
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Writes the unwritten pieces to storage, or if they cannot be written, discards them and marks
+	 * them as not present
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the state machine lock held
+	 *
+	 * @return {@code true} if all unwritten pieces were written, otherwise {@code false}
+	 */
+	private boolean flushUnwrittenPiecesOrDiscard() {
+
+		try {
+			flushUnwrittenPieces();
+			return true;
+		} catch (IOException e) {
+			discardUnwrittenPieces();
+			return false;
+		}
+
+	}
+
+
+	/**
+	 * Discards the unwritten pieces and marks them as not present
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the state machine lock held
+	 */
+	private void discardUnwrittenPieces() {
+
+		synchronized (this.flushLock) {
+			synchronized (this.unwrittenPieces) {
+				for (Piece piece : this.unwrittenPieces.values()) {
+					this.presentPieces.clear (piece.getPieceNumber());
+					invalidateCachedPiece (piece.getPieceNumber());
+					piece.release();
+				}
+				this.unwrittenPieces.clear();
+				this.unwrittenByteCount = 0;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Gets a block of an unwritten piece. As an unwritten piece is released once it is written,
+	 * the block is copied rather than shared
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @param block The buffer to copy the block into, or {@code null} to allocate a new buffer
+	 * @return A buffer containing the block, or {@code null} if the piece containing the block is
+	 *         not unwritten
+	 */
+	private ByteBuffer getUnwrittenBlock (BlockDescriptor descriptor, ByteBuffer block) {
+
+		// The piece is copied under the lock, as it is released once it has been written
+		synchronized (this.unwrittenPieces) {
+
+			Piece piece = this.unwrittenPieces.get (descriptor.getPieceNumber());
+			if (piece == null) {
+				return null;
+			}
+
+			if (block == null) {
+				block = ByteBuffer.allocate (descriptor.getLength());
+			}
+			block.put (piece.getBlock (descriptor));
+			block.flip();
+
+			return block;
+
+		}
+
+	}
+
+
+	/**
+	 * Copies a block from the piece cache. If the piece containing the block is not cached, the
+	 * whole piece is read from the {@code Storage} and cached, as its other blocks are likely to be
+	 * requested too. The cache recycles the buffers of evicted pieces, so its content is always
+	 * copied rather than shared
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceCache The piece cache
+	 * @param descriptor The descriptor of the block
+	 * @param block A buffer to copy the block into, or {@code null} to allocate a new buffer
+	 * @return The content of the block
+	 * @throws IOException On any I/O error reading from the {@code Storage}
+	 */
+	private ByteBuffer getCachedBlock (PieceCache.Partition pieceCache, BlockDescriptor descriptor, ByteBuffer block) throws IOException {
+
+		if (block == null) {
+			block = ByteBuffer.allocate (descriptor.getLength());
+		}
+
+		if (pieceCache.get (descriptor, block)) {
+			block.flip();
+			return block;
+		}
+
+		int pieceNumber = descriptor.getPieceNumber();
+		if ((descriptor.getOffset() == 0) && (descriptor.getLength() == this.storage.getPiecesetDescriptor().getPieceLength (pieceNumber))) {
+			this.storage.read (descriptor, block);
+			block.flip();
+			pieceCache.put (pieceNumber, block);
+			return block;
+		}
+
+		ByteBuffer content = this.storage.read (pieceNumber);
+		pieceCache.put (pieceNumber, content);
+		content.limit (descriptor.getOffset() + descriptor.getLength());
+		content.position (descriptor.getOffset());
+		block.put (content);
+		block.flip();
+
+		return block;
+
+	}
+
+
+	/**
+	 * Reads a block of a piece that is either held in memory waiting to be written or served
+	 * through the piece cache
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceCache The piece cache, or {@code null}
+	 * @param descriptor The descriptor of the block
+	 * @param block A buffer to copy the block into, or {@code null} to allocate a new buffer
+	 * @return The content of the block
+	 * @throws IOException On any I/O error reading from the {@code Storage}
+	 * @throws IndexOutOfBoundsException If the block is not wholly within its piece
+	 */
+	private ByteBuffer readUnwrittenOrCachedBlock (PieceCache.Partition pieceCache, BlockDescriptor descriptor, ByteBuffer block) throws IOException {
+
+		int pieceNumber = descriptor.getPieceNumber();
+		if (
+				   (descriptor.getOffset() < 0) || (descriptor.getLength() < 0)
+				|| ((descriptor.getOffset() + descriptor.getLength()) > this.storage.getPiecesetDescriptor().getPieceLength (pieceNumber))
+		   )
+		{
+			throw new IndexOutOfBoundsException ("Invalid block " + descriptor);
+		}
+
+		ByteBuffer unwrittenBlock = getUnwrittenBlock (descriptor, block);
+		if (unwrittenBlock != null) {
+			return unwrittenBlock;
+		}
+
+		// The piece may have been written since it was found to be unwritten
+		if (pieceCache == null) {
+			if (block == null) {
+				return this.storage.read (descriptor).asReadOnlyBuffer();
+			}
+			this.storage.read (descriptor, block);
+			block.flip();
+			return block;
+		}
+
+		return getCachedBlock (pieceCache, descriptor, block);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceNumber The piece number
+	 * @return {@code true} if the piece is held in memory waiting to be written, otherwise
+	 *         {@code false}
+	 */
+	private boolean isUnwritten (int pieceNumber) {
+
+		synchronized (this.unwrittenPieces) {
+			return this.unwrittenPieces.containsKey (pieceNumber);
+		}
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceNumber The piece number
+	 * @return {@code true} if the stored content of the piece is being verified, otherwise
+	 *         {@code false}
+	 */
+	private boolean isCommitting (int pieceNumber) {
+
+		synchronized (this.committingPieces) {
+			return this.committingPieces.contains (pieceNumber);
+		}
+
+	}
+
+
+	/**
+	 * Removes a piece from the piece cache, if one is in use
+	 *
+	 * @param pieceNumber The piece number
+	 */
+	private void invalidateCachedPiece (int pieceNumber) {
+
+		PieceCache.Partition pieceCache = this.pieceCache;
+		if (pieceCache != null) {
+			pieceCache.invalidate (pieceNumber);
+		}
+
+	}
+
+
+	/**
+	 * Removes all of the database's pieces from the piece cache, if one is in use
+	 */
+	private void invalidateCachedPieces() {
+
+		PieceCache.Partition pieceCache = this.pieceCache;
+		if (pieceCache != null) {
+			pieceCache.invalidateAll();
+		}
+
+	}
+
+
+	/**
+	 * Indicates that an internal state error has occurred
+	 */
+	private void actionInternalError() {
+
+		throw new IllegalStateException();
+
+	}
+
+
+	/**
+	 * Copies the set of listeners, so that they can be signalled without the set's lock held
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return A copy of the set of listeners
+	 */
+	private List<PieceDatabaseListener> getListeners() {
+
+		synchronized (this.listeners) {
+			return new ArrayList<PieceDatabaseListener> (this.listeners);
+		}
+
+	}
+
+
+	/**
+	 * Signals listeners that a piece has been verified while the database is available during
+	 * verification
+	 *
+	 * @param pieceNumber The piece number
+	 * @param present If {@code true}, the piece is present, otherwise it is absent
+	 */
+	private void signalPieceVerified (int pieceNumber, boolean present) {
+
+		for (PieceDatabaseListener listener : getListeners()) {
+			listener.pieceDatabasePieceVerified (pieceNumber, present);
+		}
+
+	}
+
+
+	/**
+	 * Determines whether pieces may currently be read from and written to the database. This is
+	 * the case when the database is AVAILABLE, or when it is CHECKING in check-while-active mode
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the state machine lock or the access
+	 * lock held
+	 *
+	 * @return {@code true} if pieces may be read and written, otherwise {@code false}
+	 */
+	private boolean isActive() {
+
+		State state = this.stateMachine.getState();
+
+		return (state == State.AVAILABLE) || ((state == State.CHECKING) && this.activeWhileChecking);
+
+	}
+
+
+	/**
+	 * Waits for the reads and writes in progress to complete. Called once the database is no
+	 * longer active, after which no further reads or writes will begin
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the state machine lock held, and
+	 * without the access lock held
+	 */
+	private void awaitActiveOperations() {
+
+		this.accessLock.writeLock().lock();
+		this.accessLock.writeLock().unlock();
+
+	}
+
+
+	/**
+	 * @param pieceNumber The piece number
+	 * @return The lock through which writes to the piece are serialised
+	 */
+	private Object pieceLock (int pieceNumber) {
+
+		return this.pieceLocks[pieceNumber % PIECE_LOCK_STRIPES];
+
+	}
+
+
+	/**
+	 * Checks if a given piece has been verified as either present or absent
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceNumber The piece number to check
+	 * @return {@code true} if the piece has been verified, otherwise {@code false}
+	 */
+	private boolean isVerified (int pieceNumber) {
+
+		return this.verifiedPieces.get (pieceNumber);
+
+	}
+
+
+	/**
+	 * A Runnable that verifies the content of the database
+	 */
+	private class Verifier implements Runnable {
+
+		/**
+		 * The digester used to verify piece hashes on the verifier thread
+		 */
+		MessageDigest digest = null;
+
+		/**
+		 * The digesters used to verify piece hashes, one per hashing worker
+		 */
+		private final ThreadLocal<MessageDigest> workerDigest = new ThreadLocal<MessageDigest>() {
+			@Override
+			protected MessageDigest initialValue() {
+				return createDigest();
+			}
+		};
+
+		/**
+		 * The workers that hash pieces read by the verifier thread, or {@code null} if pieces are
+		 * hashed on the verifier thread
+		 */
+		private ThreadPoolExecutor hashers = null;
+
+		/**
+		 * The number of pieces that may be read ahead of the hashing workers
+		 */
+		private int prefetchLimit = 0;
+
+		/**
+		 * Permits for pieces read ahead of the hashing workers. A permit is acquired before a piece
+		 * is read, and released once it has been hashed
+		 */
+		private Semaphore prefetchPermits = null;
+
+		/**
+		 * @return A SHA1 message digest
+		 */
+		private MessageDigest createDigest() {
+
+			try {
+				return MessageDigest.getInstance ("SHA");
+			} catch (NoSuchAlgorithmException e) {
+				// Shouldn't happen
+				throw new InternalError (e.getMessage());
+			}
+
+		}
+
+		/**
+		 * Hashes a piece
+		 *
+		 * @param digest The digester to use
+		 * @param storedPiece The content of the piece
+		 * @param hash The array to write the hash to
+		 * @param offset The offset within the array at which to write the hash
+		 */
+		private void hash (MessageDigest digest, ByteBuffer storedPiece, byte[] hash, int offset) {
+
+			digest.reset();
+			digest.update (storedPiece);
+			try {
+				digest.digest (hash, offset, 20);
+			} catch (DigestException e) {
+				// Shouldn't happen
+				throw new InternalError (e.getMessage());
+			}
+
+		}
+
+		/**
+		 * Compares a stored piece's hash with its expected hash, and records the result in the
+		 * presentPieces and verifiedPieces sets
+		 *
+		 * @param pieceNumber The piece number
+		 * @param storedPieceHash The hash of the stored piece
+		 */
+		private void publishPieceHash (int pieceNumber, byte[] storedPieceHash) {
+
+			boolean storedPieceOK = false;
+			if (PieceDatabase.this.info.getPieceStyle() == PieceStyle.PLAIN) {
+				// Hash array verification
+				storedPieceOK = PieceDatabase.this.info.comparePieceHash (pieceNumber, storedPieceHash);
+			} else {
+				// Hash tree verification
+				synchronized (PieceDatabase.this.viewSignatures) {
+					ElasticTreeView view = PieceDatabase.this.elasticTree.getCeilingView (
+							(pieceNumber * PieceDatabase.this.storage.getPiecesetDescriptor().getPieceSize()) + PieceDatabase.this.storage.getPiecesetDescriptor().getPieceLength (pieceNumber)
+					);
+					storedPieceOK = view.verifyLeafHash (pieceNumber, storedPieceHash);
+				}
+			}
+
+			publishPiece (pieceNumber, storedPieceOK);
+
+		}
+
+		/**
+		 * Records a piece as verified
+		 *
+		 * @param pieceNumber The piece number
+		 * @param present If {@code true}, the piece is present, otherwise it is absent
+		 */
+		private void publishPiece (int pieceNumber, boolean present) {
+
+			PieceDatabase.this.presentPieces.set (pieceNumber, present);
+			PieceDatabase.this.verifiedPieces.set (pieceNumber);
+
+			if (PieceDatabase.this.activeWhileChecking) {
+				signalPieceVerified (pieceNumber, present);
+			}
+
+		}
+
+		/**
+		 * Reads a piece, first waiting if the maximum number of pieces have already been read ahead
+		 * of the hashing workers
+		 *
+		 * @param pieceNumber The piece number
+		 * @return The content of the piece
+		 * @throws IOException if an error occurs reading data from disk
+		 * @throws InterruptedException if the thread was interrupted while waiting
+		 */
+		private ByteBuffer prefetchPiece (int pieceNumber) throws IOException, InterruptedException {
+
+			if (this.hashers == null) {
+				return PieceDatabase.this.storage.read (pieceNumber);
+			}
+
+			this.prefetchPermits.acquire();
+			try {
+				return PieceDatabase.this.storage.read (pieceNumber);
+			} catch (IOException e) {
+				this.prefetchPermits.release();
+				throw e;
+			}
+
+		}
+
+		/**
+		 * Hashes a piece read through {@link #prefetchPiece(int)}, either immediately on the
+		 * verifier thread or asynchronously on a hashing worker. If a leaf hash array is supplied,
+		 * the piece's hash is written to it; otherwise the piece is verified and the result
+		 * published
+		 *
+		 * @param pieceNumber The piece number
+		 * @param storedPiece The content of the piece
+		 * @param leafHashes The array to write the piece's hash to, or {@code null}
+		 */
+		private void dispatchPiece (final int pieceNumber, final ByteBuffer storedPiece, final byte[] leafHashes) {
+
+			if (this.hashers == null) {
+				hashPiece (this.digest, pieceNumber, storedPiece, leafHashes);
+				return;
+			}
+
+			this.hashers.execute (new Runnable() {
+				public void run() {
+					try {
+						hashPiece (Verifier.this.workerDigest.get(), pieceNumber, storedPiece, leafHashes);
+					} finally {
+						Verifier.this.prefetchPermits.release();
+					}
+				}
+			});
+
+		}
+
+		/**
+		 * Hashes a piece. If a leaf hash array is supplied, the piece's hash is written to it;
+		 * otherwise the piece is verified and the result published
+		 *
+		 * @param digest The digester to use
+		 * @param pieceNumber The piece number
+		 * @param storedPiece The content of the piece
+		 * @param leafHashes The array to write the piece's hash to, or {@code null}
+		 */
+		private void hashPiece (MessageDigest digest, int pieceNumber, ByteBuffer storedPiece, byte[] leafHashes) {
+
+			if (leafHashes != null) {
+				hash (digest, storedPiece, leafHashes, 20 * pieceNumber);
+			} else {
+				byte[] storedPieceHash = new byte[20];
+				hash (digest, storedPiece, storedPieceHash, 0);
+				publishPieceHash (pieceNumber, storedPieceHash);
+			}
+
+		}
+
+		/**
+		 * Waits until every piece that has been dispatched has been hashed
+		 */
+		private void awaitHashers() {
+
+			if (this.hashers != null) {
+				this.prefetchPermits.acquireUninterruptibly (this.prefetchLimit);
+				this.prefetchPermits.release (this.prefetchLimit);
+			}
+
+		}
+
+		/**
+		 * @return The name of the verifier's thread
+		 */
+		public String getName() {
+
+			return "PieceDatabase Verifier - " + CharsetUtil.hexencode (PieceDatabase.this.infoHash.getBytes());
+
+		}
+
+		/* Runnable interface */
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+
+			// Create message digester
+			this.digest = createDigest();
+
+			// Create hashing workers
+			int threadCount = PieceDatabase.this.verificationThreads;
+			if (threadCount > 1) {
+				final String name = getName() + " worker";
+				this.hashers = new ThreadPoolExecutor (threadCount, threadCount, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread (Runnable r) {
+						Thread thread = new Thread (r);
+						thread.setName (name);
+						thread.setDaemon (true);
+						return thread;
+					}
+				});
+				this.prefetchLimit = 2 * threadCount;
+				this.prefetchPermits = new Semaphore (this.prefetchLimit);
+			}
+
+			boolean complete;
+			try {
+				complete = verifyDataInterruptibly();
+			} catch (IOException e) {
+				PieceDatabase.this.stateMachine.input (Input.ERROR);
+				return;
+			} finally {
+				awaitHashers();
+				if (this.hashers != null) {
+					this.hashers.shutdown();
+				}
+			}
+
+			if (complete) {
+				PieceDatabase.this.stateMachine.input (Input.VERIFICATION_COMPLETE);
+			} else {
+				PieceDatabase.this.stateMachine.input (Input.VERIFICATION_CANCELLED);
+			}
+
+		}
+
+		/**
+		 * Verifies the pieces of the database, setting or clearing bits in the presentPieces set
+		 * for each piece, and setting bits in the verifiedPieces set as each piece is checked.
+		 * Pieces are read in order on the verifier thread, and may be hashed concurrently by the
+		 * hashing workers; the caller must wait for any outstanding hashing to complete
+		 *
+		 * @return If {@code true}, the database was verified completely. If {@code false}, the
+		 *         thread was interrupted.
+		 * @throws IOException if an error occurs reading data from disk
+		 */
+		private boolean verifyDataInterruptibly() throws IOException {
+
+			int numPieces = PieceDatabase.this.storage.getPiecesetDescriptor().getNumberOfPieces();
+
+			BitField fileBackedPieces = PieceDatabase.this.storage.getStorageBackedPieces();
+			BitField absentPieces = new BitField (numPieces);
+
+			if (PieceDatabase.this.presentPieces.length() == 0) {
+				return true;
+			}
+			for (int i = 0; i < numPieces; i++) {
+				if (!PieceDatabase.this.verifiedPieces.get (i) && !fileBackedPieces.get (i)) {
+					PieceDatabase.this.presentPieces.clear (i);
+					PieceDatabase.this.verifiedPieces.set (i);
+					absentPieces.set (i);
+				}
+			}
+
+			if (PieceDatabase.this.activeWhileChecking) {
+				for (Integer pieceNumber : absentPieces) {
+					signalPieceVerified (pieceNumber, false);
+				}
+			}
+
+			try {
+
+				// If we have no verified pieces, an empty hash tree and all data is file backed, build
+				// a tree to see if all pieces are present
+				if (
+						   (PieceDatabase.this.info.getPieceStyle() != PieceStyle.PLAIN)
+						&& (PieceDatabase.this.elasticTree.getAllViews().size() == 1)
+						&& (PieceDatabase.this.verifiedPieces.cardinality() == 0)
+						&& (fileBackedPieces.cardinality() == numPieces)
+				   )
+				{
+					byte[] leafHashes = new byte [20 * numPieces];
+
+					for (int i = 0; i < numPieces; i++) {
+						dispatchPiece (i, prefetchPiece (i), leafHashes);
+
+						if (Thread.interrupted()) {
+							return false;
+						}
+
+					}
+
+					awaitHashers();
+
+					ElasticTree verificationTree = ElasticTree.buildFromLeaves (
+							PieceDatabase.this.storage.getPiecesetDescriptor().getPieceSize(),
+							PieceDatabase.this.storage.getPiecesetDescriptor().getLength(),
+							leafHashes
+					);
+
+					ElasticTreeView verificationView = verificationTree.getView (PieceDatabase.this.storage.getPiecesetDescriptor().getLength());
+					ElasticTreeView databaseView = PieceDatabase.this.elasticTree.getView (PieceDatabase.this.storage.getPiecesetDescriptor().getLength());
+					if (ByteBuffer.wrap(verificationView.getRootHash()).equals (ByteBuffer.wrap (databaseView.getRootHash()))) {
+						BitField presentPieces;
+						synchronized (PieceDatabase.this.viewSignatures) {
+							presentPieces = databaseView.verifyView (verificationView);
+						}
+						for (int i = 0; i < numPieces; i++) {
+							publishPiece (i, presentPieces.get (i));
+						}
+						return true;
+					}
+				}
+
+				// Verify pieces against the existing hash array or hash tree
+				for (int i = 0; i < numPieces; i++) {
+
+					if (!PieceDatabase.this.verifiedPieces.get (i)) {
+
+						if (!fileBackedPieces.get (i)) {
+							publishPiece (i, false);
+						} else {
+							dispatchPiece (i, prefetchPiece (i), null);
+						}
+
+					}
+
+					if (Thread.interrupted()) {
+						return false;
+					}
+
+				}
+
+			} catch (InterruptedException e) {
+				return false;
+			}
+
+			return true;
+
+		}
+
+	};
+
+
+	/**
+	 * Resumes state from metadata if possible
+	 *
+	 * @return {@code true} if the state was successfully resumed, otherwise {@code false}
+	 * @throws IOException if an I/O error was encountered while resuming
+	 */
+	private boolean resume() throws IOException {
+
+		BitField presentPieces;
+		BitField verifiedPieces;
+		byte[] elasticImmutableHashes;
+		byte[] elasticViewHashes;
+
+		boolean initialised = true;
+
+		switch (this.info.getPieceStyle()) {
+
+			case MERKLE:
+				elasticImmutableHashes = this.metadata.get ("elasticImmutable");
+				elasticViewHashes = this.metadata.get ("elasticView");
+				if ((elasticImmutableHashes != null) && (elasticViewHashes != null)) {
+					this.elasticTree = ElasticTree.withNodeHashes (
+							this.storage.getPiecesetDescriptor().getPieceSize(),
+							this.storage.getPiecesetDescriptor().getLength(),
+							elasticImmutableHashes
+					);
+					this.elasticTree.addView (ElasticTreeView.withMutableHashes (this.elasticTree, this.storage.getPiecesetDescriptor().getLength(), elasticViewHashes));
+				} else {
+					this.elasticTree = ElasticTree.emptyTree (
+							this.storage.getPiecesetDescriptor().getPieceSize(),
+							this.storage.getPiecesetDescriptor().getLength(),
+							ByteBuffer.wrap (this.info.getRootHash())
+					);
+				}
+				break;
+
+			case ELASTIC:
+				elasticImmutableHashes = this.metadata.get ("elasticImmutable");
+				byte[] viewsBytes = this.metadata.get ("elasticViews");
+				byte[] viewSignaturesBytes = this.metadata.get ("elasticViewSignatures");
+				if ((elasticImmutableHashes != null) && (viewsBytes != null) && (viewSignaturesBytes != null)) {
+					this.elasticTree = ElasticTree.withNodeHashes (
+							this.storage.getPiecesetDescriptor().getPieceSize(),
+							this.storage.getPiecesetDescriptor().getLength(),
+							elasticImmutableHashes
+					);
+				} else {
+					this.elasticTree = ElasticTree.emptyTree (
+							this.storage.getPiecesetDescriptor().getPieceSize(),
+							this.storage.getPiecesetDescriptor().getLength(),
+							ByteBuffer.wrap (this.info.getRootHash())
+					);
+				}
+				try {
+					if ((viewsBytes != null) && (viewSignaturesBytes != null)) {
+						BDictionary viewsDictionary = (BDictionary)BDecoder.decode (viewsBytes);
+						BDictionary viewSignaturesDictionary = (BDictionary)BDecoder.decode (viewSignaturesBytes);
+						// elasticViews
+						long length = this.info.getPiecesetDescriptor().getLength();
+						for (BBinary viewLengthBinary : viewsDictionary.keySet()) {
+							byte[] viewMutableHashes = viewsDictionary.getBytes (viewLengthBinary.stringValue());
+							this.elasticTree.addView (ElasticTreeView.withMutableHashes (this.elasticTree, new Long (viewLengthBinary.stringValue()), viewMutableHashes));
+							length = new Long (viewLengthBinary.stringValue());
+						}
+						// elasticViewSignatures
+						for (BBinary viewLengthBinary : viewSignaturesDictionary.keySet()) {
+							BList signatureList = (BList)viewSignaturesDictionary.get (viewLengthBinary);
+							Long viewLength = new Long (viewLengthBinary.stringValue());
+							ViewSignature viewSignature = new ViewSignature (
+									viewLength,
+									ByteBuffer.wrap (((BBinary)signatureList.get(0)).value()),
+									ByteBuffer.wrap (((BBinary)signatureList.get(1)).value())
+							);
+							this.viewSignatures.put (viewLength, viewSignature);
+						}
+
+						this.storage.extend (length);
+
+					}
+				} catch (InvalidEncodingException e) {
+					// TODO Test - test behaviour on failure
+					initialised = false;
+				}
+				break;
+
+		}
+
+		int numberOfPieces = this.storage.getPiecesetDescriptor().getNumberOfPieces();
+		presentPieces = new BitField (numberOfPieces);
+		verifiedPieces = new BitField (numberOfPieces);
+
+		// The journal lists the pieces written since the last snapshot was taken, each entry with
+		// the state of the storage that holds its pieces once they were written. A truncated final
+		// entry, left by a failure part way through an append, is ignored
+		BitField writtenPieces = new BitField (numberOfPieces);
+		List<ByteBuffer> partialCookies = new ArrayList<ByteBuffer>();
+		byte[] journalBytes = this.metadata.get ("resumeJournal");
+		if (journalBytes != null) {
+			ByteBuffer journalBuffer = ByteBuffer.wrap (journalBytes);
+			while (journalBuffer.remaining() >= 4) {
+				int count = journalBuffer.getInt();
+				if ((count < 0) || (journalBuffer.remaining() < ((4L * count) + 4))) {
+					break;
+				}
+				for (int i = 0; i < count; i++) {
+					int pieceNumber = journalBuffer.getInt();
+					if ((pieceNumber >= 0) && (pieceNumber < numberOfPieces)) {
+						writtenPieces.set (pieceNumber);
+					}
+				}
+				int cookieLength = journalBuffer.getInt();
+				if ((cookieLength < 0) || (journalBuffer.remaining() < cookieLength)) {
+					break;
+				}
+				if (cookieLength > 0) {
+					ByteBuffer partialCookie = journalBuffer.slice();
+					partialCookie.limit (cookieLength);
+					partialCookies.add (partialCookie);
+					journalBuffer.position (journalBuffer.position() + cookieLength);
+				}
+			}
+		}
+
+		try {
+			byte[] resumeBytes = this.metadata.get ("resume");
+			if (resumeBytes != null) {
+				BDictionary resumeDictionary = new BDecoder (resumeBytes).decodeDictionary();
+				byte[] storageCookieBytes = resumeDictionary.getBytes ("storageCookie");
+				byte[] presentPiecesBytes = resumeDictionary.getBytes ("presentPieces");
+				// The state recorded for the storage written since the snapshot was taken replaces
+				// that of the snapshot. Only pieces whose underlying storage is unchanged since its
+				// state was last recorded, and that have not been written since the snapshot was
+				// taken, are trusted. The remainder are left unverified, and will be checked by the
+				// verifier
+				ByteBuffer storageCookie = (storageCookieBytes == null) ? null : ByteBuffer.wrap (storageCookieBytes);
+				for (ByteBuffer partialCookie : partialCookies) {
+					storageCookie = this.storage.mergeValidationCookie (storageCookie, partialCookie);
+				}
+				BitField validPieces = this.storage.validatePieces (storageCookie, writtenPieces);
+				if ((validPieces != null) && (presentPiecesBytes != null) && (presentPiecesBytes.length == presentPieces.byteLength())) {
+					presentPieces = new BitField (presentPiecesBytes, this.storage.getPiecesetDescriptor().getNumberOfPieces());
+					presentPieces.and (validPieces);
+					verifiedPieces = validPieces;
+				}
+			}
+		} catch (InvalidEncodingException e) {
+			// Resume metadata is corrupt. Leave the database unverified
+			initialised = false;
+		}
+
+		this.presentPieces.assign (presentPieces);
+		this.verifiedPieces.assign (verifiedPieces);
+
+		resumePartialPieces();
+
+		return initialised;
+	}
+
+
+	/**
+	 * Gets the {@code InfoHash} of the database's {@code Info}. This will always be known
+	 * initially, but the {@code Info} may not
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return An Info describing the database's content
+	 */
+	public InfoHash getInfoHash() {
+
+		return this.infoHash;
+
+	}
+
+
+	/**
+	 * Gets the Info describing the database's content. This may not be known initially
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return An Info describing the database's content, or {@code null} if it is not yet known
+	 */
+	public Info getInfo() {
+
+		return this.info;
+
+	}
+
+
+	/**
+	 * Gets a copy of the database's bitfield of present pieces
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return A copy of the database's bitfield of present pieces
+	 */
+	public BitField getPresentPieces() {
+
+		return this.presentPieces.toBitField();
+
+	}
+
+
+	/**
+	 * Gets a copy of the database's bitfield of pieces that have been verified as either present
+	 * or absent
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return A copy of the database's bitfield of verified pieces
+	 */
+	public BitField getVerifiedPieces() {
+
+		return this.verifiedPieces.toBitField();
+
+	}
+
+
+	/**
+	 * Gets the blocks that have been written in place through
+	 * {@link #writeBlock(BlockDescriptor, ByteBuffer)} for pieces that are not yet present,
+	 * including blocks written before the database's state was resumed
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return A map from the number of each partially written piece to its written blocks
+	 */
+	public Map<Integer,List<BlockDescriptor>> getPartialPieces() {
+
+		Map<Integer,List<BlockDescriptor>> partialPieces = new TreeMap<Integer,List<BlockDescriptor>>();
+		synchronized (this.partialPieces) {
+			for (Map.Entry<Integer,Set<BlockDescriptor>> entry : this.partialPieces.entrySet()) {
+				if (havePiece (entry.getKey())) {
+					continue;
+				}
+				partialPieces.put (entry.getKey(), new ArrayList<BlockDescriptor> (entry.getValue()));
+			}
+		}
+
+		return partialPieces;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of pieces within the PieceDatabase that have been verified as being either
+	 * present or absent. While the state of the PieceDatabase is CHECKING, this figure will rise
+	 * towards the total number of pieces of the database.
+	 */
+	public int getVerifiedPieceCount() {
+
+		return this.verifiedPieces.cardinality();
+
+	}
+
+
+	/**
+	 * Sets the number of threads that hash pieces during verification. Pieces are read in order by
+	 * a single thread, and up to twice this number of pieces may be held in memory awaiting a hash.
+	 * A change takes effect from the next verification
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param verificationThreads The number of threads, or 1 to hash pieces on the thread that reads
+	 *        them
+	 */
+	public void setVerificationThreads (int verificationThreads) {
+
+		if (verificationThreads < 1) {
+			throw new IllegalArgumentException ("Invalid thread count");
+		}
+
+		this.verificationThreads = verificationThreads;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of threads that hash pieces during verification
+	 */
+	public int getVerificationThreads() {
+
+		return this.verificationThreads;
+
+	}
+
+
+	/**
+	 * Checks if a given piece is present in the database
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceNumber The piece number to check
+	 * @return True if the piece is present, otherwise false
+	 */
+	public boolean havePiece (int pieceNumber) {
+
+		return this.presentPieces.get (pieceNumber);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The descriptor for the underlying {@link Storage}
+	 */
+	public PiecesetDescriptor getPiecesetDescriptor() {
+
+		this.accessLock.readLock().lock();
+
+		try {
+
+			return this.storage.getPiecesetDescriptor();
+
+		} finally {
+			this.accessLock.readLock().unlock();
+		}
+
+	}
+
+
+	/**
+	 * Gets the view signature for a given view length
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param viewLength The view length
+	 * @return The view signature
+	 */
+	public ViewSignature getViewSignature (long viewLength) {
+
+		synchronized (this.viewSignatures) {
+
+			return this.viewSignatures.get (viewLength);
+
+		}
+
+	}
+
+
+	/**
+	 * Verifies a view signature against the torrent's DSA public key
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param viewSignature The view signature
+	 * @return {@code true} if the signature verified correctly, otherwise {@code false}
+	 */
+	public boolean verifyViewSignature (ViewSignature viewSignature) {
+
+		if (viewSignature.getViewLength() == this.info.getPiecesetDescriptor().getLength()) {
+			return true;
+		}
+
+		byte[] token = new byte[48];
+		System.arraycopy (this.info.getHash().getBytes(), 0, token, 0, 20);
+		ByteBuffer viewLengthBuffer = ByteBuffer.allocate (8);
+		viewLengthBuffer.asLongBuffer().put (viewSignature.getViewLength());
+		viewLengthBuffer.get (token, 20, 8);
+		viewSignature.getViewRootHash().get (token, 28, 20);
+
+		try {
+			Signature verify = Signature.getInstance ("SHAwithDSA", "SUN");
+			verify.initVerify (this.publicKey);
+			verify.update (token);
+			ByteBuffer derSignature = DSAUtil.p1363SignatureToDerSignature (viewSignature.getSignature());
+			if (derSignature == null) {
+				return false;
+			}
+			return verify.verify (derSignature.array());
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+
+	}
+
+
+	/**
+	 * Extend the database with a new unpopulated view
+	 *
+	 * @param viewSignature The signature of the new view
+	 * @throws IOException on any I/O error
+	 */
+	public void extend (ViewSignature viewSignature) throws IOException {
+
+		if (this.info.getPieceStyle() != PieceStyle.ELASTIC) {
+			throw new IllegalStateException ("Cannot extend non-elastic database");
+		}
+
+		this.accessLock.writeLock().lock();
+
+		try {
+
+			if (this.stateMachine.getState() != State.AVAILABLE) {
+				throw new IllegalStateException();
+			}
+
+			this.extensionCount++;
+
+			PiecesetDescriptor originalDescriptor = this.storage.getPiecesetDescriptor();
+
+			// Extend the database
+			try {
+				flushUnwrittenPieces();
+				this.storage.extend (viewSignature.getViewLength());
+				this.presentPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
+				this.verifiedPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
+			} catch (IOException e) {
+				this.workQueue.execute (new Runnable() {
+					public void run() {
+						PieceDatabase.this.stateMachine.input (Input.ERROR);
+					}
+				});
+				throw e;
+			}
+
+			// Create a new view
+			int additionalPieces = this.storage.getPiecesetDescriptor().getNumberOfPieces()- originalDescriptor.getNumberOfPieces();
+			int additionalHashes = additionalPieces + (originalDescriptor.isRegular() ? 0 : 1);
+			for (int i = 0; i < additionalHashes; i++) {
+				int pieceNumber = this.storage.getPiecesetDescriptor().getNumberOfPieces() - additionalHashes + i;
+				this.presentPieces.clear (pieceNumber);
+				this.verifiedPieces.set (pieceNumber);
+				invalidateCachedPiece (pieceNumber);
+			}
+			synchronized (this.viewSignatures) {
+				this.elasticTree.addView (viewSignature.getViewLength(), viewSignature.getViewRootHash());
+				this.viewSignatures.put (viewSignature.getViewLength(), viewSignature);
+			}
+
+		} finally {
+			this.accessLock.writeLock().unlock();
+		}
+
+	}
+
+
+	/**
+	 * Extend the database with additional data
+	 *
+	 * @param privateKey The private key to sign the new root hash
+	 * @param length The new total length of the database
+	 * @return The signature of the new view
+	 * @throws IOException on any I/O error
+	 */
+	public ViewSignature extendDataInPlace (PrivateKey privateKey, long length) throws IOException {
+
+		// TODO Refactor - partial merge with extendData
+
+		if (this.info.getPieceStyle() != PieceStyle.ELASTIC) {
+			throw new IllegalStateException ("Cannot extend non-elastic database");
+		}
+
+		this.accessLock.writeLock().lock();
+
+		try {
+
+			if (this.stateMachine.getState() != State.AVAILABLE) {
+				throw new IllegalStateException();
+			}
+
+			this.extensionCount++;
+
+			PiecesetDescriptor originalDescriptor = this.storage.getPiecesetDescriptor();
+
+			// Extend the database and write the additional data
+			try {
+				flushUnwrittenPieces();
+				this.storage.extend (length);
+				this.presentPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
+				this.verifiedPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
+			} catch (IOException e) {
+				this.workQueue.execute (new Runnable() {
+					public void run() {
+						PieceDatabase.this.stateMachine.input (Input.ERROR);
+					}
+				});
+				throw e;
+			}
+
+			// Create a new view
+			int additionalPieces = this.storage.getPiecesetDescriptor().getNumberOfPieces() - originalDescriptor.getNumberOfPieces();
+			int additionalHashes = additionalPieces + (originalDescriptor.isRegular() ? 0 : 1);
+			byte[][] leafHashes = new byte[additionalHashes][];
+			for (int i = 0; i < additionalHashes; i++) {
+				int pieceNumber = this.storage.getPiecesetDescriptor().getNumberOfPieces() - additionalHashes + i;
+				ByteBuffer storedPiece = PieceDatabase.this.storage.read (pieceNumber);
+				leafHashes[i] = new byte[20];
+				MessageDigest digest = this.digest.get();
+				digest.reset();
+				digest.update (storedPiece);
+				try {
+					digest.digest (leafHashes[i], 0, 20);
+				} catch (DigestException e) {
+					// Shouldn't happen
+					throw new InternalError (e.getMessage());
+				}
+				this.presentPieces.set (pieceNumber);
+				this.verifiedPieces.set (pieceNumber);
+				invalidateCachedPiece (pieceNumber);
+			}
+
+			synchronized (this.viewSignatures) {
+				this.elasticTree.addView (length, leafHashes);
+			}
+			garbageCollectViews();
+
+			// Generate the signature for the new view
+			byte[] viewRootHash = this.elasticTree.getView(length).getRootHash();
+			byte[] token = new byte[48];
+			System.arraycopy (this.info.getHash().getBytes(), 0, token, 0, 20);
+			ByteBuffer viewLengthBuffer = ByteBuffer.allocate (8);
+			viewLengthBuffer.asLongBuffer().put (length);
+			viewLengthBuffer.get (token, 20, 8);
+			System.arraycopy (viewRootHash, 0, token, 28, 20);
+
+			byte[] derSignature = null;
+			try {
+				Signature dsa = Signature.getInstance ("SHAwithDSA", "SUN");
+				dsa.initSign (privateKey);
+				dsa.update (token);
+				derSignature = dsa.sign();
+			} catch (GeneralSecurityException e) {
+				throw new InternalError (e.getMessage());
+			}
+
+			ViewSignature signature = new ViewSignature (length, ByteBuffer.wrap (viewRootHash), ByteBuffer.wrap (DSAUtil.derSignatureToP1363Signature (derSignature)));
+			synchronized (this.viewSignatures) {
+				this.viewSignatures.put (length, signature);
+			}
+
+			return signature;
+
+		} finally {
+			this.accessLock.writeLock().unlock();
+		}
+
+	}
+
+
+	/**
+	 * Extend the database with additional data
+	 *
+	 * @param privateKey The private key to sign the new root hash
+	 * @param additionalData The additional data to append to the database
+	 * @return The signature of the new view
+	 * @throws IOException on any I/O error
+	 */
+	public ViewSignature extendData (PrivateKey privateKey, ByteBuffer additionalData) throws IOException {
+
+		if (this.info.getPieceStyle() != PieceStyle.ELASTIC) {
+			throw new IllegalStateException ("Cannot extend non-elastic database");
+		}
+
+		this.accessLock.writeLock().lock();
+
+		try {
+
+			if (this.stateMachine.getState() != State.AVAILABLE) {
+				throw new IllegalStateException();
+			}
+
+			this.extensionCount++;
+
+			PiecesetDescriptor originalDescriptor = this.storage.getPiecesetDescriptor();
+			int originalLastPiece = (originalDescriptor.getLength() == 0) ? 0 : originalDescriptor.getNumberOfPieces () - 1;
+			long length = originalDescriptor.getLength() + additionalData.remaining();
+
+			// Extend the database and write the additional data
+			try {
+				flushUnwrittenPieces();
+				this.storage.extend (length);
+				this.presentPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
+				this.verifiedPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
+				WritableByteChannel channel = this.storage.openOutputChannel (originalLastPiece, originalDescriptor.getLastPieceLength());
+				channel.write (additionalData);
+			} catch (IOException e) {
+				this.workQueue.execute (new Runnable() {
+					public void run() {
+						PieceDatabase.this.stateMachine.input (Input.ERROR);
+					}
+				});
+				throw e;
+			}
+
+			// Create a new view
+			int additionalPieces = this.storage.getPiecesetDescriptor().getNumberOfPieces() - originalDescriptor.getNumberOfPieces();
+			int additionalHashes = additionalPieces + (originalDescriptor.isRegular() ? 0 : 1);
+			byte[][] leafHashes = new byte[additionalHashes][];
+			for (int i = 0; i < additionalHashes; i++) {
+				int pieceNumber = this.storage.getPiecesetDescriptor().getNumberOfPieces() - additionalHashes + i;
+				ByteBuffer storedPiece = PieceDatabase.this.storage.read (pieceNumber);
+				leafHashes[i] = new byte[20];
+				MessageDigest digest = this.digest.get();
+				digest.reset();
+				digest.update (storedPiece);
+				try {
+					digest.digest (leafHashes[i], 0, 20);
+				} catch (DigestException e) {
+					// Shouldn't happen
+					throw new InternalError (e.getMessage());
+				}
+				this.presentPieces.set (pieceNumber);
+				this.verifiedPieces.set (pieceNumber);
+				invalidateCachedPiece (pieceNumber);
+			}
+
+			synchronized (this.viewSignatures) {
+				this.elasticTree.addView (length, leafHashes);
+			}
+
+			// Generate the signature for the new view
+			byte[] viewRootHash = this.elasticTree.getView(length).getRootHash();
+			byte[] token = new byte[48];
+			System.arraycopy (this.info.getHash().getBytes(), 0, token, 0, 20);
+			ByteBuffer viewLengthBuffer = ByteBuffer.allocate (8);
+			viewLengthBuffer.asLongBuffer().put (length);
+			viewLengthBuffer.get (token, 20, 8);
+			System.arraycopy (viewRootHash, 0, token, 28, 20);
+
+			byte[] derSignature = null;
+			try {
+				Signature dsa = Signature.getInstance ("SHAwithDSA", "SUN");
+				dsa.initSign (privateKey);
+				dsa.update (token);
+				derSignature = dsa.sign();
+			} catch (GeneralSecurityException e) {
+				throw new InternalError (e.getMessage());
+			}
+
+			ViewSignature signature = new ViewSignature (length, ByteBuffer.wrap (viewRootHash), ByteBuffer.wrap (DSAUtil.derSignatureToP1363Signature (derSignature)));
+			synchronized (this.viewSignatures) {
+				this.viewSignatures.put (length, signature);
+			}
+
+			garbageCollectViews();
+
+			return signature;
+
+		} finally {
+			this.accessLock.writeLock().unlock();
+		}
+
+	}
+
+
+	/**
+	 * Reads a piece from the database
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceNumber The piece number to read
+	 * @return The piece
+	 * @throws IOException If the piece requested is not present, or on any other I/O error
+	 */
+	public Piece readPiece (int pieceNumber) throws IOException {
+
+		this.accessLock.readLock().lock();
+
+		try {
+
+			if (!isActive()) {
+				throw new IllegalStateException();
+			}
+
+			if (!havePiece (pieceNumber)) {
+				throw new IOException ("Piece " + pieceNumber + " not present");
+			}
+
+			PieceCache.Partition pieceCache = this.pieceCache;
+			try {
+				BlockDescriptor pieceDescriptor = new BlockDescriptor (pieceNumber, 0, this.storage.getPiecesetDescriptor().getPieceLength (pieceNumber));
+				ByteBuffer content = getUnwrittenBlock (pieceDescriptor, null);
+				if (content == null) {
+					if (pieceCache == null) {
+						content = this.storage.read (pieceNumber);
+					} else {
+						content = getCachedBlock (pieceCache, pieceDescriptor, null);
+					}
+				}
+				HashChain hashChain = null;
+				if (this.elasticTree != null) {
+					synchronized (this.viewSignatures) {
+						hashChain = this.elasticTree.getHashChain (pieceNumber, this.storage.getPiecesetDescriptor().getPieceLength (pieceNumber));
+					}
+				}
+				return new Piece (pieceNumber, content, hashChain);
+			} catch (IOException e) {
+				this.workQueue.execute (new Runnable() {
+					public void run() {
+						PieceDatabase.this.stateMachine.input (Input.ERROR);
+					}
+				});
+				throw e;
+			}
+
+		} finally {
+			this.accessLock.readLock().unlock();
+		}
+
+	}
+
+
+	/**
+	 * Reads a single block from the database. Unlike {@link #readPiece(int)}, only the bytes of the
+	 * requested block are read from the {@code Storage}, and no hash chain is built
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param descriptor The descriptor of the block to read
+	 * @return The content of the block
+	 * @throws IOException If the piece containing the block is not present, or on any other I/O
+	 *         error
+	 */
+	public ByteBuffer readBlock (BlockDescriptor descriptor) throws IOException {
+
+		this.accessLock.readLock().lock();
+
+		try {
+
+			if (!isActive()) {
+				throw new IllegalStateException();
+			}
+
+			if (!havePiece (descriptor.getPieceNumber())) {
+				throw new IOException ("Piece " + descriptor.getPieceNumber() + " not present");
+			}
+
+			PieceCache.Partition pieceCache = this.pieceCache;
+			try {
+				if ((pieceCache == null) && !isUnwritten (descriptor.getPieceNumber())) {
+					return this.storage.read (descriptor).asReadOnlyBuffer();
+				}
+
+				return readUnwrittenOrCachedBlock (pieceCache, descriptor, null);
+			} catch (IOException e) {
+				this.workQueue.execute (new Runnable() {
+					public void run() {
+						PieceDatabase.this.stateMachine.input (Input.ERROR);
+					}
+				});
+				throw e;
+			}
+
+		} finally {
+			this.accessLock.readLock().unlock();
+		}
+
+	}
+
+
+	/**
+	 * Gets the file regions that hold a single block, so that the block can be transferred
+	 * directly from its underlying files
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @return The regions that in order make up the block, or {@code null} if the block cannot be
+	 *         transferred directly from files
+	 * @throws IOException If the piece containing the block is not present, or on any other I/O
+	 *         error
+	 */
+	public List<FileRegion> getBlockRegions (BlockDescriptor descriptor) throws IOException {
+
+		this.accessLock.readLock().lock();
+
+		try {
+
+			if (!isActive()) {
+				throw new IllegalStateException();
+			}
+
+			if (!havePiece (descriptor.getPieceNumber())) {
+				throw new IOException ("Piece " + descriptor.getPieceNumber() + " not present");
+			}
+
+			PieceCache.Partition pieceCache = this.pieceCache;
+
+			// Unwritten and cached pieces are served from memory rather than from their files
+			if (
+					   isUnwritten (descriptor.getPieceNumber())
+					|| ((pieceCache != null) && pieceCache.contains (descriptor.getPieceNumber()))
+			   )
+			{
+				return null;
+			}
+
+			try {
+				List<FileRegion> regions = this.storage.getRegions (descriptor);
+				// A cached block is counted as a hit when it is read from the cache instead
+				if ((regions != null) && (pieceCache != null)) {
+					pieceCache.recordMiss();
+				}
+				return regions;
+			} catch (IOException e) {
+				this.workQueue.execute (new Runnable() {
+					public void run() {
+						PieceDatabase.this.stateMachine.input (Input.ERROR);
+					}
+				});
+				throw e;
+			}
+
+		} finally {
+			this.accessLock.readLock().unlock();
+		}
+
+	}
+
+
+	/**
+	 * Gets the first available Merkle hash chain for a present piece
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceNumber The piece number
+	 * @return The hash chain, or {@code null} if the database's pieces are not Merkle or Elastic
+	 *         pieces
+	 * @throws IOException If the piece requested is not present
+	 */
+	public HashChain getHashChain (int pieceNumber) throws IOException {
+
+		this.accessLock.readLock().lock();
+
+		try {
+
+			if (!isActive()) {
+				throw new IllegalStateException();
+			}
+
+			if (!havePiece (pieceNumber)) {
+				throw new IOException ("Piece " + pieceNumber + " not present");
+			}
+
+			if (this.elasticTree == null) {
+				return null;
+			}
+
+			synchronized (this.viewSignatures) {
+				return this.elasticTree.getHashChain (pieceNumber, this.storage.getPiecesetDescriptor().getPieceLength (pieceNumber));
+			}
+
+		} finally {
+			this.accessLock.readLock().unlock();
+		}
+
+	}
+
+
+	/**
+	 * Writes a single block of a piece that is not yet present directly to its final location in
+	 * the {@code Storage}, without verifying it. Once every block of the piece has been written, a
+	 * streamed {@link Piece} may be passed to {@link #writePiece(Piece)} to verify the stored
+	 * content
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @param block The content of the block
+	 * @return {@code true} if the block was written, or {@code false} if the piece is already
+	 *         present and the block was discarded
+	 * @throws IllegalStateException if the state of the database is not currently AVAILABLE
+	 * @throws IOException on any I/O error
+	 */
+	public boolean writeBlock (BlockDescriptor descriptor, ByteBuffer block) throws IOException {
+
+		this.accessLock.readLock().lock();
+
+		try {
+
+			if (!isActive()) {
+				throw new IllegalStateException();
+			}
+
+			int pieceNumber = descriptor.getPieceNumber();
+			if (
+					   (descriptor.getOffset() < 0) || (block.remaining() != descriptor.getLength())
+					|| ((descriptor.getOffset() + descriptor.getLength()) > this.storage.getPiecesetDescriptor().getPieceLength (pieceNumber))
+			   )
+			{
+				throw new IndexOutOfBoundsException ("Invalid block " + descriptor);
+			}
+
+			synchronized (pieceLock (pieceNumber)) {
+
+				// Never overwrite verified content, content that has yet to be verified, or content
+				// that is being verified
+				if (!isVerified (pieceNumber) || havePiece (pieceNumber) || isCommitting (pieceNumber)) {
+					return false;
 				}
-			} catch (IOException e) {
-				PieceDatabase.this.stateMachine.input (Input.ERROR);
+
+				try {
+					WritableByteChannel channel = this.storage.openOutputChannel (pieceNumber, descriptor.getOffset());
+					while (block.hasRemaining()) {
+						channel.write (block);
+					}
+					channel.close();
+				} catch (IOException e) {
+					this.workQueue.execute (new Runnable() {
+						public void run() {
+							PieceDatabase.this.stateMachine.input (Input.ERROR);
+						}
+					});
+					throw e;
+				}
+
+				recordWrittenPiece (pieceNumber);
+
+				synchronized (this.partialPieces) {
+					Set<BlockDescriptor> blocks = this.partialPieces.get (pieceNumber);
+					if (blocks == null) {
+						blocks = new HashSet<BlockDescriptor>();
+						this.partialPieces.put (pieceNumber, blocks);
+					}
+					blocks.add (descriptor);
+					this.partialPiecesChanged = true;
+				}
+
 			}
 
+			return true;
+
+		} finally {
+			this.accessLock.readLock().unlock();
 		}
 
-		/**
-		 * Verifies the pieces of the database, setting or clearing bits in the presentPieces set
-		 * for each piece, and setting bits in the verifiedPieces set as each piece is checked
-		 *
-		 * @return If {@code true}, the database was verified completely. If {@code false}, the
-		 *         thread was interrupted.
-		 * @throws IOException if an error occurs reading data from disk
-		 */
-		private boolean verifyDataInterruptibly() throws IOException {
+	}
 
-			int numPieces = PieceDatabase.this.storage.getPiecesetDescriptor().getNumberOfPieces();
-			byte[] storedPieceHash = new byte[20];
 
-			BitField fileBackedPieces = PieceDatabase.this.storage.getStorageBackedPieces();
+	/**
+	 * Verifies a piece's hash and stores it in the database if it is correct. If the piece is
+	 * streamed, its blocks must already have been written through
+	 * {@link #writeBlock(BlockDescriptor, ByteBuffer)}, and its content is read back from the
+	 * {@code Storage} to be verified in place. Otherwise, if the piece was hashed as its blocks
+	 * arrived (see {@link Piece#getHash()}), that hash is verified without hashing the content
+	 * again
+	 *
+	 * <p>The database takes ownership of the piece, and releases it once its content has been
+	 * stored or rejected. The piece should not be used by the caller after this method returns
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param piece The piece
+	 * @return {@code true} if the piece verified correctly and was stored, otherwise {@code false}
+	 * @throws IllegalStateException if the state of the database is not currently AVAILABLE
+	 * @throws IOException on any I/O error
+	 */
+	public boolean writePiece (Piece piece) throws IOException {
+
+		StreamedContent streamedContent = null;
+
+		if (piece.isStreamed()) {
+			boolean success = false;
+			try {
+				streamedContent = readStreamedContent (piece);
+				success = true;
+			} finally {
+				if (!success || (streamedContent == null)) {
+					piece.release();
+				}
+			}
+			if (streamedContent == null) {
+				return false;
+			}
+		}
+
+		return commitPiece (piece, streamedContent, null);
+
+	}
+
+
+	/**
+	 * Reads back the stored content of a streamed piece so that it can be verified. If the content
+	 * is read, no further blocks may be written to the piece until it has been passed to
+	 * {@link #commitPiece(Piece, StreamedContent, byte[])}
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param piece The streamed piece
+	 * @return The stored content, or {@code null} if the piece cannot be committed
+	 * @throws IllegalStateException if the state of the database is not currently AVAILABLE
+	 * @throws IOException on any I/O error
+	 */
+	private StreamedContent readStreamedContent (Piece piece) throws IOException {
+
+		int pieceNumber = piece.getPieceNumber();
+
+		this.accessLock.readLock().lock();
+		try {
+
+			if (!isActive()) {
+				throw new IllegalStateException();
+			}
 
-			synchronized (PieceDatabase.this.presentPieces) {
-				if (PieceDatabase.this.presentPieces.length() == 0) {
-					return true;
+			// Never overwrite content that has yet to be verified
+			if (!isVerified (pieceNumber)) {
+				return null;
+			}
+
+			synchronized (pieceLock (pieceNumber)) {
+				synchronized (this.committingPieces) {
+					if (!this.committingPieces.add (pieceNumber)) {
+						return null;
+					}
 				}
-				for (int i = 0; i < numPieces; i++) {
-					if (!PieceDatabase.this.verifiedPieces.get (i) && !fileBackedPieces.get (i)) {
-						PieceDatabase.this.presentPieces.clear (i);
-						PieceDatabase.this.verifiedPieces.set (i);
+			}
+
+			ByteBuffer storedContent = null;
+			boolean success = false;
+			try {
+				int pieceLength = this.storage.getPiecesetDescriptor().getPieceLength (pieceNumber);
+				storedContent = this.bufferPool.allocate (pieceLength);
+				this.storage.read (new BlockDescriptor (pieceNumber, 0, pieceLength), storedContent);
+				storedContent.flip();
+				success = true;
+				return new StreamedContent (storedContent, this.extensionCount);
+			} catch (IOException e) {
+				this.workQueue.execute (new Runnable() {
+					public void run() {
+						PieceDatabase.this.stateMachine.input (Input.ERROR);
+					}
+				});
+				throw e;
+			} finally {
+				if (!success) {
+					synchronized (this.committingPieces) {
+						this.committingPieces.remove (pieceNumber);
+					}
+					if (storedContent != null) {
+						this.bufferPool.release (storedContent);
 					}
 				}
 			}
 
-			PieceDatabase.this.verifiedPieceCount = PieceDatabase.this.verifiedPieces.cardinality();
+		} finally {
+			this.accessLock.readLock().unlock();
+		}
 
-			// If we have no verified pieces, an empty hash tree and all data is file backed, build
-			// a tree to see if all pieces are present
-			if (
-					   (PieceDatabase.this.info.getPieceStyle() != PieceStyle.PLAIN)
-					&& (PieceDatabase.this.elasticTree.getAllViews().size() == 1)
-					&& (PieceDatabase.this.verifiedPieces.cardinality() == 0)
-					&& (fileBackedPieces.cardinality() == numPieces)
-			   )
-			{
-				byte[] leafHashes = new byte [20 * numPieces];
+	}
 
-				for (int i = 0, offset = 0; i < numPieces; i++, offset += 20) {
-					ByteBuffer storedPiece = PieceDatabase.this.storage.read (i);
 
-					this.digest.reset();
-					this.digest.update (storedPiece);
-					try {
-						this.digest.digest (leafHashes, offset, 20);
-					} catch (DigestException e) {
-						// Shouldn't happen
-						throw new InternalError (e.getMessage());
+	/**
+	 * Hashes the content of a piece
+	 *
+	 * @param content The content
+	 * @return The SHA1 hash of the content
+	 */
+	private byte[] hashContent (ByteBuffer content) {
+
+		byte[] pieceHash = new byte[20];
+		MessageDigest digest = this.digest.get();
+		digest.reset();
+		digest.update (content.duplicate());
+		try {
+			digest.digest (pieceHash, 0, 20);
+		} catch (GeneralSecurityException e) {
+			// Shouldn't happen
+			throw new InternalError (e.getMessage());
+		}
+
+		return pieceHash;
+
+	}
+
+
+	/**
+	 * Verifies a piece's hash and stores it in the database if it is correct. The database takes
+	 * ownership of the piece and of any streamed content, and releases them once the piece has
+	 * been stored or rejected
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param piece The piece
+	 * @param streamedContent The stored content of a streamed piece, as read through
+	 *        {@link #readStreamedContent(Piece)}, or {@code null} if the piece is not streamed
+	 * @param pieceHash The hash of the piece's content if it is already known, or {@code null}
+	 * @return {@code true} if the piece verified correctly and was stored, otherwise {@code false}
+	 * @throws IllegalStateException if the state of the database is not currently AVAILABLE
+	 * @throws IOException on any I/O error
+	 */
+	private boolean commitPiece (Piece piece, StreamedContent streamedContent, byte[] pieceHash) throws IOException {
+
+		int pieceNumber = piece.getPieceNumber();
+		boolean held = false;
+
+		try {
+
+			ByteBuffer content = (streamedContent != null) ? streamedContent.content.asReadOnlyBuffer() : piece.getContent();
+
+			// Use the given hash or the hash computed as the piece was assembled, or build a hash
+			// of the supplied piece. No lock is held while the piece is hashed
+			byte[] checkPieceHash = pieceHash;
+			if ((checkPieceHash == null) && (streamedContent == null)) {
+				checkPieceHash = piece.getHash();
+			}
+			if (checkPieceHash == null) {
+				checkPieceHash = hashContent (content);
+			}
+
+			this.accessLock.readLock().lock();
+			try {
+
+				if (!isActive()) {
+					throw new IllegalStateException();
+				}
+
+				// Never overwrite content that has yet to be verified
+				if (!isVerified (pieceNumber)) {
+					return false;
+				}
+
+				// Blocks written in place are superseded by the piece, whether or not it verifies
+				synchronized (this.partialPieces) {
+					if (this.partialPieces.remove (pieceNumber) != null) {
+						this.partialPiecesChanged = true;
+					}
+				}
+
+				// A piece read back before the database was extended may no longer be complete
+				if ((streamedContent != null) && (streamedContent.extensionCount != this.extensionCount)) {
+					return false;
+				}
+
+				if (this.elasticTree != null) {
+
+					HashChain hashChain = piece.getHashChain();
+					ViewSignature viewSignature = piece.getViewSignature();
+
+					synchronized (this.viewSignatures) {
+
+						// Create the view and store the signature if necessary
+						if ((viewSignature != null) && (this.elasticTree.getView (viewSignature.getViewLength()) == null)) {
+							this.elasticTree.addView (viewSignature.getViewLength(), viewSignature.getViewRootHash());
+							this.viewSignatures.put (viewSignature.getViewLength(), viewSignature);
+						}
+
+						// Verify the hash chain against the tree
+						if (!this.elasticTree.verifyHashChain (pieceNumber, hashChain)) {
+							return false;
+						}
+
+						// Compare hash of supplied piece to known valid hash
+						if (!this.elasticTree.getView(hashChain.getViewLength()).verifyLeafHash (pieceNumber, checkPieceHash)) {
+							return false;
+						}
+
 					}
 
-					if (interrupted()) {
+				} else {
+
+					// Compare hash of supplied piece to known valid hash
+					if (!this.info.comparePieceHash (pieceNumber, checkPieceHash)) {
 						return false;
 					}
 
 				}
 
-				ElasticTree verificationTree = ElasticTree.buildFromLeaves (
-						PieceDatabase.this.storage.getPiecesetDescriptor().getPieceSize(),
-						PieceDatabase.this.storage.getPiecesetDescriptor().getLength(),
-						leafHashes
-				);
+				synchronized (pieceLock (pieceNumber)) {
 
-				ElasticTreeView verificationView = verificationTree.getView (PieceDatabase.this.storage.getPiecesetDescriptor().getLength());
-				ElasticTreeView databaseView = PieceDatabase.this.elasticTree.getView (PieceDatabase.this.storage.getPiecesetDescriptor().getLength());
-				if (ByteBuffer.wrap(verificationView.getRootHash()).equals (ByteBuffer.wrap (databaseView.getRootHash()))) {
-					// TODO Inefficient
-					for (int i = 0; i < numPieces; i++) {
-						if (databaseView.verifyHashChain (i, ByteBuffer.wrap (verificationView.getHashChain (i)))) {
-							synchronized (PieceDatabase.this.presentPieces) {
-								PieceDatabase.this.presentPieces.set (i);
+					// Newly written pieces are likely to be in demand from other peers
+					PieceCache.Partition pieceCache = this.pieceCache;
+					if (pieceCache != null) {
+						pieceCache.put (pieceNumber, content.duplicate());
+					}
+
+					try {
+						// A streamed piece's content is already in place
+						if (!piece.isStreamed()) {
+							if (getWriteBackCapacity() > 0) {
+								held = true;
+								holdUnwrittenPiece (piece);
+							} else {
+								this.storage.write (pieceNumber, content.duplicate());
+							}
+						}
+					} catch (IOException e) {
+						this.workQueue.execute (new Runnable() {
+							public void run() {
+								PieceDatabase.this.stateMachine.input (Input.ERROR);
 							}
+						});
+						throw e;
+					}
+
+					this.presentPieces.set (pieceNumber);
+					recordWrittenPiece (pieceNumber);
+
+				}
+
+				return true;
+
+			} finally {
+				this.accessLock.readLock().unlock();
+			}
+
+		} finally {
+			if (streamedContent != null) {
+				synchronized (this.committingPieces) {
+					this.committingPieces.remove (pieceNumber);
+				}
+				this.bufferPool.release (streamedContent.content);
+			}
+			if (!held) {
+				piece.release();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Reads a single block from the database asynchronously through the database's
+	 * {@link DiskJobQueue}. If no queue has been set, the block is read synchronously, and the
+	 * listener informed before this method returns
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * <p>The content of the block is allocated from the database's {@link BufferPool}, and
+	 * should be passed to {@link #releaseBlock(ByteBuffer)} once it is no longer needed
+	 *
+	 * @param descriptor The descriptor of the block to read
+	 * @param listener The listener to inform of the content of the block, or of the failure to
+	 *        read it
+	 * @see #readBlock(BlockDescriptor)
+	 */
+	public void readBlock (final BlockDescriptor descriptor, DiskJobListener<ByteBuffer> listener) {
+
+		submitDiskJob (new Callable<ByteBuffer>() {
+			public ByteBuffer call() throws Exception {
+				return PieceDatabase.this.readPooledBlock (descriptor);
+			}
+		}, listener);
+
+	}
+
+
+	/**
+	 * Gets the file regions that hold a single block asynchronously through the database's
+	 * {@link DiskJobQueue}. If no queue has been set, the regions are looked up synchronously, and
+	 * the listener informed before this method returns. Only the lookup is performed by the queue;
+	 * the caller transfers the block from the regions itself
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @param listener The listener to inform of the regions of the block, or {@code null} if the
+	 *        block cannot be transferred directly from files, or of the failure to look them up
+	 * @see #getBlockRegions(BlockDescriptor)
+	 */
+	public void getBlockRegions (final BlockDescriptor descriptor, DiskJobListener<List<FileRegion>> listener) {
+
+		submitDiskJob (new Callable<List<FileRegion>>() {
+			public List<FileRegion> call() throws Exception {
+				return PieceDatabase.this.getBlockRegions (descriptor);
+			}
+		}, listener);
+
+	}
+
+
+	/**
+	 * Reads a single block from the database into a buffer allocated from the database's
+	 * {@link BufferPool}
+	 *
+	 * @param descriptor The descriptor of the block to read
+	 * @return The content of the block
+	 * @throws IOException If the piece containing the block is not present, or on any other I/O
+	 *         error
+	 */
+	private ByteBuffer readPooledBlock (BlockDescriptor descriptor) throws IOException {
+
+		this.accessLock.readLock().lock();
+
+		try {
+
+			if (!isActive()) {
+				throw new IllegalStateException();
+			}
+
+			if (!havePiece (descriptor.getPieceNumber())) {
+				throw new IOException ("Piece " + descriptor.getPieceNumber() + " not present");
+			}
+
+			PieceCache.Partition pieceCache = this.pieceCache;
+			ByteBuffer block = this.bufferPool.allocate (descriptor.getLength());
+			boolean success = false;
+			try {
+				try {
+					readUnwrittenOrCachedBlock (pieceCache, descriptor, block);
+				} catch (IOException e) {
+					this.workQueue.execute (new Runnable() {
+						public void run() {
+							PieceDatabase.this.stateMachine.input (Input.ERROR);
 						}
-						PieceDatabase.this.verifiedPieces.set (i);
-						PieceDatabase.this.verifiedPieceCount++;
-					}
-					return true;
+					});
+					throw e;
+				}
+				success = true;
+				return block;
+			} finally {
+				if (!success) {
+					this.bufferPool.release (block);
 				}
 			}
 
-			// Verify pieces against the existing hash array or hash tree
-			for (int i = 0; i < numPieces; i++) {
-
-				if (!PieceDatabase.this.verifiedPieces.get (i)) {
-
-					if (!fileBackedPieces.get (i)) {
-
-						synchronized (PieceDatabase.this.presentPieces) {
-							PieceDatabase.this.presentPieces.clear (i);
-						}
+		} finally {
+			this.accessLock.readLock().unlock();
+		}
 
-					} else {
+	}
 
-						ByteBuffer storedPiece = PieceDatabase.this.storage.read (i);
 
-						this.digest.reset();
-						this.digest.update (storedPiece);
-						try {
-							this.digest.digest (storedPieceHash, 0, 20);
-						} catch (DigestException e) {
-							// Shouldn't happen
-							throw new InternalError (e.getMessage());
-						}
+	/**
+	 * Releases a block read through {@link #readBlock(BlockDescriptor, DiskJobListener)} back to
+	 * the database's {@link BufferPool}. Neither the block nor any view of it may be used once it
+	 * has been released
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param block The block to release
+	 */
+	public void releaseBlock (ByteBuffer block) {
 
-						boolean storedPieceOK = false;
-						if (PieceDatabase.this.info.getPieceStyle() == PieceStyle.PLAIN) {
-							// Hash array verification
-							storedPieceOK = PieceDatabase.this.info.comparePieceHash (i, storedPieceHash);
-						} else {
-							// Hash tree verification
-							ElasticTreeView view = PieceDatabase.this.elasticTree.getCeilingView (
-									(i * PieceDatabase.this.storage.getPiecesetDescriptor().getPieceSize()) + PieceDatabase.this.storage.getPiecesetDescriptor().getPieceLength(i)
-							);
-							storedPieceOK = view.verifyLeafHash (i, storedPieceHash);
-						}
+		getBufferPool().release (block);
 
-						synchronized (PieceDatabase.this.presentPieces) {
-							PieceDatabase.this.presentPieces.set (i, storedPieceOK);
-						}
-						PieceDatabase.this.verifiedPieces.set (i);
+	}
 
-					}
 
-					PieceDatabase.this.verifiedPieceCount++;
+	/**
+	 * Writes a single block of a piece that is not yet present directly to the {@code Storage},
+	 * asynchronously through the database's {@link DiskJobQueue}. If no queue has been set, the
+	 * block is written synchronously, and the listener informed before this method returns
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @param block The content of the block. The content is copied into a pooled buffer before
+	 *        this method returns if the write is performed asynchronously
+	 * @param listener The listener to inform whether the block was written, or of the failure to
+	 *        write it
+	 * @see #writeBlock(BlockDescriptor, ByteBuffer)
+	 */
+	public void writeBlock (final BlockDescriptor descriptor, ByteBuffer block, DiskJobListener<Boolean> listener) {
 
+		if (getDiskJobQueue() == null) {
+			final ByteBuffer content = block.duplicate();
+			submitDiskJob (new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return PieceDatabase.this.writeBlock (descriptor, content);
 				}
+			}, listener);
+			return;
+		}
 
-				if (interrupted()) {
-					return false;
-				}
+		final BufferPool bufferPool = getBufferPool();
+		final ByteBuffer content = bufferPool.allocate (block.remaining());
+		content.put (block.duplicate());
+		content.flip();
 
+		submitDiskJob (new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				try {
+					return PieceDatabase.this.writeBlock (descriptor, content);
+				} finally {
+					bufferPool.release (content);
+				}
 			}
+		}, listener);
 
-			return true;
-
-		}
-
-	};
+	}
 
 
 	/**
-	 * Resumes state from metadata if possible
+	 * Verifies a piece's hash and stores it in the database if it is correct, asynchronously
+	 * through the database's {@link DiskJobQueue}. If no queue has been set, the piece is written
+	 * synchronously, and the listener informed before this method returns
 	 *
-	 * @return {@code true} if the state was successfully resumed, otherwise {@code false}
-	 * @throws IOException if an I/O error was encountered while resuming
+	 * <p>Only the piece's storage I/O is serialised with the database's other asynchronous reads
+	 * and writes. A piece that must be hashed is hashed by a job that is not serialised against its
+	 * device, after a streamed piece's content has been read back
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param piece The piece
+	 * @param listener The listener to inform whether the piece verified correctly and was stored,
+	 *        or of the failure to store it
+	 * @see #writePiece(Piece)
 	 */
-	private boolean resume() throws IOException {
-
-		BitField presentPieces;
-		byte[] elasticImmutableHashes;
-		byte[] elasticViewHashes;
+	public void writePiece (final Piece piece, final DiskJobListener<Boolean> listener) {
 
-		boolean initialised = true;
+		if (getDiskJobQueue() == null) {
+			submitDiskJob (new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return PieceDatabase.this.writePiece (piece);
+				}
+			}, listener);
+			return;
+		}
 
-		switch (this.info.getPieceStyle()) {
+		if (piece.isStreamed()) {
 
-			case MERKLE:
-				elasticImmutableHashes = this.metadata.get ("elasticImmutable");
-				elasticViewHashes = this.metadata.get ("elasticView");
-				if ((elasticImmutableHashes != null) && (elasticViewHashes != null)) {
-					this.elasticTree = ElasticTree.withNodeHashes (
-							this.storage.getPiecesetDescriptor().getPieceSize(),
-							this.storage.getPiecesetDescriptor().getLength(),
-							elasticImmutableHashes
-					);
-					this.elasticTree.addView (ElasticTreeView.withMutableHashes (this.elasticTree, this.storage.getPiecesetDescriptor().getLength(), elasticViewHashes));
-				} else {
-					this.elasticTree = ElasticTree.emptyTree (
-							this.storage.getPiecesetDescriptor().getPieceSize(),
-							this.storage.getPiecesetDescriptor().getLength(),
-							ByteBuffer.wrap (this.info.getRootHash())
-					);
+			// Read back the content on the device, then hash and commit it on any worker. The
+			// content is already in place, so committing it performs no storage I/O
+			submitDiskJob (new Callable<StreamedContent>() {
+				public StreamedContent call() throws Exception {
+					return readStreamedContent (piece);
 				}
-				break;
+			}, new DiskJobListener<StreamedContent>() {
+				public void diskJobCompleted (final StreamedContent streamedContent) {
+					if (streamedContent == null) {
+						piece.release();
+						listener.diskJobCompleted (false);
+						return;
+					}
+					submitHashJob (new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return commitPiece (piece, streamedContent, null);
+						}
+					}, listener);
+				}
+				public void diskJobFailed (Exception exception) {
+					piece.release();
+					listener.diskJobFailed (exception);
+				}
+			});
 
-			case ELASTIC:
-				elasticImmutableHashes = this.metadata.get ("elasticImmutable");
-				byte[] viewsBytes = this.metadata.get ("elasticViews");
-				byte[] viewSignaturesBytes = this.metadata.get ("elasticViewSignatures");
-				if ((elasticImmutableHashes != null) && (viewsBytes != null) && (viewSignaturesBytes != null)) {
-					this.elasticTree = ElasticTree.withNodeHashes (
-							this.storage.getPiecesetDescriptor().getPieceSize(),
-							this.storage.getPiecesetDescriptor().getLength(),
-							elasticImmutableHashes
-					);
-				} else {
-					this.elasticTree = ElasticTree.emptyTree (
-							this.storage.getPiecesetDescriptor().getPieceSize(),
-							this.storage.getPiecesetDescriptor().getLength(),
-							ByteBuffer.wrap (this.info.getRootHash())
-					);
+		} else if (piece.getHash() == null) {
+
+			// Hash the piece on any worker, then store it on the device
+			submitHashJob (new Callable<byte[]>() {
+				public byte[] call() throws Exception {
+					return hashContent (piece.getContent());
 				}
-				try {
-					if ((viewsBytes != null) && (viewSignaturesBytes != null)) {
-						BDictionary viewsDictionary = (BDictionary)BDecoder.decode (viewsBytes);
-						BDictionary viewSignaturesDictionary = (BDictionary)BDecoder.decode (viewSignaturesBytes);
-						// elasticViews
-						long length = this.info.getPiecesetDescriptor().getLength();
-						for (BBinary viewLengthBinary : viewsDictionary.keySet()) {
-							byte[] viewMutableHashes = viewsDictionary.getBytes (viewLengthBinary.stringValue());
-							this.elasticTree.addView (ElasticTreeView.withMutableHashes (this.elasticTree, new Long (viewLengthBinary.stringValue()), viewMutableHashes));
-							length = new Long (viewLengthBinary.stringValue());
-						}
-						// elasticViewSignatures
-						for (BBinary viewLengthBinary : viewSignaturesDictionary.keySet()) {
-							BList signatureList = (BList)viewSignaturesDictionary.get (viewLengthBinary);
-							Long viewLength = new Long (viewLengthBinary.stringValue());
-							ViewSignature viewSignature = new ViewSignature (
-									viewLength,
-									ByteBuffer.wrap (((BBinary)signatureList.get(0)).value()),
-									ByteBuffer.wrap (((BBinary)signatureList.get(1)).value())
-							);
-							this.viewSignatures.put (viewLength, viewSignature);
+			}, new DiskJobListener<byte[]>() {
+				public void diskJobCompleted (final byte[] pieceHash) {
+					submitDiskJob (new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return commitPiece (piece, null, pieceHash);
 						}
+					}, listener);
+				}
+				public void diskJobFailed (Exception exception) {
+					piece.release();
+					listener.diskJobFailed (exception);
+				}
+			});
 
-						this.storage.extend (length);
+		} else {
 
-					}
-				} catch (InvalidEncodingException e) {
-					// TODO Test - test behaviour on failure
-					initialised = false;
+			submitDiskJob (new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return PieceDatabase.this.writePiece (piece);
 				}
-				break;
+			}, listener);
 
 		}
 
-		presentPieces = new BitField (this.storage.getPiecesetDescriptor().getNumberOfPieces());
-		this.verifiedPieces = new BitField (this.storage.getPiecesetDescriptor().getNumberOfPieces());
-		this.verifiedPieceCount = 0;
+	}
+
 
-		try {
-			byte[] resumeBytes = this.metadata.get ("resume");
-			if (resumeBytes != null) {
-				BDictionary resumeDictionary = new BDecoder (resumeBytes).decodeDictionary();
-				byte[] storageCookie = resumeDictionary.getBytes ("storageCookie");
-				byte[] presentPiecesBytes = resumeDictionary.getBytes ("presentPieces");
-				if (this.storage.validate (ByteBuffer.wrap (storageCookie))) {
-					if ((presentPiecesBytes != null) && (presentPiecesBytes.length == presentPieces.byteLength())) {
-						presentPieces = new BitField (presentPiecesBytes, this.storage.getPiecesetDescriptor().getNumberOfPieces());
-						this.verifiedPieces.not();
-						this.verifiedPieceCount = this.storage.getPiecesetDescriptor().getNumberOfPieces();
-					}
-				}
-			}
-		} catch (InvalidEncodingException e) {
-			// Resume metadata is corrupt. Leave the database unverified
-			initialised = false;
-		}
+	/**
+	 * Performs a job through the database's {@link DiskJobQueue}, or synchronously if no queue has
+	 * been set. The job is serialised with the database's other asynchronous reads and writes, and
+	 * may itself access the database synchronously
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param <T> The type of the job's result
+	 * @param job The job
+	 * @param listener The listener to inform when the job has completed
+	 */
+	private <T> void submitDiskJob (Callable<T> job, DiskJobListener<T> listener) {
 
-		this.presentPieces = presentPieces;
+		DiskJobQueue diskJobQueue = this.diskJobQueue;
+		if (diskJobQueue != null) {
+			diskJobQueue.submit (this.diskJobDevice, job, listener);
+			return;
+		}
 
-		this.metadata.put ("resume", null);
+		T result;
+		try {
+			result = job.call();
+		} catch (Exception e) {
+			listener.diskJobFailed (e);
+			return;
+		}
+		listener.diskJobCompleted (result);
 
-		return initialised;
 	}
 
 
 	/**
-	 * Gets the {@code InfoHash} of the database's {@code Info}. This will always be known
-	 * initially, but the {@code Info} may not
+	 * Performs a job that does not access the database's storage, such as hashing, through the
+	 * database's {@link DiskJobQueue} without serialising it against the database's device. If no
+	 * queue has been set, the job is performed synchronously
 	 *
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
-	 * @return An Info describing the database's content
+	 * @param <T> The type of the job's result
+	 * @param job The job
+	 * @param listener The listener to inform when the job has completed
 	 */
-	public InfoHash getInfoHash() {
+	private <T> void submitHashJob (Callable<T> job, DiskJobListener<T> listener) {
 
-		return this.infoHash;
+		DiskJobQueue diskJobQueue = this.diskJobQueue;
+		if (diskJobQueue != null) {
+			diskJobQueue.submit (null, job, listener);
+			return;
+		}
+
+		submitDiskJob (job, listener);
 
 	}
 
 
 	/**
-	 * Gets the Info describing the database's content. This may not be known initially
+	 * Sets the queue through which asynchronous reads and writes are performed. The database's
+	 * {@code Storage} is used to identify its device to the queue
 	 *
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
-	 * @return An Info describing the database's content, or {@code null} if it is not yet known
+	 * @param diskJobQueue The disk job queue, or {@code null} to perform asynchronous reads and
+	 *        writes synchronously
 	 */
-	public Info getInfo() {
+	public void setDiskJobQueue (DiskJobQueue diskJobQueue) {
 
-		return this.info;
+		setDiskJobQueue (diskJobQueue, this.storage);
 
 	}
 
 
 	/**
-	 * Gets a copy of the database's bitfield of present pieces
+	 * Sets the queue through which asynchronous reads and writes are performed. Databases whose
+	 * storage shares a device should be given the same device, so that their jobs are performed
+	 * serially
 	 *
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
-	 * @return A copy of the database's bitfield of present pieces
+	 * @param diskJobQueue The disk job queue, or {@code null} to perform asynchronous reads and
+	 *        writes synchronously
+	 * @param device The device that identifies the database's storage to the queue
 	 */
-	public BitField getPresentPieces() {
+	public void setDiskJobQueue (DiskJobQueue diskJobQueue, Object device) {
 
-		synchronized (this.presentPieces) {
-			return this.presentPieces.clone();
+		if ((diskJobQueue != null) && (device == null)) {
+			throw new IllegalArgumentException ("Invalid device");
 		}
 
+		this.diskJobDevice = device;
+		this.diskJobQueue = diskJobQueue;
+
 	}
 
 
 	/**
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
-	 * @return The number of pieces within the PieceDatabase that have been verified as being either
-	 * present or absent. While the state of the PieceDatabase is CHECKING, this figure will rise
-	 * towards the total number of pieces of the database.
+	 * @return The queue through which asynchronous reads and writes are performed, or {@code null}
+	 *         if they are performed synchronously
 	 */
-	public int getVerifiedPieceCount() {
+	public DiskJobQueue getDiskJobQueue() {
 
-		return this.verifiedPieceCount;
+		return this.diskJobQueue;
 
 	}
 
 
 	/**
-	 * Checks if a given piece is present in the database
+	 * Sets whether the database is made available while it is being verified. In check-while-active
+	 * mode, listeners are signalled that the database is available as soon as verification begins,
+	 * and are informed of each piece as it is verified. Pieces that have been verified as present
+	 * may then be read, and pieces that have been verified as absent may be written, while the
+	 * remaining pieces are checked. Pieces that have yet to be verified are neither reported as
+	 * present nor overwritten. The setting takes effect from the next verification
+	 *
+	 * <p>Note that a synchronous {@link #start(boolean)} still waits for verification to complete
 	 *
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
-	 * @param pieceNumber The piece number to check
-	 * @return True if the piece is present, otherwise false
+	 * @param checkWhileActive If {@code true}, the database is available while it is verified
 	 */
-	public boolean havePiece (int pieceNumber) {
+	public void setCheckWhileActive (boolean checkWhileActive) {
 
-		synchronized (this.presentPieces) {
-			return this.presentPieces.get (pieceNumber);
-		}
+		this.checkWhileActive = checkWhileActive;
 
 	}
 
 
 	/**
-	 * @return The descriptor for the underlying {@link Storage}
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return {@code true} if the database is made available while it is being verified, otherwise
+	 *         {@code false}
 	 */
-	public PiecesetDescriptor getPiecesetDescriptor() {
-
-		synchronized (this.stateMachine) {
-
-			return this.storage.getPiecesetDescriptor();
+	public boolean isCheckWhileActive() {
 
-		}
+		return this.checkWhileActive;
 
 	}
 
 
 	/**
-	 * Gets the view signature for a given view length
+	 * Sets the interval between periodic snapshots of the database's state. Between snapshots, the
+	 * pieces written are recorded in a journal, so that if the database is not terminated cleanly,
+	 * only the pieces written since the last snapshot need to be checked again when its state is
+	 * resumed. Has no effect if the database has no {@code Metadata}
 	 *
-	 * @param viewLength The view length
-	 * @return The view signature
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param checkpointInterval The interval in milliseconds, or zero to disable periodic
+	 *        checkpoints
 	 */
-	public ViewSignature getViewSignature (long viewLength) {
-
-		synchronized (this.stateMachine) {
-
-			return this.viewSignatures.get (viewLength);
+	public void setCheckpointInterval (long checkpointInterval) {
 
+		if (checkpointInterval < 0) {
+			throw new IllegalArgumentException ("Invalid checkpoint interval");
 		}
 
+		this.checkpointInterval = checkpointInterval;
+
 	}
 
 
 	/**
-	 * Verifies a view signature against the torrent's DSA public key
+	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
-	 * @param viewSignature The view signature
-	 * @return {@code true} if the signature verified correctly, otherwise {@code false}
+	 * @return The interval in milliseconds between periodic snapshots of the database's state, or
+	 *         zero if periodic checkpoints are disabled
 	 */
-	public boolean verifyViewSignature (ViewSignature viewSignature) {
+	public long getCheckpointInterval() {
 
-		synchronized (this.stateMachine) {
+		return this.checkpointInterval;
 
-			if (viewSignature.getViewLength() == this.info.getPiecesetDescriptor().getLength()) {
-				return true;
-			}
+	}
 
-			byte[] token = new byte[48];
-			System.arraycopy (this.info.getHash().getBytes(), 0, token, 0, 20);
-			ByteBuffer viewLengthBuffer = ByteBuffer.allocate (8);
-			viewLengthBuffer.asLongBuffer().put (viewSignature.getViewLength());
-			viewLengthBuffer.get (token, 20, 8);
-			viewSignature.getViewRootHash().get (token, 28, 20);
 
-			try {
-				Signature verify = Signature.getInstance ("SHAwithDSA", "SUN");
-				verify.initVerify (this.publicKey);
-				verify.update (token);
-				ByteBuffer derSignature = DSAUtil.p1363SignatureToDerSignature (viewSignature.getSignature());
-				if (derSignature == null) {
-					return false;
-				}
-				return verify.verify (derSignature.array());
-			} catch (GeneralSecurityException e) {
-				return false;
-			}
+	/**
+	 * Checkpoints the database's state immediately through its {@code Metadata}. If the database is
+	 * fully verified, a snapshot of its state is written; otherwise, the pieces written since the
+	 * last checkpoint are recorded in the journal. Has no effect if the database has no
+	 * {@code Metadata}, or is not currently available
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 */
+	public void checkpoint() {
 
-		}
+		writeCheckpoint (true);
 
 	}
 
 
 	/**
-	 * Extend the database with a new unpopulated view
+	 * Sets the scheduler through which the database is verified. The setting takes effect from the
+	 * next verification
 	 *
-	 * @param viewSignature The signature of the new view
-	 * @throws IOException on any I/O error
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param verificationScheduler The verification scheduler, or {@code null} to verify on a
+	 *        dedicated thread
+	 * @param device The device that identifies the database's storage to the scheduler
 	 */
-	public void extend (ViewSignature viewSignature) throws IOException {
+	public void setVerificationScheduler (VerificationScheduler verificationScheduler, Object device) {
 
-		if (this.info.getPieceStyle() != PieceStyle.ELASTIC) {
-			throw new IllegalStateException ("Cannot extend non-elastic database");
+		if ((verificationScheduler != null) && (device == null)) {
+			throw new IllegalArgumentException ("Invalid device");
 		}
 
 		synchronized (this.stateMachine) {
 
-			if (this.stateMachine.getState() != State.AVAILABLE) {
-				throw new IllegalStateException();
-			}
-
-			PiecesetDescriptor originalDescriptor = this.storage.getPiecesetDescriptor();
-
-			// Extend the database
-			try {
-				this.storage.extend (viewSignature.getViewLength());
-				this.presentPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
-				this.verifiedPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
-			} catch (IOException e) {
-				this.workQueue.execute (new Runnable() {
-					public void run() {
-						PieceDatabase.this.stateMachine.input (Input.ERROR);
-					}
-				});
-				throw e;
-			}
-
-			// Create a new view
-			int additionalPieces = this.storage.getPiecesetDescriptor().getNumberOfPieces()- originalDescriptor.getNumberOfPieces();
-			int additionalHashes = additionalPieces + (originalDescriptor.isRegular() ? 0 : 1);
-			for (int i = 0; i < additionalHashes; i++) {
-				int pieceNumber = this.storage.getPiecesetDescriptor().getNumberOfPieces() - additionalHashes + i;
-				this.presentPieces.clear (pieceNumber);
-				this.verifiedPieces.set (pieceNumber);
-			}
-			this.verifiedPieceCount += additionalPieces;
-			this.elasticTree.addView (viewSignature.getViewLength(), viewSignature.getViewRootHash());
-
-			this.viewSignatures.put (viewSignature.getViewLength(), viewSignature);
+			this.verificationScheduler = verificationScheduler;
+			this.verificationDevice = device;
 
 		}
 
@@ -941,90 +3623,47 @@ public class PieceDatabase {
 
 
 	/**
-	 * Extend the database with additional data
+	 * Sets the priority with which the database's verification is scheduled. If a verification is
+	 * waiting to start, its priority is changed; otherwise the priority applies to the next
+	 * verification only, after which it reverts to {@link VerificationScheduler.Priority#USER}. A
+	 * verification scheduled with {@link VerificationScheduler.Priority#NORMAL} priority whose
+	 * storage already backs every piece is expected to be complete, and is scheduled with
+	 * {@link VerificationScheduler.Priority#SEED} priority instead
 	 *
-	 * @param privateKey The private key to sign the new root hash
-	 * @param length The new total length of the database
-	 * @return The signature of the new view
-	 * @throws IOException on any I/O error
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param priority The priority
 	 */
-	public ViewSignature extendDataInPlace (PrivateKey privateKey, long length) throws IOException {
+	public void setVerificationPriority (VerificationScheduler.Priority priority) {
 
-		// TODO Refactor - partial merge with extendData
-
-		if (this.info.getPieceStyle() != PieceStyle.ELASTIC) {
-			throw new IllegalStateException ("Cannot extend non-elastic database");
+		if (priority == null) {
+			throw new IllegalArgumentException ("Invalid priority");
 		}
 
 		synchronized (this.stateMachine) {
 
-			if (this.stateMachine.getState() != State.AVAILABLE) {
-				throw new IllegalStateException();
-			}
-
-			PiecesetDescriptor originalDescriptor = this.storage.getPiecesetDescriptor();
-
-			// Extend the database and write the additional data
-			try {
-				this.storage.extend (length);
-				this.presentPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
-				this.verifiedPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
-			} catch (IOException e) {
-				this.workQueue.execute (new Runnable() {
-					public void run() {
-						PieceDatabase.this.stateMachine.input (Input.ERROR);
-					}
-				});
-				throw e;
+			if ((this.verificationCheck != null) && this.verificationCheck.isWaiting()) {
+				this.verificationCheck.setPriority (priority);
+			} else {
+				this.verificationPriority = priority;
 			}
 
-			// Create a new view
-			int additionalPieces = this.storage.getPiecesetDescriptor().getNumberOfPieces() - originalDescriptor.getNumberOfPieces();
-			int additionalHashes = additionalPieces + (originalDescriptor.isRegular() ? 0 : 1);
-			byte[][] leafHashes = new byte[additionalHashes][];
-			for (int i = 0; i < additionalHashes; i++) {
-				int pieceNumber = this.storage.getPiecesetDescriptor().getNumberOfPieces() - additionalHashes + i;
-				ByteBuffer storedPiece = PieceDatabase.this.storage.read (pieceNumber);
-				leafHashes[i] = new byte[20];
-				this.digest.reset();
-				this.digest.update (storedPiece);
-				try {
-					this.digest.digest (leafHashes[i], 0, 20);
-				} catch (DigestException e) {
-					// Shouldn't happen
-					throw new InternalError (e.getMessage());
-				}
-				this.presentPieces.set (pieceNumber);
-				this.verifiedPieces.set (pieceNumber);
-			}
-			this.verifiedPieceCount += additionalPieces;
+		}
 
-			this.elasticTree.addView (length, leafHashes);
-			garbageCollectViews();
+	}
 
-			// Generate the signature for the new view
-			byte[] viewRootHash = this.elasticTree.getView(length).getRootHash();
-			byte[] token = new byte[48];
-			System.arraycopy (this.info.getHash().getBytes(), 0, token, 0, 20);
-			ByteBuffer viewLengthBuffer = ByteBuffer.allocate (8);
-			viewLengthBuffer.asLongBuffer().put (length);
-			viewLengthBuffer.get (token, 20, 8);
-			System.arraycopy (viewRootHash, 0, token, 28, 20);
 
-			byte[] derSignature = null;
-			try {
-				Signature dsa = Signature.getInstance ("SHAwithDSA", "SUN");
-				dsa.initSign (privateKey);
-				dsa.update (token);
-				derSignature = dsa.sign();
-			} catch (GeneralSecurityException e) {
-				throw new InternalError (e.getMessage());
-			}
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return {@code true} if the database's verification has been scheduled and is waiting to
+	 *         start, otherwise {@code false}
+	 */
+	public boolean isVerificationWaiting() {
 
-			ViewSignature signature = new ViewSignature (length, ByteBuffer.wrap (viewRootHash), ByteBuffer.wrap (DSAUtil.derSignatureToP1363Signature (derSignature)));
-			this.viewSignatures.put (length, signature);
+		synchronized (this.stateMachine) {
 
-			return signature;
+			return (this.verificationCheck != null) && this.verificationCheck.isWaiting();
 
 		}
 
@@ -1032,127 +3671,96 @@ public class PieceDatabase {
 
 
 	/**
-	 * Extend the database with additional data
+	 * Sets the pool from which the database allocates transient buffers. The pool should be set
+	 * before the database is started
 	 *
-	 * @param privateKey The private key to sign the new root hash
-	 * @param additionalData The additional data to append to the database
-	 * @return The signature of the new view
-	 * @throws IOException on any I/O error
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param bufferPool The buffer pool
 	 */
-	public ViewSignature extendData (PrivateKey privateKey, ByteBuffer additionalData) throws IOException {
+	public void setBufferPool (BufferPool bufferPool) {
 
-		if (this.info.getPieceStyle() != PieceStyle.ELASTIC) {
-			throw new IllegalStateException ("Cannot extend non-elastic database");
+		if (bufferPool == null) {
+			throw new IllegalArgumentException();
 		}
 
-		synchronized (this.stateMachine) {
+		this.bufferPool = bufferPool;
 
-			if (this.stateMachine.getState() != State.AVAILABLE) {
-				throw new IllegalStateException();
-			}
+	}
 
-			PiecesetDescriptor originalDescriptor = this.storage.getPiecesetDescriptor();
-			int originalLastPiece = (originalDescriptor.getLength() == 0) ? 0 : originalDescriptor.getNumberOfPieces () - 1;
-			long length = originalDescriptor.getLength() + additionalData.remaining();
 
-			// Extend the database and write the additional data
-			try {
-				this.storage.extend (length);
-				this.presentPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
-				this.verifiedPieces.extend (this.storage.getPiecesetDescriptor().getNumberOfPieces());
-				WritableByteChannel channel = this.storage.openOutputChannel (originalLastPiece, originalDescriptor.getLastPieceLength());
-				channel.write (additionalData);
-			} catch (IOException e) {
-				this.workQueue.execute (new Runnable() {
-					public void run() {
-						PieceDatabase.this.stateMachine.input (Input.ERROR);
-					}
-				});
-				throw e;
-			}
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The pool from which the database allocates transient buffers
+	 */
+	public BufferPool getBufferPool() {
 
-			// Create a new view
-			int additionalPieces = this.storage.getPiecesetDescriptor().getNumberOfPieces() - originalDescriptor.getNumberOfPieces();
-			int additionalHashes = additionalPieces + (originalDescriptor.isRegular() ? 0 : 1);
-			byte[][] leafHashes = new byte[additionalHashes][];
-			for (int i = 0; i < additionalHashes; i++) {
-				int pieceNumber = this.storage.getPiecesetDescriptor().getNumberOfPieces() - additionalHashes + i;
-				ByteBuffer storedPiece = PieceDatabase.this.storage.read (pieceNumber);
-				leafHashes[i] = new byte[20];
-				this.digest.reset();
-				this.digest.update (storedPiece);
-				try {
-					this.digest.digest (leafHashes[i], 0, 20);
-				} catch (DigestException e) {
-					// Shouldn't happen
-					throw new InternalError (e.getMessage());
-				}
-				this.presentPieces.set (pieceNumber);
-				this.verifiedPieces.set (pieceNumber);
-			}
-			this.verifiedPieceCount += additionalPieces;
+		return this.bufferPool;
+
+	}
 
-			this.elasticTree.addView (length, leafHashes);
 
-			// Generate the signature for the new view
-			byte[] viewRootHash = this.elasticTree.getView(length).getRootHash();
-			byte[] token = new byte[48];
-			System.arraycopy (this.info.getHash().getBytes(), 0, token, 0, 20);
-			ByteBuffer viewLengthBuffer = ByteBuffer.allocate (8);
-			viewLengthBuffer.asLongBuffer().put (length);
-			viewLengthBuffer.get (token, 20, 8);
-			System.arraycopy (viewRootHash, 0, token, 28, 20);
+	/**
+	 * Holds a verified piece in memory to be written later, writing all unwritten pieces if the
+	 * write-back buffer is full. If the same piece is already held, the new copy is released, as
+	 * the held copy may be in the process of being written
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the access lock held
+	 *
+	 * @param piece The piece, which is released once it has been written
+	 * @throws IOException If the write-back buffer was full and could not be written
+	 */
+	private void holdUnwrittenPiece (Piece piece) throws IOException {
 
-			byte[] derSignature = null;
-			try {
-				Signature dsa = Signature.getInstance ("SHAwithDSA", "SUN");
-				dsa.initSign (privateKey);
-				dsa.update (token);
-				derSignature = dsa.sign();
-			} catch (GeneralSecurityException e) {
-				throw new InternalError (e.getMessage());
+		boolean flushNeeded = false;
+
+		synchronized (this.unwrittenPieces) {
+
+			if (this.unwrittenPieces.containsKey (piece.getPieceNumber())) {
+				piece.release();
+				return;
 			}
 
-			ViewSignature signature = new ViewSignature (length, ByteBuffer.wrap (viewRootHash), ByteBuffer.wrap (DSAUtil.derSignatureToP1363Signature (derSignature)));
-			this.viewSignatures.put (length, signature);
+			this.unwrittenPieces.put (piece.getPieceNumber(), piece);
+			this.unwrittenByteCount += piece.getContent().remaining();
 
-			garbageCollectViews();
+			if (this.unwrittenByteCount >= this.writeBackCapacity) {
+				flushNeeded = true;
+			} else if (!this.flushScheduled) {
+				this.flushScheduled = true;
+				this.workQueue.schedule (this.flushRunnable, WRITE_BACK_DELAY, TimeUnit.MILLISECONDS);
+			}
 
-			return signature;
+		}
 
+		if (flushNeeded) {
+			flushUnwrittenPieces();
 		}
 
 	}
 
 
 	/**
-	 * Reads a piece from the database
+	 * Writes any verified pieces held in the write-back buffer to storage
 	 *
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
-	 * @param pieceNumber The piece number to read
-	 * @return The piece
-	 * @throws IOException If the piece requested is not present, or on any other I/O error
+	 * @throws IllegalStateException if the state of the database is not currently AVAILABLE
+	 * @throws IOException on any I/O error
 	 */
-	public Piece readPiece (int pieceNumber) throws IOException {
+	public void flush() throws IOException {
 
-		synchronized (this.stateMachine) {
+		this.accessLock.readLock().lock();
 
-			if (this.stateMachine.getState() != State.AVAILABLE) {
-				throw new IllegalStateException();
-			}
+		try {
 
-			if (!havePiece (pieceNumber)) {
-				throw new IOException ("Piece " + pieceNumber + " not present");
+			if (!isActive()) {
+				throw new IllegalStateException();
 			}
 
 			try {
-				ByteBuffer content = this.storage.read (pieceNumber);
-				HashChain hashChain = null;
-				if (this.elasticTree != null) {
-					hashChain = this.elasticTree.getHashChain (pieceNumber, this.storage.getPiecesetDescriptor().getPieceLength (pieceNumber));
-				}
-				return new Piece (pieceNumber, content, hashChain);
+				flushUnwrittenPieces();
 			} catch (IOException e) {
 				this.workQueue.execute (new Runnable() {
 					public void run() {
@@ -1162,101 +3770,121 @@ public class PieceDatabase {
 				throw e;
 			}
 
+		} finally {
+			this.accessLock.readLock().unlock();
 		}
 
 	}
 
 
 	/**
-	 * Verifies a piece's hash and stores it in the database if it is correct
+	 * Sets the capacity of the buffer in which verified pieces are held before being written to
+	 * storage. Pieces are written, merged into runs of consecutive pieces, when the buffer is full,
+	 * when a piece has been held for a short time, and when the database stops. Held pieces are
+	 * present, and are read from memory until they are written
 	 *
 	 * <p><b>Thread safety:</b> This method is thread safe
 	 *
-	 * @param piece The piece
-	 * @return {@code true} if the piece verified correctly and was stored, otherwise {@code false}
-	 * @throws IllegalStateException if the state of the database is not currently AVAILABLE
-	 * @throws IOException on any I/O error
+	 * @param writeBackCapacity The capacity of the buffer in bytes, or zero to write pieces to
+	 *        storage immediately
+	 * @throws IOException If the capacity was reduced, and the pieces held could not be written
 	 */
-	public boolean writePiece (Piece piece) throws IOException {
+	public void setWriteBackCapacity (long writeBackCapacity) throws IOException {
 
-		synchronized (this.stateMachine) {
+		if (writeBackCapacity < 0) {
+			throw new IllegalArgumentException ("Invalid capacity");
+		}
 
-			if (this.stateMachine.getState() != State.AVAILABLE) {
-				throw new IllegalStateException();
-			}
+		boolean flushNeeded;
+		synchronized (this.unwrittenPieces) {
+			this.writeBackCapacity = writeBackCapacity;
+			flushNeeded = (this.unwrittenByteCount > 0) && (this.unwrittenByteCount >= writeBackCapacity);
+		}
 
-			// Build hash of the supplied piece
-			byte[] checkPieceHash = new byte[20];
-			this.digest.reset();
-			this.digest.update (piece.getContent());
-			try {
-				this.digest.digest (checkPieceHash, 0, 20);
-			} catch (GeneralSecurityException e) {
-				// Shouldn't happen
-				throw new InternalError (e.getMessage());
-			}
+		if (flushNeeded) {
+			flush();
+		}
 
-			if (this.elasticTree != null) {
+	}
 
-				HashChain hashChain = piece.getHashChain();
-				ViewSignature viewSignature = piece.getViewSignature();
 
-				// Create the view and store the signature if necessary
-				if ((viewSignature != null) && (this.elasticTree.getView (viewSignature.getViewLength()) == null)) {
-					this.elasticTree.addView (viewSignature.getViewLength(), viewSignature.getViewRootHash());
-					this.viewSignatures.put (viewSignature.getViewLength(), viewSignature);
-				}
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The capacity in bytes of the buffer in which verified pieces are held before being
+	 *         written to storage, or zero if pieces are written immediately
+	 */
+	public long getWriteBackCapacity() {
 
-				// Verify the hash chain against the tree
-				if (!this.elasticTree.verifyHashChain (piece.getPieceNumber(), hashChain)) {
-					return false;
-				}
+		synchronized (this.unwrittenPieces) {
 
-				// Compare hash of supplied piece to known valid hash
-				if (!this.elasticTree.getView(hashChain.getViewLength()).verifyLeafHash (piece.getPieceNumber(), checkPieceHash)) {
-					return false;
-				}
+			return this.writeBackCapacity;
 
-			} else {
+		}
 
-				// Compare hash of supplied piece to known valid hash
-				if (!this.info.comparePieceHash (piece.getPieceNumber(), checkPieceHash)) {
-					return false;
-				}
+	}
 
-			}
 
-			try {
-				this.storage.write (piece.getPieceNumber(), piece.getContent());
-			} catch (IOException e) {
-				this.workQueue.execute (new Runnable() {
-					public void run() {
-						PieceDatabase.this.stateMachine.input (Input.ERROR);
-					}
-				});
-				throw e;
-			}
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The total size in bytes of the verified pieces not yet written to storage
+	 */
+	public long getUnwrittenByteCount() {
 
-			synchronized (this.presentPieces) {
-				this.presentPieces.set (piece.getPieceNumber());
-			}
+		synchronized (this.unwrittenPieces) {
 
-			return true;
+			return this.unwrittenByteCount;
+
+		}
+
+	}
+
+
+	/**
+	 * Sets the shared piece cache through which the database's pieces are read. A newly written
+	 * piece is also placed in the cache
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param pieceCache The piece cache, or {@code null} to read pieces directly from storage
+	 */
+	public void setPieceCache (PieceCache pieceCache) {
+
+		synchronized (this.stateMachine) {
+
+			invalidateCachedPieces();
+			this.pieceCache = (pieceCache == null) ? null : pieceCache.createPartition();
 
 		}
 
 	}
 
 
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The database's partition of the shared piece cache, which holds the statistics of its
+	 *         use of the cache, or {@code null} if no piece cache is in use
+	 */
+	public PieceCache.Partition getPieceCachePartition() {
+
+		return this.pieceCache;
+
+	}
+
+
 	/**
 	 * Dispose of tree views and associated signatures that are not necessary for the serving of
 	 * present pieces
 	 */
 	public void garbageCollectViews() {
 
-		List<Long> evictedViews = this.elasticTree.garbageCollectViews();
-		for (Long viewLength : evictedViews) {
-			this.viewSignatures.remove (viewLength);
+		synchronized (this.viewSignatures) {
+			List<Long> evictedViews = this.elasticTree.garbageCollectViews();
+			for (Long viewLength : evictedViews) {
+				this.viewSignatures.remove (viewLength);
+			}
 		}
 
 	}
@@ -1415,9 +4043,8 @@ public class PieceDatabase {
 
 		// Initialise database with available information if we could not resume
 		if (!initialised) {
-			this.verifiedPieces = new BitField (this.storage.getPiecesetDescriptor().getNumberOfPieces());
-			this.verifiedPieceCount = 0;
-			this.presentPieces = new BitField (this.storage.getPiecesetDescriptor().getNumberOfPieces());
+			this.verifiedPieces.assign (new BitField (this.storage.getPiecesetDescriptor().getNumberOfPieces()));
+			this.presentPieces.assign (new BitField (this.storage.getPiecesetDescriptor().getNumberOfPieces()));
 
 			if ((this.info.getPieceStyle() == PieceStyle.MERKLE) || (this.info.getPieceStyle() == PieceStyle.ELASTIC)) {
 				this.elasticTree = ElasticTree.emptyTree (
@@ -1428,15 +4055,16 @@ public class PieceDatabase {
 			}
 		}
 
-		try {
-			this.digest = MessageDigest.getInstance ("SHA");
-		} catch (NoSuchAlgorithmException e) {
-			// Shouldn't happen
-			throw new InternalError (e.getMessage());
+		for (int i = 0; i < PIECE_LOCK_STRIPES; i++) {
+			this.pieceLocks[i] = new Object();
 		}
 
 		this.workQueue = new WorkQueue ("PieceDatabase WorkQueue - " + CharsetUtil.hexencode (info.getHash().getBytes()));
 
+		if (this.metadata != null) {
+			this.workQueue.scheduleWithFixedDelay (this.checkpointRunnable, JOURNAL_INTERVAL, JOURNAL_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
 	}
 
 
@@ -1456,15 +4084,9 @@ public class PieceDatabase {
 		this.info = null;
 		this.publicKey = null;
 		this.elasticTree = null;
-		this.verifiedPieces = new BitField (0);
-		this.verifiedPieceCount = 0;
-		this.presentPieces = new BitField (0);
 
-		try {
-			this.digest = MessageDigest.getInstance ("SHA");
-		} catch (NoSuchAlgorithmException e) {
-			// Shouldn't happen
-			throw new InternalError (e.getMessage());
+		for (int i = 0; i < PIECE_LOCK_STRIPES; i++) {
+			this.pieceLocks[i] = new Object();
 		}
 
 		this.workQueue = new WorkQueue ("PieceDatabase WorkQueue - " + CharsetUtil.hexencode (infoHash.getBytes()));
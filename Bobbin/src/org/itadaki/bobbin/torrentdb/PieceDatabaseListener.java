@@ -15,6 +15,16 @@ public interface PieceDatabaseListener {
 	 */
 	public void pieceDatabaseAvailable();
 
+	/**
+	 * Indicates that a piece has been verified while the PieceDatabase is available during its
+	 * initial check (see {@link PieceDatabase#setCheckWhileActive(boolean)}). This is called on the
+	 * thread that verified the piece, with no locks held
+	 *
+	 * @param pieceNumber The number of the piece
+	 * @param present If {@code true}, the piece was verified as present, otherwise as absent
+	 */
+	public void pieceDatabasePieceVerified (int pieceNumber, boolean present);
+
 	/**
 	 * Indicates that the PieceDatabase is stopped
 	 */
@@ -7,6 +7,7 @@ package org.itadaki.bobbin.torrentdb;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
 import org.itadaki.bobbin.util.BitField;
 
@@ -56,6 +57,67 @@ public interface Storage {
 	 */
 	public boolean validate (ByteBuffer cookie) throws IOException;
 
+	/**
+	 * Validates the state of the {@code Storage} piece by piece against the given opaque cookie
+	 * that was returned by {@link #close()} or {@link #getValidationCookie()} on a previous,
+	 * identically constructed {@code Storage}. Unlike {@link #validate(ByteBuffer)}, a change to one
+	 * part of the underlying storage invalidates only the pieces that it holds. The same
+	 * restrictions on when this method may be called apply as for {@link #validate(ByteBuffer)}
+	 *
+	 * <p>If a set of pieces known to have been written since the cookie was obtained is given, the
+	 * written pieces are always invalid. A change to part of the underlying storage invalidates
+	 * every piece that it holds, unless the change is recorded in the cookie through
+	 * {@link #mergeValidationCookie(ByteBuffer, ByteBuffer)}
+	 *
+	 * @param cookie The opaque cookie to validate against. Passing {@code null} will always result
+	 *        in a return of {@code null}
+	 * @param writtenPieces The pieces written since the cookie was obtained, or {@code null}
+	 * @return A bitfield containing a {@code true} at every piece index whose underlying storage is
+	 *         unchanged since the cookie was obtained, and a {@code false} at every other position,
+	 *         or {@code null} if the cookie cannot be validated against the {@code Storage}
+	 * @throws IOException If an error occurs validating the underlying storage
+	 */
+	public BitField validatePieces (ByteBuffer cookie, BitField writtenPieces) throws IOException;
+
+	/**
+	 * Gets an opaque cookie representing the current state of the {@code Storage}, which can be
+	 * passed to {@link #validatePieces(ByteBuffer, BitField)} on a subsequent identically
+	 * constructed {@code Storage}. Unlike {@link #close()}, the {@code Storage} remains open.
+	 * Data that has been written to the {@code Storage} but that has not yet reached the underlying
+	 * storage may not be represented by the cookie
+	 *
+	 * @return An opaque cookie, or {@code null} if validation is unsupported
+	 * @throws IOException If an error occurs examining the underlying storage
+	 */
+	public ByteBuffer getValidationCookie() throws IOException;
+
+	/**
+	 * Gets an opaque partial cookie representing the current state of only those parts of the
+	 * {@code Storage} that hold the given pieces. The partial cookie can be merged through
+	 * {@link #mergeValidationCookie(ByteBuffer, ByteBuffer)} into a cookie returned by
+	 * {@link #getValidationCookie()}, in order to record that those parts have since been changed
+	 * through the {@code Storage}. Data that has been written to the {@code Storage} but that has
+	 * not yet reached the underlying storage may not be represented by the cookie
+	 *
+	 * @param pieces The pieces whose underlying storage should be represented
+	 * @return An opaque partial cookie, or {@code null} if validation is unsupported
+	 * @throws IOException If an error occurs examining the underlying storage
+	 */
+	public ByteBuffer getValidationCookie (BitField pieces) throws IOException;
+
+	/**
+	 * Merges an opaque partial cookie returned by {@link #getValidationCookie(BitField)} into an
+	 * opaque cookie returned by {@link #getValidationCookie()} or {@link #close()}, on a previous,
+	 * identically constructed {@code Storage}. The parts of the storage represented by the partial
+	 * cookie take the state that it records. Neither cookie is modified
+	 *
+	 * @param cookie The cookie to merge into
+	 * @param partialCookie The partial cookie to merge
+	 * @return The merged cookie, or {@code null} if either cookie is {@code null} or cannot be
+	 *         validated against the {@code Storage}
+	 */
+	public ByteBuffer mergeValidationCookie (ByteBuffer cookie, ByteBuffer partialCookie);
+
 	/**
 	 * Extends the total length of the storage
 	 *
@@ -87,6 +149,49 @@ public interface Storage {
 	 */
 	public ByteBuffer read (int pieceNumber) throws IOException;
 
+	/**
+	 * Reads a single block from storage. Only the bytes within the block are read.
+	 * No underlying storage is allocated as a result of invoking this method
+	 *
+	 * @param descriptor The descriptor of the block to read
+	 * @return The content of the block
+	 * @throws IOException if an error occurred reading from the underlying storage
+	 * @throws IndexOutOfBoundsException if the requested block is not wholly within a piece of the
+	 *         storage
+	 */
+	public ByteBuffer read (BlockDescriptor descriptor) throws IOException;
+
+	/**
+	 * Reads a single block from storage into a supplied buffer, allowing the caller to reuse or
+	 * pool its buffers. Only the bytes within the block are read.
+	 * No underlying storage is allocated as a result of invoking this method
+	 *
+	 * @param descriptor The descriptor of the block to read
+	 * @param buffer The buffer to read into, which must have at least the block's length remaining.
+	 *        The block is read starting at the buffer's position, which is advanced by the length
+	 *        of the block
+	 * @throws IOException if an error occurred reading from the underlying storage
+	 * @throws IndexOutOfBoundsException if the requested block is not wholly within a piece of the
+	 *         storage
+	 */
+	public void read (BlockDescriptor descriptor, ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Gets the file regions that hold a single block, allowing the block to be transferred directly
+	 * from the underlying files without being copied through the heap. The channels of the
+	 * returned regions may subsequently be closed by the {@code Storage}, in which case the regions
+	 * of any part of the block remaining to be transferred should be requested again.
+	 * No underlying storage is allocated as a result of invoking this method
+	 *
+	 * @param descriptor The descriptor of the block
+	 * @return The regions that in order make up the block, or {@code null} if the {@code Storage}
+	 *         is not backed by files or the block is not fully backed by allocated storage
+	 * @throws IOException if an error occurred accessing the underlying storage
+	 * @throws IndexOutOfBoundsException if the requested block is not wholly within a piece of the
+	 *         storage
+	 */
+	public List<FileRegion> getRegions (BlockDescriptor descriptor) throws IOException;
+
 	/**
 	 * Writes a piece to storage
 	 *
@@ -100,6 +205,18 @@ public interface Storage {
 	 */
 	public void write (int pieceNumber, ByteBuffer buffer) throws IOException;
 
+	/**
+	 * Writes a run of consecutive pieces to storage. Where the underlying storage allows, the run
+	 * is written with as few operations as possible
+	 *
+	 * @param pieceNumber The index of the first piece to write
+	 * @param buffers The buffers containing the pieces to write, each of which must contain exactly
+	 *                the bytes of one piece
+	 * @throws IOException if an error occurred writing to the underlying storage
+	 * @throws IndexOutOfBoundsException if any of the pieces' indices are out of bounds
+	 */
+	public void write (int pieceNumber, ByteBuffer[] buffers) throws IOException;
+
 	/**
 	 * Creates a WritableByteChannel to write to the storage
 	 *
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.torrentdb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Schedules the verification of multiple {@link PieceDatabase}s, limiting the number of
+ * verifications that run concurrently against each storage device
+ *
+ * <p>Each check is submitted against a device, which may be any object that identifies a set of
+ * storage that should not be read by too many checks at once. Waiting checks are started in order
+ * of their {@link Priority}, and in order of submission within a priority.
+ *
+ * <p>A check runs on a thread belonging to the scheduler. A running check that is cancelled is
+ * interrupted, and is expected to finish promptly.
+ */
+public class VerificationScheduler {
+
+	/**
+	 * The default number of checks that may run concurrently against each device
+	 */
+	public static final int DEFAULT_CHECKS_PER_DEVICE = 1;
+
+	/**
+	 * The priority of a check
+	 */
+	public static enum Priority {
+		/** A check of a torrent that was explicitly started by the user */
+		USER,
+		/** A check of a torrent started together with others */
+		NORMAL,
+		/** A check of a torrent that is expected to be complete */
+		SEED
+	}
+
+	/**
+	 * Orders waiting checks by priority, then by order of submission
+	 */
+	private static final Comparator<Check> CHECK_ORDER = new Comparator<Check>() {
+		public int compare (Check check1, Check check2) {
+			int order = check1.priority.compareTo (check2.priority);
+			if (order == 0) {
+				order = (check1.sequence < check2.sequence) ? -1 : ((check1.sequence == check2.sequence) ? 0 : 1);
+			}
+			return order;
+		}
+	};
+
+	/**
+	 * The executor that runs checks
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * The devices that currently have checks waiting or running
+	 */
+	private final Map<Object,Device> devices = new HashMap<Object,Device>();
+
+	/**
+	 * The number of checks that may run concurrently against each device
+	 */
+	private int checksPerDevice;
+
+	/**
+	 * The sequence number to give the next submitted check
+	 */
+	private long nextSequence = 0;
+
+	/**
+	 * If {@code true}, the scheduler has been shut down and no further checks will be accepted
+	 */
+	private boolean shutdown = false;
+
+
+	/**
+	 * The waiting and running checks of a single device
+	 */
+	private static class Device {
+
+		/**
+		 * The device's waiting checks
+		 */
+		public final PriorityQueue<Check> waitingChecks = new PriorityQueue<Check> (11, CHECK_ORDER);
+
+		/**
+		 * The number of the device's checks that are running
+		 */
+		public int runningCount = 0;
+
+	}
+
+
+	/**
+	 * A check submitted to the scheduler
+	 */
+	public class Check {
+
+		/**
+		 * The device that the check reads
+		 */
+		private final Object device;
+
+		/**
+		 * The check's sequence number
+		 */
+		private final long sequence;
+
+		/**
+		 * The check to run
+		 */
+		private final Runnable runnable;
+
+		/**
+		 * The check's priority
+		 */
+		private Priority priority;
+
+		/**
+		 * If {@code true}, the check has been started
+		 */
+		private boolean started = false;
+
+		/**
+		 * If {@code true}, the check has been cancelled
+		 */
+		private boolean cancelled = false;
+
+		/**
+		 * The thread running the check, if it is running
+		 */
+		private Thread thread = null;
+
+
+		/**
+		 * Cancels the check. If it has not yet started, it is discarded without running; if it is
+		 * running, its thread is interrupted
+		 *
+		 * <p><b>Thread safety:</b> This method is thread safe
+		 *
+		 * @return {@code true} if the check was discarded without running, or {@code false} if it
+		 *         had already started
+		 */
+		public boolean cancel() {
+
+			synchronized (VerificationScheduler.this) {
+
+				if (!this.started) {
+					Device device = VerificationScheduler.this.devices.get (this.device);
+					device.waitingChecks.remove (this);
+					if ((device.runningCount == 0) && device.waitingChecks.isEmpty()) {
+						removeDevice (this.device);
+					}
+					this.cancelled = true;
+					return true;
+				}
+
+				if (!this.cancelled) {
+					this.cancelled = true;
+					if (this.thread != null) {
+						this.thread.interrupt();
+					}
+				}
+
+				return false;
+
+			}
+
+		}
+
+
+		/**
+		 * Changes the priority of the check. This has no effect once the check has started
+		 *
+		 * <p><b>Thread safety:</b> This method is thread safe
+		 *
+		 * @param priority The new priority
+		 */
+		public void setPriority (Priority priority) {
+
+			synchronized (VerificationScheduler.this) {
+
+				if (!this.started && !this.cancelled) {
+					Device device = VerificationScheduler.this.devices.get (this.device);
+					device.waitingChecks.remove (this);
+					this.priority = priority;
+					device.waitingChecks.add (this);
+				}
+
+			}
+
+		}
+
+
+		/**
+		 * <p><b>Thread safety:</b> This method is thread safe
+		 *
+		 * @return The check's priority
+		 */
+		public Priority getPriority() {
+
+			synchronized (VerificationScheduler.this) {
+				return this.priority;
+			}
+
+		}
+
+
+		/**
+		 * <p><b>Thread safety:</b> This method is thread safe
+		 *
+		 * @return {@code true} if the check is waiting to start, otherwise {@code false}
+		 */
+		public boolean isWaiting() {
+
+			synchronized (VerificationScheduler.this) {
+				return !this.started && !this.cancelled;
+			}
+
+		}
+
+
+		/**
+		 * Runs the check on the current thread
+		 */
+		private void run() {
+
+			synchronized (VerificationScheduler.this) {
+				this.thread = Thread.currentThread();
+				if (this.cancelled) {
+					this.thread.interrupt();
+				}
+			}
+
+			try {
+				this.runnable.run();
+			} finally {
+				synchronized (VerificationScheduler.this) {
+					this.thread = null;
+					// Clear any interrupt aimed at the check before the thread is reused
+					Thread.interrupted();
+					Device device = VerificationScheduler.this.devices.get (this.device);
+					device.runningCount--;
+					startChecks (this.device);
+				}
+			}
+
+		}
+
+
+		/**
+		 * @param device The device that the check reads
+		 * @param priority The check's priority
+		 * @param sequence The check's sequence number
+		 * @param runnable The check to run
+		 */
+		private Check (Object device, Priority priority, long sequence, Runnable runnable) {
+
+			this.device = device;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.runnable = runnable;
+
+		}
+
+	}
+
+
+	/**
+	 * Removes an idle device, shutting down the executor if the scheduler has been shut down and
+	 * no devices remain
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the scheduler's lock held
+	 *
+	 * @param device The device
+	 */
+	private void removeDevice (Object device) {
+
+		this.devices.remove (device);
+		if (this.shutdown && this.devices.isEmpty()) {
+			this.executor.shutdown();
+		}
+
+	}
+
+
+	/**
+	 * Starts as many of a device's waiting checks as its limit allows
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the scheduler's lock held
+	 *
+	 * @param deviceKey The device
+	 */
+	private void startChecks (Object deviceKey) {
+
+		Device device = this.devices.get (deviceKey);
+
+		while ((device.runningCount < this.checksPerDevice) && !device.waitingChecks.isEmpty()) {
+			final Check check = device.waitingChecks.poll();
+			check.started = true;
+			device.runningCount++;
+			this.executor.execute (new Runnable() {
+				public void run() {
+					check.run();
+				}
+			});
+		}
+
+		if ((device.runningCount == 0) && device.waitingChecks.isEmpty()) {
+			removeDevice (deviceKey);
+		}
+
+	}
+
+
+	/**
+	 * Submits a check to be run once the device it reads has capacity
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param device The device that the check reads
+	 * @param priority The check's priority
+	 * @param runnable The check to run
+	 * @return The submitted check, or {@code null} if the scheduler has been shut down
+	 */
+	public synchronized Check submit (Object device, Priority priority, Runnable runnable) {
+
+		if (this.shutdown) {
+			return null;
+		}
+
+		Check check = new Check (device, priority, this.nextSequence++, runnable);
+
+		Device deviceChecks = this.devices.get (device);
+		if (deviceChecks == null) {
+			deviceChecks = new Device();
+			this.devices.put (device, deviceChecks);
+		}
+		deviceChecks.waitingChecks.add (check);
+		startChecks (device);
+
+		return check;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of checks that may run concurrently against each device
+	 */
+	public synchronized int getChecksPerDevice() {
+
+		return this.checksPerDevice;
+
+	}
+
+
+	/**
+	 * Sets the number of checks that may run concurrently against each device. Running checks
+	 * are not affected if the number is reduced
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param checksPerDevice The number of checks that may run concurrently against each device
+	 */
+	public synchronized void setChecksPerDevice (int checksPerDevice) {
+
+		if (checksPerDevice <= 0) {
+			throw new IllegalArgumentException ("Invalid check count");
+		}
+
+		this.checksPerDevice = checksPerDevice;
+		for (Object device : this.devices.keySet().toArray()) {
+			startChecks (device);
+		}
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of checks waiting to start
+	 */
+	public synchronized int getWaitingCheckCount() {
+
+		int waitingCount = 0;
+		for (Device device : this.devices.values()) {
+			waitingCount += device.waitingChecks.size();
+		}
+
+		return waitingCount;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of checks running
+	 */
+	public synchronized int getRunningCheckCount() {
+
+		int runningCount = 0;
+		for (Device device : this.devices.values()) {
+			runningCount += device.runningCount;
+		}
+
+		return runningCount;
+
+	}
+
+
+	/**
+	 * Shuts down the scheduler. Checks that have already been submitted will still be run, but no
+	 * further checks will be accepted
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 */
+	public synchronized void shutdown() {
+
+		this.shutdown = true;
+
+		// If checks are still waiting, the executor is instead shut down after the last is run
+		if (this.devices.isEmpty()) {
+			this.executor.shutdown();
+		}
+
+	}
+
+
+	/**
+	 * @param checksPerDevice The number of checks that may run concurrently against each device
+	 */
+	public VerificationScheduler (int checksPerDevice) {
+
+		if (checksPerDevice <= 0) {
+			throw new IllegalArgumentException ("Invalid check count");
+		}
+
+		this.checksPerDevice = checksPerDevice;
+		this.executor = new ThreadPoolExecutor (0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread (r);
+				thread.setName ("VerificationScheduler worker");
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+
+	}
+
+
+}
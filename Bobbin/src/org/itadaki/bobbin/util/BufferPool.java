@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A pool of recycled {@code ByteBuffer}s, divided into size classes
+ *
+ * <p>Each buffer allocated by the pool has a capacity equal to the smallest power of two size
+ * class that will hold the requested size, and its limit set to the requested size. A buffer that
+ * is released back to the pool is retained for reuse by a later allocation of the same size class,
+ * unless the total capacity of the retained buffers would exceed the pool's limit. Requests larger
+ * than the largest size class are allocated directly and are not retained when released.
+ *
+ * <p>A buffer must not be used by its owner, or through any view derived from it, once it has been
+ * released. The pool does not reset the position, limit or content of a released buffer until it
+ * is next allocated.
+ *
+ * <p>For testing, a pool may be created with leak detection, in which case the allocation site of
+ * every outstanding buffer is recorded, and an attempt to release a buffer that is not outstanding
+ * is rejected.
+ */
+public class BufferPool {
+
+	/**
+	 * The capacity of the smallest size class
+	 */
+	public static final int MINIMUM_BUFFER_SIZE = 4096;
+
+	/**
+	 * The capacity of the largest size class
+	 */
+	public static final int MAXIMUM_BUFFER_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default maximum total capacity of retained buffers
+	 */
+	public static final long DEFAULT_RETAINED_CAPACITY = 32 * 1024 * 1024;
+
+	/**
+	 * The pool shared by default between all users of pooled buffers in the process
+	 */
+	private static final BufferPool sharedPool = new BufferPool (false, DEFAULT_RETAINED_CAPACITY, false);
+
+	/**
+	 * If {@code true}, the pool allocates direct buffers, otherwise heap buffers
+	 */
+	private final boolean direct;
+
+	/**
+	 * The retained buffers of each size class, indexed by size class
+	 */
+	private final List<LinkedList<ByteBuffer>> retainedBuffers = new ArrayList<LinkedList<ByteBuffer>>();
+
+	/**
+	 * The allocation sites of outstanding buffers, or {@code null} if leak detection is not
+	 * enabled
+	 */
+	private final Map<ByteBuffer,Throwable> outstandingBuffers;
+
+	/**
+	 * The maximum total capacity of retained buffers
+	 */
+	private long retainedCapacity;
+
+	/**
+	 * The total capacity of retained buffers
+	 */
+	private long retainedBytes = 0;
+
+	/**
+	 * The number of buffers currently allocated and not yet released
+	 */
+	private int outstandingCount = 0;
+
+	/**
+	 * The total capacity of buffers currently allocated and not yet released
+	 */
+	private long outstandingBytes = 0;
+
+	/**
+	 * The number of allocations that required a new buffer
+	 */
+	private long missCount = 0;
+
+	/**
+	 * The number of allocations satisfied by a retained buffer
+	 */
+	private long hitCount = 0;
+
+	/**
+	 * The number of released buffers that were not retained
+	 */
+	private long discardCount = 0;
+
+
+	/**
+	 * Finds the size class for a given size
+	 *
+	 * @param size The size
+	 * @return The index of the size class that holds the size, or -1 if the size is larger than the
+	 *         largest size class
+	 */
+	private static int sizeClass (int size) {
+
+		if (size > MAXIMUM_BUFFER_SIZE) {
+			return -1;
+		}
+
+		int sizeClass = 0;
+		for (int capacity = MINIMUM_BUFFER_SIZE; capacity < size; capacity <<= 1) {
+			sizeClass++;
+		}
+
+		return sizeClass;
+
+	}
+
+
+	/**
+	 * Discards retained buffers, largest first, until the total capacity of the retained buffers is
+	 * within the pool's limit
+	 */
+	private void trimRetainedBuffers() {
+
+		for (int i = this.retainedBuffers.size() - 1; (i >= 0) && (this.retainedBytes > this.retainedCapacity); i--) {
+			LinkedList<ByteBuffer> buffers = this.retainedBuffers.get (i);
+			while (!buffers.isEmpty() && (this.retainedBytes > this.retainedCapacity)) {
+				this.retainedBytes -= buffers.poll().capacity();
+				this.discardCount++;
+			}
+		}
+
+	}
+
+
+	/**
+	 * @return The pool shared by default between all users of pooled buffers in the process
+	 */
+	public static BufferPool getSharedPool() {
+
+		return sharedPool;
+
+	}
+
+
+	/**
+	 * Allocates a buffer. The buffer's position is zero, its limit is the requested size, and its
+	 * content is undefined. Each call to this method should be balanced by a call to
+	 * {@link #release(ByteBuffer)} once the buffer is no longer in use
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param size The required size
+	 * @return The buffer
+	 */
+	public synchronized ByteBuffer allocate (int size) {
+
+		if (size < 0) {
+			throw new IllegalArgumentException ("Invalid size");
+		}
+
+		int sizeClass = sizeClass (size);
+		ByteBuffer buffer = null;
+
+		if ((sizeClass >= 0) && (sizeClass < this.retainedBuffers.size())) {
+			buffer = this.retainedBuffers.get(sizeClass).poll();
+		}
+
+		if (buffer == null) {
+			int capacity = (sizeClass >= 0) ? (MINIMUM_BUFFER_SIZE << sizeClass) : size;
+			buffer = this.direct ? ByteBuffer.allocateDirect (capacity) : ByteBuffer.allocate (capacity);
+			this.missCount++;
+		} else {
+			this.retainedBytes -= buffer.capacity();
+			this.hitCount++;
+		}
+
+		buffer.clear();
+		buffer.limit (size);
+
+		this.outstandingCount++;
+		this.outstandingBytes += buffer.capacity();
+		if (this.outstandingBuffers != null) {
+			this.outstandingBuffers.put (buffer, new Throwable ("Buffer allocated"));
+		}
+
+		return buffer;
+
+	}
+
+
+	/**
+	 * Releases a buffer previously allocated through {@link #allocate(int)}. Neither the buffer nor
+	 * any view of it may be used once it has been released
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param buffer The buffer to release
+	 * @throws IllegalArgumentException if leak detection is enabled and the buffer is not an
+	 *         outstanding buffer of this pool
+	 */
+	public synchronized void release (ByteBuffer buffer) {
+
+		if ((this.outstandingBuffers != null) && (this.outstandingBuffers.remove (buffer) == null)) {
+			throw new IllegalArgumentException ("Buffer not outstanding");
+		}
+
+		this.outstandingCount--;
+		this.outstandingBytes -= buffer.capacity();
+
+		int capacity = buffer.capacity();
+		int sizeClass = sizeClass (capacity);
+		if (
+				   (sizeClass < 0)
+				|| ((MINIMUM_BUFFER_SIZE << sizeClass) != capacity)
+				|| (buffer.isDirect() != this.direct)
+				|| (buffer.isReadOnly())
+				|| ((this.retainedBytes + capacity) > this.retainedCapacity)
+		   )
+		{
+			this.discardCount++;
+			return;
+		}
+
+		while (this.retainedBuffers.size() <= sizeClass) {
+			this.retainedBuffers.add (new LinkedList<ByteBuffer>());
+		}
+		this.retainedBuffers.get(sizeClass).add (buffer);
+		this.retainedBytes += capacity;
+
+	}
+
+
+	/**
+	 * Gets the allocation sites of the buffers that are currently outstanding. Only available when
+	 * leak detection is enabled
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return A list of throwables whose stack traces show the allocation sites of the outstanding
+	 *         buffers
+	 * @throws IllegalStateException if leak detection is not enabled
+	 */
+	public synchronized List<Throwable> getOutstandingAllocations() {
+
+		if (this.outstandingBuffers == null) {
+			throw new IllegalStateException ("Leak detection not enabled");
+		}
+
+		return new ArrayList<Throwable> (this.outstandingBuffers.values());
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return {@code true} if the pool allocates direct buffers, otherwise {@code false}
+	 */
+	public boolean isDirect() {
+
+		return this.direct;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return {@code true} if leak detection is enabled, otherwise {@code false}
+	 */
+	public boolean isLeakDetectionEnabled() {
+
+		return (this.outstandingBuffers != null);
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The maximum total capacity of retained buffers
+	 */
+	public synchronized long getRetainedCapacity() {
+
+		return this.retainedCapacity;
+
+	}
+
+
+	/**
+	 * Sets the maximum total capacity of retained buffers. If the retained buffers exceed the new
+	 * limit, buffers are discarded immediately
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param retainedCapacity The maximum total capacity of retained buffers
+	 */
+	public synchronized void setRetainedCapacity (long retainedCapacity) {
+
+		if (retainedCapacity < 0) {
+			throw new IllegalArgumentException ("Invalid retained capacity");
+		}
+
+		this.retainedCapacity = retainedCapacity;
+		trimRetainedBuffers();
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The total capacity of the buffers retained for reuse
+	 */
+	public synchronized long getRetainedBytes() {
+
+		return this.retainedBytes;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of buffers currently allocated and not yet released
+	 */
+	public synchronized int getOutstandingCount() {
+
+		return this.outstandingCount;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The total capacity of the buffers currently allocated and not yet released
+	 */
+	public synchronized long getOutstandingBytes() {
+
+		return this.outstandingBytes;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of allocations satisfied by a retained buffer
+	 */
+	public synchronized long getHitCount() {
+
+		return this.hitCount;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of allocations that required a new buffer
+	 */
+	public synchronized long getMissCount() {
+
+		return this.missCount;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of released buffers that were not retained
+	 */
+	public synchronized long getDiscardCount() {
+
+		return this.discardCount;
+
+	}
+
+
+	/**
+	 * @param direct If {@code true}, the pool allocates direct buffers, otherwise heap buffers
+	 * @param retainedCapacity The maximum total capacity of retained buffers
+	 * @param leakDetection If {@code true}, the allocation sites of outstanding buffers are
+	 *        recorded, and releases of buffers that are not outstanding are rejected
+	 */
+	public BufferPool (boolean direct, long retainedCapacity, boolean leakDetection) {
+
+		if (retainedCapacity < 0) {
+			throw new IllegalArgumentException ("Invalid retained capacity");
+		}
+
+		this.direct = direct;
+		this.retainedCapacity = retainedCapacity;
+		this.outstandingBuffers = leakDetection ? new IdentityHashMap<ByteBuffer,Throwable>() : null;
+
+	}
+
+
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ * An extendable bit field that may be read and changed concurrently
+ *
+ * <p>Reads of single bits, the length and the cardinality take no lock. Changes are serialised
+ * against each other, but never block a reader. A copy taken through {@link #toBitField()}
+ * reflects every change completed before the copy was taken
+ */
+public class ConcurrentBitField {
+
+	/**
+	 * The length in bits of the bit field
+	 */
+	private volatile int length;
+
+	/**
+	 * The represented bits, 32 to a word. The first bit of each word is its most significant bit
+	 */
+	private volatile AtomicIntegerArray words;
+
+	/**
+	 * The cardinality of the bit field
+	 */
+	private volatile int cardinality;
+
+
+	/**
+	 * @param index The index of a bit
+	 * @return The mask of the bit within its word
+	 */
+	private static int mask (int index) {
+
+		return 0x80000000 >>> (index & 31);
+
+	}
+
+
+	/**
+	 * Changes one bit of the bit field
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the bit field's lock held
+	 *
+	 * @param index The index of the bit to change
+	 * @param value The value to set the bit to
+	 */
+	private void change (int index, boolean value) {
+
+		if (index < 0 || index >= this.length) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		int wordIndex = index >>> 5;
+		int word = this.words.get (wordIndex);
+		int newWord = value ? (word | mask (index)) : (word & ~mask (index));
+
+		if (newWord != word) {
+			this.words.set (wordIndex, newWord);
+			this.cardinality += value ? 1 : -1;
+		}
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The length in bits of the bit field
+	 */
+	public int length() {
+
+		return this.length;
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of set bits in the bit field
+	 */
+	public int cardinality() {
+
+		return this.cardinality;
+
+	}
+
+
+	/**
+	 * Gets one bit from the bit field
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param index The index of the bit to get
+	 * @return The value of the bit at the given index
+	 */
+	public boolean get (int index) {
+
+		// The length is read first, as the words are never shorter than the length published after
+		// them
+		if (index < 0 || index >= this.length) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		return (this.words.get (index >>> 5) & mask (index)) != 0;
+
+	}
+
+
+	/**
+	 * Sets one bit within the bit field to true
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param index The index of the bit to set to true
+	 */
+	public synchronized void set (int index) {
+
+		change (index, true);
+
+	}
+
+
+	/**
+	 * Sets one bit within the bit field to the given value
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param index The index of the bit to set
+	 * @param value The value to set the bit to
+	 */
+	public synchronized void set (int index, boolean value) {
+
+		change (index, value);
+
+	}
+
+
+	/**
+	 * Sets one bit within the bit field to false
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param index The index of the bit to set to false
+	 */
+	public synchronized void clear (int index) {
+
+		change (index, false);
+
+	}
+
+
+	/**
+	 * Sets all bits of the bit field to false
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 */
+	public synchronized void clear() {
+
+		for (int i = 0; i < this.words.length(); i++) {
+			this.words.set (i, 0);
+		}
+		this.cardinality = 0;
+
+	}
+
+
+	/**
+	 * Extends the bit field to a new total length. The added bits are false
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param length The new length of the bit field in bits
+	 * @throws IllegalArgumentException if the new length is less than the existing length
+	 */
+	public synchronized void extend (int length) {
+
+		if (length < this.length) {
+			throw new IllegalArgumentException ("New length must be at least as great as old length");
+		}
+
+		int wordLength = (length + 31) >>> 5;
+		if (wordLength > this.words.length()) {
+			AtomicIntegerArray words = new AtomicIntegerArray (wordLength);
+			for (int i = 0; i < this.words.length(); i++) {
+				words.set (i, this.words.get (i));
+			}
+			this.words = words;
+		}
+
+		this.length = length;
+
+	}
+
+
+	/**
+	 * Replaces the content and length of the bit field with those of a {@link BitField}
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param bitField The bit field to copy
+	 */
+	public synchronized void assign (BitField bitField) {
+
+		AtomicIntegerArray words = new AtomicIntegerArray ((bitField.length() + 31) >>> 5);
+		for (Integer index : bitField) {
+			words.set (index >>> 5, words.get (index >>> 5) | mask (index));
+		}
+
+		// Shrink the length before the words are replaced, and grow it after, so that a reader never
+		// sees a length beyond the end of the words
+		this.length = Math.min (this.length, bitField.length());
+		this.words = words;
+		this.length = bitField.length();
+		this.cardinality = bitField.cardinality();
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return A copy of the bit field
+	 */
+	public synchronized BitField toBitField() {
+
+		int length = this.length;
+		byte[] bytes = new byte[(length + 7) / 8];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)(this.words.get (i >>> 2) >>> (24 - (8 * (i & 3))));
+		}
+
+		return new BitField (bytes, length);
+
+	}
+
+
+	/**
+	 * Creates a blank bit field of the given number of bits
+	 *
+	 * @param length The size of the bit field in bits
+	 */
+	public ConcurrentBitField (int length) {
+
+		if (length < 0) {
+			throw new IllegalArgumentException ("Negative size : " + length);
+		}
+
+		this.length = length;
+		this.words = new AtomicIntegerArray ((length + 31) >>> 5);
+		this.cardinality = 0;
+
+	}
+
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A hashed timing wheel that hands tasks to executors when their delays expire
+ *
+ * <p>Time is divided into ticks of a fixed duration, and each scheduled timeout is placed in the
+ * bucket of the wheel that corresponds to the tick in which it expires, along with the number of
+ * whole turns of the wheel remaining before it does. A single thread advances the wheel one tick
+ * at a time, examining only the bucket for that tick. Scheduling and cancelling a timeout are
+ * both O(1), and timeouts expire no earlier than requested and up to one tick late
+ *
+ * <p>The wheel's thread never runs a task itself; an expired task is passed to the executor given
+ * when it was scheduled. While no timeouts are scheduled, the thread waits without ticking, and
+ * a wheel that is no longer needed may be stopped to end its thread
+ */
+public class TimingWheel {
+
+	/**
+	 * The duration of a tick in nanoseconds
+	 */
+	private final long tickDuration;
+
+	/**
+	 * The buckets of the wheel. Each bucket is the head of a doubly linked list of timeouts, or
+	 * {@code null}. The number of buckets is a power of two
+	 *
+	 * <p>Note: The buckets, and the links and rounds of every timeout within them, are accessed
+	 * through synchronisation on the wheel
+	 */
+	private final Timeout[] buckets;
+
+	/**
+	 * The mask that selects a bucket from a tick number
+	 */
+	private final int mask;
+
+	/**
+	 * The system time in nanoseconds at which the wheel started
+	 */
+	private final long startTime;
+
+	/**
+	 * The number of the next tick to be processed
+	 *
+	 * <p>Note: This field is accessed through synchronisation on the wheel
+	 */
+	private long tick = 0;
+
+	/**
+	 * The number of timeouts currently scheduled
+	 *
+	 * <p>Note: This field is accessed through synchronisation on the wheel
+	 */
+	private int timeoutCount = 0;
+
+	/**
+	 * If {@code true}, the wheel has been stopped
+	 *
+	 * <p>Note: This field is accessed through synchronisation on the wheel
+	 */
+	private boolean stopped = false;
+
+
+	/**
+	 * A task scheduled on the wheel
+	 */
+	public class Timeout {
+
+		/**
+		 * The task to run
+		 */
+		private final Runnable task;
+
+		/**
+		 * The executor to run the task on
+		 */
+		private final Executor executor;
+
+		/**
+		 * The system time in nanoseconds at or after which the task expires
+		 */
+		private final long deadline;
+
+		/**
+		 * The number of the bucket that holds the timeout, or -1 if it has expired or been
+		 * cancelled
+		 */
+		private int bucket;
+
+		/**
+		 * The number of turns of the wheel remaining before the timeout expires
+		 */
+		private long rounds;
+
+		/**
+		 * The previous timeout in the bucket, or {@code null}
+		 */
+		private Timeout previous = null;
+
+		/**
+		 * The next timeout in the bucket, or {@code null}
+		 */
+		private Timeout next = null;
+
+
+		/**
+		 * Cancels the timeout. A timeout that has already expired is not affected
+		 *
+		 * <p><b>Thread safety:</b> This method is thread safe
+		 *
+		 * @return {@code true} if the timeout was cancelled before it expired, otherwise
+		 *         {@code false}
+		 */
+		public boolean cancel() {
+
+			synchronized (TimingWheel.this) {
+				if (this.bucket == -1) {
+					return false;
+				}
+				remove (this);
+			}
+
+			return true;
+
+		}
+
+
+		/**
+		 * <p><b>Thread safety:</b> This method is thread safe
+		 *
+		 * @param unit The unit of the returned delay
+		 * @return The delay remaining before the timeout expires
+		 */
+		public long getDelay (TimeUnit unit) {
+
+			return unit.convert (this.deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+		}
+
+
+		/**
+		 * @param task The task to run
+		 * @param executor The executor to run the task on
+		 * @param deadline The system time in nanoseconds at or after which the task expires
+		 */
+		private Timeout (Runnable task, Executor executor, long deadline) {
+
+			this.task = task;
+			this.executor = executor;
+			this.deadline = deadline;
+
+		}
+
+	}
+
+
+	/**
+	 * The runnable of the wheel's thread
+	 */
+	private final Runnable tickRunnable = new Runnable() {
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+
+			List<Timeout> expiredTimeouts = new ArrayList<Timeout>();
+
+			for (;;) {
+
+				synchronized (TimingWheel.this) {
+
+					// Wait until a timeout is scheduled. Schedule advances the wheel to the current
+					// tick before it adds the first timeout
+					while (!TimingWheel.this.stopped && (TimingWheel.this.timeoutCount == 0)) {
+						try {
+							TimingWheel.this.wait();
+						} catch (InterruptedException e) {
+							// Retry
+						}
+					}
+
+					// Wait for the end of the tick
+					for (;;) {
+						if (TimingWheel.this.stopped) {
+							return;
+						}
+						long tickEnd = TimingWheel.this.startTime + ((TimingWheel.this.tick + 1) * TimingWheel.this.tickDuration);
+						long remaining = tickEnd - System.nanoTime();
+						if (remaining <= 0) {
+							break;
+						}
+						try {
+							TimingWheel.this.wait (remaining / 1000000, (int)(remaining % 1000000));
+						} catch (InterruptedException e) {
+							// Retry
+						}
+					}
+
+					// Collect the expired timeouts of the tick's bucket
+					long tick = TimingWheel.this.tick;
+					Timeout timeout = TimingWheel.this.buckets[(int)(tick & TimingWheel.this.mask)];
+					while (timeout != null) {
+						Timeout next = timeout.next;
+						if (timeout.rounds <= 0) {
+							remove (timeout);
+							expiredTimeouts.add (timeout);
+						} else {
+							timeout.rounds--;
+						}
+						timeout = next;
+					}
+					TimingWheel.this.tick = tick + 1;
+
+				}
+
+				// Hand the expired tasks to their executors
+				for (Timeout timeout : expiredTimeouts) {
+					try {
+						timeout.executor.execute (timeout.task);
+					} catch (RejectedExecutionException e) {
+						// The executor has been shut down
+					} catch (Throwable t) {
+						t.printStackTrace();
+					}
+				}
+				expiredTimeouts.clear();
+
+			}
+
+		}
+
+	};
+
+
+	/**
+	 * Removes a timeout from its bucket
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the wheel's lock held
+	 *
+	 * @param timeout The timeout to remove
+	 */
+	private void remove (Timeout timeout) {
+
+		if (timeout.previous == null) {
+			this.buckets[timeout.bucket] = timeout.next;
+		} else {
+			timeout.previous.next = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		this.timeoutCount--;
+
+	}
+
+
+	/**
+	 * Schedules a task to be passed to an executor after a delay
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param task The task to run
+	 * @param executor The executor to run the task on
+	 * @param delay The delay before the task is run
+	 * @param unit The unit of the delay
+	 * @return The timeout of the scheduled task
+	 */
+	public Timeout schedule (Runnable task, Executor executor, long delay, TimeUnit unit) {
+
+		long deadline = System.nanoTime() + Math.max (0, unit.toNanos (delay));
+		Timeout timeout = new Timeout (task, executor, deadline);
+
+		// The timeout expires at the end of the first tick that ends at or after its deadline
+		long expiryTick = (deadline - this.startTime + this.tickDuration - 1) / this.tickDuration - 1;
+
+		synchronized (this) {
+			// The wheel does not tick while it is empty, so catch up with the current tick and wake
+			// its thread. No bucket that holds a timeout is skipped
+			if (this.timeoutCount == 0) {
+				this.tick = Math.max (this.tick, (System.nanoTime() - this.startTime) / this.tickDuration);
+				notifyAll();
+			}
+			this.timeoutCount++;
+			expiryTick = Math.max (expiryTick, this.tick);
+			int bucket = (int)(expiryTick & this.mask);
+			timeout.bucket = bucket;
+			timeout.rounds = (expiryTick - this.tick) / this.buckets.length;
+			timeout.next = this.buckets[bucket];
+			if (timeout.next != null) {
+				timeout.next.previous = timeout;
+			}
+			this.buckets[bucket] = timeout;
+		}
+
+		return timeout;
+
+	}
+
+
+	/**
+	 * Stops the wheel. Its thread ends, and timeouts that have not yet expired never expire
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 */
+	public synchronized void stop() {
+
+		this.stopped = true;
+		notifyAll();
+
+	}
+
+
+	/**
+	 * @param name The name to give the wheel's thread
+	 * @param tickDuration The duration of a tick
+	 * @param unit The unit of the tick duration
+	 * @param bucketCount The minimum number of buckets. The number is rounded up to a power of two
+	 */
+	public TimingWheel (String name, long tickDuration, TimeUnit unit, int bucketCount) {
+
+		if ((tickDuration <= 0) || (bucketCount <= 0) || (bucketCount > (1 << 30))) {
+			throw new IllegalArgumentException ("Invalid tick duration or bucket count");
+		}
+
+		int buckets = Integer.highestOneBit (bucketCount);
+		if (buckets < bucketCount) {
+			buckets <<= 1;
+		}
+
+		this.tickDuration = unit.toNanos (tickDuration);
+		this.buckets = new Timeout[buckets];
+		this.mask = buckets - 1;
+		this.startTime = System.nanoTime();
+
+		Thread thread = new Thread (this.tickRunnable, name);
+		thread.setDaemon (true);
+		thread.start();
+
+	}
+
+
+}
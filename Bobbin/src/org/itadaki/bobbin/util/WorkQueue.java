@@ -4,28 +4,515 @@
  */
 package org.itadaki.bobbin.util;
 
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
- * A single threaded work queue that decorates {@link ScheduledThreadPoolExecutor} to give a name to
- * the created worker thread
+ * A serial work queue. Tasks submitted to a queue run one at a time in the order they were
+ * submitted, on threads borrowed from a pool shared by every queue, and delayed tasks wait on a
+ * timing wheel shared by every queue. An idle queue holds no thread
+ *
+ * <p>While a queue is running its tasks, the borrowed thread takes the queue's name
+ *
+ * <p>As with a {@link java.util.concurrent.ScheduledThreadPoolExecutor}, a task that throws an
+ * exception does not prevent later tasks from running, a queue that has been shut down rejects
+ * new tasks but runs those already submitted and any delayed tasks that fall due, and periodic
+ * tasks stop when their queue is shut down
  */
-public class WorkQueue extends ScheduledThreadPoolExecutor {
+public class WorkQueue implements Executor {
 
 	/**
-	 * @param name The name to give the queue's worker thread
+	 * The number of tasks a queue runs before returning its thread to the pool, so that a busy
+	 * queue does not monopolise a thread
+	 */
+	private static final int TASK_BATCH_SIZE = 64;
+
+	/**
+	 * The pool of threads shared by every queue
+	 */
+	private static final ExecutorService sharedPool = new ThreadPoolExecutor (0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+		public Thread newThread (Runnable r) {
+			Thread thread = new Thread (r);
+			thread.setName ("WorkQueue worker");
+			thread.setDaemon (true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The timing wheel shared by every queue
+	 */
+	private static final TimingWheel sharedTimingWheel = new TimingWheel ("WorkQueue timer", 10, TimeUnit.MILLISECONDS, 512);
+
+	/**
+	 * The queue's name
+	 */
+	private final String name;
+
+	/**
+	 * The tasks waiting to run
+	 *
+	 * <p>Note: This field and {@link #running} and {@link #shutdown} are accessed through
+	 * synchronisation on the queue's tasks
+	 */
+	private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+	/**
+	 * {@code true} if the queue holds a thread from the shared pool
+	 */
+	private boolean running = false;
+
+	/**
+	 * {@code true} if the queue has been shut down
+	 */
+	private boolean shutdown = false;
+
+	/**
+	 * Gets the timing wheel shared by every queue, so that other users of short timeouts need not
+	 * run a wheel of their own. The wheel's thread must not be used to run lengthy tasks
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The shared timing wheel
+	 */
+	public static TimingWheel getSharedTimingWheel() {
+
+		return sharedTimingWheel;
+
+	}
+
+
+	/**
+	 * Adds delayed tasks to the queue when they fall due on the timing wheel
+	 */
+	private final Executor dueTaskExecutor = new Executor() {
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+		 */
+		public void execute (Runnable command) {
+			enqueue (command);
+		}
+
+	};
+
+	/**
+	 * Runs the queue's tasks on a thread from the shared pool
+	 */
+	private final Runnable drainRunnable = new Runnable() {
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+
+			Thread thread = Thread.currentThread();
+			String threadName = thread.getName();
+			thread.setName (WorkQueue.this.name);
+
+			try {
+				for (int i = 0; i < TASK_BATCH_SIZE; i++) {
+					Runnable task;
+					synchronized (WorkQueue.this.tasks) {
+						task = WorkQueue.this.tasks.poll();
+						if (task == null) {
+							WorkQueue.this.running = false;
+							return;
+						}
+					}
+					try {
+						task.run();
+					} catch (Throwable t) {
+						// A failed task does not stop the queue
+					}
+				}
+			} finally {
+				thread.setName (threadName);
+			}
+
+			// Yield the thread, and continue with the remaining tasks on the next available
+			WorkQueue.sharedPool.execute (this);
+
+		}
+
+	};
+
+
+	/**
+	 * A delayed or periodic task
+	 */
+	private class ScheduledTask implements ScheduledFuture<Object>, Runnable {
+
+		/**
+		 * The task to run
+		 */
+		private final Runnable task;
+
+		/**
+		 * The delay in nanoseconds between the end of one run of a periodic task and the start of
+		 * the next, or 0 for a task that runs once
+		 */
+		private final long period;
+
+		/**
+		 * The current timeout of the task on the timing wheel
+		 */
+		private volatile TimingWheel.Timeout timeout;
+
+		/**
+		 * {@code true} if the task has been cancelled
+		 *
+		 * <p>Note: This field and {@link #done} are accessed through synchronisation on the task
+		 */
+		private boolean cancelled = false;
+
+		/**
+		 * {@code true} if the task will not run again
+		 */
+		private boolean done = false;
+
+
+		/**
+		 * Places the task on the timing wheel
+		 *
+		 * @param delay The delay in nanoseconds before the task is passed to the queue
+		 */
+		private synchronized void schedule (long delay) {
+
+			this.timeout = WorkQueue.sharedTimingWheel.schedule (this, WorkQueue.this.dueTaskExecutor, delay, TimeUnit.NANOSECONDS);
+
+		}
+
+
+		/**
+		 * Marks the task as done and wakes any waiting threads
+		 */
+		private synchronized void finish() {
+
+			this.done = true;
+			notifyAll();
+
+		}
+
+
+		/* Runnable interface */
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+
+			synchronized (this) {
+				if (this.cancelled) {
+					return;
+				}
+			}
+
+			boolean shutdown;
+			synchronized (WorkQueue.this.tasks) {
+				shutdown = WorkQueue.this.shutdown;
+			}
+
+			if ((this.period > 0) && shutdown) {
+				finish();
+				return;
+			}
+
+			try {
+				this.task.run();
+			} catch (RuntimeException e) {
+				// As with a ScheduledThreadPoolExecutor, a failed periodic task is not repeated
+				finish();
+				throw e;
+			}
+
+			if (this.period > 0) {
+				synchronized (this) {
+					if (!this.cancelled) {
+						schedule (this.period);
+					}
+				}
+			} else {
+				finish();
+			}
+
+		}
+
+
+		/* ScheduledFuture interface */
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Delayed#getDelay(java.util.concurrent.TimeUnit)
+		 */
+		public long getDelay (TimeUnit unit) {
+
+			return this.timeout.getDelay (unit);
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		public int compareTo (Delayed other) {
+
+			long difference = getDelay (TimeUnit.NANOSECONDS) - other.getDelay (TimeUnit.NANOSECONDS);
+			return (difference < 0) ? -1 : ((difference == 0) ? 0 : 1);
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Future#cancel(boolean)
+		 */
+		public synchronized boolean cancel (boolean mayInterruptIfRunning) {
+
+			if (this.done || this.cancelled) {
+				return false;
+			}
+
+			this.cancelled = true;
+			this.timeout.cancel();
+			this.done = true;
+			notifyAll();
+
+			return true;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Future#isCancelled()
+		 */
+		public synchronized boolean isCancelled() {
+
+			return this.cancelled;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Future#isDone()
+		 */
+		public synchronized boolean isDone() {
+
+			return this.done;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Future#get()
+		 */
+		public synchronized Object get() throws InterruptedException {
+
+			while (!this.done) {
+				wait();
+			}
+
+			if (this.cancelled) {
+				throw new CancellationException();
+			}
+
+			return null;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+		 */
+		public synchronized Object get (long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+
+			long deadline = System.nanoTime() + unit.toNanos (timeout);
+			for (long remaining = unit.toNanos (timeout); !this.done; remaining = deadline - System.nanoTime()) {
+				if (remaining <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait (this, remaining);
+			}
+
+			if (this.cancelled) {
+				throw new CancellationException();
+			}
+
+			return null;
+
+		}
+
+
+		/**
+		 * @param task The task to run
+		 * @param period The delay in nanoseconds between the end of one run of a periodic task
+		 *        and the start of the next, or 0 for a task that runs once
+		 */
+		public ScheduledTask (Runnable task, long period) {
+
+			this.task = task;
+			this.period = period;
+
+		}
+
+	}
+
+
+	/**
+	 * Adds a task to the queue, whether or not the queue has been shut down
+	 *
+	 * @param task The task to add
+	 */
+	private void enqueue (Runnable task) {
+
+		synchronized (this.tasks) {
+			this.tasks.add (task);
+			if (this.running) {
+				return;
+			}
+			this.running = true;
+		}
+
+		WorkQueue.sharedPool.execute (this.drainRunnable);
+
+	}
+
+
+	/**
+	 * Checks that the queue has not been shut down
+	 *
+	 * @throws RejectedExecutionException if the queue has been shut down
+	 */
+	private void checkNotShutdown() {
+
+		synchronized (this.tasks) {
+			if (this.shutdown) {
+				throw new RejectedExecutionException ("WorkQueue is shut down");
+			}
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute (Runnable command) {
+
+		if (command == null) {
+			throw new NullPointerException();
+		}
+
+		checkNotShutdown();
+		enqueue (command);
+
+	}
+
+
+	/**
+	 * Runs a task once after a delay
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param command The task to run
+	 * @param delay The delay before the task is run
+	 * @param unit The unit of the delay
+	 * @return A future through which the task may be cancelled
+	 * @throws RejectedExecutionException if the queue has been shut down
+	 */
+	public ScheduledFuture<?> schedule (Runnable command, long delay, TimeUnit unit) {
+
+		if (command == null) {
+			throw new NullPointerException();
+		}
+
+		checkNotShutdown();
+
+		ScheduledTask scheduledTask = new ScheduledTask (command, 0);
+		scheduledTask.schedule (unit.toNanos (delay));
+
+		return scheduledTask;
+
+	}
+
+
+	/**
+	 * Runs a task repeatedly, first after an initial delay, then after a fixed delay following the
+	 * end of each run
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param command The task to run
+	 * @param initialDelay The delay before the first run
+	 * @param delay The delay between the end of one run and the start of the next
+	 * @param unit The unit of the delays
+	 * @return A future through which the task may be cancelled
+	 * @throws RejectedExecutionException if the queue has been shut down
+	 */
+	public ScheduledFuture<?> scheduleWithFixedDelay (Runnable command, long initialDelay, long delay, TimeUnit unit) {
+
+		if (command == null) {
+			throw new NullPointerException();
+		}
+		if (delay <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		checkNotShutdown();
+
+		ScheduledTask scheduledTask = new ScheduledTask (command, unit.toNanos (delay));
+		scheduledTask.schedule (unit.toNanos (initialDelay));
+
+		return scheduledTask;
+
+	}
+
+
+	/**
+	 * Shuts down the queue. Tasks already submitted, and delayed tasks that fall due, are still
+	 * run; periodic tasks are not run again, and new tasks are rejected
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 */
+	public void shutdown() {
+
+		synchronized (this.tasks) {
+			this.shutdown = true;
+		}
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return {@code true} if the queue has been shut down, otherwise {@code false}
+	 */
+	public boolean isShutdown() {
+
+		synchronized (this.tasks) {
+			return this.shutdown;
+		}
+
+	}
+
+
+	/**
+	 * @param name The name to give the queue's worker thread while it runs the queue's tasks
 	 */
 	public WorkQueue (final String name) {
-		super (1, new ThreadFactory() {
-			public Thread newThread (Runnable r) {
-				Thread thread = new Thread (r);
-				thread.setName (name);
-				thread.setDaemon (true);
-				return thread;
-			}
-		});
+
+		this.name = name;
+
 	}
 
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package org.itadaki.bobbin.util.counter;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A token bucket that limits the rate at which a quantity, such as bytes transferred, may be
+ * consumed
+ *
+ * <p>Tokens accumulate at the bucket's rate up to a capacity of a quarter of a second's worth, and
+ * are removed as they are consumed. A bucket may have a parent bucket, in which case consumption
+ * is limited by both buckets and is charged to both, allowing limits to be applied hierarchically.
+ * A bucket with a rate of zero imposes no limit of its own
+ */
+public class TokenBucket {
+
+	/**
+	 * The minimum capacity of a limited bucket
+	 */
+	private static final long MINIMUM_CAPACITY = 4096;
+
+	/**
+	 * A bucket that is hierarchically the parent of this bucket, or {@code null}
+	 */
+	private final TokenBucket parent;
+
+	/**
+	 * The rate in tokens per second at which tokens accumulate, or 0 if the bucket is unlimited
+	 *
+	 * <p>Note: This field and {@link #tokens} and {@link #refillTime} are accessed through
+	 * synchronisation on the bucket
+	 */
+	private int rate = 0;
+
+	/**
+	 * The number of tokens available. May be negative if more tokens were consumed than were
+	 * available
+	 */
+	private long tokens = 0;
+
+	/**
+	 * The system time in nanoseconds up to which tokens have been accumulated
+	 */
+	private long refillTime = System.nanoTime();
+
+
+	/**
+	 * @return The capacity of the bucket
+	 */
+	private long capacity() {
+
+		return Math.max (this.rate / 4, MINIMUM_CAPACITY);
+
+	}
+
+
+	/**
+	 * Accumulates the tokens earned since the last refill
+	 *
+	 * <p><b>Thread safety:</b> This method must be called with the bucket's lock held
+	 */
+	private void refill() {
+
+		long currentTime = System.nanoTime();
+		long elapsed = currentTime - this.refillTime;
+		long capacity = capacity();
+
+		if (elapsed >= TimeUnit.SECONDS.toNanos (1)) {
+			this.tokens = capacity;
+			this.refillTime = currentTime;
+			return;
+		}
+
+		long earned = (elapsed * this.rate) / TimeUnit.SECONDS.toNanos (1);
+		if (earned > 0) {
+			this.tokens += earned;
+			if (this.tokens >= capacity) {
+				this.tokens = capacity;
+				this.refillTime = currentTime;
+			} else {
+				// Carry forward the time of any fraction of a token not yet earned
+				this.refillTime += (earned * TimeUnit.SECONDS.toNanos (1)) / this.rate;
+			}
+		}
+
+	}
+
+
+	/**
+	 * @return The number of tokens available from this bucket alone, or {@link Long#MAX_VALUE} if
+	 *         it is unlimited
+	 */
+	private synchronized long localAvailable() {
+
+		if (this.rate == 0) {
+			return Long.MAX_VALUE;
+		}
+
+		refill();
+		return Math.max (0, this.tokens);
+
+	}
+
+
+	/**
+	 * @param count The number of tokens to wait for
+	 * @return The time in nanoseconds before this bucket alone will have the given number of
+	 *         tokens, or its capacity if smaller
+	 */
+	private synchronized long localDelay (long count) {
+
+		if (this.rate == 0) {
+			return 0;
+		}
+
+		refill();
+		long deficit = Math.min (count, capacity()) - this.tokens;
+		if (deficit <= 0) {
+			return 0;
+		}
+
+		return ((deficit * TimeUnit.SECONDS.toNanos (1)) / this.rate) + 1;
+
+	}
+
+
+	/**
+	 * Sets the rate of the bucket
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param rate The rate in tokens per second, or 0 for no limit
+	 */
+	public synchronized void setRate (int rate) {
+
+		if (rate < 0) {
+			throw new IllegalArgumentException ("Invalid rate");
+		}
+
+		refill();
+		boolean wasUnlimited = (this.rate == 0);
+		this.rate = rate;
+		this.tokens = wasUnlimited ? capacity() : Math.min (this.tokens, capacity());
+		this.refillTime = System.nanoTime();
+
+	}
+
+
+	/**
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The rate of the bucket in tokens per second, or 0 if it is unlimited
+	 */
+	public synchronized int getRate() {
+
+		return this.rate;
+
+	}
+
+
+	/**
+	 * Gets the number of tokens that may currently be consumed, as limited by this bucket and its
+	 * ancestors
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @return The number of tokens available, or {@link Long#MAX_VALUE} if no bucket imposes a
+	 *         limit
+	 */
+	public long available() {
+
+		long available = Long.MAX_VALUE;
+		for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+			available = Math.min (available, bucket.localAvailable());
+		}
+
+		return available;
+
+	}
+
+
+	/**
+	 * Consumes tokens from this bucket and its ancestors
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param count The number of tokens to consume
+	 */
+	public void consume (long count) {
+
+		for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+			synchronized (bucket) {
+				if (bucket.rate > 0) {
+					bucket.tokens -= count;
+				}
+			}
+		}
+
+	}
+
+
+	/**
+	 * Gets the delay before this bucket and its ancestors will each have a given number of tokens
+	 * available, or as many as they can hold if fewer
+	 *
+	 * <p><b>Thread safety:</b> This method is thread safe
+	 *
+	 * @param count The number of tokens to wait for
+	 * @param unit The unit of the returned delay
+	 * @return The delay, or 0 if the tokens are available now
+	 */
+	public long getDelay (long count, TimeUnit unit) {
+
+		long delay = 0;
+		for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+			delay = Math.max (delay, bucket.localDelay (count));
+		}
+
+		return unit.convert (delay, TimeUnit.NANOSECONDS);
+
+	}
+
+
+	/**
+	 * Creates an unlimited bucket with no parent
+	 */
+	public TokenBucket() {
+
+		this (null);
+
+	}
+
+
+	/**
+	 * Creates an unlimited bucket that is additionally limited by a parent bucket
+	 *
+	 * @param parent The bucket to use as parent, or {@code null}
+	 */
+	public TokenBucket (TokenBucket parent) {
+
+		this.parent = parent;
+
+	}
+
+
+}
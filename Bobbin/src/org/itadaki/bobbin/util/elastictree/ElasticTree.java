@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.NavigableMap;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -82,6 +83,24 @@ public class ElasticTree {
 	}
 
 
+	/**
+	 * Splits concatenated hashes into individual hashes
+	 *
+	 * @param hashes The concatenated hashes
+	 * @return The individual hashes
+	 */
+	private static byte[][] splitHashes (byte[] hashes) {
+
+		byte[][] splitHashes = new byte[hashes.length / 20][];
+		for (int i = 0, offset = 0; i < splitHashes.length; i++, offset += 20) {
+			splitHashes[i] = Arrays.copyOfRange (hashes, offset, offset + 20);
+		}
+
+		return splitHashes;
+
+	}
+
+
 	/**
 	 * Returns a cached filler hash node of a given height
 	 *
@@ -463,12 +482,29 @@ public class ElasticTree {
 
 		ElasticTree tree = new ElasticTree (leafSize, viewLength);
 
-		byte[][] splitHashes = new byte[hashes.length / 20][];
-		for (int i = 0, offset = 0; i < splitHashes.length; i++, offset += 20) {
-			splitHashes[i] = Arrays.copyOfRange (hashes, offset, offset + 20);
-		}
+		tree.views.put (viewLength, new ElasticTreeView (tree, viewLength, splitHashes (hashes)));
+
+		return tree;
+
+	}
+
+
+	/**
+	 * Constructs a tree with a known leaf hash set, building the levels of the tree in parallel
+	 *
+	 * @param leafSize The leaf size
+	 * @param viewLength The view length
+	 * @param hashes The concatenated leaf hashes
+	 * @param executor The executor to build hashes on
+	 * @return The constructed tree
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the
+	 *         executor
+	 */
+	public static ElasticTree buildFromLeaves (int leafSize, long viewLength, byte[] hashes, ExecutorService executor) throws InterruptedException {
+
+		ElasticTree tree = new ElasticTree (leafSize, viewLength);
 
-		tree.views.put (viewLength, new ElasticTreeView (tree, viewLength, splitHashes));
+		tree.views.put (viewLength, new ElasticTreeView (tree, viewLength, splitHashes (hashes), executor));
 
 		return tree;
 
@@ -5,7 +5,19 @@
 package org.itadaki.bobbin.util.elastictree;
 
 import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.itadaki.bobbin.util.BitField;
 
 /**
  * A view onto the tree of a particular length of data. Mutable nodes that will be different in a
@@ -14,6 +26,12 @@ import java.util.Arrays;
  */
 public class ElasticTreeView {
 
+	/**
+	 * The number of parent hashes built by each task when the levels of a view are built in
+	 * parallel. Views with no more leaves than this are built on the calling thread
+	 */
+	private static final int PARALLEL_LEVEL_CHUNK = 1024;
+
 	/**
 	 * The tree that this is a view upon
 	 */
@@ -397,6 +415,83 @@ public class ElasticTreeView {
 	}
 
 
+	/**
+	 * A task that builds a contiguous range of the parent hashes of one level of the graph from the
+	 * level below it, using its own digester
+	 */
+	private static class PairHasher implements Callable<Object> {
+
+		/**
+		 * The hashes of the level below
+		 */
+		private final byte[][] children;
+
+		/**
+		 * The hashes of the level being built
+		 */
+		private final byte[][] parents;
+
+		/**
+		 * The index of the first parent hash to build
+		 */
+		private final int start;
+
+		/**
+		 * The index after the last parent hash to build
+		 */
+		private final int end;
+
+		/**
+		 * The filler hash that stands in for an absent right child
+		 */
+		private final byte[] filler;
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		public Object call() {
+
+			try {
+				MessageDigest digest = MessageDigest.getInstance ("SHA");
+				for (int i = this.start; i < this.end; i++) {
+					int childIndex = 2 * i;
+					digest.update (this.children[childIndex]);
+					digest.update ((childIndex + 1 < this.children.length) ? this.children[childIndex + 1] : this.filler);
+					this.parents[i] = new byte[20];
+					digest.digest (this.parents[i], 0, 20);
+				}
+			} catch (NoSuchAlgorithmException e) {
+				// Shouldn't happen
+				throw new InternalError (e.getMessage());
+			} catch (DigestException e) {
+				// Shouldn't happen
+				throw new InternalError (e.getMessage());
+			}
+
+			return null;
+
+		}
+
+		/**
+		 * @param children The hashes of the level below
+		 * @param parents The hashes of the level being built
+		 * @param start The index of the first parent hash to build
+		 * @param end The index after the last parent hash to build
+		 * @param filler The filler hash that stands in for an absent right child
+		 */
+		public PairHasher (byte[][] children, byte[][] parents, int start, int end, byte[] filler) {
+
+			this.children = children;
+			this.parents = parents;
+			this.start = start;
+			this.end = end;
+			this.filler = filler;
+
+		}
+
+	}
+
+
 	/**
 	 * Inserts leaf hashes into the view and builds parent hashes to the root
 	 *
@@ -434,6 +529,103 @@ public class ElasticTreeView {
 	}
 
 
+	/**
+	 * Inserts a complete set of leaf hashes into the view and builds parent hashes to the root,
+	 * building each level of the graph in parallel across the given executor. The result is
+	 * identical to that of {@link #buildLeafHashes(int, byte[][])} from the first leaf
+	 *
+	 * @param leafHashes The hashes
+	 * @param executor The executor to build hashes on
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the
+	 *         executor
+	 */
+	private void buildLeafHashesInParallel (byte[][] leafHashes, ExecutorService executor) throws InterruptedException {
+
+		int numLeaves = (this.viewLength == 0) ? 0 : this.viewLeafNumber + 1;
+
+		if (leafHashes.length != numLeaves) {
+			throw new IllegalArgumentException ("Incorrect number of hashes");
+		}
+
+		if (numLeaves <= PARALLEL_LEVEL_CHUNK) {
+			buildLeafHashes (0, leafHashes);
+			return;
+		}
+
+		// Build each level from the one below it. A parent without a right child in the view pairs
+		// with the filler hash of its children's height
+		List<byte[][]> levels = new ArrayList<byte[][]>();
+		levels.add (leafHashes);
+		for (int y = 0; y < (this.graphHeight - 1); y++) {
+			byte[][] children = levels.get (y);
+			byte[][] parents = new byte[(children.length + 1) / 2][];
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for (int start = 0; start < parents.length; start += PARALLEL_LEVEL_CHUNK) {
+				tasks.add (new PairHasher (children, parents, start, Math.min (start + PARALLEL_LEVEL_CHUNK, parents.length), this.tree.fillerHash (y)));
+			}
+			for (Future<Object> future : executor.invokeAll (tasks)) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					// A PairHasher throws no checked exceptions
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException)e.getCause();
+					}
+					throw (Error)e.getCause();
+				}
+			}
+			levels.add (parents);
+		}
+
+		// Store the built hashes
+		for (int y = 0; y < this.graphHeight; y++) {
+			byte[][] level = levels.get (y);
+			for (int x = 0; x < level.length; x++) {
+				setNodeHash (x, y, (y == 0) ? Arrays.copyOf (level[x], 20) : level[x]);
+			}
+		}
+
+	}
+
+
+	/**
+	 * Gets the hash of a node within the view. The node must lie on or to the left of the path
+	 * from the view leaf to the root
+	 *
+	 * @param x The position of the node within its level
+	 * @param y The height of the node
+	 * @return The hash, if present, or {@code null}
+	 */
+	private byte[] getNodeHash (int x, int y) {
+
+		if ((this.mutableHeight <= y) && (x == (this.viewLeafNumber >>> y))) {
+			return this.viewHashNodes[y - this.mutableHeight];
+		}
+
+		return this.tree.getImmutableHash (ElasticTree.nodeIndexForLeafNumber (x << y) + (2 << y) - 2);
+
+	}
+
+
+	/**
+	 * Sets the hash of a node within the view, in the same place that a cursor would. The node
+	 * must lie on or to the left of the path from the view leaf to the root
+	 *
+	 * @param x The position of the node within its level
+	 * @param y The height of the node
+	 * @param hash The hash to set
+	 */
+	private void setNodeHash (int x, int y, byte[] hash) {
+
+		if ((this.mutableHeight <= y) && (x == (this.viewLeafNumber >>> y))) {
+			this.viewHashNodes[y - this.mutableHeight] = hash;
+		} else {
+			this.tree.setImmutableNode (ElasticTree.nodeIndexForLeafNumber (x << y) + (2 << y) - 2, hash);
+		}
+
+	}
+
+
 	/**
 	 * @return The node index of the root node
 	 */
@@ -487,6 +679,90 @@ public class ElasticTreeView {
 	}
 
 
+	/**
+	 * Verifies every leaf of a complete candidate view of the same length against this view in a
+	 * single pass. Nodes are compared from the root downwards; where a candidate node matches a
+	 * node present in this view, every leaf beneath it is verified without further hashing, and
+	 * the candidate's nodes beneath it are copied into this view. Where they differ, the
+	 * comparison continues with their children
+	 *
+	 * <p>The candidate view must be internally consistent, such as a view built from its leaves
+	 * through {@link ElasticTree#buildFromLeaves(int, long, byte[])}
+	 *
+	 * @param candidateView The candidate view
+	 * @return A bit field of the leaves that were verified
+	 * @throws IllegalArgumentException if the candidate view differs in leaf size or length
+	 */
+	public BitField verifyView (ElasticTreeView candidateView) {
+
+		if ((candidateView.tree.getLeafSize() != this.tree.getLeafSize()) || (candidateView.viewLength != this.viewLength)) {
+			throw new IllegalArgumentException ("Incompatible view");
+		}
+
+		int numLeaves = (this.viewLength == 0) ? 0 : this.viewLeafNumber + 1;
+		BitField verifiedLeaves = new BitField (numLeaves);
+
+		if (numLeaves == 0) {
+			return verifiedLeaves;
+		}
+
+		// Each pending node is held as its position followed by its height
+		LinkedList<int[]> pendingNodes = new LinkedList<int[]>();
+		pendingNodes.add (new int[] { 0, this.graphHeight - 1 });
+		while (!pendingNodes.isEmpty()) {
+			int[] node = pendingNodes.removeFirst();
+			int x = node[0];
+			int y = node[1];
+			byte[] hash = getNodeHash (x, y);
+			byte[] candidateHash = candidateView.getNodeHash (x, y);
+			if (candidateHash == null) {
+				continue;
+			}
+			if ((hash != null) && ElasticTree.arraysEqual (hash, candidateHash)) {
+				adoptSubtree (candidateView, x, y);
+				int endLeaf = (int)Math.min ((x + 1L) << y, numLeaves);
+				for (int i = x << y; i < endLeaf; i++) {
+					verifiedLeaves.set (i);
+				}
+			} else if (y > 0) {
+				int childViewPathX = this.viewLeafNumber >>> (y - 1);
+				pendingNodes.add (new int[] { 2 * x, y - 1 });
+				if ((2 * x + 1) <= childViewPathX) {
+					pendingNodes.add (new int[] { (2 * x) + 1, y - 1 });
+				}
+			}
+		}
+
+		return verifiedLeaves;
+
+	}
+
+
+	/**
+	 * Copies the nodes of the subtree below a given node of a candidate view into this view
+	 *
+	 * @param candidateView The candidate view
+	 * @param x The position of the subtree's root node within its level
+	 * @param y The height of the subtree's root node
+	 */
+	private void adoptSubtree (ElasticTreeView candidateView, int x, int y) {
+
+		for (int height = y - 1; height >= 0; height--) {
+			int firstX = x << (y - height);
+			int lastX = (int)Math.min (((x + 1L) << (y - height)) - 1, this.viewLeafNumber >>> height);
+			for (int i = firstX; i <= lastX; i++) {
+				if (getNodeHash (i, height) == null) {
+					byte[] hash = candidateView.getNodeHash (i, height);
+					if (hash != null) {
+						setNodeHash (i, height, Arrays.copyOf (hash, 20));
+					}
+				}
+			}
+		}
+
+	}
+
+
 	/**
 	 * Indicates whether the sibling and ancestor sibling pairs of the given leaf are all present
 	 *
@@ -735,6 +1011,26 @@ public class ElasticTreeView {
 	}
 
 
+	/**
+	 * Creates a View with a given length and known leaf hash set, building the levels of the graph
+	 * in parallel
+	 * 
+	 * @param tree The tree upon which this is a view
+	 * @param viewLength The view length
+	 * @param leafHashes The leaf hash set
+	 * @param executor The executor to build hashes on
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the
+	 *         executor
+	 */
+	public ElasticTreeView (ElasticTree tree, long viewLength, byte[][] leafHashes, ExecutorService executor) throws InterruptedException {
+
+		this (tree, viewLength);
+
+		buildLeafHashesInParallel (leafHashes, executor);
+
+	}
+
+
 	/**
 	 * Creates a view that extends an existing view with new leaf hashes
 	 *
@@ -30,16 +30,21 @@ import test.peer.protocol.TestPeerProtocolParser;
 import test.peer.requestmanager.TestDefaultRequestManager;
 import test.statemachine.TestStateMachine;
 import test.torrentdb.TestBlockDescriptor;
+import test.torrentdb.TestDiskJobQueue;
 import test.torrentdb.TestFileMetadata;
 import test.torrentdb.TestFileMetadataProvider;
+import test.torrentdb.TestFileHandlePool;
 import test.torrentdb.TestFileStorage;
+import test.torrentdb.TestMappedFileStorage;
 import test.torrentdb.TestFilesetDelta;
 import test.torrentdb.TestFilespec;
 import test.torrentdb.TestInfoBuilder;
 import test.torrentdb.TestMemoryStorage;
 import test.torrentdb.TestMutableFileset;
 import test.torrentdb.TestPiece;
+import test.torrentdb.TestPieceCache;
 import test.torrentdb.TestPieceDatabase;
+import test.torrentdb.TestVerificationScheduler;
 import test.torrentdb.TestInfoHash;
 import test.torrentdb.TestMetaInfo;
 import test.torrentdb.TestStorageDescriptor;
@@ -50,12 +55,17 @@ import test.trackerclient.TestHTTPRequestHandler;
 import test.trackerclient.TestHTTPResponseParser;
 import test.trackerclient.TestTrackerClient;
 import test.util.TestBitField;
+import test.util.TestBufferPool;
 import test.util.TestCharsetUtil;
+import test.util.TestConcurrentBitField;
 import test.util.TestDSAUtil;
+import test.util.TestTimingWheel;
+import test.util.TestWorkQueue;
 import test.util.counter.TestPeriod;
 import test.util.counter.TestPeriodicCounter;
 import test.util.counter.TestStatisticCounter;
 import test.util.counter.TestTemporalCounter;
+import test.util.counter.TestTokenBucket;
 import test.util.elastictree.TestElasticTree;
 
 
@@ -75,9 +85,13 @@ import test.util.elastictree.TestElasticTree;
 	TestHTTPRequestParser.class,
 	TestTracker.class,
 	TestPieceDatabase.class,
+	TestVerificationScheduler.class,
 	TestMetaInfo.class,
+	TestFileHandlePool.class,
 	TestFileStorage.class,
+	TestMappedFileStorage.class,
 	TestBitField.class,
+	TestBufferPool.class,
 	TestPeerProtocolBuilder.class,
 	TestPeerProtocolParser.class,
 	TestPeerHandler.class,
@@ -85,6 +99,8 @@ import test.util.elastictree.TestElasticTree;
 	TestDefaultChokingManager.class,
 	TestConnectionManager.class,
 	TestPiece.class,
+	TestPieceCache.class,
+	TestDiskJobQueue.class,
 	TestDefaultRequestManager.class,
 	TestPeerOutboundQueue.class,
 	TestHTTPResponseParser.class,
@@ -100,6 +116,7 @@ import test.util.elastictree.TestElasticTree;
 	TestPeerID.class,
 	TestInfoHash.class,
 	TestCharsetUtil.class,
+	TestConcurrentBitField.class,
 	TestPeriod.class,
 	TestInfoBuilder.class,
 	TestMemoryStorage.class,
@@ -112,7 +129,10 @@ import test.util.elastictree.TestElasticTree;
 	TestPeerProtocolNegotiator.class,
 	TestFilespec.class,
 	TestFilesetDelta.class,
-	TestMutableFileset.class
+	TestMutableFileset.class,
+	TestTimingWheel.class,
+	TestWorkQueue.class,
+	TestTokenBucket.class
 })
 public class AllTests {
 	// This space left blank
@@ -11,6 +11,11 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
@@ -80,6 +85,38 @@ public class TestConnectionManager {
 	}
 
 
+	/**
+	 * Tests that inbound connections are distributed across the reactors in turn
+	 * @throws Exception
+	 */
+	@Test
+	public void testInboundBalanced() throws Exception {
+
+		final CountDownLatch latch = new CountDownLatch (4);
+		final List<String> threadNames = Collections.synchronizedList (new ArrayList<String>());
+
+		ConnectionManager connectionManager = new ConnectionManager (4);
+		InboundConnectionListener connectionManagerListener = new InboundConnectionListener() {
+			public void accepted(Connection connection) {
+				threadNames.add (Thread.currentThread().getName());
+				latch.countDown();
+			}
+		};
+		int port = connectionManager.listen (null, 0, connectionManagerListener);
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < 4; i++) {
+			sockets.add (new Socket (InetAddress.getLocalHost(), port));
+		}
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertEquals (4, new HashSet<String> (threadNames).size());
+
+		connectionManager.close();
+
+	}
+
+
 	// Outbound connections
 
 	/**
@@ -261,6 +298,168 @@ public class TestConnectionManager {
 	}
 
 
+	/**
+	 * Tests that repeated changes of interest in writing made outside the selection thread leave
+	 * the Connection signalled when it is writeable
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectionWriteableFromOtherThread() throws Exception {
+
+		final CountDownLatch acceptedLatch = new CountDownLatch (1);
+		final CountDownLatch writeableLatch = new CountDownLatch (1);
+		final Connection[] acceptedConnection = new Connection[1];
+
+		ConnectionManager connectionManager = new ConnectionManager();
+		InboundConnectionListener connectionManagerListener = new InboundConnectionListener() {
+
+			public void accepted (Connection connection) {
+				connection.setListener (new ConnectionReadyListener() {
+					public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+						if (writeable) {
+							writeableLatch.countDown();
+						}
+					}
+				});
+				acceptedConnection[0] = connection;
+				acceptedLatch.countDown();
+			}
+
+		};
+		int port = connectionManager.listen (null, 0, connectionManagerListener);
+
+		new Socket (InetAddress.getLocalHost(), port);
+		assertTrue (acceptedLatch.await (5, TimeUnit.SECONDS));
+		for (int i = 0; i < 100; i++) {
+			acceptedConnection[0].setWriteEnabled (true);
+			acceptedConnection[0].setWriteEnabled (false);
+		}
+		acceptedConnection[0].setWriteEnabled (true);
+
+		assertTrue (writeableLatch.await (5, TimeUnit.SECONDS));
+
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Stress tests changes of interest in writing made concurrently by many threads while the
+	 * reactors apply them. Once the threads have finished, the last change made to each Connection
+	 * must take effect, first disabling and then enabling writing
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectionWriteEnabledConcurrent() throws Exception {
+
+		final int connectionCount = 8;
+		final int threadCount = 8;
+		final int iterations = 20000;
+
+		final CountDownLatch acceptedLatch = new CountDownLatch (connectionCount);
+		final CountDownLatch disabledLatch = new CountDownLatch (connectionCount);
+		final CountDownLatch enabledLatch = new CountDownLatch (connectionCount);
+		final List<Connection> connections = Collections.synchronizedList (new ArrayList<Connection>());
+		final int[] phase = new int[1];
+
+		ConnectionManager connectionManager = new ConnectionManager (2);
+		InboundConnectionListener connectionManagerListener = new InboundConnectionListener() {
+
+			public void accepted (Connection connection) {
+				connection.setListener (new ConnectionReadyListener() {
+
+					private boolean disabledSeen = false;
+					private boolean enabledSeen = false;
+
+					public void connectionReady (Connection connection, boolean readable, boolean writeable) {
+						int currentPhase;
+						synchronized (phase) {
+							currentPhase = phase[0];
+						}
+						try {
+							if ((currentPhase == 1) && readable && !writeable && !this.disabledSeen) {
+								// Writing has been disabled, so the byte written by the remote socket
+								// is signalled without writeability
+								connection.read (ByteBuffer.allocate (1));
+								this.disabledSeen = true;
+								disabledLatch.countDown();
+							} else if ((currentPhase == 2) && writeable && !this.enabledSeen) {
+								this.enabledSeen = true;
+								enabledLatch.countDown();
+							}
+						} catch (IOException e) {
+							// Detected by the latches
+						}
+					}
+
+				});
+				connections.add (connection);
+				acceptedLatch.countDown();
+			}
+
+		};
+		int port = connectionManager.listen (null, 0, connectionManagerListener);
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < connectionCount; i++) {
+			sockets.add (new Socket (InetAddress.getLocalHost(), port));
+		}
+		assertTrue (acceptedLatch.await (5, TimeUnit.SECONDS));
+
+		// Toggle interest in writing from many threads at once
+		final CyclicBarrier startBarrier = new CyclicBarrier (threadCount);
+		final List<Throwable> failures = Collections.synchronizedList (new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < threadCount; i++) {
+			final Random random = new Random (i);
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						startBarrier.await (5, TimeUnit.SECONDS);
+						for (int j = 0; j < iterations; j++) {
+							connections.get (random.nextInt (connectionCount)).setWriteEnabled (random.nextBoolean());
+						}
+					} catch (Throwable t) {
+						failures.add (t);
+					}
+				}
+			};
+			threads.add (thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join (30000);
+			assertFalse (thread.isAlive());
+		}
+		assertEquals (new ArrayList<Throwable>(), failures);
+
+		// Disable writing, and check that each Connection is signalled as readable only
+		synchronized (phase) {
+			phase[0] = 1;
+		}
+		for (Connection connection : connections) {
+			connection.setWriteEnabled (false);
+		}
+		for (Socket socket : sockets) {
+			socket.getOutputStream().write (1);
+		}
+		assertTrue (disabledLatch.await (5, TimeUnit.SECONDS));
+
+		// Enable writing, and check that each Connection is signalled as writeable
+		synchronized (phase) {
+			phase[0] = 2;
+		}
+		for (Connection connection : connections) {
+			connection.setWriteEnabled (true);
+		}
+		assertTrue (enabledLatch.await (5, TimeUnit.SECONDS));
+
+		connectionManager.close();
+
+	}
+
+
 	/**
 	 * Tests that ConnectionManager does not signal a Connection when it is no longer writeable
 	 * @throws Exception
@@ -388,4 +587,51 @@ public class TestConnectionManager {
 
 	}
 
+
+	/**
+	 * Tests that outbound connections with equal affinity keys share a reactor
+	 * @throws Exception
+	 */
+	@Test
+	public void testOutboundAffinity() throws Exception {
+
+		final CountDownLatch latch = new CountDownLatch (3);
+		final List<String> threadNames = Collections.synchronizedList (new ArrayList<String>());
+
+		ConnectionManager connectionManager = new ConnectionManager (4);
+		OutboundConnectionListener connectionManagerListener = new OutboundConnectionListenerAdaptor() {
+			@Override
+			public void connected (Connection connection) {
+				threadNames.add (Thread.currentThread().getName());
+				latch.countDown();
+			}
+		};
+
+		ServerSocket serverSocket = new ServerSocket (0);
+		Object affinity = new Object();
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < 3; i++) {
+			connectionManager.connect (InetAddress.getLocalHost(), serverSocket.getLocalPort(), connectionManagerListener, 0, affinity);
+			sockets.add (serverSocket.accept());
+		}
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertEquals (1, new HashSet<String> (threadNames).size());
+
+		connectionManager.close();
+
+	}
+
+
+	/**
+	 * Tests creating a ConnectionManager with an invalid number of reactors
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidReactorCount() throws Exception {
+
+		new ConnectionManager (0);
+
+	}
+
 }
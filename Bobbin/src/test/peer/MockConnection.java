@@ -12,6 +12,7 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.util.LinkedList;
 import java.util.List;
@@ -86,6 +87,16 @@ public class MockConnection extends Connection {
 	 */
 	private boolean writeEnabled;
 
+	/**
+	 * {@code true} if writing to the connection is currently suspended, otherwise {@code false}
+	 */
+	private volatile boolean writeSuspended = false;
+
+	/**
+	 * {@code true} if reading from the connection is currently enabled, otherwise {@code false}
+	 */
+	private volatile boolean readEnabled = true;
+
 	/**
 	 * The number of bytes that are permitted to be written through the Connection
 	 */
@@ -233,6 +244,34 @@ public class MockConnection extends Connection {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#transferFrom(java.nio.channels.FileChannel, long, long)
+	 */
+	@Override
+	public long transferFrom (FileChannel fileChannel, long position, long count) throws IOException {
+
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+
+		int writeBytesAllowed = (int) Math.min (this.permittedWriteBytes, count);
+
+		ByteBuffer writeBuffer = ByteBuffer.allocate (writeBytesAllowed);
+		while (writeBuffer.hasRemaining()) {
+			if (fileChannel.read (writeBuffer, position + writeBuffer.position()) < 0) {
+				break;
+			}
+		}
+
+		writeBuffer.flip();
+		this.outputBuffers.add (writeBuffer);
+		this.permittedWriteBytes -= writeBuffer.remaining();
+
+		return writeBuffer.remaining();
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.itadaki.bobbin.connectionmanager.Connection#close()
 	 */
@@ -308,6 +347,28 @@ public class MockConnection extends Connection {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#setWriteSuspended(boolean)
+	 */
+	@Override
+	public void setWriteSuspended (boolean suspended) {
+
+		this.writeSuspended = suspended;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bobbin.connectionmanager.Connection#setReadEnabled(boolean)
+	 */
+	@Override
+	public void setReadEnabled (boolean enabled) {
+
+		this.readEnabled = enabled;
+
+	}
+
+
 	/**
 	 * @return {@code true} if writing to the connection is currently being requested
 	 */
@@ -318,6 +379,26 @@ public class MockConnection extends Connection {
 	}
 
 
+	/**
+	 * @return {@code true} if writing to the connection is currently suspended
+	 */
+	public boolean mockIsWriteSuspended() {
+
+		return this.writeSuspended;
+
+	}
+
+
+	/**
+	 * @return {@code true} if reading from the connection is currently enabled
+	 */
+	public boolean mockIsReadEnabled() {
+
+		return this.readEnabled;
+
+	}
+
+
 	/**
 	 * @param permittedWriteBytes The number of bytes that may be written through the Connection
 	 */
@@ -19,6 +19,7 @@ import org.itadaki.bobbin.bencode.BEncoder;
 import org.itadaki.bobbin.peer.ManageablePeer;
 import org.itadaki.bobbin.peer.PeerHandler;
 import org.itadaki.bobbin.peer.PeerID;
+import org.itadaki.bobbin.peer.PeerRateLimiter;
 import org.itadaki.bobbin.peer.PeerServices;
 import org.itadaki.bobbin.peer.PeerSetContext;
 import org.itadaki.bobbin.peer.PeerStatistics;
@@ -1943,6 +1944,72 @@ public class TestPeerHandler {
 	}
 
 
+	/**
+	 * Test that reading is suspended when the download rate limit is reached, and resumed later
+	 * @throws Exception
+	 */
+	@Test
+	public void testDownloadRateLimited() throws Exception {
+
+		// Given
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0", 16384);
+		PeerServices peerServices = mock (PeerServices.class);
+		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, null, null);
+		MockConnection mockConnection = new MockConnection();
+		PeerRateLimiter peerSetRateLimiter = new PeerRateLimiter();
+		peerSetRateLimiter.setDownloadRate (40000);
+		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, null, new PeerStatistics(), peerSetRateLimiter, false, false);
+
+		// When
+		for (int i = 0; i < 3000; i++) {
+			mockConnection.mockInput (PeerProtocolBuilder.keepaliveMessage());
+		}
+		handler.connectionReady (mockConnection, true, false);
+
+		// Then
+		assertEquals (10000, handler.getReadableStatistics().getReadableCounter (PeerStatistics.Type.PROTOCOL_BYTES_RECEIVED).getTotal());
+		assertFalse (mockConnection.mockIsReadEnabled());
+
+		// When
+		for (int i = 0; (i < 100) && !mockConnection.mockIsReadEnabled(); i++) {
+			Thread.sleep (20);
+		}
+
+		// Then
+		assertTrue (mockConnection.mockIsReadEnabled());
+
+	}
+
+
+	/**
+	 * Test that writing is suspended when the peer's upload rate limit is reached
+	 * @throws Exception
+	 */
+	@Test
+	public void testUploadRateLimited() throws Exception {
+
+		// Given
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0", 16384);
+		PeerServices peerServices = mock (PeerServices.class);
+		PeerSetContext peerSetContext = new PeerSetContext (peerServices, pieceDatabase, null, null);
+		MockConnection mockConnection = new MockConnection();
+		PeerHandler handler = new PeerHandler (peerSetContext, mockConnection, null, new PeerStatistics(), false, false);
+		handler.getRateLimiter().setUploadRate (1000);
+
+		// When
+		for (int i = 0; i < 1100; i++) {
+			handler.sendHavePiece (0);
+		}
+		handler.connectionReady (mockConnection, false, true);
+
+		// Then
+		assertEquals (4096, handler.getReadableStatistics().getReadableCounter (PeerStatistics.Type.PROTOCOL_BYTES_SENT).getTotal());
+		assertTrue (mockConnection.mockIsWriteEnabled());
+		assertTrue (mockConnection.mockIsWriteSuspended());
+
+	}
+
+
 	/**
 	 * Test close
 	 * @throws Exception 
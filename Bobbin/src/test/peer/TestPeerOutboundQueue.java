@@ -6,18 +6,29 @@ package test.peer;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 
 import org.itadaki.bobbin.peer.PeerOutboundQueue;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolBuilder;
 import org.itadaki.bobbin.peer.protocol.PeerProtocolConstants;
 import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.DiskJobListener;
+import org.itadaki.bobbin.torrentdb.DiskJobQueue;
+import org.itadaki.bobbin.torrentdb.FileHandlePool;
+import org.itadaki.bobbin.torrentdb.FileStorage;
+import org.itadaki.bobbin.torrentdb.Filespec;
+import org.itadaki.bobbin.torrentdb.Info;
+import org.itadaki.bobbin.torrentdb.InfoFileset;
 import org.itadaki.bobbin.torrentdb.Piece;
 import org.itadaki.bobbin.torrentdb.PieceDatabase;
+import org.itadaki.bobbin.torrentdb.Storage;
 import org.itadaki.bobbin.torrentdb.ViewSignature;
 import org.itadaki.bobbin.util.BitField;
 import org.itadaki.bobbin.util.counter.StatisticCounter;
@@ -96,6 +107,41 @@ public class TestPeerOutboundQueue {
 	}
 
 
+	/**
+	 * Tests that a bitfield message is written in parts when the number of bytes to send is
+	 * limited
+	 * @throws IOException
+	 */
+	@Test
+	public void testBitfieldLimited() throws IOException {
+
+		BitField bitField = new BitField (10);
+		bitField.set (9);
+
+		MockConnection connection = new MockConnection();
+
+		PieceDatabase pieceDatabase = null;
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, pieceDatabase, sentBlockCounter);
+
+		peerOutboundQueue.sendBitfieldMessage (bitField);
+		peerOutboundQueue.sendHaveMessage (1);
+
+		assertEquals (3, peerOutboundQueue.sendData (3));
+		assertEquals (0, peerOutboundQueue.sendData (0));
+		assertTrue (connection.mockIsWriteEnabled());
+		assertEquals (6, peerOutboundQueue.sendData (6));
+		assertTrue (connection.mockIsWriteEnabled());
+		assertEquals (7, peerOutboundQueue.sendData());
+		assertFalse (connection.mockIsWriteEnabled());
+
+		connection.mockExpectOutput (PeerProtocolBuilder.bitfieldMessage (bitField));
+		connection.mockExpectOutput (PeerProtocolBuilder.haveMessage (1));
+		connection.mockExpectNoMoreOutput();
+
+	}
+
+
 	/**
 	 * Tests that a choke message is written through the PeerOutboundQueue's Connection
 	 * @throws IOException
@@ -681,6 +727,241 @@ public class TestPeerOutboundQueue {
 	}
 
 
+	/**
+	 * Tests that a plain piece backed by files is transferred directly from its file, resuming
+	 * correctly after partial writes
+	 * @throws Exception 
+	 */
+	@Test
+	public void testPieceFileTransfer() throws Exception {
+
+		File testFile = Util.createNonExistentTemporaryFile();
+		byte[] pieceHashes = Util.flatten2DArray (Util.pseudoRandomBlockHashes (65536, 131072));
+		Info info = Info.create (new InfoFileset (new Filespec (testFile.getName(), 131072L)), 65536, pieceHashes);
+		Storage storage = new FileStorage (testFile.getParentFile());
+		storage.open (info.getPieceSize(), info.getFileset());
+		storage.write (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 65536, 65536)));
+		storage.write (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 65536, 65536)));
+		storage.close();
+		testFile.deleteOnExit();
+
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (testFile.getParentFile()), null);
+		pieceDatabase.start (true);
+		BlockDescriptor descriptor = new BlockDescriptor (1, 32768, 16384);
+
+		MockConnection connection = new MockConnection();
+		connection.mockSetPermittedWriteBytes (10000);
+
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, pieceDatabase, sentBlockCounter);
+
+		peerOutboundQueue.sendPieceMessage (descriptor);
+		peerOutboundQueue.sendData();
+		peerOutboundQueue.sendHaveMessage (0);
+		connection.mockSetPermittedWriteBytes (Integer.MAX_VALUE);
+		peerOutboundQueue.sendData();
+
+		connection.mockExpectOutput (PeerProtocolBuilder.pieceMessage (
+				descriptor,
+				ByteBuffer.wrap (Util.pseudoRandomBlock (1, 65536, 65536), 32768, 16384)
+		));
+		connection.mockExpectOutput (PeerProtocolBuilder.haveMessage (0));
+		connection.mockExpectNoMoreOutput();
+		assertFalse (connection.mockIsWriteEnabled());
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests that the file regions of a plain piece backed by files are looked up by a disk job,
+	 * and that the piece is transferred by the next call to sendData() rather than by the job
+	 * @throws Exception
+	 */
+	@Test
+	public void testPieceFileTransferAsynchronous() throws Exception {
+
+		File testFile = Util.createNonExistentTemporaryFile();
+		byte[] pieceHashes = Util.flatten2DArray (Util.pseudoRandomBlockHashes (65536, 131072));
+		Info info = Info.create (new InfoFileset (new Filespec (testFile.getName(), 131072L)), 65536, pieceHashes);
+		Storage storage = new FileStorage (testFile.getParentFile());
+		storage.open (info.getPieceSize(), info.getFileset());
+		storage.write (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 65536, 65536)));
+		storage.write (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 65536, 65536)));
+		storage.close();
+		testFile.deleteOnExit();
+
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (testFile.getParentFile()), null);
+		pieceDatabase.start (true);
+		BlockDescriptor descriptor = new BlockDescriptor (1, 32768, 16384);
+
+		// Occupy the queue's only worker until the piece message has been attempted
+		final CountDownLatch latch = new CountDownLatch (1);
+		DiskJobQueue diskJobQueue = new DiskJobQueue (1);
+		diskJobQueue.submit (new Object(), new Callable<Object>() {
+			public Object call() throws Exception {
+				latch.await();
+				return null;
+			}
+		}, new DiskJobListener<Object>() {
+			public void diskJobCompleted (Object result) { }
+			public void diskJobFailed (Exception exception) { }
+		});
+		pieceDatabase.setDiskJobQueue (diskJobQueue);
+
+		MockConnection connection = new MockConnection();
+
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, pieceDatabase, sentBlockCounter);
+
+		peerOutboundQueue.sendPieceMessage (descriptor);
+		assertEquals (0, peerOutboundQueue.sendData());
+		assertFalse (connection.mockIsWriteEnabled());
+
+		// Other messages are written while the regions are looked up
+		peerOutboundQueue.sendHaveMessage (0);
+		assertEquals (9, peerOutboundQueue.sendData());
+
+		connection.mockExpectOutput (PeerProtocolBuilder.haveMessage (0));
+		connection.mockExpectNoMoreOutput();
+		assertFalse (connection.mockIsWriteEnabled());
+		assertEquals (1, peerOutboundQueue.getUnsentPieceCount());
+
+		latch.countDown();
+		for (int i = 0; (i < 100) && !connection.mockIsWriteEnabled(); i++) {
+			Thread.sleep (10);
+		}
+
+		assertTrue (connection.mockIsWriteEnabled());
+		connection.mockExpectNoMoreOutput();
+
+		assertEquals (13 + 16384, peerOutboundQueue.sendData());
+
+		connection.mockExpectOutput (PeerProtocolBuilder.pieceMessage (
+				descriptor,
+				ByteBuffer.wrap (Util.pseudoRandomBlock (1, 65536, 65536), 32768, 16384)
+		));
+		connection.mockExpectNoMoreOutput();
+
+		diskJobQueue.shutdown();
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests that a piece message being transferred directly from its file is completed when the
+	 * file's handle is closed part way through
+	 * @throws Exception
+	 */
+	@Test
+	public void testPieceFileTransferHandleClosed() throws Exception {
+
+		File testFile = Util.createNonExistentTemporaryFile();
+		byte[] pieceHashes = Util.flatten2DArray (Util.pseudoRandomBlockHashes (65536, 131072));
+		Info info = Info.create (new InfoFileset (new Filespec (testFile.getName(), 131072L)), 65536, pieceHashes);
+		Storage storage = new FileStorage (testFile.getParentFile());
+		storage.open (info.getPieceSize(), info.getFileset());
+		storage.write (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 65536, 65536)));
+		storage.write (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 65536, 65536)));
+		storage.close();
+		testFile.deleteOnExit();
+
+		FileHandlePool handlePool = new FileHandlePool (1);
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (testFile.getParentFile(), handlePool), null);
+		pieceDatabase.start (true);
+		BlockDescriptor descriptor = new BlockDescriptor (1, 32768, 16384);
+
+		MockConnection connection = new MockConnection();
+		connection.mockSetPermittedWriteBytes (10000);
+
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, pieceDatabase, sentBlockCounter);
+
+		peerOutboundQueue.sendPieceMessage (descriptor);
+		peerOutboundQueue.sendData();
+
+		// Force the handle to the piece's file to be closed
+		File otherFile = Util.createNonExistentTemporaryFile();
+		handlePool.acquire (otherFile);
+		handlePool.release (otherFile);
+		otherFile.deleteOnExit();
+
+		connection.mockSetPermittedWriteBytes (Integer.MAX_VALUE);
+		peerOutboundQueue.sendData();
+
+		connection.mockExpectOutput (PeerProtocolBuilder.pieceMessage (
+				descriptor,
+				ByteBuffer.wrap (Util.pseudoRandomBlock (1, 65536, 65536), 32768, 16384)
+		));
+		connection.mockExpectNoMoreOutput();
+		assertEquals (2, handlePool.getEvictionCount());
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests that writing is suspended while a piece message's block is read asynchronously, and
+	 * resumed when the read completes
+	 * @throws Exception
+	 */
+	@Test
+	public void testPieceAsynchronousRead() throws Exception {
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("11", 65536);
+		pieceDatabase.start (true);
+		BlockDescriptor descriptor = new BlockDescriptor (1, 32768, 16384);
+		byte[] expectedBlockData = new byte[16384];
+		System.arraycopy (Util.pseudoRandomBlock (1, 65536, 65536), 32768, expectedBlockData, 0, 16384);
+
+		// Occupy the queue's only worker until the piece message has been attempted
+		final CountDownLatch latch = new CountDownLatch (1);
+		DiskJobQueue diskJobQueue = new DiskJobQueue (1);
+		diskJobQueue.submit (new Object(), new Callable<Object>() {
+			public Object call() throws Exception {
+				latch.await();
+				return null;
+			}
+		}, new DiskJobListener<Object>() {
+			public void diskJobCompleted (Object result) { }
+			public void diskJobFailed (Exception exception) { }
+		});
+		pieceDatabase.setDiskJobQueue (diskJobQueue);
+
+		MockConnection connection = new MockConnection();
+
+		StatisticCounter sentBlockCounter = new StatisticCounter();
+		PeerOutboundQueue peerOutboundQueue = new PeerOutboundQueue (connection, pieceDatabase, sentBlockCounter);
+
+		peerOutboundQueue.sendPieceMessage (descriptor);
+		peerOutboundQueue.sendData();
+
+		connection.mockExpectNoMoreOutput();
+		assertFalse (connection.mockIsWriteEnabled());
+		assertEquals (1, peerOutboundQueue.getUnsentPieceCount());
+
+		// The block is not held in files, so once its regions have been looked up it is read
+		latch.countDown();
+		for (int i = 0; (i < 100) && (peerOutboundQueue.getUnsentPieceCount() > 0); i++) {
+			Thread.sleep (10);
+			if (connection.mockIsWriteEnabled()) {
+				peerOutboundQueue.sendData();
+			}
+		}
+
+		connection.mockExpectOutput (PeerProtocolBuilder.pieceMessage (descriptor, ByteBuffer.wrap (expectedBlockData)));
+		connection.mockExpectNoMoreOutput();
+		assertEquals (0, peerOutboundQueue.getUnsentPieceCount());
+
+		diskJobQueue.shutdown();
+		pieceDatabase.terminate (true);
+
+	}
+
+
 	/**
 	 * Tests that a request is tracked once only
 	 * @throws IOException
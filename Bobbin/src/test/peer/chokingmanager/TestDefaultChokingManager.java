@@ -15,6 +15,7 @@ import java.util.Set;
 
 import org.itadaki.bobbin.bencode.BDictionary;
 import org.itadaki.bobbin.peer.ManageablePeer;
+import org.itadaki.bobbin.peer.PeerRateLimiter;
 import org.itadaki.bobbin.peer.PeerState;
 import org.itadaki.bobbin.peer.PeerStatistics;
 import org.itadaki.bobbin.peer.ReadablePeerStatistics;
@@ -158,6 +159,10 @@ public class TestDefaultChokingManager {
 			};
 		}
 
+		public PeerRateLimiter getRateLimiter() {
+			return null;
+		}
+
 		public BitField getRemoteBitField() {
 			return null;
 		}
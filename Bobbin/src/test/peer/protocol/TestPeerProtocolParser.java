@@ -11,9 +11,11 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -29,6 +31,7 @@ import org.itadaki.bobbin.torrentdb.PieceStyle;
 import org.itadaki.bobbin.torrentdb.ResourceType;
 import org.itadaki.bobbin.torrentdb.ViewSignature;
 import org.itadaki.bobbin.util.BitField;
+import org.itadaki.bobbin.util.BufferPool;
 import org.junit.Test;
 import org.mockito.InOrder;
 
@@ -81,6 +84,44 @@ public class TestPeerProtocolParser {
 	}
 
 
+	/**
+	 * Tests that no more than the permitted number of bytes are read
+	 * @throws IOException
+	 */
+	@Test
+	public void testLimitedRead() throws IOException {
+
+		// Given
+		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false);
+		ReadableByteChannel channel = Util.infiniteReadableByteChannelFor (PeerProtocolBuilder.chokeMessage(), PeerProtocolBuilder.unchokeMessage());
+
+		// When
+		int bytesRead = parser.parseBytes (channel, 7);
+
+		// Then
+		assertEquals (7, bytesRead);
+		verify(mockConsumer).chokeMessage (true);
+		verifyNoMoreInteractions (mockConsumer);
+
+		// When
+		bytesRead = parser.parseBytes (channel, 0);
+
+		// Then
+		assertEquals (0, bytesRead);
+		verifyNoMoreInteractions (mockConsumer);
+
+		// When
+		bytesRead = parser.parseBytes (channel);
+
+		// Then
+		assertEquals (3, bytesRead);
+		verify(mockConsumer).chokeMessage (false);
+		verifyNoMoreInteractions (mockConsumer);
+
+	}
+
+
 	/**
 	 * Tests that PeerProtocolConsumer.chokeMessage(false) is called in sequence
 	 * @throws IOException
@@ -240,6 +281,129 @@ public class TestPeerProtocolParser {
 	}
 
 
+	/**
+	 * Tests that the buffer holding a received block is returned to its pool once consumed
+	 * @throws IOException
+	 */
+	@Test
+	public void testPiecePooled() throws IOException {
+
+		// Given
+		byte[] data = new byte[] { 9, 8, 7, 6, 5, 4, 3, 2, 1, 0, -1 };
+		BlockDescriptor requestDescriptor = new BlockDescriptor (1234, 5678, data.length);
+		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		BufferPool pool = new BufferPool (false, 1024 * 1024, true);
+		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false, pool);
+
+		// When
+		parser.parseBytes (Util.infiniteReadableByteChannelFor (PeerProtocolBuilder.pieceMessage (requestDescriptor, ByteBuffer.wrap (data))));
+
+		// Then
+		verify(mockConsumer).pieceMessage (PieceStyle.PLAIN, null, requestDescriptor, null, null, ByteBuffer.wrap (data));
+		verifyNoMoreInteractions (mockConsumer);
+		assertEquals (0, pool.getOutstandingAllocations().size());
+		assertEquals (2, pool.getMissCount());
+
+	}
+
+
+	/**
+	 * Tests that a run of small messages is parsed from a single read through a pooled read-ahead
+	 * buffer, which is returned to its pool once drained
+	 * @throws IOException
+	 */
+	@Test
+	public void testReadAhead() throws IOException {
+
+		// Given
+		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		BufferPool pool = new BufferPool (false, 1024 * 1024, true);
+		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false, pool);
+		final ReadableByteChannel channel = Util.infiniteReadableByteChannelFor (
+				PeerProtocolBuilder.chokeMessage(),
+				PeerProtocolBuilder.unchokeMessage(),
+				PeerProtocolBuilder.interestedMessage(),
+				PeerProtocolBuilder.haveMessage (1234)
+		);
+		final int[] reads = new int[1];
+		ReadableByteChannel countingChannel = new ReadableByteChannel() {
+			public int read (ByteBuffer dst) throws IOException {
+				reads[0]++;
+				return channel.read (dst);
+			}
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+
+		// When
+		int bytesRead = parser.parseBytes (countingChannel);
+
+		// Then
+		assertEquals (24, bytesRead);
+		verify(mockConsumer).chokeMessage (true);
+		verify(mockConsumer).chokeMessage (false);
+		verify(mockConsumer).interestedMessage (true);
+		verify(mockConsumer).haveMessage (null, 1234);
+		verifyNoMoreInteractions (mockConsumer);
+		assertEquals (2, reads[0]);
+		assertEquals (0, pool.getOutstandingAllocations().size());
+
+	}
+
+
+	/**
+	 * Tests that a read through the read-ahead buffer absorbs no more than a small part of a
+	 * following piece message, the rest of which is read directly
+	 * @throws IOException
+	 */
+	@Test
+	public void testReadAheadLimited() throws IOException {
+
+		// Given
+		byte[] data = new byte[16384];
+		BlockDescriptor requestDescriptor = new BlockDescriptor (1234, 0, data.length);
+		PeerProtocolConsumer mockConsumer = mock (PeerProtocolConsumer.class);
+		BufferPool pool = new BufferPool (false, 1024 * 1024, true);
+		PeerProtocolParser parser = new PeerProtocolParser (mockConsumer, false, false, pool);
+		ByteBuffer[] pieceMessage = PeerProtocolBuilder.pieceMessage (requestDescriptor, ByteBuffer.wrap (data));
+		final ReadableByteChannel channel = Util.infiniteReadableByteChannelFor (
+				PeerProtocolBuilder.haveMessage (1234),
+				pieceMessage[0],
+				pieceMessage[1]
+		);
+		final List<Integer> reads = new ArrayList<Integer>();
+		ReadableByteChannel countingChannel = new ReadableByteChannel() {
+			public int read (ByteBuffer dst) throws IOException {
+				int bytesRead = channel.read (dst);
+				reads.add (bytesRead);
+				return bytesRead;
+			}
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+
+		// When
+		int bytesRead = parser.parseBytes (countingChannel);
+
+		// Then
+		assertEquals (9 + 13 + 16384, bytesRead);
+		verify(mockConsumer).haveMessage (null, 1234);
+		verify(mockConsumer).pieceMessage (PieceStyle.PLAIN, null, requestDescriptor, null, null, ByteBuffer.wrap (data));
+		verifyNoMoreInteractions (mockConsumer);
+		assertEquals (Arrays.asList (1024, 9 + 13 + 16384 - 1024, 0), reads);
+		assertEquals (0, pool.getOutstandingAllocations().size());
+
+	}
+
+
 	/**
 	 * Tests that PeerProtocolConsumer.cancelMessage() is called in sequence
 	 * @throws IOException
@@ -8,6 +8,8 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.itadaki.bobbin.peer.ManageablePeer;
@@ -16,6 +18,7 @@ import org.itadaki.bobbin.peer.requestmanager.DefaultRequestManager;
 import org.itadaki.bobbin.peer.requestmanager.RequestManager;
 import org.itadaki.bobbin.peer.requestmanager.RequestManagerListener;
 import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.Piece;
 import org.itadaki.bobbin.torrentdb.PiecesetDescriptor;
 import org.itadaki.bobbin.util.BitField;
 import org.junit.Test;
@@ -329,6 +332,94 @@ public class TestDefaultRequestManager {
 	}
 
 
+	/**
+	 * An assembled piece that has not yet been written is not allocated again, unless it is
+	 * returned as not written
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPieceHandlingWriting() throws Exception {
+
+		// Given
+		int pieceSize = 32768;
+		long totalLength = pieceSize;
+
+		PiecesetDescriptor descriptor = new PiecesetDescriptor (pieceSize, totalLength);
+		BitField neededBitField = new BitField(1).not();
+		RequestManagerListener listener = mock (RequestManagerListener.class);
+		RequestManager requestManager = new DefaultRequestManager (descriptor, listener);
+		requestManager.setNeededPieces (neededBitField);
+
+		BitField peerBitField = new BitField (1);
+		peerBitField.set (0);
+		ManageablePeer peer = mockManageablePeer (descriptor, peerBitField);
+		requestManager.peerRegistered (peer);
+
+		// When
+		List<BlockDescriptor> blocks = requestManager.allocateRequests (peer, 2, false);
+		for (BlockDescriptor block : blocks) {
+			requestManager.fulfilRequest (peer, block, null, null, ByteBuffer.allocate (16384));
+		}
+		List<BlockDescriptor> blocks2 = requestManager.allocateRequests (peer, 2, false);
+
+		// Then
+		assertEquals (2, blocks.size());
+		verify (listener).pieceAssembled (any (Piece.class));
+		assertEquals (0, blocks2.size());
+		assertEquals (1, requestManager.getNeededPieceCount());
+
+		// When
+		requestManager.pieceNotWritten (0);
+		List<BlockDescriptor> blocks3 = requestManager.allocateRequests (peer, 2, false);
+
+		// Then
+		assertEquals (blocks, blocks3);
+
+	}
+
+
+	/**
+	 * With block streaming, each block is passed to the listener, and a streamed piece is
+	 * assembled
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPieceHandlingStreamed() throws Exception {
+
+		// Given
+		int pieceSize = 262144;
+		long totalLength = pieceSize;
+
+		PiecesetDescriptor descriptor = new PiecesetDescriptor (pieceSize, totalLength);
+		BitField neededBitField = new BitField(1).not();
+		RequestManagerListener listener = mock (RequestManagerListener.class);
+		RequestManager requestManager = new DefaultRequestManager (descriptor, listener);
+		requestManager.setBlockStreaming (true);
+		requestManager.setNeededPieces (neededBitField);
+
+		BitField peerBitField = new BitField (1);
+		peerBitField.set (0);
+		ManageablePeer peer = mockManageablePeer (descriptor, peerBitField);
+		requestManager.peerRegistered (peer);
+		ArgumentCaptor<Piece> pieceCaptor = ArgumentCaptor.forClass (Piece.class);
+
+		// When
+		List<BlockDescriptor> blocks = requestManager.allocateRequests (peer, 16, false);
+		for (BlockDescriptor block : blocks) {
+			requestManager.fulfilRequest (peer, block, null, null, ByteBuffer.allocate (16384));
+		}
+
+		// Then
+		assertEquals (16, blocks.size());
+		verify (listener, times (16)).blockReceived (any (BlockDescriptor.class), any (ByteBuffer.class));
+		verify (listener).pieceAssembled (pieceCaptor.capture());
+		assertTrue (pieceCaptor.getValue().isStreamed());
+
+	}
+
+
 	/**
 	 * On a double allocation, the second peer is sent a cancel on receipt of the piece
 	 *
@@ -620,6 +711,129 @@ public class TestDefaultRequestManager {
 	}
 
 
+	/**
+	 * Tests setPieceNeeded
+	 * @throws Exception
+	 */
+	@Test
+	public void testSetPieceNeeded() throws Exception {
+
+		// Given
+		int pieceSize = 262144;
+		long totalLength = pieceSize * 2;
+
+		PiecesetDescriptor descriptor = new PiecesetDescriptor (pieceSize, totalLength);
+		RequestManager requestManager = new DefaultRequestManager (descriptor, mock (RequestManagerListener.class));
+		requestManager.setNeededPieces (new BitField (2));
+
+		BitField peerBitField = new BitField (2);
+		peerBitField.set (1);
+		ManageablePeer peer = mockManageablePeer (descriptor, peerBitField);
+		requestManager.peerRegistered (peer);
+
+		// When
+		// No pieces needed
+		List<BlockDescriptor> blocks = requestManager.allocateRequests (peer, 16, false);
+
+		// Then
+		assertEquals (0, blocks.size());
+
+		// When
+		// Set a piece the peer doesn't have needed
+		requestManager.setPieceNeeded (0);
+
+		// Then
+		assertEquals (1, requestManager.getNeededPieceCount());
+		verify(peer, never()).setWeAreInterested (anyBoolean());
+
+		// When
+		// Set a piece the peer has needed
+		requestManager.setPieceNeeded (1);
+		blocks = requestManager.allocateRequests (peer, 16, false);
+
+		// Then
+		assertEquals (2, requestManager.getNeededPieceCount());
+		verify(peer).setWeAreInterested (true);
+		assertEquals (16, blocks.size());
+		assertEquals (1, blocks.get(0).getPieceNumber());
+
+	}
+
+
+	/**
+	 * Tests that a restored partial piece is allocated preferentially, and only its missing blocks
+	 * are requested
+	 */
+	@Test
+	public void testRestorePartialPiece() {
+
+		// Given
+		int pieceSize = 262144;
+		long totalLength = pieceSize * 2;
+		PiecesetDescriptor descriptor = new PiecesetDescriptor (pieceSize, totalLength);
+		RequestManagerListener listener = mock (RequestManagerListener.class);
+		RequestManager requestManager = new DefaultRequestManager (descriptor, listener);
+		requestManager.setNeededPieces (new BitField(2).not());
+
+		BitField peerBitField = new BitField(2).not();
+		ManageablePeer peer = mockManageablePeer (descriptor, peerBitField);
+		requestManager.peerRegistered (peer);
+
+		List<BlockDescriptor> storedBlocks = new ArrayList<BlockDescriptor>();
+		for (int i = 0; i < 15; i++) {
+			storedBlocks.add (new BlockDescriptor (1, i * 16384, 16384));
+		}
+
+		// When
+		requestManager.restorePartialPiece (1, storedBlocks);
+		List<BlockDescriptor> blocks = requestManager.allocateRequests (peer, 1, false);
+
+		// Then
+		assertEquals (1, requestManager.getPartialPieces().size());
+
+		// When
+		requestManager.fulfilRequest (peer, blocks.get (0), null, null, ByteBuffer.allocate (16384));
+
+		// Then
+		assertEquals (Arrays.asList (new BlockDescriptor (1, 15 * 16384, 16384)), blocks);
+		verify (listener).blockReceived (eq (blocks.get (0)), any (ByteBuffer.class));
+		verify (listener).pieceAssembled (any (Piece.class));
+		assertEquals (0, requestManager.getPartialPieces().size());
+
+	}
+
+
+	/**
+	 * Tests that a restored partial piece with no missing blocks is assembled immediately, and
+	 * that an unneeded piece is not restored
+	 */
+	@Test
+	public void testRestorePartialPieceComplete() {
+
+		// Given
+		int pieceSize = 32768;
+		long totalLength = pieceSize * 2;
+		PiecesetDescriptor descriptor = new PiecesetDescriptor (pieceSize, totalLength);
+		RequestManagerListener listener = mock (RequestManagerListener.class);
+		RequestManager requestManager = new DefaultRequestManager (descriptor, listener);
+		BitField neededPieces = new BitField (2);
+		neededPieces.set (0);
+		requestManager.setNeededPieces (neededPieces);
+		ArgumentCaptor<Piece> pieceCaptor = ArgumentCaptor.forClass (Piece.class);
+
+		// When
+		requestManager.restorePartialPiece (0, Arrays.asList (new BlockDescriptor (0, 0, 16384), new BlockDescriptor (0, 16384, 16384)));
+		requestManager.restorePartialPiece (1, Arrays.asList (new BlockDescriptor (1, 0, 16384)));
+
+		// Then
+		verify (listener).pieceAssembled (pieceCaptor.capture());
+		assertEquals (0, pieceCaptor.getValue().getPieceNumber());
+		assertTrue (pieceCaptor.getValue().isStreamed());
+		assertEquals (0, requestManager.getPartialPieces().size());
+
+	}
+
+
 	/**
 	 * Test allocateRequests(,,true) on a peer with no Allowed Fast pieces
 	 */
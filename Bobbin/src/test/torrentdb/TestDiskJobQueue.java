@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.torrentdb;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.itadaki.bobbin.torrentdb.DiskJobListener;
+import org.itadaki.bobbin.torrentdb.DiskJobQueue;
+import org.junit.Test;
+
+
+/**
+ * Tests DiskJobQueue
+ */
+public class TestDiskJobQueue {
+
+	/**
+	 * A listener that records the outcome of a job
+	 */
+	private static class RecordingListener<T> implements DiskJobListener<T> {
+
+		/**
+		 * Counted down when the job completes
+		 */
+		public final CountDownLatch latch = new CountDownLatch (1);
+
+		/**
+		 * The result of the job, if it completed successfully
+		 */
+		public volatile T result = null;
+
+		/**
+		 * The exception that caused the job to fail, if it failed
+		 */
+		public volatile Exception exception = null;
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.torrentdb.DiskJobListener#diskJobCompleted(java.lang.Object)
+		 */
+		public void diskJobCompleted (T result) {
+			this.result = result;
+			this.latch.countDown();
+		}
+
+		/* (non-Javadoc)
+		 * @see org.itadaki.bobbin.torrentdb.DiskJobListener#diskJobFailed(java.lang.Exception)
+		 */
+		public void diskJobFailed (Exception exception) {
+			this.exception = exception;
+			this.latch.countDown();
+		}
+
+	}
+
+
+	/**
+	 * Tests that the result of a job is delivered to its listener
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCompleted() throws Exception {
+
+		DiskJobQueue queue = new DiskJobQueue (2);
+		RecordingListener<Integer> listener = new RecordingListener<Integer>();
+
+		queue.submit ("device", new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return 1234;
+			}
+		}, listener);
+
+		assertTrue (listener.latch.await (5, TimeUnit.SECONDS));
+		assertEquals (Integer.valueOf (1234), listener.result);
+		assertNull (listener.exception);
+
+		queue.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that the failure of a job is delivered to its listener
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailed() throws Exception {
+
+		DiskJobQueue queue = new DiskJobQueue (2);
+		RecordingListener<Integer> listener = new RecordingListener<Integer>();
+
+		queue.submit ("device", new Callable<Integer>() {
+			public Integer call() throws Exception {
+				throw new IOException ("Test");
+			}
+		}, listener);
+
+		assertTrue (listener.latch.await (5, TimeUnit.SECONDS));
+		assertNull (listener.result);
+		assertTrue (listener.exception instanceof IOException);
+
+		queue.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that the jobs of a single device are performed one at a time, in order of submission
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeviceSerial() throws Exception {
+
+		DiskJobQueue queue = new DiskJobQueue (4);
+		final List<Integer> order = Collections.synchronizedList (new ArrayList<Integer>());
+		final AtomicInteger running = new AtomicInteger (0);
+		final AtomicBoolean overlapped = new AtomicBoolean (false);
+		RecordingListener<Integer> listener = null;
+
+		for (int i = 0; i < 20; i++) {
+			final int jobNumber = i;
+			listener = new RecordingListener<Integer>();
+			queue.submit ("device", new Callable<Integer>() {
+				public Integer call() throws Exception {
+					if (running.incrementAndGet() > 1) {
+						overlapped.set (true);
+					}
+					Thread.sleep (1);
+					order.add (jobNumber);
+					running.decrementAndGet();
+					return jobNumber;
+				}
+			}, listener);
+		}
+
+		assertTrue (listener.latch.await (5, TimeUnit.SECONDS));
+		assertFalse (overlapped.get());
+		for (int i = 0; i < 20; i++) {
+			assertEquals (Integer.valueOf (i), order.get (i));
+		}
+
+		queue.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that the jobs of different devices are performed concurrently
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDevicesConcurrent() throws Exception {
+
+		DiskJobQueue queue = new DiskJobQueue (2);
+		final CountDownLatch latch = new CountDownLatch (1);
+		RecordingListener<Boolean> listener1 = new RecordingListener<Boolean>();
+		RecordingListener<Boolean> listener2 = new RecordingListener<Boolean>();
+
+		queue.submit ("device1", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return latch.await (5, TimeUnit.SECONDS);
+			}
+		}, listener1);
+		queue.submit ("device2", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				latch.countDown();
+				return true;
+			}
+		}, listener2);
+
+		assertTrue (listener1.latch.await (5, TimeUnit.SECONDS));
+		assertTrue (listener2.latch.await (5, TimeUnit.SECONDS));
+		assertEquals (Boolean.TRUE, listener1.result);
+
+		queue.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that a job that throws an Error is still counted as completed, and that the jobs of
+	 * its device are still performed
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testError() throws Exception {
+
+		DiskJobQueue queue = new DiskJobQueue (1);
+		RecordingListener<Boolean> listener1 = new RecordingListener<Boolean>();
+		RecordingListener<Boolean> listener2 = new RecordingListener<Boolean>();
+
+		queue.submit ("device", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				throw new AssertionError ("Test");
+			}
+		}, listener1);
+		queue.submit ("device", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return true;
+			}
+		}, listener2);
+
+		assertTrue (listener2.latch.await (5, TimeUnit.SECONDS));
+		assertEquals (Boolean.TRUE, listener2.result);
+		assertEquals (0, queue.getPendingJobCount());
+		assertEquals (2, queue.getCompletedJobCount());
+
+		queue.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that a job submitted while the queue is full fails immediately
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFull() throws Exception {
+
+		DiskJobQueue queue = new DiskJobQueue (1, 1);
+		final CountDownLatch latch = new CountDownLatch (1);
+		RecordingListener<Boolean> listener1 = new RecordingListener<Boolean>();
+		RecordingListener<Boolean> listener2 = new RecordingListener<Boolean>();
+
+		queue.submit ("device", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return latch.await (5, TimeUnit.SECONDS);
+			}
+		}, listener1);
+		queue.submit ("device2", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return true;
+			}
+		}, listener2);
+
+		assertEquals (0, listener2.latch.getCount());
+		assertTrue (listener2.exception instanceof IOException);
+		assertEquals (1, queue.getPendingJobCount());
+
+		latch.countDown();
+
+		assertTrue (listener1.latch.await (5, TimeUnit.SECONDS));
+		assertEquals (Boolean.TRUE, listener1.result);
+
+		queue.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that a job submitted without a device is not serialised behind a device's jobs
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testNoDevice() throws Exception {
+
+		DiskJobQueue queue = new DiskJobQueue (2);
+		final CountDownLatch latch = new CountDownLatch (1);
+		RecordingListener<Boolean> listener1 = new RecordingListener<Boolean>();
+		RecordingListener<Boolean> listener2 = new RecordingListener<Boolean>();
+
+		queue.submit ("device", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return latch.await (5, TimeUnit.SECONDS);
+			}
+		}, listener1);
+		queue.submit (null, new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return true;
+			}
+		}, listener2);
+
+		assertTrue (listener2.latch.await (5, TimeUnit.SECONDS));
+		assertEquals (Boolean.TRUE, listener2.result);
+		assertEquals (1, listener1.latch.getCount());
+
+		latch.countDown();
+
+		assertTrue (listener1.latch.await (5, TimeUnit.SECONDS));
+
+		queue.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that a job submitted after shutdown fails immediately, and that jobs submitted before
+	 * shutdown are still performed
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testShutdown() throws Exception {
+
+		DiskJobQueue queue = new DiskJobQueue (1);
+		final CountDownLatch latch = new CountDownLatch (1);
+		RecordingListener<Boolean> listener1 = new RecordingListener<Boolean>();
+		RecordingListener<Boolean> listener2 = new RecordingListener<Boolean>();
+
+		queue.submit ("device", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return latch.await (5, TimeUnit.SECONDS);
+			}
+		}, listener1);
+		queue.shutdown();
+		queue.submit ("device", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return true;
+			}
+		}, listener2);
+
+		assertEquals (0, listener2.latch.getCount());
+		assertTrue (listener2.exception instanceof IOException);
+
+		latch.countDown();
+
+		assertTrue (listener1.latch.await (5, TimeUnit.SECONDS));
+		assertEquals (Boolean.TRUE, listener1.result);
+		assertEquals (1, queue.getCompletedJobCount());
+
+	}
+
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.torrentdb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+
+import org.itadaki.bobbin.torrentdb.FileHandlePool;
+import org.junit.Test;
+
+import test.Util;
+
+
+/**
+ * Tests FileHandlePool
+ */
+public class TestFileHandlePool {
+
+	/**
+	 * Tests that acquiring a file opens and creates it
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAcquire() throws Exception {
+
+		File directory = Util.createTemporaryDirectory();
+		File file = new File (new File (directory, "sub"), "test.tmp");
+		FileHandlePool pool = new FileHandlePool (2);
+
+		FileChannel channel = pool.acquire (file);
+		pool.release (file);
+
+		assertTrue (channel.isOpen());
+		assertTrue (file.exists());
+		assertEquals (1, pool.getOpenFileCount());
+		assertEquals (0, pool.getHitCount());
+		assertEquals (1, pool.getMissCount());
+		assertEquals (0, pool.getEvictionCount());
+
+	}
+
+
+	/**
+	 * Tests that acquiring an open file reuses its handle
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAcquireHit() throws Exception {
+
+		File directory = Util.createTemporaryDirectory();
+		File file = new File (directory, "test.tmp");
+		FileHandlePool pool = new FileHandlePool (2);
+
+		FileChannel channel1 = pool.acquire (file);
+		pool.release (file);
+		FileChannel channel2 = pool.acquire (file);
+		pool.release (file);
+
+		assertSame (channel1, channel2);
+		assertEquals (1, pool.getHitCount());
+		assertEquals (1, pool.getMissCount());
+
+	}
+
+
+	/**
+	 * Tests that the least recently used idle handle is closed when the limit is exceeded, and
+	 * that its file is reopened on next use
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testEviction() throws Exception {
+
+		File directory = Util.createTemporaryDirectory();
+		File file1 = new File (directory, "test1.tmp");
+		File file2 = new File (directory, "test2.tmp");
+		File file3 = new File (directory, "test3.tmp");
+		FileHandlePool pool = new FileHandlePool (2);
+
+		FileChannel channel1 = pool.acquire (file1);
+		pool.release (file1);
+		FileChannel channel2 = pool.acquire (file2);
+		pool.release (file2);
+		pool.acquire (file1);
+		pool.release (file1);
+		FileChannel channel3 = pool.acquire (file3);
+		pool.release (file3);
+
+		assertTrue (channel1.isOpen());
+		assertFalse (channel2.isOpen());
+		assertTrue (channel3.isOpen());
+		assertEquals (2, pool.getOpenFileCount());
+		assertEquals (1, pool.getEvictionCount());
+
+		FileChannel channel2b = pool.acquire (file2);
+		pool.release (file2);
+
+		assertTrue (channel2b.isOpen());
+		assertFalse (channel1.isOpen());
+		assertEquals (2, pool.getEvictionCount());
+		assertEquals (4, pool.getMissCount());
+
+	}
+
+
+	/**
+	 * Tests that handles in use are not closed, and that the limit is temporarily exceeded instead
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testNoEvictionInUse() throws Exception {
+
+		File directory = Util.createTemporaryDirectory();
+		File file1 = new File (directory, "test1.tmp");
+		File file2 = new File (directory, "test2.tmp");
+		FileHandlePool pool = new FileHandlePool (1);
+
+		FileChannel channel1 = pool.acquire (file1);
+		FileChannel channel2 = pool.acquire (file2);
+
+		assertTrue (channel1.isOpen());
+		assertTrue (channel2.isOpen());
+		assertEquals (2, pool.getOpenFileCount());
+
+		pool.release (file1);
+
+		assertFalse (channel1.isOpen());
+		assertTrue (channel2.isOpen());
+		assertEquals (1, pool.getOpenFileCount());
+
+		pool.release (file2);
+
+	}
+
+
+	/**
+	 * Tests that closing a file in use defers the close until it is released
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCloseInUse() throws Exception {
+
+		File directory = Util.createTemporaryDirectory();
+		File file = new File (directory, "test.tmp");
+		FileHandlePool pool = new FileHandlePool (2);
+
+		FileChannel channel = pool.acquire (file);
+		pool.close (file);
+
+		assertTrue (channel.isOpen());
+
+		pool.release (file);
+
+		assertFalse (channel.isOpen());
+		assertEquals (0, pool.getOpenFileCount());
+
+	}
+
+
+	/**
+	 * Tests that reducing the limit closes idle handles
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSetMaximumOpenFiles() throws Exception {
+
+		File directory = Util.createTemporaryDirectory();
+		FileHandlePool pool = new FileHandlePool (4);
+
+		for (int i = 0; i < 4; i++) {
+			File file = new File (directory, "test" + i + ".tmp");
+			pool.acquire (file);
+			pool.release (file);
+		}
+
+		assertEquals (4, pool.getOpenFileCount());
+
+		pool.setMaximumOpenFiles (1);
+
+		assertEquals (1, pool.getMaximumOpenFiles());
+		assertEquals (1, pool.getOpenFileCount());
+		assertEquals (3, pool.getEvictionCount());
+
+	}
+
+
+}
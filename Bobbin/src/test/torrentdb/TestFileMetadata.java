@@ -73,6 +73,61 @@ public class TestFileMetadata {
 	}
 
 
+	/**
+	 * Tests that put leaves no temporary file behind
+	 * @throws Exception
+	 */
+	@Test
+	public void testPutNoTemporary() throws Exception {
+
+		File directory = Util.createTemporaryDirectory();
+		FileMetadata metadata = new FileMetadata (directory);
+
+		metadata.put ("key", "value".getBytes());
+		metadata.put ("key", "door".getBytes());
+
+		assertEquals (1, directory.list().length);
+		assertArrayEquals ("door".getBytes(), metadata.get ("key"));
+
+	}
+
+
+	/**
+	 * Tests append / get
+	 * @throws Exception
+	 */
+	@Test
+	public void testAppendGet() throws Exception {
+
+		File directory = Util.createTemporaryDirectory();
+		FileMetadata metadata = new FileMetadata (directory);
+
+		metadata.append ("key", "val".getBytes());
+		metadata.append ("key", "ue".getBytes());
+
+		assertArrayEquals ("value".getBytes(), metadata.get ("key"));
+
+	}
+
+
+	/**
+	 * Tests put / append / get
+	 * @throws Exception
+	 */
+	@Test
+	public void testPutAppendGet() throws Exception {
+
+		File directory = Util.createTemporaryDirectory();
+		FileMetadata metadata = new FileMetadata (directory);
+
+		metadata.put ("key", "val".getBytes());
+		metadata.append ("key", "ue".getBytes());
+
+		assertArrayEquals ("value".getBytes(), metadata.get ("key"));
+
+	}
+
+
 	/**
 	 * Tests two keys
 	 * @throws Exception
@@ -10,10 +10,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.FileHandlePool;
+import org.itadaki.bobbin.torrentdb.FileRegion;
 import org.itadaki.bobbin.torrentdb.FileStorage;
 import org.itadaki.bobbin.torrentdb.Filespec;
 import org.itadaki.bobbin.torrentdb.Info;
@@ -1335,6 +1339,230 @@ public class TestFileStorage {
 	}
 
 
+	/**
+	 * Tests piece validation with a null cookie
+	 * @throws Exception
+	 */
+	@Test
+	public void testValidatePiecesNull() throws Exception {
+
+		int pieceSize = 1024;
+		InfoFileset fileset = new InfoFileset (new Filespec ("blah", 2048L));
+		File baseDirectory = Util.createTemporaryDirectory();
+
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+
+		assertNull (storage.validatePieces (null, null));
+
+	}
+
+
+	/**
+	 * Tests piece validation on an unchanged FileStorage
+	 * @throws Exception
+	 */
+	@Test
+	public void testValidatePiecesUnchanged() throws Exception {
+
+		int pieceSize = 1024;
+		InfoFileset fileset = new InfoFileset ("test", Arrays.asList (new Filespec[] {
+				new Filespec ("a", 1536L),
+				new Filespec ("b", 1536L)
+		}));
+		File baseDirectory = Util.createTemporaryDirectory();
+		File dataDirectory = new File (baseDirectory, "test");
+		dataDirectory.mkdir();
+		new RandomAccessFile (new File (dataDirectory, "a"), "rw").setLength (1536L);
+		new RandomAccessFile (new File (dataDirectory, "b"), "rw").setLength (1536L);
+
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+		ByteBuffer cookie = storage.close();
+		FileStorage storage2 = new FileStorage (baseDirectory);
+		storage2.open (pieceSize, fileset);
+
+		assertEquals (3, storage2.validatePieces (cookie, null).cardinality());
+
+	}
+
+
+	/**
+	 * Tests piece validation on a FileStorage in which one file has changed
+	 * @throws Exception
+	 */
+	@Test
+	public void testValidatePiecesFileChanged() throws Exception {
+
+		int pieceSize = 1024;
+		InfoFileset fileset = new InfoFileset ("test", Arrays.asList (new Filespec[] {
+				new Filespec ("a", 1536L),
+				new Filespec ("b", 1536L),
+				new Filespec ("c", 1024L)
+		}));
+		File baseDirectory = Util.createTemporaryDirectory();
+		File dataDirectory = new File (baseDirectory, "test");
+		dataDirectory.mkdir();
+		new RandomAccessFile (new File (dataDirectory, "a"), "rw").setLength (1536L);
+		File fileB = new File (dataDirectory, "b");
+		new RandomAccessFile (fileB, "rw").setLength (1536L);
+		new RandomAccessFile (new File (dataDirectory, "c"), "rw").setLength (1024L);
+
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+		ByteBuffer cookie = storage.close();
+		fileB.setLastModified (fileB.lastModified() + 1000);
+		FileStorage storage2 = new FileStorage (baseDirectory);
+		storage2.open (pieceSize, fileset);
+
+		BitField validPieces = storage2.validatePieces (cookie, null);
+		assertFalse (storage2.validate (cookie));
+		assertEquals (4, validPieces.length());
+		assertTrue (validPieces.get (0));
+		assertFalse (validPieces.get (1));
+		assertFalse (validPieces.get (2));
+		assertTrue (validPieces.get (3));
+
+	}
+
+
+	/**
+	 * Tests piece validation on an open FileStorage in which a file has changed through written
+	 * pieces. As the change may not be due to the written pieces alone, every piece of the file is
+	 * invalid
+	 * @throws Exception
+	 */
+	@Test
+	public void testValidatePiecesWrittenPieces() throws Exception {
+
+		int pieceSize = 1024;
+		InfoFileset fileset = new InfoFileset ("test", Arrays.asList (new Filespec[] {
+				new Filespec ("a", 1536L),
+				new Filespec ("b", 1536L),
+				new Filespec ("c", 1024L)
+		}));
+		File baseDirectory = Util.createTemporaryDirectory();
+		File dataDirectory = new File (baseDirectory, "test");
+		dataDirectory.mkdir();
+		new RandomAccessFile (new File (dataDirectory, "a"), "rw").setLength (1536L);
+		File fileB = new File (dataDirectory, "b");
+		new RandomAccessFile (fileB, "rw").setLength (1536L);
+		new RandomAccessFile (new File (dataDirectory, "c"), "rw").setLength (1024L);
+
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+		ByteBuffer cookie = storage.getValidationCookie();
+		fileB.setLastModified (fileB.lastModified() + 1000);
+		FileStorage storage2 = new FileStorage (baseDirectory);
+		storage2.open (pieceSize, fileset);
+
+		BitField writtenPieces = new BitField (4);
+		writtenPieces.set (2);
+		BitField validPieces = storage2.validatePieces (cookie, writtenPieces);
+		assertTrue (validPieces.get (0));
+		assertFalse (validPieces.get (1));
+		assertFalse (validPieces.get (2));
+		assertTrue (validPieces.get (3));
+
+		// A written piece in an unchanged file is invalid
+		FileStorage storage3 = new FileStorage (baseDirectory);
+		storage3.open (pieceSize, fileset);
+		writtenPieces = new BitField (4);
+		writtenPieces.set (3);
+
+		validPieces = storage3.validatePieces (storage3.getValidationCookie(), writtenPieces);
+		assertTrue (validPieces.get (0));
+		assertTrue (validPieces.get (1));
+		assertTrue (validPieces.get (2));
+		assertFalse (validPieces.get (3));
+
+	}
+
+
+	/**
+	 * Tests piece validation against a cookie into which the state of a file written through the
+	 * FileStorage has been merged. Only the written piece is invalid, unless the file is changed
+	 * again after its state was recorded
+	 * @throws Exception
+	 */
+	@Test
+	public void testValidatePiecesMergedCookie() throws Exception {
+
+		int pieceSize = 1024;
+		InfoFileset fileset = new InfoFileset ("test", Arrays.asList (new Filespec[] {
+				new Filespec ("a", 1536L),
+				new Filespec ("b", 1536L),
+				new Filespec ("c", 1024L)
+		}));
+		File baseDirectory = Util.createTemporaryDirectory();
+		File dataDirectory = new File (baseDirectory, "test");
+		dataDirectory.mkdir();
+		new RandomAccessFile (new File (dataDirectory, "a"), "rw").setLength (1536L);
+		File fileB = new File (dataDirectory, "b");
+		new RandomAccessFile (fileB, "rw").setLength (1536L);
+		new RandomAccessFile (new File (dataDirectory, "c"), "rw").setLength (1024L);
+
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+		ByteBuffer cookie = storage.getValidationCookie();
+		fileB.setLastModified (fileB.lastModified() + 1000);
+		storage.write (2, ByteBuffer.wrap (new byte[1024]));
+		BitField writtenPieces = new BitField (4);
+		writtenPieces.set (2);
+		ByteBuffer partialCookie = storage.getValidationCookie (writtenPieces);
+		storage.close();
+
+		FileStorage storage2 = new FileStorage (baseDirectory);
+		storage2.open (pieceSize, fileset);
+		ByteBuffer mergedCookie = storage2.mergeValidationCookie (cookie, partialCookie);
+		BitField validPieces = storage2.validatePieces (mergedCookie, writtenPieces);
+		assertTrue (validPieces.get (0));
+		assertTrue (validPieces.get (1));
+		assertFalse (validPieces.get (2));
+		assertTrue (validPieces.get (3));
+		storage2.close();
+
+		// A change after the file's state was recorded invalidates the whole file
+		fileB.setLastModified (fileB.lastModified() + 1000);
+		FileStorage storage3 = new FileStorage (baseDirectory);
+		storage3.open (pieceSize, fileset);
+		validPieces = storage3.validatePieces (storage3.mergeValidationCookie (cookie, partialCookie), writtenPieces);
+		assertTrue (validPieces.get (0));
+		assertFalse (validPieces.get (1));
+		assertFalse (validPieces.get (2));
+		assertTrue (validPieces.get (3));
+
+		// Cookies that cannot be merged
+		assertNull (storage3.mergeValidationCookie (cookie, null));
+		assertNull (storage3.mergeValidationCookie (partialCookie, cookie));
+
+	}
+
+
+	/**
+	 * Tests piece validation against a cookie from a FileStorage with a different number of files
+	 * @throws Exception
+	 */
+	@Test
+	public void testValidatePiecesDifferentFileset() throws Exception {
+
+		int pieceSize = 1024;
+		File baseDirectory = Util.createTemporaryDirectory();
+
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, new InfoFileset (new Filespec ("blah", 2048L)));
+		ByteBuffer cookie = storage.close();
+		FileStorage storage2 = new FileStorage (baseDirectory);
+		storage2.open (pieceSize, new InfoFileset ("test", Arrays.asList (new Filespec[] {
+				new Filespec ("blah", 1024L),
+				new Filespec ("blah2", 1024L)
+		})));
+
+		assertNull (storage2.validatePieces (cookie, null));
+
+	}
+
+
 	/**
 	 * Tests extending
 	 *
@@ -1365,4 +1593,260 @@ public class TestFileStorage {
 
 	}
 
+
+	/**
+	 * Tests reading blocks that lie within, and span, the underlying files
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadBlock() throws Exception {
+
+		int pieceSize = 1024;
+
+		List<Filespec> files = new ArrayList<Filespec>();
+		files.add (new Filespec ("test0.tmp", 700L));
+		files.add (new Filespec ("test1.tmp", 0L));
+		files.add (new Filespec ("test2.tmp", 1000L));
+		File baseDirectory = Util.createNonExistentTemporaryFile();
+		FileStorage storage = new FileStorage (baseDirectory.getParentFile());
+		storage.open (pieceSize, new InfoFileset (baseDirectory.getName(), files));
+
+		byte[] piece0 = Util.pseudoRandomBlock (0, pieceSize, pieceSize);
+		byte[] piece1 = Util.pseudoRandomBlock (1, pieceSize, 676);
+		storage.write (0, ByteBuffer.wrap (piece0));
+		storage.write (1, ByteBuffer.wrap (piece1));
+
+		assertEquals (ByteBuffer.wrap (piece0, 0, 512), storage.read (new BlockDescriptor (0, 0, 512)));
+		assertEquals (ByteBuffer.wrap (piece0, 512, 512), storage.read (new BlockDescriptor (0, 512, 512)));
+		assertEquals (ByteBuffer.wrap (piece0, 700, 100), storage.read (new BlockDescriptor (0, 700, 100)));
+		assertEquals (ByteBuffer.wrap (piece1, 100, 576), storage.read (new BlockDescriptor (1, 100, 576)));
+
+	}
+
+
+	/**
+	 * Tests reading a block from a nonexistent file zero fills and does not create the file
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadBlockOfNonExistentFile() throws Exception {
+
+		InfoFileset fileset = new InfoFileset (new Filespec ("blah", 2048L));
+		int pieceSize = 1024;
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+
+		ByteBuffer buffer = storage.read (new BlockDescriptor (1, 512, 512));
+
+		assertEquals (ByteBuffer.allocate (512), buffer);
+		assertFalse (new File (baseDirectory, "blah").exists());
+
+	}
+
+
+	/**
+	 * Tests reading a block beyond the end of a piece
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testReadBlockOutOfBounds() throws Exception {
+
+		InfoFileset fileset = new InfoFileset (new Filespec ("blah", 1536L));
+		int pieceSize = 1024;
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+
+		storage.read (new BlockDescriptor (1, 256, 512));
+
+	}
+
+
+	/**
+	 * Tests the file regions of a block spanning several files
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetRegions() throws Exception {
+
+		int pieceSize = 1024;
+
+		List<Filespec> files = new ArrayList<Filespec>();
+		files.add (new Filespec ("test0.tmp", 700L));
+		files.add (new Filespec ("test1.tmp", 0L));
+		files.add (new Filespec ("test2.tmp", 1000L));
+		File baseDirectory = Util.createNonExistentTemporaryFile();
+		FileStorage storage = new FileStorage (baseDirectory.getParentFile());
+		storage.open (pieceSize, new InfoFileset (baseDirectory.getName(), files));
+
+		BlockDescriptor descriptor = new BlockDescriptor (0, 512, 512);
+		assertNull (storage.getRegions (descriptor));
+
+		byte[] piece0 = Util.pseudoRandomBlock (0, pieceSize, pieceSize);
+		storage.write (0, ByteBuffer.wrap (piece0));
+
+		List<FileRegion> regions = storage.getRegions (descriptor);
+		assertEquals (2, regions.size());
+		assertEquals (512, regions.get(0).getPosition());
+		assertEquals (188, regions.get(0).getLength());
+		assertEquals (0, regions.get(1).getPosition());
+		assertEquals (324, regions.get(1).getLength());
+
+		ByteBuffer buffer = ByteBuffer.allocate (512);
+		for (FileRegion region : regions) {
+			buffer.limit (buffer.position() + region.getLength());
+			region.getChannel().read (buffer, region.getPosition());
+		}
+		buffer.flip();
+		assertEquals (ByteBuffer.wrap (piece0, 512, 512), buffer);
+
+	}
+
+
+
+	/**
+	 * Tests reading and writing through a handle pool smaller than the number of files
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testHandlePoolLimit() throws Exception {
+
+		int pieceSize = 1024;
+
+		List<Filespec> files = new ArrayList<Filespec>();
+		files.add (new Filespec ("test0.tmp", 700L));
+		files.add (new Filespec ("test1.tmp", 1000L));
+		files.add (new Filespec ("test2.tmp", 1500L));
+		File baseDirectory = Util.createNonExistentTemporaryFile();
+		FileHandlePool handlePool = new FileHandlePool (1);
+		FileStorage storage = new FileStorage (baseDirectory.getParentFile(), handlePool);
+		storage.open (pieceSize, new InfoFileset (baseDirectory.getName(), files));
+
+		int numPieces = storage.getPiecesetDescriptor().getNumberOfPieces();
+		for (int i = 0; i < numPieces; i++) {
+			int pieceLength = storage.getPiecesetDescriptor().getPieceLength (i);
+			storage.write (i, ByteBuffer.wrap (Util.pseudoRandomBlock (i, pieceLength, pieceLength)));
+		}
+		for (int i = 0; i < numPieces; i++) {
+			int pieceLength = storage.getPiecesetDescriptor().getPieceLength (i);
+			assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (i, pieceLength, pieceLength)), storage.read (i));
+		}
+
+		assertEquals (1, handlePool.getOpenFileCount());
+		assertTrue (handlePool.getEvictionCount() > 0);
+
+		storage.close();
+
+		assertEquals (0, handlePool.getOpenFileCount());
+
+	}
+
+
+	/**
+	 * Tests successive writes to an output channel spanning several files
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testOutputChannelSuccessiveWrites() throws Exception {
+
+		int pieceSize = 1024;
+
+		List<Filespec> files = new ArrayList<Filespec>();
+		files.add (new Filespec ("test0.tmp", 700L));
+		files.add (new Filespec ("test1.tmp", 0L));
+		files.add (new Filespec ("test2.tmp", 1000L));
+		File baseDirectory = Util.createNonExistentTemporaryFile();
+		FileStorage storage = new FileStorage (baseDirectory.getParentFile());
+		storage.open (pieceSize, new InfoFileset (baseDirectory.getName(), files));
+
+		byte[] piece0 = Util.pseudoRandomBlock (0, pieceSize, pieceSize);
+		WritableByteChannel outputChannel = storage.openOutputChannel (0, 0);
+		for (int i = 0; i < 4; i++) {
+			outputChannel.write (ByteBuffer.wrap (piece0, i * 256, 256));
+		}
+
+		assertEquals (ByteBuffer.wrap (piece0), storage.read (0));
+		assertTrue (new File (baseDirectory, "test1.tmp").exists());
+
+	}
+
+
+
+	/**
+	 * Tests writing a run of pieces that spans several files
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteRun() throws Exception {
+
+		int pieceSize = 1024;
+
+		List<Filespec> files = new ArrayList<Filespec>();
+		files.add (new Filespec ("test0.tmp", 700L));
+		files.add (new Filespec ("test1.tmp", 0L));
+		files.add (new Filespec ("test2.tmp", 2000L));
+		files.add (new Filespec ("test3.tmp", 372L));
+		File baseDirectory = Util.createNonExistentTemporaryFile();
+		FileStorage storage = new FileStorage (baseDirectory.getParentFile());
+		storage.open (pieceSize, new InfoFileset (baseDirectory.getName(), files));
+
+		ByteBuffer[] buffers = new ByteBuffer[3];
+		for (int i = 0; i < 3; i++) {
+			buffers[i] = ByteBuffer.wrap (Util.pseudoRandomBlock (i, pieceSize, pieceSize));
+		}
+		storage.write (0, buffers);
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (i, pieceSize, pieceSize)), storage.read (i));
+		}
+		assertTrue (new File (baseDirectory, "test1.tmp").exists());
+		assertEquals (700, new File (baseDirectory, "test0.tmp").length());
+		assertEquals (2000, new File (baseDirectory, "test2.tmp").length());
+		assertEquals (372, new File (baseDirectory, "test3.tmp").length());
+
+	}
+
+
+	/**
+	 * Tests that the pieces backed by storage and the content read follow writes made through the
+	 * FileStorage
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStorageBackedPiecesFollowWrites() throws Exception {
+
+		int pieceSize = 1024;
+
+		InfoFileset fileset = new InfoFileset (new Filespec ("blah", 3072L));
+		File baseDirectory = Util.createTemporaryDirectory();
+		FileStorage storage = new FileStorage (baseDirectory);
+		storage.open (pieceSize, fileset);
+
+		assertEquals (new BitField (3), storage.getStorageBackedPieces());
+
+		byte[] piece1 = Util.pseudoRandomBlock (1, pieceSize, pieceSize);
+		storage.write (1, ByteBuffer.wrap (piece1));
+
+		BitField expectedPieces = new BitField (3);
+		expectedPieces.set (0);
+		expectedPieces.set (1);
+		assertEquals (expectedPieces, storage.getStorageBackedPieces());
+		assertEquals (ByteBuffer.allocate (pieceSize), storage.read (0));
+		assertEquals (ByteBuffer.wrap (piece1), storage.read (1));
+		assertEquals (ByteBuffer.allocate (pieceSize), storage.read (2));
+		assertEquals (2048L, new File (baseDirectory, "blah").length());
+
+	}
+
 }
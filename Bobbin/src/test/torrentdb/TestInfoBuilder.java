@@ -8,10 +8,13 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.itadaki.bobbin.bencode.BBinary;
 import org.itadaki.bobbin.torrentdb.Info;
 import org.itadaki.bobbin.torrentdb.InfoBuilder;
+import org.itadaki.bobbin.torrentdb.InfoBuilderListener;
 import org.junit.Test;
 
 import test.Util;
@@ -188,4 +191,159 @@ public class TestInfoBuilder {
 	}
 
 
+	/**
+	 * Tests that hashing on several threads produces the same Info as hashing on one
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelHash() throws Exception {
+
+		// Given
+		File directory = Util.createTemporaryDirectory();
+		File testFile = Util.createReproducibleFile (directory, "Test File.bin", (20 * 1024 * 1024) + 12345);
+		InfoBuilder serialBuilder = InfoBuilder.createPlain (testFile, 16384);
+		serialBuilder.setHashingThreads (1);
+		InfoBuilder parallelBuilder = InfoBuilder.createPlain (testFile, 16384);
+		parallelBuilder.setHashingThreads (4);
+
+		// When
+		Info serialInfo = serialBuilder.build();
+		Info parallelInfo = parallelBuilder.build();
+
+		// Then
+		assertEquals (serialInfo.getHash(), parallelInfo.getHash());
+
+	}
+
+
+	/**
+	 * Tests that building a Merkle tree on several threads produces the same Info as building it
+	 * on one
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelMerkleHash() throws Exception {
+
+		// Given
+		File directory = Util.createTemporaryDirectory();
+		File testFile = Util.createReproducibleFile (directory, "Test File.bin", (3000 * 1024) + 123);
+		InfoBuilder serialBuilder = InfoBuilder.createMerkle (testFile, 1024);
+		serialBuilder.setHashingThreads (1);
+		InfoBuilder parallelBuilder = InfoBuilder.createMerkle (testFile, 1024);
+		parallelBuilder.setHashingThreads (4);
+
+		// When
+		Info serialInfo = serialBuilder.build();
+		Info parallelInfo = parallelBuilder.build();
+
+		// Then
+		assertEquals (serialInfo.getHash(), parallelInfo.getHash());
+
+	}
+
+
+	/**
+	 * Tests that progress is reported for every piece
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testProgress() throws Exception {
+
+		// Given
+		File directory = Util.createTemporaryDirectory();
+		File testFile = Util.createReproducibleFile (directory, "Test File.bin", (10 * 1024 * 1024) + 12345);
+		InfoBuilder infoBuilder = InfoBuilder.createPlain (testFile, 16384);
+		infoBuilder.setHashingThreads (4);
+		final AtomicInteger maximumHashedPieces = new AtomicInteger (0);
+		final AtomicInteger reportedTotalPieces = new AtomicInteger (0);
+		infoBuilder.setListener (new InfoBuilderListener() {
+			public void infoBuilderProgress (InfoBuilder infoBuilder, int hashedPieces, int totalPieces) {
+				synchronized (maximumHashedPieces) {
+					maximumHashedPieces.set (Math.max (maximumHashedPieces.get(), hashedPieces));
+				}
+				reportedTotalPieces.set (totalPieces);
+			}
+		});
+
+		// When
+		Info info = infoBuilder.build();
+
+		// Then
+		assertEquals (info.getPieceHashes().length / 20, maximumHashedPieces.get());
+		assertEquals (maximumHashedPieces.get(), reportedTotalPieces.get());
+
+	}
+
+
+	/**
+	 * Tests cancelling a build from the progress callback
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected=CancellationException.class)
+	public void testCancel() throws Exception {
+
+		// Given
+		File directory = Util.createTemporaryDirectory();
+		File testFile = Util.createReproducibleFile (directory, "Test File.bin", (10 * 1024 * 1024) + 12345);
+		InfoBuilder infoBuilder = InfoBuilder.createPlain (testFile, 16384);
+		infoBuilder.setHashingThreads (1);
+		infoBuilder.setListener (new InfoBuilderListener() {
+			public void infoBuilderProgress (InfoBuilder infoBuilder, int hashedPieces, int totalPieces) {
+				infoBuilder.cancel();
+			}
+		});
+
+		// When
+		infoBuilder.build();
+
+	}
+
+
+	/**
+	 * Tests that a failure on a hashing thread is rethrown by the build
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testHashingFailure() throws Exception {
+
+		// Given
+		File directory = Util.createTemporaryDirectory();
+		File testFile = Util.createReproducibleFile (directory, "Test File.bin", (10 * 1024 * 1024) + 12345);
+		InfoBuilder infoBuilder = InfoBuilder.createPlain (testFile, 16384);
+		infoBuilder.setHashingThreads (4);
+		final IllegalStateException failure = new IllegalStateException ("Test");
+		infoBuilder.setListener (new InfoBuilderListener() {
+			public void infoBuilderProgress (InfoBuilder infoBuilder, int hashedPieces, int totalPieces) {
+				throw failure;
+			}
+		});
+
+		// When
+		try {
+			infoBuilder.build();
+			fail();
+		} catch (IllegalStateException e) {
+			// Then
+			assertSame (failure, e);
+		}
+
+	}
+
+
+	/**
+	 * Tests setting an invalid number of hashing threads
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testSetHashingThreadsInvalid() {
+
+		InfoBuilder.createPlain (new File ("."), 16384).setHashingThreads (0);
+
+	}
+
+
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.torrentdb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.Filespec;
+import org.itadaki.bobbin.torrentdb.InfoFileset;
+import org.itadaki.bobbin.torrentdb.MappedFileStorage;
+import org.itadaki.bobbin.torrentdb.PiecesetDescriptor;
+import org.junit.Test;
+
+import test.Util;
+
+
+/**
+ * Tests MappedFileStorage
+ */
+public class TestMappedFileStorage {
+
+	/**
+	 * Tests a write -> read cycle over a set of files, with pieces that lie within, and span, the
+	 * mapped windows and the underlying files
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteRead() throws Exception {
+
+		int pieceSize = 768;
+
+		List<Filespec> files = new ArrayList<Filespec>();
+		files.add (new Filespec ("test0.tmp", 5000L));
+		files.add (new Filespec ("test1.tmp", 0L));
+		files.add (new Filespec ("test2.tmp", 3000L));
+		File baseDirectory = Util.createNonExistentTemporaryFile();
+		MappedFileStorage storage = new MappedFileStorage (baseDirectory.getParentFile(), 2048, 2);
+		storage.open (pieceSize, new InfoFileset (baseDirectory.getName(), files));
+
+		int numPieces = storage.getPiecesetDescriptor().getNumberOfPieces();
+		for (int i = 0; i < numPieces; i++) {
+			int pieceLength = storage.getPiecesetDescriptor().getPieceLength (i);
+			storage.write (i, ByteBuffer.wrap (Util.pseudoRandomBlock (i, pieceLength, pieceLength)));
+		}
+
+		assertEquals (5000L, new File (baseDirectory, "test0.tmp").length());
+		assertTrue (new File (baseDirectory, "test1.tmp").exists());
+		assertEquals (3000L, new File (baseDirectory, "test2.tmp").length());
+
+		for (int j = 0; j < 2; j++) {
+			for (int i = 0; i < numPieces; i++) {
+				int pieceLength = storage.getPiecesetDescriptor().getPieceLength (i);
+				assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (i, pieceLength, pieceLength)), storage.read (i));
+			}
+		}
+
+		storage.close();
+
+	}
+
+
+	/**
+	 * Tests that a read served through a mapped window is a read-only view
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadIsReadOnly() throws Exception {
+
+		int pieceSize = 1024;
+
+		InfoFileset fileset = new InfoFileset (new Filespec ("blah", 4096L));
+		File baseDirectory = Util.createTemporaryDirectory();
+		MappedFileStorage storage = new MappedFileStorage (baseDirectory, 2048, 2);
+		storage.open (pieceSize, fileset);
+
+		byte[] piece3 = Util.pseudoRandomBlock (3, pieceSize, pieceSize);
+		// The first write allocates the file, the second is made through a mapped window
+		storage.write (3, ByteBuffer.wrap (piece3));
+		storage.write (3, ByteBuffer.wrap (piece3));
+
+		ByteBuffer piece = storage.read (3);
+		assertTrue (piece.isReadOnly());
+		assertEquals (ByteBuffer.wrap (piece3), piece);
+
+		ByteBuffer block = storage.read (new BlockDescriptor (3, 256, 512));
+		assertTrue (block.isReadOnly());
+		assertEquals (ByteBuffer.wrap (piece3, 256, 512), block);
+
+		storage.close();
+
+	}
+
+
+	/**
+	 * Tests that writes through a mapped window are visible to a subsequent read
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testOverwrite() throws Exception {
+
+		int pieceSize = 1024;
+
+		InfoFileset fileset = new InfoFileset (new Filespec ("blah", 4096L));
+		File baseDirectory = Util.createTemporaryDirectory();
+		MappedFileStorage storage = new MappedFileStorage (baseDirectory, 2048, 1);
+		storage.open (pieceSize, fileset);
+
+		for (int i = 0; i < 4; i++) {
+			storage.write (i, ByteBuffer.wrap (Util.pseudoRandomBlock (i, pieceSize, pieceSize)));
+		}
+		for (int i = 0; i < 4; i++) {
+			storage.write (i, ByteBuffer.wrap (Util.pseudoRandomBlock (i + 10, pieceSize, pieceSize)));
+		}
+		for (int i = 0; i < 4; i++) {
+			assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (i + 10, pieceSize, pieceSize)), storage.read (i));
+		}
+
+		storage.close();
+
+	}
+
+
+	/**
+	 * Tests that a write through a mapped window leaves the position and limit of the caller's
+	 * buffer unchanged
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteLeavesBufferUnchanged() throws Exception {
+
+		int pieceSize = 1024;
+
+		InfoFileset fileset = new InfoFileset (new Filespec ("blah", 4096L));
+		File baseDirectory = Util.createTemporaryDirectory();
+		MappedFileStorage storage = new MappedFileStorage (baseDirectory, 2048, 1);
+		storage.open (pieceSize, fileset);
+		storage.write (3, ByteBuffer.wrap (Util.pseudoRandomBlock (3, pieceSize, pieceSize)));
+
+		ByteBuffer buffer = ByteBuffer.wrap (Util.pseudoRandomBlock (0, pieceSize * 2, pieceSize * 2));
+		buffer.position (100);
+		storage.write (0, buffer);
+
+		assertEquals (100, buffer.position());
+		assertEquals (pieceSize * 2, buffer.limit());
+		ByteBuffer expected = buffer.duplicate();
+		expected.limit (100 + pieceSize);
+		assertEquals (expected, storage.read (0));
+
+		storage.close();
+
+	}
+
+
+	/**
+	 * Tests reading from a nonexistent file zero fills and does not create the file
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadOfNonExistentFile() throws Exception {
+
+		int pieceSize = 1024;
+
+		InfoFileset fileset = new InfoFileset (new Filespec ("blah", 2048L));
+		File baseDirectory = Util.createTemporaryDirectory();
+		MappedFileStorage storage = new MappedFileStorage (baseDirectory, 2048, 2);
+		storage.open (pieceSize, fileset);
+
+		assertEquals (ByteBuffer.allocate (pieceSize), storage.read (1));
+		assertEquals (ByteBuffer.allocate (512), storage.read (new BlockDescriptor (1, 512, 512)));
+		assertFalse (new File (baseDirectory, "blah").exists());
+
+		storage.close();
+
+	}
+
+
+	/**
+	 * Tests writing through an output channel, then extending
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testOutputChannelAndExtend() throws Exception {
+
+		int pieceSize = 1024;
+
+		InfoFileset fileset = new InfoFileset (new Filespec ("blah", 1536L));
+		File baseDirectory = Util.createTemporaryDirectory();
+		MappedFileStorage storage = new MappedFileStorage (baseDirectory, 4096, 2);
+		storage.open (pieceSize, fileset);
+
+		byte[] piece0 = Util.pseudoRandomBlock (0, pieceSize, pieceSize);
+		storage.openOutputChannel (0, 0).write (ByteBuffer.wrap (piece0));
+		storage.openOutputChannel (1, 0).write (ByteBuffer.wrap (Util.pseudoRandomBlock (1, 512, 512)));
+		assertEquals (ByteBuffer.wrap (piece0), storage.read (0));
+
+		storage.extend (2 * pieceSize);
+		storage.openOutputChannel (1, 512).write (ByteBuffer.wrap (Util.pseudoRandomBlock (2, 512, 512)));
+
+		ByteBuffer expectedPiece1 = ByteBuffer.allocate (pieceSize);
+		expectedPiece1.put (Util.pseudoRandomBlock (1, 512, 512));
+		expectedPiece1.put (Util.pseudoRandomBlock (2, 512, 512));
+		expectedPiece1.rewind();
+
+		assertEquals (new PiecesetDescriptor (pieceSize, 2 * pieceSize), storage.getPiecesetDescriptor());
+		assertEquals (expectedPiece1, storage.read (1));
+		assertEquals (2048L, new File (baseDirectory, "blah").length());
+
+		storage.close();
+
+	}
+
+
+}
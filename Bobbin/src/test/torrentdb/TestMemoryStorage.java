@@ -11,6 +11,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
 import org.itadaki.bobbin.torrentdb.Filespec;
 import org.itadaki.bobbin.torrentdb.InfoFileset;
 import org.itadaki.bobbin.torrentdb.MemoryStorage;
@@ -174,4 +175,39 @@ public class TestMemoryStorage {
 	}
 
 
+	/**
+	 * Tests reading a block from within a piece
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadBlock() throws Exception {
+
+		Storage storage = new MemoryStorage();
+		storage.open (1024, new InfoFileset (new Filespec ("test.txt", 2048L)));
+
+		ByteBuffer piece = ByteBuffer.wrap (Util.pseudoRandomBlock (1, 1024, 1024));
+		storage.write (1, piece);
+
+		ByteBuffer block = storage.read (new BlockDescriptor (1, 256, 512));
+
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (1, 1024, 1024), 256, 512), block);
+
+	}
+
+
+	/**
+	 * Tests reading a block that extends beyond the end of a short final piece
+	 * @throws Exception
+	 */
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testReadBlockOutOfBounds() throws Exception {
+
+		Storage storage = new MemoryStorage();
+		storage.open (1024, new InfoFileset (new Filespec ("test.txt", 1524L)));
+
+		storage.read (new BlockDescriptor (1, 256, 512));
+
+	}
+
+
 }
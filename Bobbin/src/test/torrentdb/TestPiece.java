@@ -8,11 +8,14 @@ import static
 org.junit.Assert.*;
 
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.List;
 
 import org.itadaki.bobbin.peer.protocol.PeerProtocolConstants;
 import org.itadaki.bobbin.torrentdb.BlockDescriptor;
 import org.itadaki.bobbin.torrentdb.Piece;
+import org.itadaki.bobbin.util.BufferPool;
 import org.junit.Test;
 
 import test.Util;
@@ -201,4 +204,151 @@ public class TestPiece {
 	}
 
 
+	/**
+	 * Tests that a streamed piece records its blocks without holding their content
+	 */
+	@Test
+	public void testStreamed() {
+
+		Piece piece = new Piece (1234, 32768, PeerProtocolConstants.BLOCK_LENGTH, true);
+		ByteBuffer block = ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384));
+
+		assertTrue (piece.isStreamed());
+		assertFalse (piece.putBlock (new BlockDescriptor (1234, 0, 16384), block));
+		assertEquals (16384, block.remaining());
+		assertEquals (1, piece.getNeededBlocks().size());
+		assertTrue (piece.putBlock (new BlockDescriptor (1234, 16384, 16384), ByteBuffer.allocate (16384)));
+
+	}
+
+
+	/**
+	 * Tests marking stored blocks of a streamed piece as present
+	 */
+	@Test
+	public void testPutStoredBlock() {
+
+		Piece piece = new Piece (1234, 40000, PeerProtocolConstants.BLOCK_LENGTH, true);
+
+		assertFalse (piece.putStoredBlock (new BlockDescriptor (1234, 16384, 16384)));
+		assertEquals (Arrays.asList (new BlockDescriptor (1234, 16384, 16384)), piece.getPresentBlocks());
+		assertFalse (piece.putStoredBlock (new BlockDescriptor (1234, 32768, 7232)));
+		assertTrue (piece.putStoredBlock (new BlockDescriptor (1234, 0, 16384)));
+		assertEquals (3, piece.getPresentBlocks().size());
+
+	}
+
+
+	/**
+	 * Tests that stored blocks cannot be marked present in a piece that holds its content
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testPutStoredBlockNotStreamed() {
+
+		Piece piece = new Piece (1234, 16384, PeerProtocolConstants.BLOCK_LENGTH);
+		piece.putStoredBlock (new BlockDescriptor (1234, 0, 16384));
+
+	}
+
+
+	/**
+	 * Tests that the content of a streamed piece cannot be read
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testStreamedGetContent() {
+
+		Piece piece = new Piece (1234, 16384, PeerProtocolConstants.BLOCK_LENGTH, true);
+		piece.getContent();
+
+	}
+
+
+	/**
+	 * Tests that the content of a pooled piece is returned to its pool when released
+	 */
+	@Test
+	public void testRelease() {
+
+		BufferPool pool = new BufferPool (false, 1024 * 1024, true);
+		Piece piece = new Piece (1234, 32768, PeerProtocolConstants.BLOCK_LENGTH, false, pool);
+
+		assertEquals (1, pool.getOutstandingCount());
+
+		piece.release();
+		piece.release();
+
+		assertEquals (0, pool.getOutstandingCount());
+		assertEquals (32768, pool.getRetainedBytes());
+
+	}
+
+
+	/**
+	 * Tests that the content of a released piece cannot be read
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testReleasedGetContent() {
+
+		Piece piece = new Piece (1234, 16384, PeerProtocolConstants.BLOCK_LENGTH, false, new BufferPool (false, 1024 * 1024, true));
+		piece.release();
+		piece.getContent();
+
+	}
+
+
+	/**
+	 * Tests that a piece assembled in order is hashed as its blocks arrive
+	 * @throws Exception 
+	 */
+	@Test
+	public void testHashInOrder() throws Exception {
+
+		byte[] expectedContent = Util.pseudoRandomBlock (0, 40000, 40000);
+		Piece piece = new Piece (1234, 40000, PeerProtocolConstants.BLOCK_LENGTH);
+
+		assertFalse (piece.putBlock (new BlockDescriptor (1234, 0, 16384), ByteBuffer.wrap (expectedContent, 0, 16384)));
+		assertNull (piece.getHash());
+		assertFalse (piece.putBlock (new BlockDescriptor (1234, 16384, 16384), ByteBuffer.wrap (expectedContent, 16384, 16384)));
+		assertNull (piece.getHash());
+		assertTrue (piece.putBlock (new BlockDescriptor (1234, 32768, 7232), ByteBuffer.wrap (expectedContent, 32768, 7232)));
+
+		assertArrayEquals (MessageDigest.getInstance("SHA").digest (expectedContent), piece.getHash());
+
+	}
+
+
+	/**
+	 * Tests that a piece assembled out of order is hashed once the gaps are filled
+	 * @throws Exception 
+	 */
+	@Test
+	public void testHashOutOfOrder() throws Exception {
+
+		byte[] expectedContent = Util.pseudoRandomBlock (0, 40000, 40000);
+		Piece piece = new Piece (1234, 40000, PeerProtocolConstants.BLOCK_LENGTH);
+
+		assertFalse (piece.putBlock (new BlockDescriptor (1234, 32768, 7232), ByteBuffer.wrap (expectedContent, 32768, 7232)));
+		assertFalse (piece.putBlock (new BlockDescriptor (1234, 16384, 16384), ByteBuffer.wrap (expectedContent, 16384, 16384)));
+		assertNull (piece.getHash());
+		assertTrue (piece.putBlock (new BlockDescriptor (1234, 0, 16384), ByteBuffer.wrap (expectedContent, 0, 16384)));
+
+		assertArrayEquals (MessageDigest.getInstance("SHA").digest (expectedContent), piece.getHash());
+
+	}
+
+
+	/**
+	 * Tests that a streamed piece is not hashed
+	 */
+	@Test
+	public void testHashStreamed() {
+
+		Piece piece = new Piece (1234, 16384, PeerProtocolConstants.BLOCK_LENGTH, true);
+
+		assertTrue (piece.putBlock (new BlockDescriptor (1234, 0, 16384), ByteBuffer.allocate (16384)));
+		assertNull (piece.getHash());
+
+	}
+
+
 }
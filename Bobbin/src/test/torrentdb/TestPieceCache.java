@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.torrentdb;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.PieceCache;
+import org.junit.Test;
+
+import test.Util;
+
+
+/**
+ * Tests PieceCache
+ */
+public class TestPieceCache {
+
+	/**
+	 * Copies a cached piece of 16384 bytes
+	 *
+	 * @param partition The partition to copy from
+	 * @param pieceNumber The piece number
+	 * @return The content of the piece, or {@code null} if it is not cached
+	 */
+	private static ByteBuffer getPiece (PieceCache.Partition partition, int pieceNumber) {
+
+		ByteBuffer content = ByteBuffer.allocate (16384);
+		if (!partition.get (new BlockDescriptor (pieceNumber, 0, 16384), content)) {
+			return null;
+		}
+		content.flip();
+
+		return content;
+
+	}
+
+
+	/**
+	 * Tests reading a piece that is not cached
+	 */
+	@Test
+	public void testGetMiss() {
+
+		PieceCache cache = new PieceCache (65536);
+		PieceCache.Partition partition = cache.createPartition();
+
+		assertFalse (partition.get (new BlockDescriptor (0, 0, 16384), ByteBuffer.allocate (16384)));
+		assertEquals (0, partition.getHitCount());
+		assertEquals (1, partition.getMissCount());
+		assertEquals (0.0, partition.getHitRatio(), 0.0);
+
+	}
+
+
+	/**
+	 * Tests reading a cached piece
+	 */
+	@Test
+	public void testGetHit() {
+
+		PieceCache cache = new PieceCache (65536);
+		PieceCache.Partition partition = cache.createPartition();
+
+		partition.put (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)));
+		ByteBuffer content = ByteBuffer.allocate (16384);
+		assertTrue (partition.get (new BlockDescriptor (1, 0, 16384), content));
+
+		assertEquals (16384, content.position());
+		content.flip();
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)), content);
+		assertEquals (1, partition.getHitCount());
+		assertEquals (16384, partition.getBytesSaved());
+		assertEquals (16384, cache.getSize());
+
+	}
+
+
+	/**
+	 * Tests reading a block of a cached piece
+	 */
+	@Test
+	public void testGetBlock() {
+
+		PieceCache cache = new PieceCache (65536);
+		PieceCache.Partition partition = cache.createPartition();
+
+		partition.put (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)));
+		ByteBuffer block = ByteBuffer.allocate (8192);
+		assertTrue (partition.get (new BlockDescriptor (1, 4096, 8192), block));
+		block.flip();
+
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384), 4096, 8192), block);
+		assertEquals (8192, partition.getBytesSaved());
+
+	}
+
+
+	/**
+	 * Tests that partitions do not share pieces
+	 */
+	@Test
+	public void testPartitions() {
+
+		PieceCache cache = new PieceCache (65536);
+		PieceCache.Partition partition1 = cache.createPartition();
+		PieceCache.Partition partition2 = cache.createPartition();
+
+		partition1.put (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)));
+		partition2.put (0, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)));
+
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)), getPiece (partition1, 0));
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)), getPiece (partition2, 0));
+
+		partition1.invalidateAll();
+
+		assertFalse (partition1.contains (0));
+		assertTrue (partition2.contains (0));
+		assertEquals (16384, cache.getSize());
+
+	}
+
+
+	/**
+	 * Tests that the least recently used piece is evicted when the capacity is exceeded
+	 */
+	@Test
+	public void testEviction() {
+
+		PieceCache cache = new PieceCache (32768);
+		PieceCache.Partition partition = cache.createPartition();
+
+		partition.put (0, ByteBuffer.allocate (16384));
+		partition.put (1, ByteBuffer.allocate (16384));
+		partition.put (2, ByteBuffer.allocate (16384));
+
+		assertFalse (partition.contains (0));
+		assertTrue (partition.contains (1));
+		assertTrue (partition.contains (2));
+		assertEquals (1, partition.getEvictionCount());
+		assertEquals (32768, cache.getSize());
+
+	}
+
+
+	/**
+	 * Tests that a piece that has been read again survives a scan of pieces that are read once
+	 */
+	@Test
+	public void testScanResistance() {
+
+		PieceCache cache = new PieceCache (65536);
+		PieceCache.Partition partition = cache.createPartition();
+
+		partition.put (0, ByteBuffer.allocate (16384));
+		getPiece (partition, 0);
+		for (int i = 1; i < 10; i++) {
+			partition.put (i, ByteBuffer.allocate (16384));
+		}
+
+		assertTrue (partition.contains (0));
+		assertTrue (partition.contains (9));
+		assertFalse (partition.contains (1));
+		assertEquals (6, partition.getEvictionCount());
+
+	}
+
+
+	/**
+	 * Tests that replacing a piece replaces its content
+	 */
+	@Test
+	public void testReplace() {
+
+		PieceCache cache = new PieceCache (65536);
+		PieceCache.Partition partition = cache.createPartition();
+
+		partition.put (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)));
+		partition.put (0, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)));
+
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)), getPiece (partition, 0));
+		assertEquals (16384, cache.getSize());
+
+	}
+
+
+	/**
+	 * Tests that a piece cached in the buffer of an evicted piece has the correct content, and that
+	 * content copied out of the cache is unaffected by the eviction of its piece
+	 */
+	@Test
+	public void testEvictedBufferReused() {
+
+		PieceCache cache = new PieceCache (32768);
+		PieceCache.Partition partition = cache.createPartition();
+
+		partition.put (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)));
+		ByteBuffer content = getPiece (partition, 0);
+		partition.invalidate (0);
+		partition.put (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)));
+		partition.put (2, ByteBuffer.wrap (Util.pseudoRandomBlock (2, 16384, 16384)));
+		partition.put (3, ByteBuffer.wrap (Util.pseudoRandomBlock (3, 16384, 16384)));
+
+		assertFalse (partition.contains (0));
+		assertFalse (partition.contains (1));
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)), content);
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (2, 16384, 16384)), getPiece (partition, 2));
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (3, 16384, 16384)), getPiece (partition, 3));
+		assertEquals (32768, cache.getSize());
+
+	}
+
+
+	/**
+	 * Tests that reducing the capacity evicts pieces, and that a piece larger than the capacity is
+	 * not cached
+	 */
+	@Test
+	public void testSetCapacity() {
+
+		PieceCache cache = new PieceCache (65536);
+		PieceCache.Partition partition = cache.createPartition();
+
+		partition.put (0, ByteBuffer.allocate (16384));
+		partition.put (1, ByteBuffer.allocate (16384));
+
+		cache.setCapacity (16384);
+
+		assertEquals (16384, cache.getCapacity());
+		assertEquals (16384, cache.getSize());
+		assertTrue (partition.contains (1));
+
+		partition.put (2, ByteBuffer.allocate (32768));
+
+		assertFalse (partition.contains (2));
+		assertEquals (16384, cache.getSize());
+
+	}
+
+
+}
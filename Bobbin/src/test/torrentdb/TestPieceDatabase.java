@@ -8,13 +8,26 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.itadaki.bobbin.torrentdb.BlockDescriptor;
+import org.itadaki.bobbin.torrentdb.DiskJobListener;
+import org.itadaki.bobbin.torrentdb.DiskJobQueue;
 import org.itadaki.bobbin.torrentdb.FileMetadata;
 import org.itadaki.bobbin.torrentdb.FileStorage;
 import org.itadaki.bobbin.torrentdb.Filespec;
@@ -22,9 +35,11 @@ import org.itadaki.bobbin.torrentdb.Info;
 import org.itadaki.bobbin.torrentdb.InfoFileset;
 import org.itadaki.bobbin.torrentdb.MemoryStorage;
 import org.itadaki.bobbin.torrentdb.Piece;
+import org.itadaki.bobbin.torrentdb.PieceCache;
 import org.itadaki.bobbin.torrentdb.PieceDatabase;
 import org.itadaki.bobbin.torrentdb.PieceDatabaseListener;
 import org.itadaki.bobbin.torrentdb.Storage;
+import org.itadaki.bobbin.torrentdb.VerificationScheduler;
 import org.itadaki.bobbin.torrentdb.ViewSignature;
 import org.itadaki.bobbin.util.BitField;
 import org.itadaki.bobbin.util.DSAUtil;
@@ -71,6 +86,7 @@ public class TestPieceDatabase {
 				latch.countDown();
 			}
 
+			public void pieceDatabasePieceVerified (int pieceNumber, boolean present) { }
 			public void pieceDatabaseStopped() { }
 			public void pieceDatabaseError() { }
 			public void pieceDatabaseTerminated() { }
@@ -104,6 +120,7 @@ public class TestPieceDatabase {
 				}
 			}
 
+			public void pieceDatabasePieceVerified (int pieceNumber, boolean present) { }
 			public void pieceDatabaseStopped() {
 				try {
 					barrier.await();
@@ -166,6 +183,7 @@ public class TestPieceDatabase {
 				availableCalled[0] = true;
 			}
 
+			public void pieceDatabasePieceVerified (int pieceNumber, boolean present) { }
 			public void pieceDatabaseStopped() {
 				stoppedCalled[0] = true;
 			}
@@ -187,6 +205,51 @@ public class TestPieceDatabase {
 	}
 
 
+	/**
+	 * Tests that listeners are signalled without the listener set's lock held, so that a listener
+	 * may wait on another thread that adds or removes listeners
+	 * @throws Exception
+	 */
+	@Test
+	public void testListenerSignalledUnlocked() throws Exception {
+
+		final PieceDatabase pieceDatabase = MockPieceDatabase.create ("0000", 16384);
+
+		final boolean removed[] = new boolean[1];
+		pieceDatabase.addListener (new PieceDatabaseListener() {
+
+			public void pieceDatabaseAvailable() {
+				final PieceDatabaseListener listener = this;
+				Thread thread = new Thread() {
+					@Override
+					public void run() {
+						pieceDatabase.removeListener (listener);
+					}
+				};
+				thread.start();
+				try {
+					thread.join (5000);
+				} catch (InterruptedException e) {
+					// Ignored
+				}
+				removed[0] = !thread.isAlive();
+			}
+
+			public void pieceDatabasePieceVerified (int pieceNumber, boolean present) { }
+			public void pieceDatabaseStopped() { }
+			public void pieceDatabaseError() { }
+			public void pieceDatabaseTerminated() { }
+
+		});
+		pieceDatabase.start (true);
+
+		assertTrue (removed[0]);
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
 	/**
 	 * Tests that call to readPiece() fails while STOPPED
 	 * @throws Exception
@@ -347,6 +410,339 @@ public class TestPieceDatabase {
 	}
 
 
+	/**
+	 * Check readBlock() - in range
+	 * @throws Exception 
+	 */
+	@Test
+	public void testReadBlockOK() throws Exception {
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0010", 16384);
+		pieceDatabase.start (true);
+
+		ByteBuffer block = pieceDatabase.readBlock (new BlockDescriptor (2, 4096, 8192));
+
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (2, 16384, 16384), 4096, 8192), block);
+
+	}
+
+
+	/**
+	 * Check readBlock() - through a piece cache
+	 * @throws Exception 
+	 */
+	@Test
+	public void testReadBlockCached() throws Exception {
+
+		PieceCache pieceCache = new PieceCache (65536);
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0010", 16384);
+		pieceDatabase.setPieceCache (pieceCache);
+		pieceDatabase.start (true);
+
+		ByteBuffer block1 = pieceDatabase.readBlock (new BlockDescriptor (2, 0, 8192));
+		ByteBuffer block2 = pieceDatabase.readBlock (new BlockDescriptor (2, 8192, 8192));
+
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (2, 16384, 16384), 0, 8192), block1);
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (2, 16384, 16384), 8192, 8192), block2);
+		assertEquals (1, pieceDatabase.getPieceCachePartition().getMissCount());
+		assertEquals (1, pieceDatabase.getPieceCachePartition().getHitCount());
+		assertEquals (8192, pieceDatabase.getPieceCachePartition().getBytesSaved());
+
+		pieceDatabase.terminate (true);
+
+		assertEquals (0, pieceCache.getSize());
+
+	}
+
+
+	/**
+	 * Check writePiece() - written piece is cached
+	 * @throws Exception 
+	 */
+	@Test
+	public void testWritePieceCached() throws Exception {
+
+		PieceCache pieceCache = new PieceCache (65536);
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0000", 16384);
+		pieceDatabase.setPieceCache (pieceCache);
+		pieceDatabase.start (true);
+
+		pieceDatabase.writePiece (new Piece (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)), null));
+
+		assertTrue (pieceDatabase.getPieceCachePartition().contains (1));
+		assertNull (pieceDatabase.getBlockRegions (new BlockDescriptor (1, 0, 16384)));
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)), pieceDatabase.readPiece(1).getContent());
+		assertEquals (1, pieceDatabase.getPieceCachePartition().getHitCount());
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Check getBlockRegions() - a block transferred directly from its file is a cache miss, and a
+	 * cached block is a hit when it is read from the cache
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetBlockRegionsCached() throws Exception {
+
+		File testFile = Util.createNonExistentTemporaryFile();
+		byte[] pieceHashes = Util.flatten2DArray (Util.pseudoRandomBlockHashes (16384, 32768));
+		Info info = Info.create (new InfoFileset (new Filespec (testFile.getName(), 32768L)), 16384, pieceHashes);
+
+		PieceCache pieceCache = new PieceCache (65536);
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (testFile.getParentFile()), null);
+		pieceDatabase.setPieceCache (pieceCache);
+		pieceDatabase.start (true);
+		pieceDatabase.writePiece (new Piece (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)), null));
+		pieceDatabase.writePiece (new Piece (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)), null));
+		pieceDatabase.getPieceCachePartition().invalidate (0);
+
+		BlockDescriptor descriptor0 = new BlockDescriptor (0, 0, 16384);
+		BlockDescriptor descriptor1 = new BlockDescriptor (1, 0, 16384);
+		assertNotNull (pieceDatabase.getBlockRegions (descriptor0));
+		assertNull (pieceDatabase.getBlockRegions (descriptor1));
+		pieceDatabase.readBlock (descriptor1);
+
+		assertEquals (1, pieceDatabase.getPieceCachePartition().getMissCount());
+		assertEquals (1, pieceDatabase.getPieceCachePartition().getHitCount());
+		assertEquals (0.5, pieceDatabase.getPieceCachePartition().getHitRatio(), 0.0);
+
+		pieceDatabase.terminate (true);
+		testFile.delete();
+
+	}
+
+
+	/**
+	 * Creates a PieceDatabase of four pseudo-random pieces over an initially empty storage
+	 *
+	 * @param storage The storage
+	 * @param pieceSize The piece size
+	 * @return The created PieceDatabase
+	 * @throws Exception
+	 */
+	private static PieceDatabase createWriteBackDatabase (Storage storage, int pieceSize) throws Exception {
+
+		byte[] pieceHashes = Util.flatten2DArray (Util.pseudoRandomBlockHashes (pieceSize, 4 * pieceSize));
+		Info info = Info.create (new InfoFileset (new Filespec ("test", 4L * pieceSize)), pieceSize, pieceHashes);
+
+		return new PieceDatabase (info, null, storage, null);
+
+	}
+
+
+	/**
+	 * Tests that a piece held for writing is present and readable, and is written when flushed
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteBack() throws Exception {
+
+		Storage storage = new MemoryStorage();
+		PieceDatabase pieceDatabase = createWriteBackDatabase (storage, 16384);
+		pieceDatabase.setWriteBackCapacity (65536);
+		pieceDatabase.start (true);
+
+		byte[] piece1 = Util.pseudoRandomBlock (1, 16384, 16384);
+		assertTrue (pieceDatabase.writePiece (new Piece (1, ByteBuffer.wrap (piece1), null)));
+
+		assertTrue (pieceDatabase.getPresentPieces().get (1));
+		assertEquals (16384, pieceDatabase.getUnwrittenByteCount());
+		assertEquals (ByteBuffer.allocate (16384), storage.read (1));
+		assertEquals (ByteBuffer.wrap (piece1), pieceDatabase.readPiece(1).getContent());
+		assertEquals (ByteBuffer.wrap (piece1, 4096, 4096), pieceDatabase.readBlock (new BlockDescriptor (1, 4096, 4096)));
+		assertNull (pieceDatabase.getBlockRegions (new BlockDescriptor (1, 0, 16384)));
+
+		pieceDatabase.flush();
+
+		assertEquals (0, pieceDatabase.getUnwrittenByteCount());
+		assertEquals (ByteBuffer.wrap (piece1), storage.read (1));
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests that held pieces are written once the write-back capacity is reached
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteBackCapacity() throws Exception {
+
+		Storage storage = new MemoryStorage();
+		PieceDatabase pieceDatabase = createWriteBackDatabase (storage, 16384);
+		pieceDatabase.setWriteBackCapacity (32768);
+		pieceDatabase.start (true);
+
+		byte[] piece1 = Util.pseudoRandomBlock (1, 16384, 16384);
+		byte[] piece2 = Util.pseudoRandomBlock (2, 16384, 16384);
+		pieceDatabase.writePiece (new Piece (2, ByteBuffer.wrap (piece2), null));
+
+		assertEquals (16384, pieceDatabase.getUnwrittenByteCount());
+
+		pieceDatabase.writePiece (new Piece (1, ByteBuffer.wrap (piece1), null));
+
+		assertEquals (0, pieceDatabase.getUnwrittenByteCount());
+		assertEquals (ByteBuffer.wrap (piece1), storage.read (1));
+		assertEquals (ByteBuffer.wrap (piece2), storage.read (2));
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests that held pieces are written when the database stops
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteBackStop() throws Exception {
+
+		Storage storage = new MemoryStorage();
+		PieceDatabase pieceDatabase = createWriteBackDatabase (storage, 16384);
+		pieceDatabase.setWriteBackCapacity (65536);
+		pieceDatabase.start (true);
+
+		byte[] piece3 = Util.pseudoRandomBlock (3, 16384, 16384);
+		pieceDatabase.writePiece (new Piece (3, ByteBuffer.wrap (piece3), null));
+		pieceDatabase.stop (true);
+
+		assertEquals (0, pieceDatabase.getUnwrittenByteCount());
+		assertEquals (ByteBuffer.wrap (piece3), storage.read (3));
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests that the blocks of a streamed piece are written in place, and the piece verified from
+	 * storage
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteBlockStreamed() throws Exception {
+
+		Storage storage = new MemoryStorage();
+		PieceDatabase pieceDatabase = createWriteBackDatabase (storage, 16384);
+		pieceDatabase.setWriteBackCapacity (65536);
+		pieceDatabase.start (true);
+
+		byte[] piece1 = Util.pseudoRandomBlock (1, 16384, 16384);
+		Piece piece = new Piece (1, 16384, 8192, true);
+		for (BlockDescriptor descriptor : piece.getNeededBlocks()) {
+			ByteBuffer block = ByteBuffer.wrap (piece1, descriptor.getOffset(), descriptor.getLength());
+			piece.putBlock (descriptor, block);
+			assertTrue (pieceDatabase.writeBlock (descriptor, block));
+		}
+
+		assertFalse (pieceDatabase.getPresentPieces().get (1));
+		assertEquals (ByteBuffer.wrap (piece1), storage.read (1));
+
+		assertTrue (pieceDatabase.writePiece (piece));
+
+		assertTrue (pieceDatabase.getPresentPieces().get (1));
+		assertEquals (0, pieceDatabase.getUnwrittenByteCount());
+		assertEquals (ByteBuffer.wrap (piece1), pieceDatabase.readPiece(1).getContent());
+
+		// Blocks of present pieces are discarded
+		assertFalse (pieceDatabase.writeBlock (new BlockDescriptor (1, 0, 8192), ByteBuffer.allocate (8192)));
+		assertEquals (ByteBuffer.wrap (piece1), storage.read (1));
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests that pieces written asynchronously through a disk job queue are hashed and stored,
+	 * whether streamed or not
+	 * @throws Exception
+	 */
+	@Test
+	public void testWritePieceAsynchronous() throws Exception {
+
+		Storage storage = new MemoryStorage();
+		PieceDatabase pieceDatabase = createWriteBackDatabase (storage, 16384);
+		DiskJobQueue diskJobQueue = new DiskJobQueue (2);
+		pieceDatabase.setDiskJobQueue (diskJobQueue);
+		pieceDatabase.start (true);
+
+		byte[] piece1 = Util.pseudoRandomBlock (1, 16384, 16384);
+		Piece streamedPiece = new Piece (1, 16384, 16384, true);
+		BlockDescriptor descriptor = new BlockDescriptor (1, 0, 16384);
+		streamedPiece.putBlock (descriptor, ByteBuffer.wrap (piece1));
+		assertTrue (pieceDatabase.writeBlock (descriptor, ByteBuffer.wrap (piece1)));
+
+		byte[] piece2 = Util.pseudoRandomBlock (2, 16384, 16384);
+		Piece piece = new Piece (2, ByteBuffer.wrap (piece2), null);
+
+		final BlockingQueue<Boolean> results = new LinkedBlockingQueue<Boolean>();
+		DiskJobListener<Boolean> listener = new DiskJobListener<Boolean>() {
+			public void diskJobCompleted (Boolean result) {
+				results.add (result);
+			}
+			public void diskJobFailed (Exception exception) { }
+		};
+		pieceDatabase.writePiece (streamedPiece, listener);
+		pieceDatabase.writePiece (piece, listener);
+
+		assertEquals (Boolean.TRUE, results.poll (5, TimeUnit.SECONDS));
+		assertEquals (Boolean.TRUE, results.poll (5, TimeUnit.SECONDS));
+		assertTrue (pieceDatabase.getPresentPieces().get (1));
+		assertTrue (pieceDatabase.getPresentPieces().get (2));
+		assertEquals (ByteBuffer.wrap (piece1), pieceDatabase.readPiece(1).getContent());
+		assertEquals (ByteBuffer.wrap (piece2), pieceDatabase.readPiece(2).getContent());
+
+		diskJobQueue.shutdown();
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests that a streamed piece whose stored content does not verify is not made present
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteBlockStreamedInvalid() throws Exception {
+
+		Storage storage = new MemoryStorage();
+		PieceDatabase pieceDatabase = createWriteBackDatabase (storage, 16384);
+		pieceDatabase.start (true);
+
+		Piece piece = new Piece (1, 16384, 16384, true);
+		BlockDescriptor descriptor = new BlockDescriptor (1, 0, 16384);
+		ByteBuffer block = ByteBuffer.wrap (Util.pseudoRandomBlock (2, 16384, 16384));
+		piece.putBlock (descriptor, block);
+		pieceDatabase.writeBlock (descriptor, block);
+
+		assertFalse (pieceDatabase.writePiece (piece));
+		assertFalse (pieceDatabase.getPresentPieces().get (1));
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Check readBlock() - piece not present
+	 * @throws Exception 
+	 */
+	@Test(expected=IOException.class)
+	public void testReadBlockNotPresent() throws Exception {
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0010", 16384);
+		pieceDatabase.start (true);
+
+		pieceDatabase.readBlock (new BlockDescriptor (1, 0, 16384));
+
+	}
+
+
 	/**
 	 * Check readPiece() - > range
 	 * @throws Exception 
@@ -406,6 +802,48 @@ public class TestPieceDatabase {
 	}
 
 
+	/**
+	 * Check verifyAndWritePiece - good, with a hash computed as the piece was assembled
+	 * @throws Exception 
+	 */
+	@Test
+	public void testVerifyAndWritePieceAssembledGood() throws Exception {
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0000", 32768);
+		pieceDatabase.start (true);
+		byte[] content = Util.pseudoRandomBlock (2, 32768, 32768);
+		Piece piece = new Piece (2, 32768, 16384);
+		piece.putBlock (new BlockDescriptor (2, 16384, 16384), ByteBuffer.wrap (content, 16384, 16384));
+		piece.putBlock (new BlockDescriptor (2, 0, 16384), ByteBuffer.wrap (content, 0, 16384));
+		assertNotNull (piece.getHash());
+
+		assertTrue (pieceDatabase.writePiece (piece));
+		assertTrue (pieceDatabase.havePiece (2));
+		assertEquals (ByteBuffer.wrap (content), pieceDatabase.readPiece(2).getContent());
+
+	}
+
+
+	/**
+	 * Check verifyAndWritePiece - bad, with a hash computed as the piece was assembled
+	 * @throws Exception 
+	 */
+	@Test
+	public void testVerifyAndWritePieceAssembledBad() throws Exception {
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0000", 32768);
+		pieceDatabase.start (true);
+		byte[] content = Util.pseudoRandomBlock (1, 32768, 32768);
+		Piece piece = new Piece (2, 32768, 16384);
+		piece.putBlock (new BlockDescriptor (2, 0, 16384), ByteBuffer.wrap (content, 0, 16384));
+		piece.putBlock (new BlockDescriptor (2, 16384, 16384), ByteBuffer.wrap (content, 16384, 16384));
+
+		assertFalse (pieceDatabase.writePiece (piece));
+		assertFalse (pieceDatabase.havePiece (2));
+
+	}
+
+
 	/**
 	 * Check verifyAndWritePiece - good (small final piece)
 	 * @throws Exception 
@@ -487,6 +925,7 @@ public class TestPieceDatabase {
 			public void pieceDatabaseError() {
 				errorCalled[0] = true;
 			}
+			public void pieceDatabasePieceVerified (int pieceNumber, boolean present) { }
 			public void pieceDatabaseStopped() { }
 			public void pieceDatabaseTerminated() { }
 		});
@@ -540,21 +979,271 @@ public class TestPieceDatabase {
 
 
 	/**
-	 * Tests a storage error during readPiece()
+	 * Tests that verified pieces can be read and written while the remainder of the database is
+	 * checked in check-while-active mode
 	 * @throws Exception
 	 */
 	@Test
-	public void testErrorDuringRead() throws Exception {
-
-		Info info = Info.create (new InfoFileset (new Filespec ("test", 1024L)), 1024, Util.flatten2DArray (Util.pseudoRandomBlockHashes (1024, 1024)));
-		Storage storage = new MemoryStorage() {
-			private int count = 0;
+	public void testCheckWhileActive() throws Exception {
+
+		int pieceSize = 1024;
+		ByteBuffer data = ByteBuffer.allocate (3 * pieceSize);
+		data.put (Util.pseudoRandomBlock (0, pieceSize, pieceSize));
+		data.position (2 * pieceSize);
+		data.put (Util.pseudoRandomBlock (2, pieceSize, pieceSize));
+		byte[] pieceHashes = Util.flatten2DArray (Util.pseudoRandomBlockHashes (pieceSize, 3 * pieceSize));
+		Info info = Info.create (new InfoFileset (new Filespec ("test", 3L * pieceSize)), pieceSize, pieceHashes);
+
+		final CountDownLatch readLatch = new CountDownLatch (1);
+		Storage storage = new MemoryStorage (data.array()) {
 			@Override
 			public ByteBuffer read (int pieceNumber) throws IOException {
-				if (this.count++ == 1) {
-					throw new IOException();
-				}
-				return ByteBuffer.wrap (Util.pseudoRandomBlock (0, 1024, 1024));
+				if (pieceNumber == 2) {
+					try {
+						readLatch.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return super.read (pieceNumber);
+			}
+		};
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, storage, null);
+		pieceDatabase.setVerificationThreads (1);
+		pieceDatabase.setCheckWhileActive (true);
+
+		final AtomicInteger availableCount = new AtomicInteger();
+		final CountDownLatch availableLatch = new CountDownLatch (1);
+		final CountDownLatch verifiedLatch = new CountDownLatch (2);
+		final List<String> verified = Collections.synchronizedList (new ArrayList<String>());
+		pieceDatabase.addListener (new PieceDatabaseListener() {
+			public void pieceDatabaseAvailable() {
+				availableCount.incrementAndGet();
+				availableLatch.countDown();
+			}
+			public void pieceDatabasePieceVerified (int pieceNumber, boolean present) {
+				verified.add (pieceNumber + (present ? "+" : "-"));
+				verifiedLatch.countDown();
+			}
+			public void pieceDatabaseStopped() { }
+			public void pieceDatabaseError() { }
+			public void pieceDatabaseTerminated() { }
+		});
+
+		pieceDatabase.start (false);
+
+		assertTrue (availableLatch.await (2, TimeUnit.SECONDS));
+		assertTrue (verifiedLatch.await (2, TimeUnit.SECONDS));
+		assertEquals (PieceDatabase.State.CHECKING, pieceDatabase.getState());
+		assertEquals (Arrays.asList ("0+", "1-"), verified);
+
+		// Verified pieces are available, unverified pieces are neither present nor writable
+		assertTrue (pieceDatabase.havePiece (0));
+		assertFalse (pieceDatabase.havePiece (1));
+		assertFalse (pieceDatabase.havePiece (2));
+		assertEquals (ByteBuffer.wrap (Util.pseudoRandomBlock (0, pieceSize, pieceSize)), pieceDatabase.readPiece(0).getContent());
+		assertFalse (pieceDatabase.writeBlock (new BlockDescriptor (2, 0, pieceSize), ByteBuffer.allocate (pieceSize)));
+		assertTrue (pieceDatabase.writePiece (new Piece (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, pieceSize, pieceSize)), null)));
+		assertTrue (pieceDatabase.havePiece (1));
+
+		readLatch.countDown();
+		for (int i = 0; (i < 200) && (pieceDatabase.getState() != PieceDatabase.State.AVAILABLE); i++) {
+			Thread.sleep (10);
+		}
+
+		assertEquals (PieceDatabase.State.AVAILABLE, pieceDatabase.getState());
+		assertEquals (1, availableCount.get());
+		assertEquals (Arrays.asList ("0+", "1-", "2+"), verified);
+		assertEquals (3, pieceDatabase.getPresentPieces().cardinality());
+
+	}
+
+
+	/**
+	 * Tests verification with multiple hashing threads
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelVerification() throws Exception {
+
+		String piecesPresent = "1011001110001111000011111000001111110000000";
+		PieceDatabase pieceDatabase = MockPieceDatabase.create (piecesPresent, 1024);
+		pieceDatabase.setVerificationThreads (3);
+
+		pieceDatabase.start (true);
+
+		BitField presentPieces = pieceDatabase.getPresentPieces();
+		assertEquals (piecesPresent.length(), pieceDatabase.getVerifiedPieceCount());
+		for (int i = 0; i < piecesPresent.length(); i++) {
+			assertEquals (piecesPresent.charAt (i) == '1', presentPieces.get (i));
+		}
+
+	}
+
+
+	/**
+	 * Tests verification of a complete Merkle database with multiple hashing threads
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelVerificationMerkle() throws Exception {
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.createMerkle ("11111111111111111111", 1024);
+		pieceDatabase.setVerificationThreads (3);
+
+		pieceDatabase.start (true);
+
+		assertEquals (20, pieceDatabase.getVerifiedPieceCount());
+		assertEquals (20, pieceDatabase.getPresentPieces().cardinality());
+
+	}
+
+
+	/**
+	 * Tests setting an invalid number of verification threads
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testSetVerificationThreadsInvalid() throws Exception {
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0000", 16384);
+		pieceDatabase.setVerificationThreads (0);
+
+	}
+
+
+	/**
+	 * Tests that asynchronous reads are performed serially with other jobs for the device given to
+	 * the disk job queue
+	 * @throws Exception
+	 */
+	@Test
+	public void testDiskJobQueueDevice() throws Exception {
+
+		Object device = new Object();
+		DiskJobQueue diskJobQueue = new DiskJobQueue (2);
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1", 16384);
+		pieceDatabase.start (true);
+		pieceDatabase.setDiskJobQueue (diskJobQueue, device);
+
+		// Occupy the device with a job for another database
+		final CountDownLatch latch = new CountDownLatch (1);
+		diskJobQueue.submit (device, new Callable<Object>() {
+			public Object call() throws Exception {
+				latch.await();
+				return null;
+			}
+		}, new DiskJobListener<Object>() {
+			public void diskJobCompleted (Object result) { }
+			public void diskJobFailed (Exception exception) { }
+		});
+
+		final CountDownLatch readLatch = new CountDownLatch (1);
+		pieceDatabase.readBlock (new BlockDescriptor (0, 0, 16384), new DiskJobListener<ByteBuffer>() {
+			public void diskJobCompleted (ByteBuffer result) {
+				readLatch.countDown();
+			}
+			public void diskJobFailed (Exception exception) { }
+		});
+
+		assertFalse (readLatch.await (100, TimeUnit.MILLISECONDS));
+		latch.countDown();
+		assertTrue (readLatch.await (5, TimeUnit.SECONDS));
+
+		diskJobQueue.shutdown();
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Tests setting a disk job queue without a device
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testSetDiskJobQueueInvalidDevice() throws Exception {
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("0", 16384);
+		pieceDatabase.setDiskJobQueue (new DiskJobQueue (1), null);
+
+	}
+
+
+	/**
+	 * Tests verification through a verification scheduler
+	 * @throws Exception
+	 */
+	@Test
+	public void testScheduledVerification() throws Exception {
+
+		VerificationScheduler scheduler = new VerificationScheduler (1);
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1011", 1024);
+		pieceDatabase.setVerificationScheduler (scheduler, "device");
+
+		pieceDatabase.start (true);
+
+		assertEquals (PieceDatabase.State.AVAILABLE, pieceDatabase.getState());
+		assertEquals (4, pieceDatabase.getVerifiedPieceCount());
+		assertEquals (3, pieceDatabase.getPresentPieces().cardinality());
+
+		scheduler.shutdown();
+
+	}
+
+
+	/**
+	 * Tests a stop while verification is waiting to be scheduled
+	 * @throws Exception
+	 */
+	@Test
+	public void testStopDuringScheduledWait() throws Exception {
+
+		VerificationScheduler scheduler = new VerificationScheduler (1);
+		final CountDownLatch latch = new CountDownLatch (1);
+		scheduler.submit ("device", VerificationScheduler.Priority.USER, new Runnable() {
+			public void run() {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					// Do nothing
+				}
+			}
+		});
+
+		PieceDatabase pieceDatabase = MockPieceDatabase.create ("1011", 1024);
+		pieceDatabase.setVerificationScheduler (scheduler, "device");
+
+		pieceDatabase.start (false);
+		while (!pieceDatabase.isVerificationWaiting()) {
+			Thread.sleep (10);
+		}
+		pieceDatabase.stop (true);
+
+		assertEquals (PieceDatabase.State.STOPPED, pieceDatabase.getState());
+		assertEquals (0, scheduler.getWaitingCheckCount());
+
+		latch.countDown();
+		scheduler.shutdown();
+
+	}
+
+
+	/**
+	 * Tests a storage error during readPiece()
+	 * @throws Exception
+	 */
+	@Test
+	public void testErrorDuringRead() throws Exception {
+
+		Info info = Info.create (new InfoFileset (new Filespec ("test", 1024L)), 1024, Util.flatten2DArray (Util.pseudoRandomBlockHashes (1024, 1024)));
+		Storage storage = new MemoryStorage() {
+			private int count = 0;
+			@Override
+			public ByteBuffer read (int pieceNumber) throws IOException {
+				if (this.count++ == 1) {
+					throw new IOException();
+				}
+				return ByteBuffer.wrap (Util.pseudoRandomBlock (0, 1024, 1024));
 			}
 		};
 		PieceDatabase pieceDatabase = new PieceDatabase (info, null, storage, null);
@@ -564,6 +1253,7 @@ public class TestPieceDatabase {
 			public void pieceDatabaseError() {
 				errorCalled[0] = true;
 			}
+			public void pieceDatabasePieceVerified (int pieceNumber, boolean present) { }
 			public void pieceDatabaseStopped() { }
 			public void pieceDatabaseTerminated() { }
 		});
@@ -609,6 +1299,7 @@ public class TestPieceDatabase {
 			public void pieceDatabaseError() {
 				errorCalled[0] = true;
 			}
+			public void pieceDatabasePieceVerified (int pieceNumber, boolean present) { }
 			public void pieceDatabaseStopped() { }
 			public void pieceDatabaseTerminated() { }
 		});
@@ -653,6 +1344,7 @@ public class TestPieceDatabase {
 			public void pieceDatabaseError() {
 				errorCalled[0] = true;
 			}
+			public void pieceDatabasePieceVerified (int pieceNumber, boolean present) { }
 			public void pieceDatabaseStopped() { }
 			public void pieceDatabaseTerminated() { }
 		});
@@ -729,6 +1421,317 @@ public class TestPieceDatabase {
 	}
 
 
+	/**
+	 * Check only the pieces of a changed file are unverified when resume data is provided
+	 * @throws Exception
+	 */
+	@Test
+	public void testResumeFileChanged() throws Exception {
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		File metadataDirectory = Util.createTemporaryDirectory();
+
+		byte[][] blockHashes = Util.pseudoRandomBlockHashes (16384, 3 * 16384);
+		byte[] pieceHashes = Util.flatten2DArray (blockHashes);
+		List<Filespec> files = Arrays.asList (new Filespec[] {
+				new Filespec ("a", 16384L),
+				new Filespec ("b", 16384L),
+				new Filespec ("c", 16384L)
+		});
+		Info info = Info.create (new InfoFileset ("test", files), 16384, pieceHashes);
+		Storage storage = new FileStorage (baseDirectory);
+		storage.open (info.getPieceSize(), info.getFileset());
+		for (int i = 0; i < 3; i++) {
+			storage.write (i, ByteBuffer.wrap (Util.pseudoRandomBlock (i, 16384, 16384)));
+		}
+		storage.close();
+
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (baseDirectory), new FileMetadata (metadataDirectory));
+		pieceDatabase.start (true);
+		assertEquals (3, pieceDatabase.getPresentPieces().cardinality());
+		pieceDatabase.terminate (true);
+
+		File fileB = new File (new File (baseDirectory, "test"), "b");
+		fileB.setLastModified (fileB.lastModified() + 1000);
+
+		PieceDatabase pieceDatabase2 = new PieceDatabase (info, null, new FileStorage (baseDirectory), new FileMetadata (metadataDirectory));
+
+		assertEquals (2, pieceDatabase2.getVerifiedPieceCount());
+		assertTrue (pieceDatabase2.getPresentPieces().get (0));
+		assertFalse (pieceDatabase2.getPresentPieces().get (1));
+		assertTrue (pieceDatabase2.getPresentPieces().get (2));
+
+		pieceDatabase2.start (true);
+
+		assertEquals (3, pieceDatabase2.getVerifiedPieceCount());
+		assertEquals (3, pieceDatabase2.getPresentPieces().cardinality());
+
+	}
+
+
+	/**
+	 * Check that checkpointed state is resumed after the database fails to terminate, with only
+	 * the pieces journalled since the previous snapshot left unverified
+	 * @throws Exception
+	 */
+	@Test
+	public void testResumeCheckpoint() throws Exception {
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		File metadataDirectory = Util.createTemporaryDirectory();
+
+		byte[][] blockHashes = Util.pseudoRandomBlockHashes (16384, 3 * 16384);
+		byte[] pieceHashes = Util.flatten2DArray (blockHashes);
+		List<Filespec> files = Arrays.asList (new Filespec[] {
+				new Filespec ("a", 16384L),
+				new Filespec ("b", 16384L),
+				new Filespec ("c", 16384L)
+		});
+		Info info = Info.create (new InfoFileset ("test", files), 16384, pieceHashes);
+
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (baseDirectory), new FileMetadata (metadataDirectory));
+		pieceDatabase.start (true);
+		assertTrue (pieceDatabase.writePiece (new Piece (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)), null)));
+		pieceDatabase.checkpoint();
+		assertTrue (pieceDatabase.writePiece (new Piece (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)), null)));
+		pieceDatabase.checkpoint();
+
+		// The first database is not terminated. Piece 1, written after the first snapshot, is
+		// carried into the journal that follows the second
+		PieceDatabase pieceDatabase2 = new PieceDatabase (info, null, new FileStorage (baseDirectory), new FileMetadata (metadataDirectory));
+
+		assertEquals (2, pieceDatabase2.getVerifiedPieceCount());
+		assertTrue (pieceDatabase2.getPresentPieces().get (0));
+		assertFalse (pieceDatabase2.getPresentPieces().get (1));
+		assertFalse (pieceDatabase2.getPresentPieces().get (2));
+
+		pieceDatabase2.start (true);
+
+		assertEquals (3, pieceDatabase2.getVerifiedPieceCount());
+		assertTrue (pieceDatabase2.getPresentPieces().get (0));
+		assertTrue (pieceDatabase2.getPresentPieces().get (1));
+		assertFalse (pieceDatabase2.getPresentPieces().get (2));
+
+		pieceDatabase.terminate (true);
+		pieceDatabase2.terminate (true);
+
+	}
+
+
+	/**
+	 * Check that a checkpoint's snapshot is written through the metadata without the state machine
+	 * lock held
+	 * @throws Exception
+	 */
+	@Test
+	public void testCheckpointUnlocked() throws Exception {
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		File metadataDirectory = Util.createTemporaryDirectory();
+
+		byte[][] blockHashes = Util.pseudoRandomBlockHashes (16384, 16384);
+		byte[] pieceHashes = Util.flatten2DArray (blockHashes);
+		List<Filespec> files = Arrays.asList (new Filespec[] {
+				new Filespec ("a", 16384L)
+		});
+		Info info = Info.create (new InfoFileset ("test", files), 16384, pieceHashes);
+
+		final PieceDatabase[] pieceDatabaseHolder = new PieceDatabase[1];
+		final CountDownLatch latch = new CountDownLatch (1);
+		FileMetadata metadata = new FileMetadata (metadataDirectory) {
+			@Override
+			public void put (String key, byte[] value) throws IOException {
+				if ("resume".equals (key)) {
+					new Thread() {
+						@Override
+						public void run() {
+							// Requires the state machine lock
+							pieceDatabaseHolder[0].isVerificationWaiting();
+							latch.countDown();
+						}
+					}.start();
+					try {
+						latch.await (5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						// Do nothing
+					}
+				}
+				super.put (key, value);
+			}
+		};
+
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (baseDirectory), metadata);
+		pieceDatabaseHolder[0] = pieceDatabase;
+		pieceDatabase.start (true);
+		assertTrue (pieceDatabase.writePiece (new Piece (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)), null)));
+		pieceDatabase.checkpoint();
+
+		assertEquals (0, latch.getCount());
+
+		pieceDatabase.terminate (true);
+
+	}
+
+
+	/**
+	 * Check that when a file holding a journalled piece has also been changed by other means, all
+	 * of its pieces are checked again on resume
+	 * @throws Exception
+	 */
+	@Test
+	public void testResumeCheckpointFileChanged() throws Exception {
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		File metadataDirectory = Util.createTemporaryDirectory();
+
+		byte[][] blockHashes = Util.pseudoRandomBlockHashes (16384, 3 * 16384);
+		byte[] pieceHashes = Util.flatten2DArray (blockHashes);
+		List<Filespec> files = Arrays.asList (new Filespec[] {
+				new Filespec ("a", 32768L),
+				new Filespec ("b", 16384L)
+		});
+		Info info = Info.create (new InfoFileset ("test", files), 16384, pieceHashes);
+
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (baseDirectory), new FileMetadata (metadataDirectory));
+		pieceDatabase.start (true);
+		assertTrue (pieceDatabase.writePiece (new Piece (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)), null)));
+		assertTrue (pieceDatabase.writePiece (new Piece (2, ByteBuffer.wrap (Util.pseudoRandomBlock (2, 16384, 16384)), null)));
+		pieceDatabase.checkpoint();
+		assertTrue (pieceDatabase.writePiece (new Piece (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)), null)));
+		pieceDatabase.checkpoint();
+
+		// The first database is not terminated. Piece 1 is journalled, and file "a", which holds
+		// both pieces 0 and 1, is then changed outside the database
+		File fileA = new File (new File (baseDirectory, "test"), "a");
+		RandomAccessFile randomAccessFile = new RandomAccessFile (fileA, "rw");
+		randomAccessFile.write (new byte[16384]);
+		randomAccessFile.close();
+		fileA.setLastModified (fileA.lastModified() + 2000);
+
+		PieceDatabase pieceDatabase2 = new PieceDatabase (info, null, new FileStorage (baseDirectory), new FileMetadata (metadataDirectory));
+
+		assertEquals (1, pieceDatabase2.getVerifiedPieceCount());
+		assertFalse (pieceDatabase2.getPresentPieces().get (0));
+		assertFalse (pieceDatabase2.getPresentPieces().get (1));
+		assertTrue (pieceDatabase2.getPresentPieces().get (2));
+
+		pieceDatabase2.start (true);
+
+		assertEquals (3, pieceDatabase2.getVerifiedPieceCount());
+		assertFalse (pieceDatabase2.getPresentPieces().get (0));
+		assertTrue (pieceDatabase2.getPresentPieces().get (1));
+		assertTrue (pieceDatabase2.getPresentPieces().get (2));
+
+		pieceDatabase.terminate (true);
+		pieceDatabase2.terminate (true);
+
+	}
+
+
+	/**
+	 * Check that when a file is changed only through journalled pieces, only those pieces are
+	 * checked again on resume, and that a later change by other means causes all of the file's
+	 * pieces to be checked
+	 * @throws Exception
+	 */
+	@Test
+	public void testResumeJournalFileWritten() throws Exception {
+
+		File baseDirectory = Util.createTemporaryDirectory();
+		File metadataDirectory = Util.createTemporaryDirectory();
+
+		byte[][] blockHashes = Util.pseudoRandomBlockHashes (16384, 3 * 16384);
+		byte[] pieceHashes = Util.flatten2DArray (blockHashes);
+		List<Filespec> files = Arrays.asList (new Filespec[] {
+				new Filespec ("a", 32768L),
+				new Filespec ("b", 16384L)
+		});
+		Info info = Info.create (new InfoFileset ("test", files), 16384, pieceHashes);
+
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (baseDirectory), new FileMetadata (metadataDirectory));
+		pieceDatabase.start (true);
+		assertTrue (pieceDatabase.writePiece (new Piece (0, ByteBuffer.wrap (Util.pseudoRandomBlock (0, 16384, 16384)), null)));
+		assertTrue (pieceDatabase.writePiece (new Piece (2, ByteBuffer.wrap (Util.pseudoRandomBlock (2, 16384, 16384)), null)));
+		pieceDatabase.checkpoint();
+		pieceDatabase.checkpoint();
+		assertTrue (pieceDatabase.writePiece (new Piece (1, ByteBuffer.wrap (Util.pseudoRandomBlock (1, 16384, 16384)), null)));
+
+		// Pieces 0 and 2 are no longer journalled after the second snapshot. Stopping the database
+		// journals piece 1 without taking a snapshot. The first database is
+		// not terminated
+		pieceDatabase.stop (true);
+
+		PieceDatabase pieceDatabase2 = new PieceDatabase (info, null, new FileStorage (baseDirectory), new FileMetadata (metadataDirectory));
+
+		assertEquals (2, pieceDatabase2.getVerifiedPieceCount());
+		assertTrue (pieceDatabase2.getPresentPieces().get (0));
+		assertFalse (pieceDatabase2.getPresentPieces().get (1));
+		assertTrue (pieceDatabase2.getPresentPieces().get (2));
+
+		pieceDatabase2.start (true);
+
+		assertEquals (3, pieceDatabase2.getVerifiedPieceCount());
+		assertEquals (3, pieceDatabase2.getPresentPieces().cardinality());
+		pieceDatabase2.stop (true);
+
+		// File "a" is then changed outside the database
+		File fileA = new File (new File (baseDirectory, "test"), "a");
+		fileA.setLastModified (fileA.lastModified() + 2000);
+
+		PieceDatabase pieceDatabase3 = new PieceDatabase (info, null, new FileStorage (baseDirectory), new FileMetadata (metadataDirectory));
+
+		assertEquals (1, pieceDatabase3.getVerifiedPieceCount());
+		assertTrue (pieceDatabase3.getPresentPieces().get (2));
+
+		pieceDatabase.terminate (true);
+		pieceDatabase2.terminate (true);
+		pieceDatabase3.terminate (true);
+
+	}
+
+
+	/**
+	 * Check that the blocks of a partially written piece are resumed, and are discarded once the
+	 * piece has been written
+	 * @throws Exception
+	 */
+	@Test
+	public void testResumePartialPiece() throws Exception {
+
+		File testFile = Util.createNonExistentTemporaryFile();
+		File metadataDirectory = Util.createTemporaryDirectory();
+
+		byte[][] blockHashes = Util.pseudoRandomBlockHashes (32768, 2 * 32768);
+		byte[] pieceHashes = Util.flatten2DArray (blockHashes);
+		Info info = Info.create (new InfoFileset (new Filespec (testFile.getName(), 2 * 32768L)), 32768, pieceHashes);
+		byte[] pieceData = Util.pseudoRandomBlock (1, 32768, 32768);
+
+		PieceDatabase pieceDatabase = new PieceDatabase (info, null, new FileStorage (testFile.getParentFile()), new FileMetadata (metadataDirectory));
+		pieceDatabase.start (true);
+		assertTrue (pieceDatabase.writeBlock (new BlockDescriptor (1, 0, 16384), ByteBuffer.wrap (pieceData, 0, 16384)));
+		pieceDatabase.terminate (true);
+
+		PieceDatabase pieceDatabase2 = new PieceDatabase (info, null, new FileStorage (testFile.getParentFile()), new FileMetadata (metadataDirectory));
+
+		Map<Integer,List<BlockDescriptor>> partialPieces = pieceDatabase2.getPartialPieces();
+		assertEquals (1, partialPieces.size());
+		assertEquals (Arrays.asList (new BlockDescriptor (1, 0, 16384)), partialPieces.get (1));
+
+		pieceDatabase2.start (true);
+		assertTrue (pieceDatabase2.writeBlock (new BlockDescriptor (1, 16384, 16384), ByteBuffer.wrap (pieceData, 16384, 16384)));
+		assertTrue (pieceDatabase2.writePiece (new Piece (1, 32768, 16384, true)));
+		assertTrue (pieceDatabase2.havePiece (1));
+		assertEquals (0, pieceDatabase2.getPartialPieces().size());
+		pieceDatabase2.terminate (true);
+
+		PieceDatabase pieceDatabase3 = new PieceDatabase (info, null, new FileStorage (testFile.getParentFile()), new FileMetadata (metadataDirectory));
+
+		assertEquals (0, pieceDatabase3.getPartialPieces().size());
+		assertTrue (pieceDatabase3.getPresentPieces().get (1));
+
+	}
+
+
 	/**
 	 * Tests writing to a Merkle database with 1 partial piece
 	 * @throws Exception
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.torrentdb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.itadaki.bobbin.torrentdb.VerificationScheduler;
+import org.itadaki.bobbin.torrentdb.VerificationScheduler.Priority;
+import org.junit.Test;
+
+
+/**
+ * Tests VerificationScheduler
+ */
+public class TestVerificationScheduler {
+
+	/**
+	 * A check that waits to be released, then records its completion
+	 */
+	private static class BlockingCheck implements Runnable {
+
+		/**
+		 * The check's name
+		 */
+		private final String name;
+
+		/**
+		 * The list to add the check's name to when it runs
+		 */
+		private final List<String> order;
+
+		/**
+		 * Counted down when the check starts
+		 */
+		public final CountDownLatch started = new CountDownLatch (1);
+
+		/**
+		 * Counted down to release the check
+		 */
+		public final CountDownLatch release = new CountDownLatch (1);
+
+		/**
+		 * Counted down when the check finishes
+		 */
+		public final CountDownLatch finished = new CountDownLatch (1);
+
+		/**
+		 * Set if the check was interrupted while waiting to be released
+		 */
+		public final AtomicBoolean interrupted = new AtomicBoolean (false);
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+			this.order.add (this.name);
+			this.started.countDown();
+			try {
+				this.release.await (5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				this.interrupted.set (true);
+			}
+			this.finished.countDown();
+		}
+
+		/**
+		 * @param name The check's name
+		 * @param order The list to add the check's name to when it runs
+		 */
+		public BlockingCheck (String name, List<String> order) {
+			this.name = name;
+			this.order = order;
+		}
+
+	}
+
+
+	/**
+	 * Tests that checks of the same device wait for the device's limit, and checks of different
+	 * devices run concurrently
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeviceLimit() throws Exception {
+
+		VerificationScheduler scheduler = new VerificationScheduler (1);
+		List<String> order = Collections.synchronizedList (new ArrayList<String>());
+		BlockingCheck check1 = new BlockingCheck ("1", order);
+		BlockingCheck check2 = new BlockingCheck ("2", order);
+		BlockingCheck check3 = new BlockingCheck ("3", order);
+
+		scheduler.submit ("device1", Priority.NORMAL, check1);
+		scheduler.submit ("device1", Priority.NORMAL, check2);
+		scheduler.submit ("device2", Priority.NORMAL, check3);
+
+		assertTrue (check1.started.await (5, TimeUnit.SECONDS));
+		assertTrue (check3.started.await (5, TimeUnit.SECONDS));
+		assertEquals (2, scheduler.getRunningCheckCount());
+		assertEquals (1, scheduler.getWaitingCheckCount());
+		assertEquals (1, check2.started.getCount());
+
+		check1.release.countDown();
+
+		assertTrue (check2.started.await (5, TimeUnit.SECONDS));
+
+		check2.release.countDown();
+		check3.release.countDown();
+		scheduler.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that waiting checks are started in order of priority, then of submission
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPriority() throws Exception {
+
+		VerificationScheduler scheduler = new VerificationScheduler (1);
+		List<String> order = Collections.synchronizedList (new ArrayList<String>());
+		BlockingCheck check1 = new BlockingCheck ("1", order);
+		BlockingCheck check2 = new BlockingCheck ("2", order);
+		BlockingCheck check3 = new BlockingCheck ("3", order);
+		BlockingCheck check4 = new BlockingCheck ("4", order);
+		BlockingCheck check5 = new BlockingCheck ("5", order);
+
+		scheduler.submit ("device", Priority.NORMAL, check1);
+		assertTrue (check1.started.await (5, TimeUnit.SECONDS));
+		scheduler.submit ("device", Priority.SEED, check2);
+		scheduler.submit ("device", Priority.NORMAL, check3);
+		scheduler.submit ("device", Priority.USER, check4);
+		VerificationScheduler.Check check = scheduler.submit ("device", Priority.SEED, check5);
+		check.setPriority (Priority.USER);
+
+		check2.release.countDown();
+		check3.release.countDown();
+		check4.release.countDown();
+		check5.release.countDown();
+		check1.release.countDown();
+
+		assertTrue (check2.finished.await (5, TimeUnit.SECONDS));
+		assertEquals (Arrays.asList ("1", "4", "5", "3", "2"), order);
+
+		scheduler.shutdown();
+
+	}
+
+
+	/**
+	 * Tests cancelling a waiting check
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCancelWaiting() throws Exception {
+
+		VerificationScheduler scheduler = new VerificationScheduler (1);
+		List<String> order = Collections.synchronizedList (new ArrayList<String>());
+		BlockingCheck check1 = new BlockingCheck ("1", order);
+		BlockingCheck check2 = new BlockingCheck ("2", order);
+		BlockingCheck check3 = new BlockingCheck ("3", order);
+
+		scheduler.submit ("device", Priority.NORMAL, check1);
+		VerificationScheduler.Check check = scheduler.submit ("device", Priority.NORMAL, check2);
+		scheduler.submit ("device", Priority.NORMAL, check3);
+
+		assertTrue (check.isWaiting());
+		assertTrue (check.cancel());
+		assertFalse (check.isWaiting());
+		assertEquals (1, scheduler.getWaitingCheckCount());
+
+		check1.release.countDown();
+		check3.release.countDown();
+
+		assertTrue (check3.finished.await (5, TimeUnit.SECONDS));
+		assertEquals (Arrays.asList ("1", "3"), order);
+
+		scheduler.shutdown();
+
+	}
+
+
+	/**
+	 * Tests cancelling a running check
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCancelRunning() throws Exception {
+
+		VerificationScheduler scheduler = new VerificationScheduler (1);
+		List<String> order = Collections.synchronizedList (new ArrayList<String>());
+		BlockingCheck check1 = new BlockingCheck ("1", order);
+
+		VerificationScheduler.Check check = scheduler.submit ("device", Priority.NORMAL, check1);
+		assertTrue (check1.started.await (5, TimeUnit.SECONDS));
+
+		assertFalse (check.cancel());
+		assertTrue (check1.finished.await (5, TimeUnit.SECONDS));
+		assertTrue (check1.interrupted.get());
+
+		scheduler.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that raising the limit per device starts waiting checks
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSetChecksPerDevice() throws Exception {
+
+		VerificationScheduler scheduler = new VerificationScheduler (1);
+		List<String> order = Collections.synchronizedList (new ArrayList<String>());
+		BlockingCheck check1 = new BlockingCheck ("1", order);
+		BlockingCheck check2 = new BlockingCheck ("2", order);
+
+		scheduler.submit ("device", Priority.NORMAL, check1);
+		scheduler.submit ("device", Priority.NORMAL, check2);
+		assertTrue (check1.started.await (5, TimeUnit.SECONDS));
+
+		scheduler.setChecksPerDevice (2);
+
+		assertTrue (check2.started.await (5, TimeUnit.SECONDS));
+		assertEquals (2, scheduler.getChecksPerDevice());
+
+		check1.release.countDown();
+		check2.release.countDown();
+		scheduler.shutdown();
+
+	}
+
+
+	/**
+	 * Tests that a check is not accepted after shutdown
+	 */
+	@Test
+	public void testShutdown() {
+
+		VerificationScheduler scheduler = new VerificationScheduler (1);
+		scheduler.shutdown();
+
+		assertNull (scheduler.submit ("device", Priority.NORMAL, new BlockingCheck ("1", new ArrayList<String>())));
+
+	}
+
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.util;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.itadaki.bobbin.util.BufferPool;
+import org.junit.Test;
+
+
+
+/**
+ * Tests BufferPool
+ */
+public class TestBufferPool {
+
+	/**
+	 * Tests that an allocated buffer has its limit set to the requested size and its capacity set
+	 * to the size class
+	 */
+	@Test
+	public void testAllocate() {
+
+		BufferPool pool = new BufferPool (false, 1024 * 1024, false);
+
+		ByteBuffer buffer1 = pool.allocate (1);
+		ByteBuffer buffer2 = pool.allocate (16384);
+		ByteBuffer buffer3 = pool.allocate (16385);
+
+		assertEquals (0, buffer1.position());
+		assertEquals (1, buffer1.limit());
+		assertEquals (BufferPool.MINIMUM_BUFFER_SIZE, buffer1.capacity());
+		assertEquals (16384, buffer2.limit());
+		assertEquals (16384, buffer2.capacity());
+		assertEquals (16385, buffer3.limit());
+		assertEquals (32768, buffer3.capacity());
+		assertFalse (buffer1.isDirect());
+		assertEquals (3, pool.getOutstandingCount());
+		assertEquals (4096 + 16384 + 32768, pool.getOutstandingBytes());
+		assertEquals (3, pool.getMissCount());
+
+	}
+
+
+	/**
+	 * Tests that a direct pool allocates direct buffers
+	 */
+	@Test
+	public void testAllocateDirect() {
+
+		BufferPool pool = new BufferPool (true, 1024 * 1024, false);
+
+		assertTrue (pool.isDirect());
+		assertTrue (pool.allocate(16384).isDirect());
+
+	}
+
+
+	/**
+	 * Tests that a released buffer is reused by a later allocation of the same size class
+	 */
+	@Test
+	public void testReuse() {
+
+		BufferPool pool = new BufferPool (false, 1024 * 1024, false);
+
+		ByteBuffer buffer1 = pool.allocate (16384);
+		buffer1.position (100);
+		pool.release (buffer1);
+
+		assertEquals (16384, pool.getRetainedBytes());
+		assertEquals (0, pool.getOutstandingCount());
+
+		ByteBuffer buffer2 = pool.allocate (10000);
+
+		assertSame (buffer1, buffer2);
+		assertEquals (0, buffer2.position());
+		assertEquals (10000, buffer2.limit());
+		assertEquals (0, pool.getRetainedBytes());
+		assertEquals (1, pool.getHitCount());
+		assertEquals (1, pool.getMissCount());
+
+	}
+
+
+	/**
+	 * Tests that a released buffer is discarded if retaining it would exceed the retained capacity
+	 */
+	@Test
+	public void testRetainedCapacity() {
+
+		BufferPool pool = new BufferPool (false, 16384, false);
+
+		ByteBuffer buffer1 = pool.allocate (16384);
+		ByteBuffer buffer2 = pool.allocate (16384);
+		pool.release (buffer1);
+		pool.release (buffer2);
+
+		assertEquals (16384, pool.getRetainedBytes());
+		assertEquals (1, pool.getDiscardCount());
+
+		pool.setRetainedCapacity (0);
+
+		assertEquals (0, pool.getRetainedBytes());
+		assertEquals (2, pool.getDiscardCount());
+
+	}
+
+
+	/**
+	 * Tests that a buffer larger than the largest size class is not retained
+	 */
+	@Test
+	public void testOversize() {
+
+		BufferPool pool = new BufferPool (false, Long.MAX_VALUE, false);
+
+		ByteBuffer buffer = pool.allocate (BufferPool.MAXIMUM_BUFFER_SIZE + 1);
+
+		assertEquals (BufferPool.MAXIMUM_BUFFER_SIZE + 1, buffer.capacity());
+
+		pool.release (buffer);
+
+		assertEquals (0, pool.getRetainedBytes());
+		assertEquals (1, pool.getDiscardCount());
+
+	}
+
+
+	/**
+	 * Tests that a buffer not allocated by the pool is not retained
+	 */
+	@Test
+	public void testForeign() {
+
+		BufferPool pool = new BufferPool (false, 1024 * 1024, false);
+
+		pool.release (ByteBuffer.allocate (16384).asReadOnlyBuffer());
+		pool.release (ByteBuffer.allocate (10000));
+
+		assertEquals (0, pool.getRetainedBytes());
+		assertEquals (2, pool.getDiscardCount());
+
+	}
+
+
+	/**
+	 * Tests leak detection
+	 */
+	@Test
+	public void testLeakDetection() {
+
+		BufferPool pool = new BufferPool (false, 1024 * 1024, true);
+
+		assertTrue (pool.isLeakDetectionEnabled());
+
+		ByteBuffer buffer1 = pool.allocate (16384);
+		pool.allocate (16384);
+
+		assertEquals (2, pool.getOutstandingAllocations().size());
+
+		pool.release (buffer1);
+
+		assertEquals (1, pool.getOutstandingAllocations().size());
+
+	}
+
+
+	/**
+	 * Tests that leak detection rejects a repeated release
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testLeakDetectionDoubleRelease() {
+
+		BufferPool pool = new BufferPool (false, 1024 * 1024, true);
+
+		ByteBuffer buffer = pool.allocate (16384);
+		pool.release (buffer);
+		pool.release (buffer);
+
+	}
+
+
+	/**
+	 * Tests that outstanding allocations are unavailable without leak detection
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testNoLeakDetection() {
+
+		BufferPool pool = new BufferPool (false, 1024 * 1024, false);
+
+		pool.getOutstandingAllocations();
+
+	}
+
+
+	/**
+	 * Tests that an invalid size is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testAllocateInvalid() {
+
+		new BufferPool (false, 1024 * 1024, false).allocate (-1);
+
+	}
+
+
+}
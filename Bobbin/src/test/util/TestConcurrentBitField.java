@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.util;
+
+import static org.junit.Assert.*;
+
+import org.itadaki.bobbin.util.BitField;
+import org.itadaki.bobbin.util.ConcurrentBitField;
+import org.junit.Test;
+
+
+/**
+ * Tests ConcurrentBitField
+ */
+public class TestConcurrentBitField {
+
+	/**
+	 * Tests creating a bit field with a negative length
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeCreate() {
+
+		new ConcurrentBitField (-1);
+
+	}
+
+
+	/**
+	 * Tests getting a bit beyond the end of the bit field
+	 */
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testGetOutOfRange() {
+
+		ConcurrentBitField bitField = new ConcurrentBitField (33);
+		bitField.get (33);
+
+	}
+
+
+	/**
+	 * Tests setting a bit beyond the end of the bit field
+	 */
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testSetOutOfRange() {
+
+		ConcurrentBitField bitField = new ConcurrentBitField (33);
+		bitField.set (33);
+
+	}
+
+
+	/**
+	 * Tests setting and clearing bits
+	 */
+	@Test
+	public void testSetClear() {
+
+		ConcurrentBitField bitField = new ConcurrentBitField (40);
+
+		bitField.set (0);
+		bitField.set (31);
+		bitField.set (32);
+		bitField.set (32);
+		bitField.set (39, true);
+		bitField.set (1, false);
+
+		assertTrue (bitField.get (0));
+		assertFalse (bitField.get (1));
+		assertTrue (bitField.get (31));
+		assertTrue (bitField.get (32));
+		assertTrue (bitField.get (39));
+		assertEquals (4, bitField.cardinality());
+
+		bitField.clear (31);
+		bitField.clear (31);
+
+		assertFalse (bitField.get (31));
+		assertEquals (3, bitField.cardinality());
+
+		bitField.clear();
+
+		assertFalse (bitField.get (0));
+		assertEquals (0, bitField.cardinality());
+
+	}
+
+
+	/**
+	 * Tests extending the bit field
+	 */
+	@Test
+	public void testExtend() {
+
+		ConcurrentBitField bitField = new ConcurrentBitField (30);
+		bitField.set (29);
+
+		bitField.extend (70);
+		bitField.set (69);
+
+		assertEquals (70, bitField.length());
+		assertTrue (bitField.get (29));
+		assertFalse (bitField.get (30));
+		assertTrue (bitField.get (69));
+		assertEquals (2, bitField.cardinality());
+
+	}
+
+
+	/**
+	 * Tests that a bit field cannot be shortened
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testExtendShorter() {
+
+		ConcurrentBitField bitField = new ConcurrentBitField (30);
+		bitField.extend (29);
+
+	}
+
+
+	/**
+	 * Tests converting to and from a BitField
+	 */
+	@Test
+	public void testAssignToBitField() {
+
+		BitField expectedBitField = new BitField (45);
+		expectedBitField.set (0);
+		expectedBitField.set (9);
+		expectedBitField.set (31);
+		expectedBitField.set (44);
+
+		ConcurrentBitField bitField = new ConcurrentBitField (3);
+		bitField.set (2);
+		bitField.assign (expectedBitField);
+
+		assertEquals (45, bitField.length());
+		assertEquals (4, bitField.cardinality());
+		assertFalse (bitField.get (2));
+		assertTrue (bitField.get (9));
+		assertEquals (expectedBitField, bitField.toBitField());
+
+	}
+
+
+	/**
+	 * Tests that concurrent changes to bits sharing a word are not lost
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentSet() throws Exception {
+
+		final ConcurrentBitField bitField = new ConcurrentBitField (64);
+
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int offset = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = offset; j < 64; j += 4) {
+						bitField.set (j);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals (64, bitField.cardinality());
+		assertEquals (64, bitField.toBitField().cardinality());
+
+	}
+
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.util.TimingWheel;
+import org.junit.Test;
+
+
+/**
+ * Tests TimingWheel
+ */
+public class TestTimingWheel {
+
+	/**
+	 * An executor that runs tasks on the calling thread
+	 */
+	private static final Executor directExecutor = new Executor() {
+		public void execute (Runnable command) {
+			command.run();
+		}
+	};
+
+
+	/**
+	 * Tests that a timeout expires no earlier than its delay
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testExpire() throws Exception {
+
+		TimingWheel timingWheel = new TimingWheel ("", 5, TimeUnit.MILLISECONDS, 4);
+		final CountDownLatch latch = new CountDownLatch (1);
+		final long[] runTime = new long[1];
+
+		long startTime = System.nanoTime();
+		timingWheel.schedule (new Runnable() {
+			public void run() {
+				runTime[0] = System.nanoTime();
+				latch.countDown();
+			}
+		}, directExecutor, 50, TimeUnit.MILLISECONDS);
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertTrue (runTime[0] - startTime >= TimeUnit.MILLISECONDS.toNanos (50));
+
+		timingWheel.stop();
+
+	}
+
+
+	/**
+	 * Tests that a timeout scheduled after the wheel has been idle for several turns expires no
+	 * earlier than its delay
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testExpireAfterIdle() throws Exception {
+
+		TimingWheel timingWheel = new TimingWheel ("", 1, TimeUnit.MILLISECONDS, 4);
+		final CountDownLatch latch = new CountDownLatch (1);
+		final long[] runTime = new long[1];
+
+		Thread.sleep (50);
+
+		long startTime = System.nanoTime();
+		timingWheel.schedule (new Runnable() {
+			public void run() {
+				runTime[0] = System.nanoTime();
+				latch.countDown();
+			}
+		}, directExecutor, 20, TimeUnit.MILLISECONDS);
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertTrue (runTime[0] - startTime >= TimeUnit.MILLISECONDS.toNanos (20));
+
+		timingWheel.stop();
+
+	}
+
+
+	/**
+	 * Tests that timeouts more than one turn of the wheel away expire in order
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testExpireRounds() throws Exception {
+
+		TimingWheel timingWheel = new TimingWheel ("", 1, TimeUnit.MILLISECONDS, 4);
+		final CountDownLatch latch = new CountDownLatch (2);
+		final StringBuffer order = new StringBuffer();
+
+		timingWheel.schedule (new Runnable() {
+			public void run() {
+				order.append ("b");
+				latch.countDown();
+			}
+		}, directExecutor, 60, TimeUnit.MILLISECONDS);
+		timingWheel.schedule (new Runnable() {
+			public void run() {
+				order.append ("a");
+				latch.countDown();
+			}
+		}, directExecutor, 20, TimeUnit.MILLISECONDS);
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertEquals ("ab", order.toString());
+
+		timingWheel.stop();
+
+	}
+
+
+	/**
+	 * Tests that a cancelled timeout does not expire
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCancel() throws Exception {
+
+		TimingWheel timingWheel = new TimingWheel ("", 5, TimeUnit.MILLISECONDS, 4);
+		final CountDownLatch cancelledLatch = new CountDownLatch (1);
+		final CountDownLatch latch = new CountDownLatch (1);
+
+		TimingWheel.Timeout timeout = timingWheel.schedule (new Runnable() {
+			public void run() {
+				cancelledLatch.countDown();
+			}
+		}, directExecutor, 20, TimeUnit.MILLISECONDS);
+		timingWheel.schedule (new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		}, directExecutor, 50, TimeUnit.MILLISECONDS);
+
+		assertTrue (timeout.cancel());
+		assertFalse (timeout.cancel());
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertEquals (1, cancelledLatch.getCount());
+
+		timingWheel.stop();
+
+	}
+
+
+	/**
+	 * Tests that cancelling an expired timeout has no effect
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCancelExpired() throws Exception {
+
+		TimingWheel timingWheel = new TimingWheel ("", 5, TimeUnit.MILLISECONDS, 4);
+		final CountDownLatch latch = new CountDownLatch (1);
+
+		TimingWheel.Timeout timeout = timingWheel.schedule (new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		}, directExecutor, 0, TimeUnit.MILLISECONDS);
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertFalse (timeout.cancel());
+
+		timingWheel.stop();
+
+	}
+
+
+	/**
+	 * Tests that a timeout does not expire once the wheel has been stopped
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStop() throws Exception {
+
+		TimingWheel timingWheel = new TimingWheel ("", 5, TimeUnit.MILLISECONDS, 4);
+		final CountDownLatch latch = new CountDownLatch (1);
+
+		timingWheel.schedule (new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		}, directExecutor, 20, TimeUnit.MILLISECONDS);
+		timingWheel.stop();
+
+		assertFalse (latch.await (100, TimeUnit.MILLISECONDS));
+
+	}
+
+
+	/**
+	 * Tests creating a wheel with an invalid bucket count
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidBucketCount() {
+
+		new TimingWheel ("", 5, TimeUnit.MILLISECONDS, 0);
+
+	}
+
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.itadaki.bobbin.util.WorkQueue;
+import org.junit.Test;
+
+
+/**
+ * Tests WorkQueue
+ */
+public class TestWorkQueue {
+
+	/**
+	 * Tests that tasks run one at a time in the order they were submitted
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSerialOrder() throws Exception {
+
+		WorkQueue workQueue = new WorkQueue ("");
+		final CountDownLatch latch = new CountDownLatch (1);
+		final AtomicInteger running = new AtomicInteger (0);
+		final StringBuffer order = new StringBuffer();
+		final boolean[] overlapped = new boolean[1];
+
+		for (int i = 0; i < 200; i++) {
+			final int number = i;
+			workQueue.execute (new Runnable() {
+				public void run() {
+					if (running.incrementAndGet() != 1) {
+						overlapped[0] = true;
+					}
+					order.append (number).append (",");
+					running.decrementAndGet();
+				}
+			});
+		}
+		workQueue.execute (new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		});
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+
+		StringBuffer expectedOrder = new StringBuffer();
+		for (int i = 0; i < 200; i++) {
+			expectedOrder.append (i).append (",");
+		}
+		assertFalse (overlapped[0]);
+		assertEquals (expectedOrder.toString(), order.toString());
+
+	}
+
+
+	/**
+	 * Tests that a failed task does not prevent later tasks from running
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailedTask() throws Exception {
+
+		WorkQueue workQueue = new WorkQueue ("");
+		final CountDownLatch latch = new CountDownLatch (1);
+
+		workQueue.execute (new Runnable() {
+			public void run() {
+				throw new RuntimeException();
+			}
+		});
+		workQueue.execute (new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		});
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+
+	}
+
+
+	/**
+	 * Tests running a delayed task
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSchedule() throws Exception {
+
+		WorkQueue workQueue = new WorkQueue ("");
+		final CountDownLatch latch = new CountDownLatch (1);
+
+		long startTime = System.nanoTime();
+		ScheduledFuture<?> future = workQueue.schedule (new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertTrue (System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos (50));
+		future.get (5, TimeUnit.SECONDS);
+		assertTrue (future.isDone());
+		assertFalse (future.isCancelled());
+
+	}
+
+
+	/**
+	 * Tests cancelling a delayed task
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected=CancellationException.class)
+	public void testScheduleCancel() throws Exception {
+
+		WorkQueue workQueue = new WorkQueue ("");
+		final AtomicInteger runs = new AtomicInteger (0);
+
+		ScheduledFuture<?> future = workQueue.schedule (new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+
+		assertTrue (future.cancel (false));
+		assertTrue (future.isCancelled());
+		Thread.sleep (100);
+		assertEquals (0, runs.get());
+
+		future.get();
+
+	}
+
+
+	/**
+	 * Tests that a periodic task repeats until cancelled
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testScheduleWithFixedDelay() throws Exception {
+
+		WorkQueue workQueue = new WorkQueue ("");
+		final CountDownLatch latch = new CountDownLatch (3);
+		final AtomicInteger runs = new AtomicInteger (0);
+
+		ScheduledFuture<?> future = workQueue.scheduleWithFixedDelay (new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+				latch.countDown();
+			}
+		}, 0, 10, TimeUnit.MILLISECONDS);
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		assertTrue (future.cancel (false));
+		int cancelledRuns = runs.get();
+		Thread.sleep (100);
+		assertTrue (runs.get() <= cancelledRuns + 1);
+
+	}
+
+
+	/**
+	 * Tests that a periodic task stops when its queue is shut down
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testScheduleWithFixedDelayShutdown() throws Exception {
+
+		WorkQueue workQueue = new WorkQueue ("");
+		final CountDownLatch latch = new CountDownLatch (1);
+
+		ScheduledFuture<?> future = workQueue.scheduleWithFixedDelay (new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		}, 0, 10, TimeUnit.MILLISECONDS);
+
+		assertTrue (latch.await (5, TimeUnit.SECONDS));
+		workQueue.shutdown();
+
+		future.get (5, TimeUnit.SECONDS);
+		assertTrue (future.isDone());
+		assertFalse (future.isCancelled());
+
+	}
+
+
+	/**
+	 * Tests that a shut down queue rejects new tasks
+	 */
+	@Test(expected=RejectedExecutionException.class)
+	public void testExecuteAfterShutdown() {
+
+		WorkQueue workQueue = new WorkQueue ("");
+		workQueue.shutdown();
+
+		assertTrue (workQueue.isShutdown());
+
+		workQueue.execute (new Runnable() {
+			public void run() { }
+		});
+
+	}
+
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2010 Matthew J. Francis and Contributors of the Bobbin Project
+ * This file is distributed under the MIT licence. See the LICENCE file for further information.
+ */
+package test.util.counter;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.itadaki.bobbin.util.counter.TokenBucket;
+import org.junit.Test;
+
+
+/**
+ * Tests TokenBucket
+ */
+public class TestTokenBucket {
+
+	/**
+	 * Tests that an unlimited bucket imposes no limit
+	 */
+	@Test
+	public void testUnlimited() {
+
+		TokenBucket bucket = new TokenBucket();
+
+		bucket.consume (1000000);
+
+		assertEquals (Long.MAX_VALUE, bucket.available());
+		assertEquals (0, bucket.getDelay (1000000, TimeUnit.NANOSECONDS));
+
+	}
+
+
+	/**
+	 * Tests that a limited bucket holds a quarter of a second's worth of tokens
+	 */
+	@Test
+	public void testCapacity() {
+
+		TokenBucket bucket = new TokenBucket();
+		bucket.setRate (1000000);
+
+		assertEquals (1000000, bucket.getRate());
+		assertEquals (250000, bucket.available());
+
+	}
+
+
+	/**
+	 * Tests that consumed tokens are unavailable until they have been replenished
+	 */
+	@Test
+	public void testConsume() {
+
+		TokenBucket bucket = new TokenBucket();
+		bucket.setRate (100000);
+
+		bucket.consume (bucket.available() + 10000);
+
+		assertEquals (0, bucket.available());
+		long delay = bucket.getDelay (10000, TimeUnit.MILLISECONDS);
+		assertTrue (delay > 100);
+		assertTrue (delay <= 200);
+
+	}
+
+
+	/**
+	 * Tests that tokens are replenished over time
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRefill() throws Exception {
+
+		TokenBucket bucket = new TokenBucket();
+		bucket.setRate (100000);
+		bucket.consume (bucket.available());
+
+		Thread.sleep (50);
+
+		long available = bucket.available();
+		assertTrue (available >= 4000);
+		assertTrue (available <= 25000);
+
+	}
+
+
+	/**
+	 * Tests that a child bucket is limited by its parent, and charges its parent
+	 */
+	@Test
+	public void testParent() {
+
+		TokenBucket parent = new TokenBucket();
+		parent.setRate (100000);
+		TokenBucket child1 = new TokenBucket (parent);
+		TokenBucket child2 = new TokenBucket (parent);
+		child2.setRate (1000000);
+
+		assertEquals (25000, child1.available());
+		assertEquals (25000, child2.available());
+
+		child1.consume (20000);
+
+		assertTrue (parent.available() < 10000);
+		assertTrue (child2.available() < 10000);
+		assertTrue (child2.getDelay (25000, TimeUnit.MILLISECONDS) > 100);
+
+	}
+
+
+	/**
+	 * Tests removing a limit
+	 */
+	@Test
+	public void testRemoveLimit() {
+
+		TokenBucket bucket = new TokenBucket();
+		bucket.setRate (100000);
+		bucket.consume (bucket.available());
+		bucket.setRate (0);
+
+		assertEquals (Long.MAX_VALUE, bucket.available());
+
+	}
+
+
+	/**
+	 * Tests setting a negative rate
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeRate() {
+
+		TokenBucket bucket = new TokenBucket();
+		bucket.setRate (-1);
+
+	}
+
+
+}
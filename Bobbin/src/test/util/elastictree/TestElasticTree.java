@@ -8,7 +8,10 @@ package test.util.elastictree;
 import static org.junit.Assert.*;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.itadaki.bobbin.util.BitField;
 import org.itadaki.bobbin.util.elastictree.ElasticTree;
 import org.itadaki.bobbin.util.elastictree.ElasticTreeView;
 import org.junit.Test;
@@ -497,6 +500,120 @@ public class TestElasticTree {
 	}
 
 
+	/**
+	 * Tests that building a tree's levels in parallel produces the same tree as building them
+	 * serially, for views with and without mutable nodes
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testBuildFromLeavesParallel() throws Exception {
+
+		ExecutorService executor = Executors.newFixedThreadPool (4);
+
+		try {
+			for (long viewLength : new long[] { 1025, 2048, 3001, 4096, 5000 }) {
+				byte[][] hashes = Util.pseudoRandomBlockHashes (1, (int)viewLength);
+				ByteBuffer concatenatedHashes = ByteBuffer.allocate (20 * hashes.length);
+				for (byte[] hash : hashes) {
+					concatenatedHashes.put (hash);
+				}
+
+				ElasticTree serialTree = ElasticTree.buildFromLeaves (1, viewLength, hashes);
+				ElasticTree parallelTree = ElasticTree.buildFromLeaves (1, viewLength, concatenatedHashes.array(), executor);
+
+				ElasticTreeView serialView = serialTree.getView (viewLength);
+				ElasticTreeView parallelView = parallelTree.getView (viewLength);
+				assertArrayEquals (serialView.getRootHash(), parallelView.getRootHash());
+				assertEquals (serialTree.getImmutableHashes(), parallelTree.getImmutableHashes());
+				for (int leafNumber : new int[] { 0, 1, 1024, (int)viewLength - 1 }) {
+					assertArrayEquals (serialView.getHashChain (leafNumber), parallelView.getHashChain (leafNumber));
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+	}
+
+
+	/**
+	 * Tests verifying a complete candidate view against a view with only a root hash
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testVerifyViewRootOnly() throws Exception {
+
+		ElasticTree candidateTree = specimenTree (1024, 1024 * 18);
+		ElasticTreeView candidateView = candidateTree.getView (1024 * 18);
+		ElasticTree tree = ElasticTree.emptyTree (1024, 1024 * 18, ByteBuffer.wrap (candidateView.getRootHash()));
+		ElasticTreeView view = tree.getView (1024 * 18);
+
+		BitField verifiedLeaves = view.verifyView (candidateView);
+
+		assertEquals (18, verifiedLeaves.cardinality());
+		for (int i = 0; i < 18; i++) {
+			assertTrue (view.canVerifyLeaf (i));
+			assertArrayEquals (candidateView.getHashChain (i), view.getHashChain (i));
+		}
+
+	}
+
+
+	/**
+	 * Tests verifying a candidate view with one differing leaf against a complete view
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testVerifyViewOneLeafDiffers() throws Exception {
+
+		int viewLength = 3001;
+		byte[][] hashes = Util.pseudoRandomBlockHashes (1, viewLength);
+		ElasticTreeView view = ElasticTree.buildFromLeaves (1, viewLength, hashes).getView (viewLength);
+		hashes[1234] = new byte[20];
+		ElasticTreeView candidateView = ElasticTree.buildFromLeaves (1, viewLength, hashes).getView (viewLength);
+
+		BitField verifiedLeaves = view.verifyView (candidateView);
+
+		assertEquals (viewLength - 1, verifiedLeaves.cardinality());
+		assertFalse (verifiedLeaves.get (1234));
+
+	}
+
+
+	/**
+	 * Tests verifying a differing candidate view against a view with only a root hash
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testVerifyViewRootDiffers() throws Exception {
+
+		ElasticTreeView candidateView = specimenTree (1024, 1024 * 18).getView (1024 * 18);
+		ElasticTree tree = ElasticTree.emptyTree (1024, 1024 * 18, ByteBuffer.wrap (new byte[20]));
+
+		BitField verifiedLeaves = tree.getView (1024 * 18).verifyView (candidateView);
+
+		assertEquals (0, verifiedLeaves.cardinality());
+
+	}
+
+
+	/**
+	 * Tests verifying a candidate view of a different length
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testVerifyViewIncompatible() throws Exception {
+
+		specimenTree (1024, 1024 * 18).getView (1024 * 18).verifyView (specimenTree (1024, 1024 * 17).getView (1024 * 17));
+
+	}
+
+
 	// TODO Test addView
 	// TODO Test getAllViews
 	// TODO Test withNodeHashes